@@ -0,0 +1,201 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * A symmetric matrix with the block structure of a {@link ConeLayout}, such
+ * as a barrier Hessian or its inverse.
+ * <p>
+ * The entries for non-negative orthant cones are stored as a packed
+ * diagonal, in the order of {@link ConeLayout#getNNOCIndices()}. Each
+ * second-order cone has a dense, row-major block, in the order of
+ * {@link ConeLayout#getSOCIndices()}.
+ */
+class BlockDiagonalMatrix {
+
+	private final ConeLayout layout;
+	private final double[] diagonal;
+	private final int[] blockOffsets;
+	private final double[] blocks;
+
+	/* Column-compressed copy and the position in it of each packed entry */
+	private SparseCCDoubleMatrix2D columnCompressed;
+	private int[] diagonalPositions;
+	private int[] blockPositions;
+
+	BlockDiagonalMatrix(ConeLayout layout) {
+		this.layout = layout;
+		diagonal = new double[layout.getNumNNOC()];
+		int[] socOffsets = layout.getSOCOffsets();
+		blockOffsets = new int[layout.getNumSOC() + 1];
+		for (int k = 0; k < layout.getNumSOC(); k++) {
+			int n = socOffsets[k+1] - socOffsets[k];
+			blockOffsets[k+1] = blockOffsets[k] + n * n;
+		}
+		blocks = new double[blockOffsets[layout.getNumSOC()]];
+	}
+
+	double[] getDiagonal() {
+		return diagonal;
+	}
+
+	double[] getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * Returns the offsets of the second-order cone blocks in
+	 * {@link #getBlocks()}. Block k starts at offset k and ends before
+	 * offset k+1.
+	 */
+	int[] getBlockOffsets() {
+		return blockOffsets;
+	}
+
+	/**
+	 * Computes z = M * y.
+	 *
+	 * @param y  the vector to multiply
+	 * @param z  the vector to hold the result. If null, a new one is created.
+	 * @return z
+	 */
+	DoubleMatrix1D zMult(DoubleMatrix1D y, DoubleMatrix1D z) {
+		if (z == null)
+			z = new DenseDoubleMatrix1D(layout.size());
+
+		int[] nnocIndices = layout.getNNOCIndices();
+		for (int q = 0; q < nnocIndices.length; q++)
+			z.setQuick(nnocIndices[q], diagonal[q] * y.getQuick(nnocIndices[q]));
+
+		int[] socOffsets = layout.getSOCOffsets();
+		int[] socIndices = layout.getSOCIndices();
+		for (int k = 0; k < layout.getNumSOC(); k++) {
+			int first = socOffsets[k];
+			int n = socOffsets[k+1] - first;
+			int offset = blockOffsets[k];
+			for (int a = 0; a < n; a++) {
+				double sum = 0.0;
+				for (int b = 0; b < n; b++)
+					sum += blocks[offset + a * n + b] * y.getQuick(socIndices[first + b]);
+				z.setQuick(socIndices[first + a], sum);
+			}
+		}
+
+		return z;
+	}
+
+	/**
+	 * Returns y' * M * y.
+	 */
+	double quadraticForm(DoubleMatrix1D y) {
+		double result = 0.0;
+
+		int[] nnocIndices = layout.getNNOCIndices();
+		for (int q = 0; q < nnocIndices.length; q++) {
+			double yi = y.getQuick(nnocIndices[q]);
+			result += diagonal[q] * yi * yi;
+		}
+
+		int[] socOffsets = layout.getSOCOffsets();
+		int[] socIndices = layout.getSOCIndices();
+		for (int k = 0; k < layout.getNumSOC(); k++) {
+			int first = socOffsets[k];
+			int n = socOffsets[k+1] - first;
+			int offset = blockOffsets[k];
+			for (int a = 0; a < n; a++) {
+				double sum = 0.0;
+				for (int b = 0; b < n; b++)
+					sum += blocks[offset + a * n + b] * y.getQuick(socIndices[first + b]);
+				result += y.getQuick(socIndices[first + a]) * sum;
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns this matrix in column-compressed form.
+	 * <p>
+	 * The same matrix is returned by every call, with its values updated in
+	 * place, so it must not be modified or kept across changes to this one.
+	 * Every entry of every block is stored, even if it is zero, so the
+	 * sparsity pattern never changes.
+	 */
+	SparseCCDoubleMatrix2D getColumnCompressed() {
+		if (columnCompressed == null)
+			buildColumnCompressed();
+
+		double[] values = columnCompressed.getValues();
+		for (int q = 0; q < diagonal.length; q++)
+			values[diagonalPositions[q]] = diagonal[q];
+		for (int p = 0; p < blocks.length; p++)
+			values[blockPositions[p]] = blocks[p];
+
+		return columnCompressed;
+	}
+
+	private void buildColumnCompressed() {
+		int nnz = diagonal.length + blocks.length;
+		int[] rowIndexes = new int[nnz];
+		int[] columnIndexes = new int[nnz];
+
+		int[] nnocIndices = layout.getNNOCIndices();
+		for (int q = 0; q < nnocIndices.length; q++) {
+			rowIndexes[q] = nnocIndices[q];
+			columnIndexes[q] = nnocIndices[q];
+		}
+
+		int[] socOffsets = layout.getSOCOffsets();
+		int[] socIndices = layout.getSOCIndices();
+		for (int k = 0; k < layout.getNumSOC(); k++) {
+			int first = socOffsets[k];
+			int n = socOffsets[k+1] - first;
+			int offset = blockOffsets[k];
+			for (int a = 0; a < n; a++) {
+				for (int b = 0; b < n; b++) {
+					rowIndexes[diagonal.length + offset + a * n + b] = socIndices[first + a];
+					columnIndexes[diagonal.length + offset + a * n + b] = socIndices[first + b];
+				}
+			}
+		}
+
+		columnCompressed = new SparseCCDoubleMatrix2D(layout.size(), layout.size(),
+				rowIndexes, columnIndexes, new double[nnz], false, false, true);
+
+		/* Finds where each packed entry was placed */
+		Dcs dcs = columnCompressed.getDcs();
+		diagonalPositions = new int[diagonal.length];
+		for (int q = 0; q < diagonal.length; q++)
+			diagonalPositions[q] = find(dcs, rowIndexes[q], columnIndexes[q]);
+		blockPositions = new int[blocks.length];
+		for (int p = 0; p < blocks.length; p++)
+			blockPositions[p] = find(dcs, rowIndexes[diagonal.length + p], columnIndexes[diagonal.length + p]);
+	}
+
+	private static int find(Dcs dcs, int row, int column) {
+		for (int p = dcs.p[column]; p < dcs.p[column+1]; p++)
+			if (dcs.i[p] == row)
+				return p;
+		throw new IllegalStateException("Entry missing from column-compressed matrix.");
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm;
+
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+import org.linqs.psl.experimental.optimizer.conic.program.NonNegativeOrthantCone;
+import org.linqs.psl.experimental.optimizer.conic.program.RotatedSecondOrderCone;
+import org.linqs.psl.experimental.optimizer.conic.program.SecondOrderCone;
+import org.linqs.psl.experimental.optimizer.conic.program.Variable;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * Packed description of the cones of a checked-out {@link ConicProgram}.
+ * <p>
+ * The indices of the non-negative orthant cones' variables are stored
+ * contiguously, followed by the indices of each second-order cone's
+ * variables as a block, inner variables first and the nth variable last.
+ * The blocks of rotated second-order cones follow, inner variables first,
+ * then the (n-1)st variable and the nth variable last.
+ * The barrier computations of the cones then run as loops over these
+ * arrays, without looking up variables in maps or dispatching to each cone.
+ * <p>
+ * Rotated second-order cones are handled directly by the barrier methods.
+ * Methods that need the algebra of second-order cones can instead
+ * {@link #rotate(DoubleMatrix1D)} the variables and
+ * {@link #rotateColumns(SparseCCDoubleMatrix2D)} the constraint matrix, after
+ * which every block describes a second-order cone with the nth variable last.
+ * <p>
+ * A layout is only valid while the matrices from which it was built are
+ * checked out.
+ */
+class ConeLayout {
+
+	private final int size;
+	private final int[] nnocIndices;
+	private final int[] socOffsets;
+	private final int[] socIndices;
+	private final int firstRSOC;
+
+	ConeLayout(ConicProgram program) {
+		size = program.getNumVariables();
+
+		nnocIndices = new int[program.getNumNNOC()];
+		int i = 0;
+		for (NonNegativeOrthantCone cone : program.getNonNegativeOrthantCones())
+			nnocIndices[i++] = program.getIndex(cone.getVariable());
+
+		firstRSOC = program.gtNumSOC();
+		socOffsets = new int[firstRSOC + program.getNumRSOC() + 1];
+		int k = 0;
+		for (SecondOrderCone cone : program.getSecondOrderCones()) {
+			socOffsets[k+1] = socOffsets[k] + cone.getN();
+			k++;
+		}
+		for (RotatedSecondOrderCone cone : program.getRotatedSecondOrderCones()) {
+			socOffsets[k+1] = socOffsets[k] + cone.getN();
+			k++;
+		}
+
+		socIndices = new int[socOffsets[k]];
+		k = 0;
+		for (SecondOrderCone cone : program.getSecondOrderCones()) {
+			i = socOffsets[k];
+			for (Variable v : cone.getInnerVariables())
+				socIndices[i++] = program.getIndex(v);
+			socIndices[i] = program.getIndex(cone.getNthVariable());
+			k++;
+		}
+		for (RotatedSecondOrderCone cone : program.getRotatedSecondOrderCones()) {
+			i = socOffsets[k];
+			for (Variable v : cone.getInnerVariables())
+				socIndices[i++] = program.getIndex(v);
+			socIndices[i++] = program.getIndex(cone.getNMinus1stVariable());
+			socIndices[i] = program.getIndex(cone.getNthVariable());
+			k++;
+		}
+	}
+
+	/** Returns the number of variables in the program */
+	int size() {
+		return size;
+	}
+
+	int getNumNNOC() {
+		return nnocIndices.length;
+	}
+
+	/**
+	 * Returns the number of second-order cone blocks, including the blocks of
+	 * rotated second-order cones.
+	 */
+	int getNumSOC() {
+		return socOffsets.length - 1;
+	}
+
+	int getNumRSOC() {
+		return socOffsets.length - 1 - firstRSOC;
+	}
+
+	/** Returns whether block k is the block of a rotated second-order cone */
+	boolean isRotated(int k) {
+		return k >= firstRSOC;
+	}
+
+	int[] getNNOCIndices() {
+		return nnocIndices;
+	}
+
+	/**
+	 * Returns the offsets of the second-order cone blocks in
+	 * {@link #getSOCIndices()}. Block k starts at offset k and ends before
+	 * offset k+1.
+	 */
+	int[] getSOCOffsets() {
+		return socOffsets;
+	}
+
+	int[] getSOCIndices() {
+		return socIndices;
+	}
+
+	/**
+	 * Replaces the nth and (n-1)st variables x_n and x_{n-1} of each rotated
+	 * second-order cone with (x_n + x_{n-1}) / sqrt(2) and
+	 * (x_n - x_{n-1}) / sqrt(2). The rotation is its own inverse.
+	 */
+	void rotate(DoubleMatrix1D x) {
+		for (int k = firstRSOC; k < getNumSOC(); k++) {
+			int last = socOffsets[k+1] - 1;
+			double xN = x.getQuick(socIndices[last]);
+			double xNMinus1 = x.getQuick(socIndices[last-1]);
+			x.setQuick(socIndices[last], (xN + xNMinus1) / Math.sqrt(2));
+			x.setQuick(socIndices[last-1], (xN - xNMinus1) / Math.sqrt(2));
+		}
+	}
+
+	/**
+	 * Returns A with the columns of each rotated second-order cone's nth and
+	 * (n-1)st variables rotated as by {@link #rotate(DoubleMatrix1D)}, so
+	 * that (A with its columns rotated) (x rotated) = A x. If there are no
+	 * rotated second-order cones, A itself is returned.
+	 */
+	SparseCCDoubleMatrix2D rotateColumns(SparseCCDoubleMatrix2D A) {
+		if (getNumRSOC() == 0)
+			return A;
+
+		/* Maps each rotated column to the column it is paired with */
+		int[] pairs = new int[size];
+		boolean[] isNth = new boolean[size];
+		for (int j = 0; j < size; j++)
+			pairs[j] = -1;
+		int numPairedEntries = 0;
+		Dcs a = A.getDcs();
+		for (int k = firstRSOC; k < getNumSOC(); k++) {
+			int last = socOffsets[k+1] - 1;
+			pairs[socIndices[last]] = socIndices[last-1];
+			pairs[socIndices[last-1]] = socIndices[last];
+			isNth[socIndices[last]] = true;
+			numPairedEntries += a.p[socIndices[last]+1] - a.p[socIndices[last]];
+			numPairedEntries += a.p[socIndices[last-1]+1] - a.p[socIndices[last-1]];
+		}
+
+		/* Writes each entry of a rotated column to both columns of its pair, summing duplicates */
+		int nnz = a.p[size] + numPairedEntries;
+		int[] rowIndexes = new int[nnz];
+		int[] columnIndexes = new int[nnz];
+		double[] values = new double[nnz];
+		int next = 0;
+		for (int j = 0; j < size; j++) {
+			for (int p = a.p[j]; p < a.p[j+1]; p++) {
+				if (pairs[j] == -1) {
+					rowIndexes[next] = a.i[p];
+					columnIndexes[next] = j;
+					values[next++] = a.x[p];
+				}
+				else {
+					int nth = (isNth[j]) ? j : pairs[j];
+					int nMinus1st = (isNth[j]) ? pairs[j] : j;
+					rowIndexes[next] = a.i[p];
+					columnIndexes[next] = nth;
+					values[next++] = a.x[p] / Math.sqrt(2);
+					rowIndexes[next] = a.i[p];
+					columnIndexes[next] = nMinus1st;
+					values[next++] = ((isNth[j]) ? 1 : -1) * a.x[p] / Math.sqrt(2);
+				}
+			}
+		}
+
+		return new SparseCCDoubleMatrix2D(A.rows(), A.columns(), rowIndexes, columnIndexes, values, true, false, true);
+	}
+
+	/*
+	 * Returns x_n^2 - ||x_{1:n-1}||^2 for SOC block k, or
+	 * 2 x_n x_{n-1} - ||x_{1:n-2}||^2 for RSOC block k
+	 */
+	private double getDeterminant(int k, DoubleMatrix1D x) {
+		int last = socOffsets[k+1] - 1;
+		double xN = x.getQuick(socIndices[last]);
+		int innerEnd = last;
+		double det;
+		if (isRotated(k)) {
+			innerEnd = last - 1;
+			det = 2 * xN * x.getQuick(socIndices[innerEnd]);
+		}
+		else
+			det = xN * xN;
+		for (int p = socOffsets[k]; p < innerEnd; p++) {
+			double xj = x.getQuick(socIndices[p]);
+			det -= xj * xj;
+		}
+		return det;
+	}
+
+	void setBarrierGradient(DoubleMatrix1D x, DoubleMatrix1D g) {
+		for (int i : nnocIndices)
+			g.setQuick(i, -1 / x.getQuick(i));
+
+		for (int k = 0; k < getNumSOC(); k++) {
+			int last = socOffsets[k+1] - 1;
+			double coeff = 2 / getDeterminant(k, x);
+			if (isRotated(k)) {
+				for (int p = socOffsets[k]; p < last - 1; p++)
+					g.setQuick(socIndices[p], coeff * x.getQuick(socIndices[p]));
+				g.setQuick(socIndices[last-1], -1 * coeff * x.getQuick(socIndices[last]));
+				g.setQuick(socIndices[last], -1 * coeff * x.getQuick(socIndices[last-1]));
+			}
+			else {
+				for (int p = socOffsets[k]; p < last; p++)
+					g.setQuick(socIndices[p], coeff * x.getQuick(socIndices[p]));
+				g.setQuick(socIndices[last], -1 * coeff * x.getQuick(socIndices[last]));
+			}
+		}
+	}
+
+	/**
+	 * Sets H to the barrier Hessian. A second-order cone block is
+	 * c^2 (Jx)(Jx)' + cJ, where J = diag(1, ..., 1, -1) and c = 2 / det. A
+	 * rotated second-order cone block is gg' + cK, where g is the block's
+	 * gradient and K is the identity on the inner variables and [0 -1; -1 0]
+	 * on the (n-1)st and nth variables.
+	 */
+	void setBarrierHessian(DoubleMatrix1D x, BlockDiagonalMatrix H) {
+		double[] diagonal = H.getDiagonal();
+		for (int q = 0; q < nnocIndices.length; q++) {
+			double xi = x.getQuick(nnocIndices[q]);
+			diagonal[q] = 1 / (xi * xi);
+		}
+
+		double[] blocks = H.getBlocks();
+		int[] blockOffsets = H.getBlockOffsets();
+		for (int k = 0; k < getNumSOC(); k++) {
+			int first = socOffsets[k];
+			int n = socOffsets[k+1] - first;
+			double coeff = 2 / getDeterminant(k, x);
+			int offset = blockOffsets[k];
+			if (isRotated(k)) {
+				double[] g = new double[n];
+				for (int a = 0; a < n - 2; a++)
+					g[a] = coeff * x.getQuick(socIndices[first + a]);
+				g[n-2] = -1 * coeff * x.getQuick(socIndices[first + n - 1]);
+				g[n-1] = -1 * coeff * x.getQuick(socIndices[first + n - 2]);
+				for (int a = 0; a < n; a++)
+					for (int b = 0; b < n; b++)
+						blocks[offset + a * n + b] = g[a] * g[b];
+				addK(blocks, offset, n, coeff);
+			}
+			else {
+				double coeffSq = coeff * coeff;
+				for (int a = 0; a < n; a++) {
+					double xa = x.getQuick(socIndices[first + a]);
+					if (a == n - 1)
+						xa *= -1;
+					for (int b = 0; b < n; b++) {
+						double xb = x.getQuick(socIndices[first + b]);
+						if (b == n - 1)
+							xb *= -1;
+						blocks[offset + a * n + b] = coeffSq * xa * xb;
+					}
+					blocks[offset + a * n + a] += (a == n - 1) ? -1 * coeff : coeff;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets Hinv to the inverse of the barrier Hessian. The inverse of a
+	 * second-order cone block is xx' + (det / 2) diag(1, ..., 1, -1), where
+	 * det = x_n^2 - ||x_{1:n-1}||^2. The inverse of a rotated second-order
+	 * cone block is xx' + (det / 2) K, where det = 2 x_n x_{n-1} - ||x_{1:n-2}||^2
+	 * and K is as for {@link #setBarrierHessian(DoubleMatrix1D, BlockDiagonalMatrix)}.
+	 */
+	void setBarrierHessianInv(DoubleMatrix1D x, BlockDiagonalMatrix Hinv) {
+		double[] diagonal = Hinv.getDiagonal();
+		for (int q = 0; q < nnocIndices.length; q++) {
+			double xi = x.getQuick(nnocIndices[q]);
+			diagonal[q] = xi * xi;
+		}
+
+		double[] blocks = Hinv.getBlocks();
+		int[] blockOffsets = Hinv.getBlockOffsets();
+		for (int k = 0; k < getNumSOC(); k++) {
+			int first = socOffsets[k];
+			int n = socOffsets[k+1] - first;
+			double halfDet = getDeterminant(k, x) / 2;
+			int offset = blockOffsets[k];
+			for (int a = 0; a < n; a++) {
+				double xa = x.getQuick(socIndices[first + a]);
+				for (int b = 0; b < n; b++)
+					blocks[offset + a * n + b] = xa * x.getQuick(socIndices[first + b]);
+				if (!isRotated(k))
+					blocks[offset + a * n + a] += (a == n - 1) ? -1 * halfDet : halfDet;
+			}
+			if (isRotated(k))
+				addK(blocks, offset, n, halfDet);
+		}
+	}
+
+	/* Adds coeff K to the n by n block at offset */
+	private static void addK(double[] blocks, int offset, int n, double coeff) {
+		for (int a = 0; a < n - 2; a++)
+			blocks[offset + a * n + a] += coeff;
+		blocks[offset + (n - 2) * n + n - 1] -= coeff;
+		blocks[offset + (n - 1) * n + n - 2] -= coeff;
+	}
+
+	/**
+	 * Returns the largest step, up to 1, in the direction dx that keeps x in
+	 * the interior of every cone. The result is the same as the minimum of
+	 * 1 and each cone's {@link org.linqs.psl.experimental.optimizer.conic.program.Cone#getMaxStep}.
+	 */
+	double getMaxStep(DoubleMatrix1D x, DoubleMatrix1D dx) {
+		double step = 1.0;
+		for (int i : nnocIndices) {
+			double dxi = dx.getQuick(i);
+			if (dxi < 0)
+				step = Math.min(step, (x.getQuick(i) * .95) / (-1 * dxi));
+		}
+
+		for (int k = 0; k < getNumSOC(); k++) {
+			int last = socOffsets[k+1] - 1;
+			double xN = x.getQuick(socIndices[last]);
+			double dxN = dx.getQuick(socIndices[last]);
+
+			/* Coefficients of the quadratic a t^2 + b t + c */
+			double a, b, c, head;
+			int innerEnd;
+			if (isRotated(k)) {
+				innerEnd = last - 1;
+				double xNMinus1 = x.getQuick(socIndices[innerEnd]);
+				double dxNMinus1 = dx.getQuick(socIndices[innerEnd]);
+				a = 2 * dxN * dxNMinus1;
+				b = xN * dxNMinus1 + xNMinus1 * dxN;
+				c = 2 * xN * xNMinus1;
+				head = xN + xNMinus1;
+			}
+			else {
+				innerEnd = last;
+				a = dxN * dxN;
+				b = xN * dxN;
+				c = xN * xN;
+				head = xN;
+			}
+			for (int p = socOffsets[k]; p < innerEnd; p++) {
+				double xj = x.getQuick(socIndices[p]);
+				double dxj = dx.getQuick(socIndices[p]);
+				a -= dxj * dxj;
+				b -= xj * dxj;
+				c -= xj * xj;
+			}
+			b *= 2;
+
+			if (head <= 0.0 || c <= 0.0)
+				return 0.0;
+
+			step = Math.min(step, SecondOrderCone.getMaxStep(a, b, c));
+		}
+
+		return step;
+	}
+}
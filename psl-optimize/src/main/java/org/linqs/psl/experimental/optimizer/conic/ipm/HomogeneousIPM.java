@@ -19,8 +19,9 @@ package org.linqs.psl.experimental.optimizer.conic.ipm;
 
 import org.linqs.psl.config.Config;
 import org.linqs.psl.experimental.optimizer.conic.ConicProgramSolver;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.ConjugateGradient;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.ImplicitMatrix;
 import org.linqs.psl.experimental.optimizer.conic.ipm.solver.NormalSystemSolver;
-import org.linqs.psl.experimental.optimizer.conic.program.Cone;
 import org.linqs.psl.experimental.optimizer.conic.program.ConeType;
 import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
 import org.linqs.psl.experimental.optimizer.conic.program.NonNegativeOrthantCone;
@@ -40,12 +41,18 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Primal-dual interior-point method using the self-dual homogeneous model.
  *
- * Supports conic programs with non-negative orthant cones and second-order cones.
+ * Supports conic programs with non-negative orthant cones, second-order cones
+ * and rotated second-order cones. Each rotated second-order cone is solved as
+ * a second-order cone by rotating its nth and (n-1)st variables, without
+ * adding variables or constraints.
  *
  * This solver follows the algorithm presented in
  * E. D. Andersen, C. Roos and T. Terlaky. "On implementing a primal-dual
@@ -140,10 +147,77 @@ public class HomogeneousIPM implements ConicProgramSolver {
 	public static final String NORMAL_SYS_SOLVER_KEY = CONFIG_PREFIX + ".normalsolver";
 	public static final String NORMAL_SYS_SOLVER_DEFAULT = "org.linqs.psl.experimental.optimizer.conic.ipm.solver.Cholesky";
 
-	private static final ArrayList<ConeType> supportedCones = new ArrayList<ConeType>(2);
+	/**
+	 * Key for boolean property. If true, the IPM will not form the matrix of
+	 * the normal system. The normal system solver will instead be given an
+	 * {@link ImplicitMatrix} that multiplies by the matrix, exposes its
+	 * diagonal, and assembles its lower triangle only if the preconditioner
+	 * asks for it, so the solver must be a {@link ConjugateGradient}.
+	 */
+	public static final String MATRIX_FREE_KEY = CONFIG_PREFIX + ".matrixfree";
+	/** Default value for MATRIX_FREE_KEY property. */
+	public static final boolean MATRIX_FREE_DEFAULT = false;
+
+	/**
+	 * Key for positive integer property. If greater than 1, the IPM will
+	 * split the cones into chunks and process them in parallel with this
+	 * many threads when computing scaling matrices, step sizes, and
+	 * scaling updates. The threads are only kept for the duration of each
+	 * solve.
+	 */
+	public static final String THREADS_KEY = CONFIG_PREFIX + ".threads";
+	/** Default value for THREADS_KEY property. */
+	public static final int THREADS_DEFAULT = 1;
+
+	/**
+	 * Key for non-negative integer property. The IPM will compute up to this
+	 * many additional centrality correctors in each step, reusing the
+	 * factorization of the normal system. A corrector is kept only if it
+	 * sufficiently increases the step size.
+	 */
+	public static final String MAX_CORRECTORS_KEY = CONFIG_PREFIX + ".maxcorrectors";
+	/** Default value for MAX_CORRECTORS_KEY property. */
+	public static final int MAX_CORRECTORS_DEFAULT = 0;
+
+	/**
+	 * Key for boolean property. If true, the IPM will start each solve of a
+	 * program it has already solved from the previous solution, instead of
+	 * from the standard initial point.
+	 *
+	 * @see #setWarmStart(boolean)
+	 */
+	public static final String WARM_START_KEY = CONFIG_PREFIX + ".warmstart";
+	/** Default value for WARM_START_KEY property. */
+	public static final boolean WARM_START_DEFAULT = false;
+
+	/**
+	 * Key for double property in (0,1]. When warm starting, the IPM will
+	 * move the previous solution this fraction of the way toward the standard
+	 * initial point, which is in the interior of every cone. Larger values
+	 * keep the starting point farther from the boundaries of the cones.
+	 */
+	public static final String WARM_START_SHIFT_KEY = CONFIG_PREFIX + ".warmstartshift";
+	/** Default value for WARM_START_SHIFT_KEY property. */
+	public static final double WARM_START_SHIFT_DEFAULT = 0.1;
+
+	/* Minimum number of cones in a chunk processed by a single task */
+	private static final int MIN_CONES_PER_TASK = 256;
+
+	/* Amount by which each centrality corrector tries to increase the step size */
+	private static final double CORRECTOR_STEP_INCREASE = 0.1;
+
+	/* Fraction of CORRECTOR_STEP_INCREASE that must be achieved to keep a corrector */
+	private static final double CORRECTOR_ACCEPTANCE = 0.1;
+
+	/* Bounds, relative to gamma * mu, on the complementarity of each cone after a corrector */
+	private static final double CORRECTOR_MIN_RATIO = 0.1;
+	private static final double CORRECTOR_MAX_RATIO = 10.0;
+
+	private static final ArrayList<ConeType> supportedCones = new ArrayList<ConeType>(3);
 	static {
 		supportedCones.add(ConeType.NonNegativeOrthantCone);
 		supportedCones.add(ConeType.SecondOrderCone);
+		supportedCones.add(ConeType.RotatedSecondOrderCone);
 	}
 
 	private ConicProgram currentProgram;
@@ -159,6 +233,15 @@ public class HomogeneousIPM implements ConicProgramSolver {
 	private final double beta;
 	private final double delta;
 	private final NormalSystemSolver solver;
+	private final boolean matrixFree;
+	private final int threads;
+	private ForkJoinPool pool;
+	private final int maxCorrectors;
+	private final double warmStartShift;
+	private boolean warmStart;
+
+	/* Whether the current program's variables hold a solution found by this IPM */
+	private boolean hasPreviousSolution;
 
 	private int stepNum;
 
@@ -171,6 +254,14 @@ public class HomogeneousIPM implements ConicProgramSolver {
 	private int k;
 	private SparseDoubleMatrix2D T;
 	private DoubleMatrix1D e;
+	private ConeLayout layout;
+
+	/* A and c with the variables of RSOCs rotated */
+	private SparseCCDoubleMatrix2D rotatedA;
+	private DoubleMatrix1D rotatedC;
+	private int[] nnocIndices;
+	private int[][] socSelections;
+	private int[] socOffsets;
 
 	/* Additional numeric variables for the homogeneous model */
 	private double tau;
@@ -182,8 +273,6 @@ public class HomogeneousIPM implements ConicProgramSolver {
 	/* Intermediates for computing residuals */
 	private DoubleMatrix1D dxn;
 	private DoubleMatrix1D dsn;
-	private DoubleMatrix2D Dxn;
-	private DoubleMatrix2D Dsn;
 
 	/* Residuals */
 	private DoubleMatrix1D r1;
@@ -194,11 +283,12 @@ public class HomogeneousIPM implements ConicProgramSolver {
 
 	/* Intermediates for computing search directions*/
 	private double mu;
-	private SparseCCDoubleMatrix2D XBar;
-	private SparseCCDoubleMatrix2D invXBar;
-	private SparseCCDoubleMatrix2D ThetaW;
-	private SparseCCDoubleMatrix2D invThetaInvW;
-	private SparseCCDoubleMatrix2D invThetaSqInvWSq;
+	private BlockDiagonalMatrix XBar;
+	private BlockDiagonalMatrix invXBar;
+	private BlockDiagonalMatrix ThetaW;
+	private BlockDiagonalMatrix invThetaInvW;
+	private BlockDiagonalMatrix invThetaSqInvWSq;
+	private NormalMatrixProduct normalProduct;
 	private SparseCCDoubleMatrix2D AInvThetaSqInvWSq;
 	private DoubleMatrix1D g1;
 	private DoubleMatrix1D g2;
@@ -210,6 +300,11 @@ public class HomogeneousIPM implements ConicProgramSolver {
 	private double dTau;
 	private double dKappa;
 
+	/* Previous search direction, restored if a corrector is rejected */
+	private DoubleMatrix1D dxPrevious;
+	private DoubleMatrix1D dwPrevious;
+	private DoubleMatrix1D dsPrevious;
+
 	/* Descaled search direction */
 	private DoubleMatrix1D dxDescaled;
 	private DoubleMatrix1D dwDescaled;
@@ -224,6 +319,20 @@ public class HomogeneousIPM implements ConicProgramSolver {
 	private DoubleMatrix1D scratchM1;
 	private DoubleMatrix1D scratchM2;
 
+	/*
+	 * Packed scratch arrays for SOCs. SOC q only uses the entries from
+	 * socOffsets[q] to socOffsets[q+1], in the order of its selection, so
+	 * cones processed in parallel never share entries.
+	 */
+	private double[] socScratch1;
+	private double[] socScratch2;
+	private double[] socScratch3;
+	private double[] socScratch4;
+	private double[] socScratch5;
+
+	/* Coefficients of each cone's quadratics in the step size */
+	private double[] stepSizeCoeffs;
+
 	public HomogeneousIPM() {
 		tryDualize = Config.getBoolean(DUALIZE_KEY, DUALIZE_DEFAULT);
 		infeasibilityThreshold = Config.getDouble(INFEASIBILITY_THRESHOLD_KEY, INFEASIBILITY_THRESHOLD_DEFAULT);
@@ -232,15 +341,44 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		muThreshold = Config.getDouble(MU_THRESHOLD_KEY, MU_THRESHOLD_DEFAULT);
 		beta = Config.getDouble(BETA_KEY, BETA_DEFAULT);
 		solver = (NormalSystemSolver)Config.getNewObject(NORMAL_SYS_SOLVER_KEY, NORMAL_SYS_SOLVER_DEFAULT);
+		matrixFree = Config.getBoolean(MATRIX_FREE_KEY, MATRIX_FREE_DEFAULT);
+		if (matrixFree && !(solver instanceof ConjugateGradient))
+			throw new IllegalArgumentException("Property " + MATRIX_FREE_KEY + " requires "
+					+ NORMAL_SYS_SOLVER_KEY + " to be a ConjugateGradient solver.");
 
 		if (beta <= 0 || beta >= 1)
 			throw new IllegalArgumentException("Property " + BETA_KEY + " must be in (0,1).");
 		delta = Config.getDouble(DELTA_KEY, DELTA_DEFAULT);
 		if (delta < 0 || delta > 1)
 			throw new IllegalArgumentException("Property " + DELTA_KEY + " must be in [0,1].");
+		threads = Config.getInt(THREADS_KEY, THREADS_DEFAULT);
+		if (threads <= 0)
+			throw new IllegalArgumentException("Property " + THREADS_KEY + " must be positive.");
+		maxCorrectors = Config.getInt(MAX_CORRECTORS_KEY, MAX_CORRECTORS_DEFAULT);
+		if (maxCorrectors < 0)
+			throw new IllegalArgumentException("Property " + MAX_CORRECTORS_KEY + " must be non-negative.");
+		warmStart = Config.getBoolean(WARM_START_KEY, WARM_START_DEFAULT);
+		warmStartShift = Config.getDouble(WARM_START_SHIFT_KEY, WARM_START_SHIFT_DEFAULT);
+		if (warmStartShift <= 0 || warmStartShift > 1)
+			throw new IllegalArgumentException("Property " + WARM_START_SHIFT_KEY + " must be in (0,1].");
 
 		currentProgram = null;
 		dualized = false;
+		hasPreviousSolution = false;
+	}
+
+	/**
+	 * Sets whether to warm start.
+	 * <p>
+	 * If true, setting the same program again keeps the state built for it,
+	 * including its dualization, and each solve after the first starts from
+	 * the previous solution, moved toward the interior of the cones. The
+	 * program may be modified between solves.
+	 *
+	 * @see #WARM_START_KEY
+	 */
+	public void setWarmStart(boolean warmStart) {
+		this.warmStart = warmStart;
 	}
 
 	@Override
@@ -250,7 +388,12 @@ public class HomogeneousIPM implements ConicProgramSolver {
 
 	@Override
 	public void setConicProgram(ConicProgram p) {
+		/* Keeps the state for the program, so it can be warm started */
+		if (warmStart && p == currentProgram)
+			return;
+
 		currentProgram = p;
+		hasPreviousSolution = false;
 		if (tryDualize && Dualizer.supportsConeTypes(currentProgram.getConeTypes())) {
 			dualized = true;
 			dualizer = new Dualizer(currentProgram);
@@ -283,14 +426,24 @@ public class HomogeneousIPM implements ConicProgramSolver {
 
 		if (!supportsConeTypes(program.getConeTypes())) {
 			throw new IllegalStateException("Program contains at least one unsupported cone."
-					+ " Supported cones are non-negative orthant cones and second-order cones.");
+					+ " Supported cones are non-negative orthant cones, second-order cones"
+					+ " and rotated second-order cones.");
 		}
 
 		DoubleMatrix2D A = program.getA();
 
 		log.debug("Starting optimization with {} variables and {} constraints.", A.columns(), A.rows());
 
-		doSolve(program);
+		pool = (threads > 1) ? new ForkJoinPool(threads) : null;
+		try {
+			doSolve(program);
+		}
+		finally {
+			if (pool != null) {
+				pool.shutdownNow();
+				pool = null;
+			}
+		}
 
 		if (checkedOutDualProgram) {
 			program.checkInMatrices();
@@ -305,12 +458,10 @@ public class HomogeneousIPM implements ConicProgramSolver {
 	private void doSolve(ConicProgram program) {
 		solver.setConicProgram(program);
 
-		DoubleMatrix2D A = program.getA();
 		DoubleMatrix1D x = program.getX();
 		DoubleMatrix1D b = program.getB();
 		DoubleMatrix1D w = program.getW();
 		DoubleMatrix1D s = program.getS();
-		DoubleMatrix1D c = program.getC();
 
 		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
 
@@ -322,116 +473,158 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		/* Initializes program matrices that can be reused for entire procedure */
 		initializeProgramMatrices(program);
 
-		/* Initializes program variables */
-		T.zMult(e, x);
-		s.assign(x);
-		w.assign(0.0);
-
-		/* Initializes special variables for the homogeneous model */
-		tau = 1;
-		kappa = x.zDotProduct(s) / k;
-		d = x.copy().assign(DoubleFunctions.mult(Math.sqrt(2)));
-		detD = x.copy();
-		v = x.copy();
+		/* Rotates the variables of RSOCs, so that every cone is solved as an SOC */
+		rotatedA = layout.rotateColumns(program.getA());
+		rotatedC = program.getC().copy();
+		layout.rotate(rotatedC);
+		layout.rotate(x);
+		layout.rotate(s);
+		SparseCCDoubleMatrix2D A = rotatedA;
+		DoubleMatrix1D c = rotatedC;
+
+		try {
+			if (warmStart && hasPreviousSolution) {
+				log.debug("Warm starting from previous solution.");
+				initializeFromPreviousSolution(program);
+			}
+			else {
+				/* Initializes program variables */
+				T.zMult(e, x);
+				s.assign(x);
+				w.assign(0.0);
+
+				/* Initializes special variables for the homogeneous model */
+				tau = 1;
+				kappa = x.zDotProduct(s) / k;
+				d = x.copy().assign(DoubleFunctions.mult(Math.sqrt(2)));
+				detD = x.copy();
+				v = x.copy();
+
+				/* Performs additional variable setup for NNOCs */
+				for (NonNegativeOrthantCone cone : program.getNonNegativeOrthantCones()) {
+					int index = program.getIndex(cone.getVariable());
+					d.setQuick(index, 1.0);
+					detD.setQuick(index, 1.0);
+					v.setQuick(index, 1.0);
+				}
+			}
+			hasPreviousSolution = false;
 
-		/* Performs additional variable setup for NNOCs */
-		for (NonNegativeOrthantCone cone : program.getNonNegativeOrthantCones()) {
-			int index = program.getIndex(cone.getVariable());
-			d.setQuick(index, 1.0);
-			detD.setQuick(index, 1.0);
-			v.setQuick(index, 1.0);
-		}
+			/* Initializes data structures to be reused in each step */
+			int m = A.rows();
+			int n = A.columns();
 
-		/* Initializes data structures to be reused in each step */
-		int m = A.rows();
-		int n = A.columns();
+			/*
+			 * Initializes the scaling matrices and the normal system, whose
+			 * values are recomputed in place each time getIntermediates() is
+			 * called
+			 */
+			XBar = new BlockDiagonalMatrix(layout);
+			invXBar = new BlockDiagonalMatrix(layout);
+			ThetaW = new BlockDiagonalMatrix(layout);
+			invThetaInvW = new BlockDiagonalMatrix(layout);
+			invThetaSqInvWSq = new BlockDiagonalMatrix(layout);
+			normalProduct = new NormalMatrixProduct(A, layout, !matrixFree);
+			AInvThetaSqInvWSq = normalProduct.getAD();
+
+			/* Initializes vectors for search direction intermediates */
+			g1 = new DenseDoubleMatrix1D(n);
+			g2 = new DenseDoubleMatrix1D(m);
+
+			/* Initializes vectors and matrices for intermediates for residuals */
+			dxn = new DenseDoubleMatrix1D((int) x.size());
+			dsn = new DenseDoubleMatrix1D((int) s.size());
+
+			/* Initializes vectors for residuals */
+			r1  = new DenseDoubleMatrix1D(m);
+			r2  = new DenseDoubleMatrix1D(n);
+			r4  = new DenseDoubleMatrix1D(n);
+
+			/* Initializes vectors for search direction */
+			dx = new DenseDoubleMatrix1D(n);
+			ds = new DenseDoubleMatrix1D(n);
+			dw = new DenseDoubleMatrix1D(m);
+			if (maxCorrectors > 0) {
+				dxPrevious = new DenseDoubleMatrix1D(n);
+				dsPrevious = new DenseDoubleMatrix1D(n);
+				dwPrevious = new DenseDoubleMatrix1D(m);
+			}
 
-		/*
-		 * Initializes vectors for search direction intermediates. Matrices
-		 * will be initialized the first time getIntermediates() is called.
-		 */
-		g1 = new DenseDoubleMatrix1D(n);
-		g2 = new DenseDoubleMatrix1D(m);
-
-		/* Initializes vectors and matrices for intermediates for residuals */
-		dxn = new DenseDoubleMatrix1D((int) x.size());
-		dsn = new DenseDoubleMatrix1D((int) s.size());
-		Dxn = new SparseDoubleMatrix2D(n, n, n*4, 0.2, 0.5);
-		Dsn = new SparseDoubleMatrix2D(n, n, n*4, 0.2, 0.5);
-
-		/* Initializes vectors for residuals */
-		r1  = new DenseDoubleMatrix1D(m);
-		r2  = new DenseDoubleMatrix1D(n);
-		r4  = new DenseDoubleMatrix1D(n);
-
-		/* Initializes vectors for search direction */
-		dx = new DenseDoubleMatrix1D(n);
-		ds = new DenseDoubleMatrix1D(n);
-		dw = new DenseDoubleMatrix1D(m);
-
-		/* Initializes vectors for descaled search direction */
-		dxDescaled = new DenseDoubleMatrix1D(n);
-		dsDescaled = new DenseDoubleMatrix1D(n);
-		dwDescaled = new DenseDoubleMatrix1D(m);
-
-		/* Initializes scratch vectors */
-		scratchN1 = new DenseDoubleMatrix1D(n);
-		scratchN2 = new DenseDoubleMatrix1D(n);
-		scratchN3 = new DenseDoubleMatrix1D(n);
-		scratchM1 = new DenseDoubleMatrix1D(m);
-		scratchM2 = new DenseDoubleMatrix1D(m);
-
-		/* Computes values to measure objective, infeasibility, etc. */
-		baseResP = A.zMult(x, b.copy().assign(DoubleFunctions.mult(tau)), 1.0, -1.0, false);
-		baseResD = A.zMult(w, c.copy().assign(DoubleFunctions.mult(tau)), 1.0, -1.0, true);
-		baseResD.assign(s, DoubleFunctions.plus);
-		baseResG = b.zDotProduct(w) - c.zDotProduct(x) - kappa;
-
-		/* Computes values for stopping criteria */
-		double muZero = (v.zDotProduct(v) + tau * kappa) / (k+1);
-		double primalInfDenom = Math.max(1.0, alg.norm2(
-				A.zMult(x, b.copy().assign(DoubleFunctions.mult(tau)), 1.0, -1.0, false)));
-		double dualInfDenom = Math.max(1.0, alg.norm2(
-				A.zMult(w, c.copy().assign(DoubleFunctions.mult(tau)), 1.0, -1.0, true)
-				.assign(s, DoubleFunctions.plus)));
-		double gapInfDenom = Math.max(1.0, Math.abs(b.zDotProduct(w) - c.zDotProduct(x) - kappa));
-
-		stepNum = 0;
-		do {
-			step(program);
-
-			mu	  = (v.zDotProduct(v) + tau * kappa) / (k+1);
-			cDotX  = c.zDotProduct(x);
-			bDotW  = b.zDotProduct(w);
-
-			primalInfeasibility = alg.norm2(
-					A.zMult(x, b.copy().assign(DoubleFunctions.mult(tau)), 1.0, -1.0, false)
-					) / primalInfDenom;
-
-			dualInfeasibility = alg.norm2(
+			/* Initializes vectors for descaled search direction */
+			dxDescaled = new DenseDoubleMatrix1D(n);
+			dsDescaled = new DenseDoubleMatrix1D(n);
+			dwDescaled = new DenseDoubleMatrix1D(m);
+
+			/* Initializes scratch vectors */
+			scratchN1 = new DenseDoubleMatrix1D(n);
+			scratchN2 = new DenseDoubleMatrix1D(n);
+			scratchN3 = new DenseDoubleMatrix1D(n);
+			scratchM1 = new DenseDoubleMatrix1D(m);
+			scratchM2 = new DenseDoubleMatrix1D(m);
+			int socSize = socOffsets[socSelections.length];
+			socScratch1 = new double[socSize];
+			socScratch2 = new double[socSize];
+			socScratch3 = new double[socSize];
+			socScratch4 = new double[socSize];
+			socScratch5 = new double[socSize];
+			stepSizeCoeffs = new double[6 * (nnocIndices.length + socSelections.length)];
+
+			/* Computes values to measure objective, infeasibility, etc. */
+			baseResP = A.zMult(x, b.copy().assign(DoubleFunctions.mult(tau)), 1.0, -1.0, false);
+			baseResD = A.zMult(w, c.copy().assign(DoubleFunctions.mult(tau)), 1.0, -1.0, true);
+			baseResD.assign(s, DoubleFunctions.plus);
+			baseResG = b.zDotProduct(w) - c.zDotProduct(x) - kappa;
+
+			/* Computes values for stopping criteria */
+			double muZero = (v.zDotProduct(v) + tau * kappa) / (k+1);
+			double primalInfDenom = Math.max(1.0, alg.norm2(
+					A.zMult(x, b.copy().assign(DoubleFunctions.mult(tau)), 1.0, -1.0, false)));
+			double dualInfDenom = Math.max(1.0, alg.norm2(
 					A.zMult(w, c.copy().assign(DoubleFunctions.mult(tau)), 1.0, -1.0, true)
-					.assign(s, DoubleFunctions.plus)
-					) / dualInfDenom;
-
-			gapInfeasibility = Math.abs(bDotW - cDotX - kappa) / gapInfDenom;
-			gap = Math.abs(cDotX / tau - bDotW / tau) / (1 + Math.abs(bDotW / tau));
-
-			log.trace("Itr: {} -- Comp: {} -- P. Inf: {} -- D. Inf: {} -- Sig: {}", new Object[] {++stepNum, mu, primalInfeasibility, dualInfeasibility, gap});
-
-			primalFeasible  = primalInfeasibility <= infeasibilityThreshold;
-			dualFeasible	 = dualInfeasibility <= infeasibilityThreshold;
-			gapFeasible	  = gapInfeasibility <= infeasibilityThreshold;
-			gapIsSmall		= gap <= gapThreshold;
-			tauIsSmall		= tau <= tauThreshold * Math.max(1.0, kappa);
-			tauIsVerySmall  = tau <= tauThreshold * Math.min(1.0, kappa);
-			muIsSmall		 = mu <= muThreshold * muZero;
-
-			solved				 = primalFeasible && dualFeasible && gapIsSmall;
-			programInfeasible  = primalFeasible && dualFeasible && gapFeasible && tauIsSmall;
-			illPosed			  = muIsSmall && tauIsVerySmall;
-		} while (!solved && !programInfeasible && !illPosed);
-
-		removeMatrixReferences();
+					.assign(s, DoubleFunctions.plus)));
+			double gapInfDenom = Math.max(1.0, Math.abs(b.zDotProduct(w) - c.zDotProduct(x) - kappa));
+
+			stepNum = 0;
+			do {
+				step(program);
+
+				mu	  = (v.zDotProduct(v) + tau * kappa) / (k+1);
+				cDotX  = c.zDotProduct(x);
+				bDotW  = b.zDotProduct(w);
+
+				primalInfeasibility = alg.norm2(
+						A.zMult(x, b.copy().assign(DoubleFunctions.mult(tau)), 1.0, -1.0, false)
+						) / primalInfDenom;
+
+				dualInfeasibility = alg.norm2(
+						A.zMult(w, c.copy().assign(DoubleFunctions.mult(tau)), 1.0, -1.0, true)
+						.assign(s, DoubleFunctions.plus)
+						) / dualInfDenom;
+
+				gapInfeasibility = Math.abs(bDotW - cDotX - kappa) / gapInfDenom;
+				gap = Math.abs(cDotX / tau - bDotW / tau) / (1 + Math.abs(bDotW / tau));
+
+				log.trace("Itr: {} -- Comp: {} -- P. Inf: {} -- D. Inf: {} -- Sig: {}", new Object[] {++stepNum, mu, primalInfeasibility, dualInfeasibility, gap});
+
+				primalFeasible  = primalInfeasibility <= infeasibilityThreshold;
+				dualFeasible	 = dualInfeasibility <= infeasibilityThreshold;
+				gapFeasible	  = gapInfeasibility <= infeasibilityThreshold;
+				gapIsSmall		= gap <= gapThreshold;
+				tauIsSmall		= tau <= tauThreshold * Math.max(1.0, kappa);
+				tauIsVerySmall  = tau <= tauThreshold * Math.min(1.0, kappa);
+				muIsSmall		 = mu <= muThreshold * muZero;
+
+				solved				 = primalFeasible && dualFeasible && gapIsSmall;
+				programInfeasible  = primalFeasible && dualFeasible && gapFeasible && tauIsSmall;
+				illPosed			  = muIsSmall && tauIsVerySmall;
+			} while (!solved && !programInfeasible && !illPosed);
+		}
+		finally {
+			/* Rotates the variables back, even if the solve failed */
+			layout.rotate(x);
+			layout.rotate(s);
+			removeMatrixReferences();
+		}
 
 		if (illPosed)
 			throw new IllegalArgumentException("Optimization program is ill-posed.");
@@ -441,7 +634,71 @@ public class HomogeneousIPM implements ConicProgramSolver {
 			x.assign(DoubleFunctions.div(tau));
 			w.assign(DoubleFunctions.div(tau));
 			s.assign(DoubleFunctions.div(tau));
+			hasPreviousSolution = true;
+		}
+	}
+
+	/**
+	 * Initializes the program variables and the special variables for the
+	 * homogeneous model from the solution of the previous solve.
+	 *
+	 * The previous x and s are moved toward T e by the warm-start shift. For
+	 * each SOC, x and s are then both set to their average, so that the
+	 * scaling of the cone starts as the identity, as it does for the standard
+	 * initial point. NNOCs keep separate values, since their scaling is
+	 * computed directly from x and s.
+	 *
+	 * @param program  program being solved
+	 */
+	private void initializeFromPreviousSolution(ConicProgram program) {
+		DoubleMatrix1D x = program.getX();
+		DoubleMatrix1D w = program.getW();
+		DoubleMatrix1D s = program.getS();
+		int n = (int) x.size();
+
+		for (int i = 0; i < n; i++) {
+			x.setQuick(i, (1 - warmStartShift) * x.getQuick(i) + warmStartShift * e.getQuick(i));
+			s.setQuick(i, (1 - warmStartShift) * s.getQuick(i) + warmStartShift * e.getQuick(i));
+		}
+		w.assign(DoubleFunctions.mult(1 - warmStartShift));
+
+		d = new DenseDoubleMatrix1D(n);
+		detD = new DenseDoubleMatrix1D(n);
+		v = new DenseDoubleMatrix1D(n);
+
+		for (int index : nnocIndices) {
+			/* Guards against previous values slightly outside the cone */
+			double xi = Math.max(x.getQuick(index), warmStartShift);
+			double si = Math.max(s.getQuick(index), warmStartShift);
+			x.setQuick(index, xi);
+			s.setQuick(index, si);
+			d.setQuick(index, 1.0);
+			detD.setQuick(index, 1.0);
+			v.setQuick(index, Math.sqrt(xi * si));
+		}
+
+		for (int[] selection : socSelections) {
+			double normSq = 0.0;
+			for (int j = 1; j < selection.length; j++) {
+				double u = (x.getQuick(selection[j]) + s.getQuick(selection[j])) / 2;
+				x.setQuick(selection[j], u);
+				s.setQuick(selection[j], u);
+				v.setQuick(selection[j], u);
+				normSq += u * u;
+			}
+
+			/* Guards against previous values slightly outside the cone */
+			double u0 = (x.getQuick(selection[0]) + s.getQuick(selection[0])) / 2;
+			u0 = Math.max(u0, Math.sqrt(normSq) + warmStartShift);
+			x.setQuick(selection[0], u0);
+			s.setQuick(selection[0], u0);
+			v.setQuick(selection[0], u0);
+			d.setQuick(selection[0], Math.sqrt(2));
+			detD.setQuick(selection[0], 1.0);
 		}
+
+		tau = 1;
+		kappa = x.zDotProduct(s) / k;
 	}
 
 	private void step(ConicProgram program) {
@@ -449,7 +706,6 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		DoubleMatrix1D		x	= program.getX();
 		DoubleMatrix1D		w	= program.getW();
 		DoubleMatrix1D		s	= program.getS();
-		DenseDoubleAlgebra  alg = new DenseDoubleAlgebra();
 		getIntermediates(program);
 
 		/* Computes affine scaling (Newton) direction */
@@ -463,6 +719,11 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		/* Computes corrected direction */
 		getResiduals(program, gamma, true);
 		getSearchDirection(program);
+
+		/* Improves the corrected direction with the same factorization */
+		if (maxCorrectors > 0)
+			applyCentralityCorrectors(program, gamma);
+
 		descaleSearchDirection();
 
 		/* Gets step size */
@@ -481,92 +742,135 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		baseResG *= (1 - stepSize * (1 - gamma));
 
 		/* Processes NNOCs */
-		for (NonNegativeOrthantCone cone : program.getNonNegativeOrthantCones()) {
-			int index = program.getIndex(cone.getVariable());
-			v.setQuick(index, Math.sqrt(x.getQuick(index) * s.getQuick(index)));
-		}
+		final DoubleMatrix1D xFinal = x;
+		final DoubleMatrix1D sFinal = s;
+		forEachCone(nnocIndices.length, new ConeRangeTask() {
+			@Override
+			public double run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					int index = nnocIndices[i];
+					v.setQuick(index, Math.sqrt(xFinal.getQuick(index) * sFinal.getQuick(index)));
+				}
+				return Double.POSITIVE_INFINITY;
+			}
+		});
 
 		/* Processes SOCs */
-		for (SecondOrderCone cone : program.getSecondOrderCones()) {
-			/* Collects the cone's variables */
-			Set<Variable> coneVars = cone.getVariables();
-			Variable nthVariable = cone.getNthVariable();
-			int nCone = coneVars.size();
-
-			/* Creates an array of the variables' indices */
-			int[] selection = new int[nCone];
-			int selectionIndex = 1;
-			for (Variable var : coneVars) {
-				if (nthVariable.equals(var))
-					selection[0] = program.getIndex(var);
-				else
-					selection[selectionIndex++] = program.getIndex(var);
+		final double stepSizeFinal = stepSize;
+		forEachCone(socSelections.length, new ConeRangeTask() {
+			@Override
+			public double run(int start, int end) {
+				for (int i = start; i < end; i++)
+					updateSOCScaling(i, stepSizeFinal);
+				return Double.POSITIVE_INFINITY;
+			}
+		});
+	}
+
+	/**
+	 * Updates v, d and detD for one SOC after a step.
+	 *
+	 * The arrowhead and quadratic forms of the update are computed entry by
+	 * entry in the cone's packed scratch, with Q = diag(1, -1, ..., -1).
+	 *
+	 * @param cone      index of the cone in socSelections
+	 * @param stepSize  size of the step taken
+	 */
+	private void updateSOCScaling(int cone, double stepSize) {
+		int[] selection = socSelections[cone];
+		int nCone = selection.length;
+		int o = socOffsets[cone];
+		double[] xBarPlus = socScratch1;
+		double[] sBarPlus = socScratch2;
+		double[] chi = socScratch3;
+		double[] sqrtD = socScratch4;
+		double[] dPlus = socScratch5;
+
+		/* Computes the scaled variables after the step */
+		double xBarNormSq = 0.0;
+		double sBarNormSq = 0.0;
+		double xBarDotSBar = 0.0;
+		for (int i = 0; i < nCone; i++) {
+			int index = selection[i];
+			double xi = v.getQuick(index) + stepSize * dx.getQuick(index);
+			double si = v.getQuick(index) + stepSize * ds.getQuick(index);
+			xBarPlus[o + i] = xi;
+			sBarPlus[o + i] = si;
+			xBarDotSBar += xi * si;
+			if (i > 0) {
+				xBarNormSq += xi * xi;
+				sBarNormSq += si * si;
 			}
+		}
+
+		/* Computes intermediate values */
+		double detXBarPlus = (xBarPlus[o] * xBarPlus[o] - xBarNormSq) / 2;
+		double detSBarPlus = (sBarPlus[o] * sBarPlus[o] - sBarNormSq) / 2;
+		double detVPlus = Math.sqrt(detXBarPlus * detSBarPlus);
+		double traceVPlus = Math.sqrt(xBarDotSBar + 2 * detVPlus);
+		if (traceVPlus == 0.0)
+			throw new IllegalStateException(Double.toString(xBarDotSBar + 2 * detVPlus));
+
+		/* chi = (xBarPlus + (detVPlus / detSBarPlus) Q sBarPlus) / traceVPlus */
+		double detChi = detVPlus / detSBarPlus;
+		for (int i = 0; i < nCone; i++) {
+			double qs = (i == 0) ? sBarPlus[o] : -1 * sBarPlus[o + i];
+			chi[o + i] = (xBarPlus[o + i] + detChi * qs) / traceVPlus;
+		}
 
-			/* Selects the variables */
-			DoubleMatrix1D  dSel	 = d.viewSelection(selection);
-			DoubleMatrix1D  detDSel = detD.viewSelection(selection);
-			DoubleMatrix1D  vSel	 = v.viewSelection(selection);
-
-			/* Creates a Q matrix for the variables */
-			DoubleMatrix2D Q = new SparseDoubleMatrix2D(nCone, nCone);
-			Q.setQuick(0, 0, 1.0);
-			for (int i = 1; i < nCone; i++)
-				Q.setQuick(i, i, -1.0);
-
-			/* Creates temporary vectors */
-			DoubleMatrix1D xBarPlus = new DenseDoubleMatrix1D(nCone);
-			xBarPlus.assign(vSel).assign(dx.viewSelection(selection).assign(DoubleFunctions.mult(stepSize)), DoubleFunctions.plus);
-			DoubleMatrix1D sBarPlus = new DenseDoubleMatrix1D(nCone);
-			sBarPlus.assign(vSel).assign(ds.viewSelection(selection).assign(DoubleFunctions.mult(stepSize)), DoubleFunctions.plus);
-
-			/* Computes intermediate values */
-			double detXBarPlus = (Math.pow(xBarPlus.getQuick(0), 2) - xBarPlus.zDotProduct(xBarPlus, 1, nCone-1)) / 2;
-			double detSBarPlus = (Math.pow(sBarPlus.getQuick(0), 2) - sBarPlus.zDotProduct(sBarPlus, 1, nCone-1)) / 2;
-			double detVPlus = Math.sqrt(detXBarPlus * detSBarPlus);
-			double traceVPlus = Math.sqrt(xBarPlus.zDotProduct(sBarPlus) + 2 * detVPlus);
-			if (traceVPlus == 0.0)
-				throw new IllegalStateException(Double.toString((xBarPlus.zDotProduct(sBarPlus) + 2 * detVPlus)));
-
-			DoubleMatrix1D chi = Q.zMult(sBarPlus, null);
-			chi.assign(DoubleFunctions.mult(detVPlus/detSBarPlus));
-			chi.assign(xBarPlus, DoubleFunctions.plus);
-			chi.assign(DoubleFunctions.div(traceVPlus));
-			double detChi = detVPlus / detSBarPlus;
-
-			DoubleMatrix1D sqrtD = dSel.copy();
-			sqrtD.setQuick(0, sqrtD.getQuick(0) + Math.sqrt(2 * detDSel.getQuick(0)));
-			sqrtD.assign(DoubleFunctions.div(Math.sqrt(Math.sqrt(2) * dSel.getQuick(0) + 2 * Math.sqrt(detDSel.getQuick(0)))));
-			double detSqrtD = Q.zMult(sqrtD, null).zDotProduct(sqrtD) / 2;
-			DoubleMatrix2D POfSqrtD = alg.multOuter(sqrtD, sqrtD, null);
-			POfSqrtD.assign(Q.copy().assign(DoubleFunctions.mult(detSqrtD)), DoubleFunctions.minus);
-
-			DoubleMatrix1D dPlus = POfSqrtD.zMult(chi, null);
-			double detDPlus = detDSel.getQuick(0) * detChi;
-			double traceDPlus = Math.sqrt(2.0) * dPlus.getQuick(0);
-
-			DoubleMatrix1D psi = Q.zMult(sBarPlus, null);
-			psi.assign(DoubleFunctions.mult(-1 * detVPlus/detSBarPlus));
-			psi.assign(xBarPlus, DoubleFunctions.plus);
-
-			double alpha = dSel.zDotProduct(psi) / (traceDPlus + 2 * Math.sqrt(detDPlus));
-
-			DoubleMatrix1D phi = chi.copy().assign(DoubleFunctions.mult(-1 * alpha));
-			phi.assign(psi, DoubleFunctions.plus);
-			phi.assign(DoubleFunctions.div(2 * Math.sqrt(detChi)));
-
-			double gammaForUpdate = (alpha + Math.sqrt(2.0) * phi.getQuick(0))
-					/ (Math.sqrt(2.0) * dSel.getQuick(0) + 2 * Math.sqrt(detDSel.getQuick(0)));
-
-			/* Updates v */
-			vSel.setQuick(0, traceVPlus / Math.sqrt(2.0));
-			for (int i = 1; i < nCone; i++)
-				vSel.setQuick(i, phi.getQuick(i) + gammaForUpdate * dSel.get(i));
-
-			/* Updates d and detD */
-			dSel.assign(dPlus);
-			detDSel.setQuick(0, detDPlus);
+		/* Computes the square root of d */
+		double d0 = d.getQuick(selection[0]);
+		double detD0 = detD.getQuick(selection[0]);
+		double sqrtDDenom = Math.sqrt(Math.sqrt(2) * d0 + 2 * Math.sqrt(detD0));
+		double sqrtDNormSq = 0.0;
+		double sqrtDDotChi = 0.0;
+		for (int i = 0; i < nCone; i++) {
+			double di = d.getQuick(selection[i]);
+			if (i == 0)
+				di += Math.sqrt(2 * detD0);
+			di /= sqrtDDenom;
+			sqrtD[o + i] = di;
+			sqrtDDotChi += di * chi[o + i];
+			if (i > 0)
+				sqrtDNormSq += di * di;
 		}
+		double detSqrtD = (sqrtD[o] * sqrtD[o] - sqrtDNormSq) / 2;
+
+		/* dPlus = P(sqrtD) chi = sqrtD (sqrtD' chi) - detSqrtD Q chi */
+		for (int i = 0; i < nCone; i++) {
+			double qChi = (i == 0) ? chi[o] : -1 * chi[o + i];
+			dPlus[o + i] = sqrtD[o + i] * sqrtDDotChi - detSqrtD * qChi;
+		}
+		double detDPlus = detD0 * detChi;
+		double traceDPlus = Math.sqrt(2.0) * dPlus[o];
+
+		/* psi = xBarPlus - (detVPlus / detSBarPlus) Q sBarPlus, written over xBarPlus */
+		double[] psi = xBarPlus;
+		double dDotPsi = 0.0;
+		for (int i = 0; i < nCone; i++) {
+			double qs = (i == 0) ? sBarPlus[o] : -1 * sBarPlus[o + i];
+			psi[o + i] -= detChi * qs;
+			dDotPsi += d.getQuick(selection[i]) * psi[o + i];
+		}
+		double alpha = dDotPsi / (traceDPlus + 2 * Math.sqrt(detDPlus));
+
+		/* phi = (psi - alpha chi) / (2 sqrt(detChi)) */
+		double phiDenom = 2 * Math.sqrt(detChi);
+		double phi0 = (psi[o] - alpha * chi[o]) / phiDenom;
+		double gammaForUpdate = (alpha + Math.sqrt(2.0) * phi0)
+				/ (Math.sqrt(2.0) * d0 + 2 * Math.sqrt(detD0));
+
+		/* Updates v */
+		v.setQuick(selection[0], traceVPlus / Math.sqrt(2.0));
+		for (int i = 1; i < nCone; i++) {
+			double phi = (psi[o + i] - alpha * chi[o + i]) / phiDenom;
+			v.setQuick(selection[i], phi + gammaForUpdate * d.getQuick(selection[i]));
+		}
+
+		/* Updates d and detD */
+		for (int i = 0; i < nCone; i++)
+			d.setQuick(selection[i], dPlus[o + i]);
+		detD.setQuick(selection[0], detDPlus);
 	}
 
 	private void initializeProgramMatrices(ConicProgram program) {
@@ -577,20 +881,35 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		e = new DenseDoubleMatrix1D(size);
 		T = new SparseDoubleMatrix2D(size, size, size*4, 0.2, 0.5);
 
-		for (NonNegativeOrthantCone cone : program.getNonNegativeOrthantCones()) {
-			int i = program.getIndex(cone.getVariable());
+		layout = new ConeLayout(program);
+		nnocIndices = layout.getNNOCIndices();
+		socSelections = new int[layout.getNumSOC()][];
+		socOffsets = layout.getSOCOffsets();
+
+		for (int i : nnocIndices) {
 			e.setQuick(i, 1.0);
 			T.setQuick(i, i, 1.0);
 		}
 
-		for (SecondOrderCone cone : program.getSecondOrderCones()) {
-			for (Variable var : cone.getVariables()) {
-				int i = program.getIndex(var);
+		/*
+		 * Creates an array of each SOC's variables' indices, nth variable
+		 * first. The layout stores the nth variable last, so inner variable j
+		 * of a selection is at position j-1 of the cone's block.
+		 */
+		int[] socIndices = layout.getSOCIndices();
+		for (int q = 0; q < socSelections.length; q++) {
+			int first = socOffsets[q];
+			int last = socOffsets[q+1] - 1;
+			int[] selection = new int[last - first + 1];
+			selection[0] = socIndices[last];
+			for (int p = first; p < last; p++)
+				selection[p - first + 1] = socIndices[p];
+			for (int i : selection) {
 				e.setQuick(i, 0);
 				T.setQuick(i, i, 1.0);
 			}
-			int i = program.getIndex(cone.getNthVariable());
-			e.setQuick(i, 1.0);
+			e.setQuick(selection[0], 1.0);
+			socSelections[q] = selection;
 		}
 	}
 
@@ -598,212 +917,180 @@ public class HomogeneousIPM implements ConicProgramSolver {
 	 * Computes matrices and vectors that will be used to find search directions
 	 * during the current step.
 	 *
-	 * The first time this method is called after a call to solve(), new sparse
-	 * matrices will be created. At the end of the method call, they will be
-	 * converted to sparse, column-compressed matrices. Those matrices will be
-	 * reused until solve() is finished, since they will always have the same
-	 * non-zero structure.
+	 * The scaling matrices are block diagonal, so their packed blocks are
+	 * written in place, and the normal system A D A' is recomputed into the
+	 * pattern found when the solve started.
 	 *
 	 * @param program  program being solved
 	 */
 	private void getIntermediates(ConicProgram program) {
-		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
-
-		SparseCCDoubleMatrix2D A = program.getA();
+		SparseCCDoubleMatrix2D A = rotatedA;
 		DoubleMatrix1D x = program.getX();
 		DoubleMatrix1D b = program.getB();
 		DoubleMatrix1D s = program.getS();
-		DoubleMatrix1D c = program.getC();
-		int n = (int) x.size();
+		DoubleMatrix1D c = rotatedC;
 
 		mu = (v.zDotProduct(v) + tau * kappa) / (k+1);
 
-		/* Declares local aliases */
-		DoubleMatrix2D ThetaWLocal;
-		DoubleMatrix2D invThetaInvWLocal;
-		DoubleMatrix2D invThetaSqInvWSqLocal;
-		DoubleMatrix2D XBarLocal;
-		DoubleMatrix2D invXBarLocal;
-
-		/* If this is the first time this method is called after a call to solve()... */
-		if (ThetaW == null) {
-			ThetaWLocal			  = new SparseDoubleMatrix2D(n, n, n*4, 0.2, 0.5);
-			invThetaInvWLocal	  = new SparseDoubleMatrix2D(n, n, n*4, 0.2, 0.5);
-			invThetaSqInvWSqLocal = new SparseDoubleMatrix2D(n, n, n*4, 0.2, 0.5);
-			XBarLocal				 = new SparseDoubleMatrix2D(n, n, n*4, 0.2, 0.5);
-			invXBarLocal			 = new SparseDoubleMatrix2D(n, n, n*4, 0.2, 0.5);
-		}
-		else {
-			ThetaWLocal			  = ThetaW;
-			invThetaInvWLocal	  = invThetaInvW;
-			invThetaSqInvWSqLocal = invThetaSqInvWSq;
-			XBarLocal				 = XBar;
-			invXBarLocal			 = invXBar;
-		}
-
 		/* Processes NNOCs */
-		for (NonNegativeOrthantCone cone : program.getNonNegativeOrthantCones()) {
-			int index = program.getIndex(cone.getVariable());
+		double[] ThetaWDiagonal = ThetaW.getDiagonal();
+		double[] invThetaInvWDiagonal = invThetaInvW.getDiagonal();
+		double[] invThetaSqInvWSqDiagonal = invThetaSqInvWSq.getDiagonal();
+		double[] XBarDiagonal = XBar.getDiagonal();
+		double[] invXBarDiagonal = invXBar.getDiagonal();
+		for (int q = 0; q < nnocIndices.length; q++) {
+			int index = nnocIndices[q];
 			double thetaSq = s.getQuick(index) / x.getQuick(index);
 			double theta = Math.sqrt(thetaSq);
 			double invTheta = 1 / theta;
-			ThetaWLocal.setQuick(index, index, theta);
-			invThetaInvWLocal.setQuick(index, index, invTheta);
-			invThetaSqInvWSqLocal.setQuick(index, index, 1 / thetaSq);
-			XBarLocal.setQuick(index, index, theta * x.getQuick(index));
-			invXBarLocal.setQuick(index, index, invTheta * 1 / x.getQuick(index));
+			ThetaWDiagonal[q] = theta;
+			invThetaInvWDiagonal[q] = invTheta;
+			invThetaSqInvWSqDiagonal[q] = 1 / thetaSq;
+			XBarDiagonal[q] = theta * x.getQuick(index);
+			invXBarDiagonal[q] = invTheta * 1 / x.getQuick(index);
 		}
 
-		/* Processes SOCs */
-		for (SecondOrderCone cone : program.getSecondOrderCones()) {
-			/* Collects the cone's variables */
-			Set<Variable> coneVars = cone.getVariables();
-			Variable nthVariable = cone.getNthVariable();
-			int nCone = coneVars.size();
-
-			/* Creates an array of the variables' indices */
-			int[] selection = new int[nCone];
-			int selectionIndex = 1;
-			for (Variable var : coneVars) {
-				if (nthVariable.equals(var))
-					selection[0] = program.getIndex(var);
-				else
-					selection[selectionIndex++] = program.getIndex(var);
+		/* Processes SOCs, each of which writes only its own blocks */
+		forEachCone(socSelections.length, new ConeRangeTask() {
+			@Override
+			public double run(int start, int end) {
+				for (int i = start; i < end; i++)
+					setSOCIntermediates(i);
+				return Double.POSITIVE_INFINITY;
 			}
+		});
 
-			/* Selects the variables */
-			DoubleMatrix1D  dSel	 = d.viewSelection(selection);
-			double			 detDSel = detD.viewSelection(selection).getQuick(0);
-			DoubleMatrix1D  vSel	 = v.viewSelection(selection);
-
-			/* Creates a Q matrix for the variables */
-			DoubleMatrix2D Q = new SparseDoubleMatrix2D(nCone, nCone);
-			Q.setQuick(0, 0, 1.0);
-			for (int i = 1; i < nCone; i++)
-				Q.setQuick(i, i, -1.0);
+		/* Computes A D and M, or an operator for it, and gives M to the normal-system solver */
+		normalProduct.update(invThetaSqInvWSq);
+		solver.setA(normalProduct.getM());
 
-			/*
-			 * Computes selections of matrices
-			 */
+		/* Computes intermediate vectors */
 
-			/* Gets the selections */
-//			DoubleMatrix2D  ThetaWSel			  = ThetaW.viewSelection(selection, selection);
-//			DoubleMatrix2D  invThetaInvWSel	  = invThetaInvW.viewSelection(selection, selection);
-//			DoubleMatrix2D  XBarSel				 = XBar.viewSelection(selection, selection);
-//			DoubleMatrix2D  invXBarSel			 = invXBar.viewSelection(selection, selection);
-//			DoubleMatrix2D  invThetaSqInvWSqSel = invThetaSqInvWSq.viewSelection(selection, selection);
+		/* g2 */
+		g2.assign(b);
+		AInvThetaSqInvWSq.zMult(c, g2, 1.0, 1.0, false);
+		solver.solve(g2);
 
-			DoubleMatrix2D temp;
+		/* g1 */
+		A.zMult(g2, scratchN1, 1.0, 0.0, true);
+		scratchN1.assign(c, DoubleFunctions.minus);
+		invThetaInvW.zMult(scratchN1, g1);
+	}
 
-			/* Computes invThetaSqInvWSq selection */
-			temp = alg.multOuter(dSel, dSel, null);
-			for (int i = 0; i < temp.rows(); i++) {
-				for (int j = 0; j < temp.columns(); j++) {
-					invThetaSqInvWSqLocal.setQuick(selection[i], selection[j], temp.getQuick(i, j));
-				}
-			}
-//			alg.multOuter(dSel, dSel, invThetaSqInvWSqSel);
-			temp = Q.copy().assign(DoubleFunctions.mult(detDSel));
-			for (int i = 0; i < temp.rows(); i++) {
-				for (int j = 0; j < temp.columns(); j++) {
-					invThetaSqInvWSqLocal.setQuick(selection[i], selection[j], invThetaSqInvWSqLocal.getQuick(selection[i], selection[j]) - temp.getQuick(i, j));
-				}
-			}
-//			invThetaSqInvWSqSel.assign(Q.copy().assign(DoubleFunctions.mult(detDSel)), DoubleFunctions.minus);
-			temp = getSOCFunction(getSOCSqrt(getSOCInverse(dSel, detDSel), 1 / detDSel), 1 / Math.sqrt(detDSel));
-			for (int i = 0; i < temp.rows(); i++) {
-				for (int j = 0; j < temp.columns(); j++) {
-					ThetaWLocal.setQuick(selection[i], selection[j], temp.getQuick(i, j));
-				}
-			}
-//			ThetaWSel.assign(getSOCFunction(getSOCSqrt(getSOCInverse(dSel, detDSel), 1 / detDSel), 1 / Math.sqrt(detDSel)));
-			temp = getSOCFunction(getSOCSqrt(dSel, detDSel), Math.sqrt(detDSel));
-			for (int i = 0; i < temp.rows(); i++) {
-				for (int j = 0; j < temp.columns(); j++) {
-					invThetaInvWLocal.setQuick(selection[i], selection[j], temp.getQuick(i, j));
-				}
-			}
-//			invThetaInvWSel.assign(getSOCFunction(getSOCSqrt(dSel, detDSel), Math.sqrt(detDSel)));
-
-			/* Computes selections of XBar and invXBar */
-			DoubleMatrix1D xbar = vSel.copy();
-			temp = getArrowheadMatrix(xbar);
-			for (int i = 0; i < temp.rows(); i++) {
-				for (int j = 0; j < temp.columns(); j++) {
-					XBarLocal.setQuick(selection[i], selection[j], temp.getQuick(i, j));
-				}
-			}
-//			XBarSel.assign(getArrowheadMatrix(xbar));
-			temp = alg.multOuter(xbar, xbar, null);
-			for (int i = 0; i < temp.rows(); i++) {
-				for (int j = 0; j < temp.columns(); j++) {
-					invXBarLocal.setQuick(selection[i], selection[j], temp.getQuick(i, j) / xbar.getQuick(0));
-				}
+	/**
+	 * Computes the blocks of the scaling matrices for one SOC.
+	 *
+	 * Entry (i, j) of a block, in the order of the cone's selection, is
+	 * written to entry (i-1, j-1) of the packed block, where index -1 means
+	 * the last, since the packed blocks store the nth variable last.
+	 *
+	 * @param cone  index of the cone in socSelections
+	 */
+	private void setSOCIntermediates(int cone) {
+		int[] selection = socSelections[cone];
+		int nCone = selection.length;
+		int offset = ThetaW.getBlockOffsets()[cone];
+
+		/* Copies d and v into the cone's packed scratch */
+		int o = socOffsets[cone];
+		double[] dSel = socScratch1;
+		double[] vSel = socScratch3;
+		for (int i = 0; i < nCone; i++) {
+			dSel[o + i] = d.getQuick(selection[i]);
+			vSel[o + i] = v.getQuick(selection[i]);
+		}
+		double detDSel = detD.getQuick(selection[0]);
+
+		/* Computes invThetaSqInvWSq block */
+		setSOCFunction(invThetaSqInvWSq.getBlocks(), offset, dSel, o, nCone, detDSel);
+
+		/* Computes ThetaW block */
+		double[] y = socScratch2;
+		y[o] = dSel[o] / detDSel;
+		for (int i = 1; i < nCone; i++)
+			y[o + i] = -1 * dSel[o + i] / detDSel;
+		setSOCSqrt(y, o, nCone, 1 / detDSel);
+		setSOCFunction(ThetaW.getBlocks(), offset, y, o, nCone, 1 / Math.sqrt(detDSel));
+
+		/* Computes invThetaInvW block */
+		System.arraycopy(dSel, o, y, o, nCone);
+		setSOCSqrt(y, o, nCone, detDSel);
+		setSOCFunction(invThetaInvW.getBlocks(), offset, y, o, nCone, Math.sqrt(detDSel));
+
+		/* Computes XBar block, the arrowhead matrix of vSel */
+		double[] XBarBlocks = XBar.getBlocks();
+		for (int i = 0; i < nCone; i++) {
+			for (int j = 0; j < nCone; j++) {
+				double value;
+				if (i == 0)
+					value = vSel[o + j];
+				else if (j == 0)
+					value = vSel[o + i];
+				else
+					value = (i == j) ? vSel[o] : 0.0;
+				XBarBlocks[getBlockPosition(offset, nCone, i, j)] = value;
 			}
-//			alg.multOuter(xbar, xbar, invXBarSel);
-//			invXBarSel.assign(DoubleFunctions.div(xbar.getQuick(0)));
+		}
 
-			for (int i = 0; i < xbar.size(); i++) {
-				invXBarLocal.setQuick(selection[i], selection[0], -1 * xbar.getQuick(i));
-				invXBarLocal.setQuick(selection[0], selection[i], -1 * xbar.getQuick(i));
-			}
-//			invXBarSel.viewColumn(0).assign(xbar).assign(DoubleFunctions.mult(-1));
-//			invXBarSel.viewRow(0).assign(xbar).assign(DoubleFunctions.mult(-1));
-//
-			invXBarLocal.setQuick(selection[0], selection[0], xbar.getQuick(0));
-//			invXBarSel.setQuick(0, 0, xbar.getQuick(0));
-			double normSq = Math.pow(alg.norm2(xbar.viewPart(1, nCone-1)), 2);
-			double coeff = xbar.getQuick(0) - normSq / xbar.getQuick(0);
-			for (int i = 1; i < nCone; i++)
-				invXBarLocal.setQuick(selection[i], selection[i], invXBarLocal.getQuick(selection[i], selection[i]) + coeff);
-//			for (int i = 1; i < nCone; i++)
-//				invXBarSel.setQuick(i, i, invXBarSel.getQuick(i, i) + coeff);
-			coeff = Math.pow(xbar.getQuick(0), 2) - normSq;
-			for (int i = 0; i < selection.length; i++) {
-				for (int j = 0; j < selection.length; j++) {
-					invXBarLocal.setQuick(selection[i], selection[j],
-							invXBarLocal.getQuick(selection[i], selection[j]) / coeff);
-				}
+		/*
+		 * Computes invXBar block, the inverse of the arrowhead matrix:
+		 * (vv' / v0 with first row and column -v and (0, 0) v0, plus
+		 * (v0 - ||v_{1:n-1}||^2 / v0) I on the rest of the diagonal) / det(v)
+		 */
+		double v0 = vSel[o];
+		double normSq = 0.0;
+		for (int i = 1; i < nCone; i++)
+			normSq += vSel[o + i] * vSel[o + i];
+		double coeff = v0 - normSq / v0;
+		double det = v0 * v0 - normSq;
+		double[] invXBarBlocks = invXBar.getBlocks();
+		for (int i = 0; i < nCone; i++) {
+			for (int j = 0; j < nCone; j++) {
+				double value;
+				if (i == 0 && j == 0)
+					value = v0;
+				else if (i == 0)
+					value = -1 * vSel[o + j];
+				else if (j == 0)
+					value = -1 * vSel[o + i];
+				else
+					value = vSel[o + i] * vSel[o + j] / v0 + ((i == j) ? coeff : 0.0);
+				invXBarBlocks[getBlockPosition(offset, nCone, i, j)] = value / det;
 			}
-//			invXBarSel.assign(DoubleFunctions.div(Math.pow(xbar.getQuick(0), 2) - normSq));
 		}
+	}
 
-		if (ThetaW == null) {
-			/* Creates column-compressed matrices */
-			ThetaW				= ((SparseDoubleMatrix2D) ThetaWLocal).getColumnCompressed(false);
-			invThetaInvW		= ((SparseDoubleMatrix2D) invThetaInvWLocal).getColumnCompressed(false);
-			invThetaSqInvWSq  = ((SparseDoubleMatrix2D) invThetaSqInvWSqLocal).getColumnCompressed(false);
-			XBar				  = ((SparseDoubleMatrix2D) XBarLocal).getColumnCompressed(false);
-			invXBar			  = ((SparseDoubleMatrix2D) invXBarLocal).getColumnCompressed(false);
-
-			/* Makes memory available to garbage collector */
-			ThetaWLocal			  = null;
-			invThetaInvWLocal	  = null;
-			invThetaSqInvWSqLocal = null;
-			XBarLocal				 = null;
-			invXBarLocal			 = null;
+	/*
+	 * Writes x x' - detX Q, where Q = diag(1, -1, ..., -1), to a packed
+	 * block, for the n entries of x starting at xOffset
+	 */
+	private void setSOCFunction(double[] blocks, int offset, double[] x, int xOffset, int n, double detX) {
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				double value = x[xOffset + i] * x[xOffset + j];
+				if (i == j)
+					value -= (i == 0) ? detX : -1 * detX;
+				blocks[getBlockPosition(offset, n, i, j)] = value;
+			}
 		}
+	}
 
-		/* Computes more intermediate matrices */
-		AInvThetaSqInvWSq = new SparseCCDoubleMatrix2D(A.rows(), n);
-		A.zMult(invThetaSqInvWSq, AInvThetaSqInvWSq, 1.0, 0.0, false, false);
-
-		/* Computes M and gives it to the normal-system solver */
-		SparseCCDoubleMatrix2D M = new SparseCCDoubleMatrix2D(A.rows(), A.rows());
-		AInvThetaSqInvWSq.zMult(A, M, 1.0, 0.0, false, true);
-		solver.setA(M);
-
-		/* Computes intermediate vectors */
-
-		/* g2 */
-		g2.assign(b);
-		AInvThetaSqInvWSq.zMult(c, g2, 1.0, 1.0, false);
-		solver.solve(g2);
+	/* Replaces the n entries of x starting at xOffset with their square root in the SOC */
+	private void setSOCSqrt(double[] x, int xOffset, int n, double detX) {
+		double denom = Math.sqrt(Math.sqrt(2) * x[xOffset] + 2 * Math.sqrt(detX));
+		x[xOffset] += Math.sqrt(2 * detX);
+		for (int i = 0; i < n; i++)
+			x[xOffset + i] /= denom;
+	}
 
-		/* g1 */
-		A.zMult(g2, scratchN1, 1.0, 0.0, true);
-		scratchN1.assign(c, DoubleFunctions.minus);
-		invThetaInvW.zMult(scratchN1, g1, 1.0, 0.0, false);
+	/*
+	 * Returns the position in a packed block of entry (i, j) in selection
+	 * order, in which the nth variable is first instead of last
+	 */
+	private static int getBlockPosition(int offset, int n, int i, int j) {
+		int row = (i == 0) ? n - 1 : i - 1;
+		int column = (j == 0) ? n - 1 : j - 1;
+		return offset + row * n + column;
 	}
 
 	/**
@@ -833,70 +1120,41 @@ public class HomogeneousIPM implements ConicProgramSolver {
 
 		r5 = gamma * mu - tau * kappa;
 
-		/* Corrects residuals with second-order estimate */
+		/*
+		 * Corrects residuals with second-order estimate, i.e., subtracts the
+		 * product of the arrowhead matrices of dxn and dsn with e. For an NNOC
+		 * this is dxn dsn. For an SOC, with the nth variable first, it is the
+		 * Jordan product (dxn' dsn, dxn_0 dsn_{1:n-1} + dsn_0 dxn_{1:n-1}).
+		 */
 		if (useSearchDirection) {
 			T.zMult(dx, dxn);
 			T.zMult(ds, dsn);
 
-			for (NonNegativeOrthantCone cone : program.getNonNegativeOrthantCones()) {
-				int index = program.getIndex(cone.getVariable());
-				Dxn.setQuick(index, index, dxn.getQuick(index));
-				Dsn.setQuick(index, index, dsn.getQuick(index));
-			}
-
-			for (SecondOrderCone cone : program.getSecondOrderCones()) {
-				/* Collects the cone's variables */
-				Set<Variable> coneVars = cone.getVariables();
-				Variable nthVariable = cone.getNthVariable();
-				int nCone = coneVars.size();
-
-				/* Creates an array of the variables' indices */
-				int[] selection = new int[nCone];
-				int selectionIndex = 1;
-				for (Variable var : coneVars) {
-					if (nthVariable.equals(var))
-						selection[0] = program.getIndex(var);
-					else
-						selection[selectionIndex++] = program.getIndex(var);
-				}
-
-				/* Selects the variables */
-				DoubleMatrix1D dxnSel = dxn.viewSelection(selection);
-				DoubleMatrix1D dsnSel = dsn.viewSelection(selection);
-
-				/* Gets the selections */
-//				DoubleMatrix2D DxnSel  = Dxn.viewSelection(selection, selection);
-//				DoubleMatrix2D DsnSel  = Dsn.viewSelection(selection, selection);
-
-				/* Computes the arrowhead matrices */
-				DoubleMatrix2D temp;
-				temp = getArrowheadMatrix(dxnSel);
-				for (int i = 0; i < temp.rows(); i++) {
-					for (int j = 0; j < temp.columns(); j++) {
-						Dxn.setQuick(selection[i], selection[j], temp.getQuick(i, j));
-					}
-				}
-//				DxnSel.assign(getArrowheadMatrix(dxnSel));
-				temp = getArrowheadMatrix(dsnSel);
-				for (int i = 0; i < temp.rows(); i++) {
-					for (int j = 0; j < temp.columns(); j++) {
-						Dsn.setQuick(selection[i], selection[j], temp.getQuick(i, j));
-					}
+			for (int index : nnocIndices)
+				r4.setQuick(index, r4.getQuick(index) - dxn.getQuick(index) * dsn.getQuick(index));
+
+			for (int[] selection : socSelections) {
+				double dxn0 = dxn.getQuick(selection[0]);
+				double dsn0 = dsn.getQuick(selection[0]);
+				double product = dxn0 * dsn0;
+				for (int i = 1; i < selection.length; i++) {
+					int index = selection[i];
+					double dxni = dxn.getQuick(index);
+					double dsni = dsn.getQuick(index);
+					product += dxni * dsni;
+					r4.setQuick(index, r4.getQuick(index) - (dxn0 * dsni + dsn0 * dxni));
 				}
-//				DsnSel.assign(getArrowheadMatrix(dsnSel));
+				r4.setQuick(selection[0], r4.getQuick(selection[0]) - product);
 			}
 
-			Dsn.zMult(e, scratchN1);
-			Dxn.zMult(scratchN1, scratchN2);
-			r4.assign(scratchN2, DoubleFunctions.minus);
 			r5 -= dTau * dKappa;
 		}
 	}
 
 	private void getSearchDirection(ConicProgram program) {
-		SparseCCDoubleMatrix2D A = program.getA();
+		SparseCCDoubleMatrix2D A = rotatedA;
 		DoubleMatrix1D b = program.getB();
-		DoubleMatrix1D c = program.getC();
+		DoubleMatrix1D c = rotatedC;
 
 		invXBar.zMult(r4, scratchN2);
 		/* Aliases scratchN1 as TInvVR4. Don't reuse it! */
@@ -929,17 +1187,121 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		ds.assign(TInvVR4).assign(dx, DoubleFunctions.minus);
 	}
 
-	private double getMaxStepSize(ConicProgram program) {
-		double alphaMax = 1.0;
+	/**
+	 * Applies multiple centrality correctors to the search direction.
+	 *
+	 * Each corrector targets a step size larger than the current direction
+	 * allows. At that step, it finds the complementarity of each cone (and
+	 * of tau and kappa) that lies outside a neighborhood of gamma * mu, and
+	 * corrects the residuals to move it back inside. The corrected direction
+	 * only requires another solve with the current factorization of the
+	 * normal system, and it replaces the current direction only if it
+	 * increases the step size enough.
+	 *
+	 * This method follows J. Gondzio. "Multiple centrality corrections in a
+	 * primal-dual method for linear programming." <i>Computational Optimization
+	 * and Applications</i> 6(2), September 1996, measuring the complementarity
+	 * of each second-order cone by the first component of the Jordan product,
+	 * i.e., the inner product of its scaled variables.
+	 *
+	 * @param program  program being solved
+	 * @param gamma    parameter used to compute the residuals of the current direction
+	 */
+	private void applyCentralityCorrectors(ConicProgram program, double gamma) {
+		double target = gamma * mu;
+		if (target <= 0.0)
+			return;
+		double lower = CORRECTOR_MIN_RATIO * target;
+		double upper = CORRECTOR_MAX_RATIO * target;
+
+		double alpha = getMaxStepSize(program);
+		int accepted = 0;
+		while (accepted < maxCorrectors && alpha < 1.0) {
+			double trialStep = Math.min(1.0, alpha + CORRECTOR_STEP_INCREASE);
+
+			dxPrevious.assign(dx);
+			dwPrevious.assign(dw);
+			dsPrevious.assign(ds);
+			double dTauPrevious = dTau;
+			double dKappaPrevious = dKappa;
+
+			/* Corrects the complementarity residuals */
+			for (int index : nnocIndices) {
+				double product = (v.getQuick(index) + trialStep * dx.getQuick(index))
+						* (v.getQuick(index) + trialStep * ds.getQuick(index));
+				r4.setQuick(index, r4.getQuick(index) + getCentralityCorrection(product, lower, upper));
+			}
+			for (int[] selection : socSelections) {
+				double product = 0.0;
+				for (int index : selection)
+					product += (v.getQuick(index) + trialStep * dx.getQuick(index))
+							* (v.getQuick(index) + trialStep * ds.getQuick(index));
+				r4.setQuick(selection[0], r4.getQuick(selection[0]) + getCentralityCorrection(product, lower, upper));
+			}
+			r5 += getCentralityCorrection((tau + trialStep * dTau) * (kappa + trialStep * dKappa), lower, upper);
+
+			getSearchDirection(program);
+			double newAlpha = getMaxStepSize(program);
+
+			if (newAlpha < alpha + CORRECTOR_ACCEPTANCE * CORRECTOR_STEP_INCREASE) {
+				dx.assign(dxPrevious);
+				dw.assign(dwPrevious);
+				ds.assign(dsPrevious);
+				dTau = dTauPrevious;
+				dKappa = dKappaPrevious;
+				break;
+			}
 
-		DoubleMatrix1D x = v;
-		DoubleMatrix1D s = v;
+			alpha = newAlpha;
+			accepted++;
+		}
+
+		log.trace("Accepted {} centrality correctors. Max. step size: {}", accepted, alpha);
+	}
+
+	/*
+	 * Returns the change to a complementarity product that moves it into
+	 * [lower, upper], limiting decreases to upper
+	 */
+	private double getCentralityCorrection(double product, double lower, double upper) {
+		if (product < lower)
+			return lower - product;
+		else if (product > upper)
+			return Math.max(upper - product, -1 * upper);
+		else
+			return 0.0;
+	}
+
+	private double getMaxStepSize(ConicProgram program) {
+		final DoubleMatrix1D x = v;
+		final DoubleMatrix1D s = v;
 
 		/* Checks distance to boundaries of cones */
-		for (Cone cone : program.getCones()) {
-			alphaMax = Math.min(cone.getMaxStep(program.getVarMap(), x, dx), alphaMax);
-			alphaMax = Math.min(cone.getMaxStep(program.getVarMap(), s, ds), alphaMax);
-		}
+		double alphaMax = Math.min(1.0, forEachCone(nnocIndices.length, new ConeRangeTask() {
+			@Override
+			public double run(int start, int end) {
+				double alphaMax = Double.POSITIVE_INFINITY;
+				for (int i = start; i < end; i++) {
+					int index = nnocIndices[i];
+					if (dx.getQuick(index) < 0)
+						alphaMax = Math.min(x.getQuick(index) * .95 / (-1 * dx.getQuick(index)), alphaMax);
+					if (ds.getQuick(index) < 0)
+						alphaMax = Math.min(s.getQuick(index) * .95 / (-1 * ds.getQuick(index)), alphaMax);
+				}
+				return alphaMax;
+			}
+		}));
+		alphaMax = Math.min(alphaMax, forEachCone(socSelections.length, new ConeRangeTask() {
+			@Override
+			public double run(int start, int end) {
+				double alphaMax = Double.POSITIVE_INFINITY;
+				for (int i = start; i < end; i++) {
+					alphaMax = Math.min(getSOCMaxStep(socSelections[i], x, dx), alphaMax);
+					alphaMax = Math.min(getSOCMaxStep(socSelections[i], s, ds), alphaMax);
+				}
+				return alphaMax;
+			}
+		}));
 
 		/* Checks distance to min. tau */
 		if (dTau < 0)
@@ -952,6 +1314,36 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		return alphaMax;
 	}
 
+	/**
+	 * Returns the largest step, up to 1, in the direction dx that keeps x in
+	 * the interior of one SOC, or 0.95 of the step to the boundary if it is
+	 * smaller.
+	 *
+	 * @param selection  indices of the cone's variables, nth variable first
+	 */
+	private double getSOCMaxStep(int[] selection, DoubleMatrix1D x, DoubleMatrix1D dx) {
+		double x0 = x.getQuick(selection[0]);
+		double dx0 = dx.getQuick(selection[0]);
+
+		/* Coefficients of the quadratic a t^2 + b t + c */
+		double a = dx0 * dx0;
+		double b = x0 * dx0;
+		double c = x0 * x0;
+		for (int i = 1; i < selection.length; i++) {
+			double xi = x.getQuick(selection[i]);
+			double dxi = dx.getQuick(selection[i]);
+			a -= dxi * dxi;
+			b -= xi * dxi;
+			c -= xi * xi;
+		}
+		b *= 2;
+
+		if (x0 <= 0.0 || c <= 0.0)
+			return 0.0;
+
+		return SecondOrderCone.getMaxStep(a, b, c);
+	}
+
 	private double getStepSize(ConicProgram program
 			, double alphaMax, double beta, double gamma
 			) {
@@ -967,62 +1359,45 @@ public class HomogeneousIPM implements ConicProgramSolver {
 			ssCond = getStepSizeCondition(stepSize, beta, gamma, mu);
 		}
 
-		for (NonNegativeOrthantCone cone : program.getNonNegativeOrthantCones()) {
-			int index = program.getIndex(cone.getVariable());
-			double vX1 = Math.pow(x.getQuick(index), 2);
-			double vX2 = 2 * dx.getQuick(index) * x.getQuick(index);
-			double vX3 = Math.pow(dx.getQuick(index), 2);
-
-			double vS1 = Math.pow(s.getQuick(index), 2);
-			double vS2 = 2 * ds.getQuick(index) * s.getQuick(index);
-			double vS3 = Math.pow(ds.getQuick(index), 2);
-
-			while (Math.sqrt(
-					(vX1 + stepSize * vX2 + stepSize * stepSize * vX3)
-					* (vS1 + stepSize * vS2 + stepSize * stepSize * vS3)
-					) < ssCond) {
-				stepSize -= stepSizeDecrement;
-				ssCond = getStepSizeCondition(stepSize, beta, gamma, mu);
-				if (stepSize <= 0)
-					throw new IllegalStateException("Stuck.");
+		/* Computes the coefficients of each cone's quadratics in the step size */
+		final double[] coeffs = stepSizeCoeffs;
+		final DoubleMatrix1D xFinal = x;
+		final DoubleMatrix1D sFinal = s;
+		forEachCone(nnocIndices.length, new ConeRangeTask() {
+			@Override
+			public double run(int start, int end) {
+				for (int i = start; i < end; i++) {
+					int index = nnocIndices[i];
+					coeffs[6*i]   = Math.pow(xFinal.getQuick(index), 2);
+					coeffs[6*i+1] = 2 * dx.getQuick(index) * xFinal.getQuick(index);
+					coeffs[6*i+2] = Math.pow(dx.getQuick(index), 2);
+					coeffs[6*i+3] = Math.pow(sFinal.getQuick(index), 2);
+					coeffs[6*i+4] = 2 * ds.getQuick(index) * sFinal.getQuick(index);
+					coeffs[6*i+5] = Math.pow(ds.getQuick(index), 2);
+				}
+				return Double.POSITIVE_INFINITY;
 			}
-		}
-
-		for (SecondOrderCone cone : program.getSecondOrderCones()) {
-			/* Collects the cone's variables */
-			Set<Variable> coneVars = cone.getVariables();
-			Variable nthVariable = cone.getNthVariable();
-			int nCone = coneVars.size();
-
-			/* Creates an array of the variables' indices */
-			int[] selection = new int[nCone];
-			int selectionIndex = 1;
-			for (Variable var : coneVars) {
-				if (nthVariable.equals(var))
-					selection[0] = program.getIndex(var);
-				else
-					selection[selectionIndex++] = program.getIndex(var);
+		});
+		forEachCone(socSelections.length, new ConeRangeTask() {
+			@Override
+			public double run(int start, int end) {
+				for (int i = start; i < end; i++)
+					setSOCStepSizeCoefficients(socSelections[i], xFinal, sFinal, coeffs, 6 * (nnocIndices.length + i));
+				return Double.POSITIVE_INFINITY;
 			}
+		});
 
-			/* Selects the variables */
-			DoubleMatrix1D xSel = x.viewSelection(selection);
-			DoubleMatrix1D sSel = s.viewSelection(selection);
-			DoubleMatrix1D dxSel = dx.viewSelection(selection);
-			DoubleMatrix1D dsSel = ds.viewSelection(selection);
-
-			/* Creates a Q matrix for the variables */
-			DoubleMatrix2D Q = new SparseDoubleMatrix2D(nCone, nCone);
-			Q.setQuick(0, 0, 1.0);
-			for (int i = 1; i < nCone; i++)
-				Q.setQuick(i, i, -1.0);
-
-			double vX1 = Q.zMult(xSel, null).zDotProduct(xSel);
-			double vX2 = 2 * Q.zMult(xSel, null).zDotProduct(dxSel);
-			double vX3 = Q.zMult(dxSel, null).zDotProduct(dxSel);
-
-			double vS1 = Q.zMult(sSel, null).zDotProduct(sSel);
-			double vS2 = 2 * Q.zMult(sSel, null).zDotProduct(dsSel);
-			double vS3 = Q.zMult(dsSel, null).zDotProduct(dsSel);
+		/*
+		 * Decreases the step size cone by cone in the original order, so the
+		 * result does not depend on the number of threads
+		 */
+		for (int offset = 0; offset < coeffs.length; offset += 6) {
+			double vX1 = coeffs[offset];
+			double vX2 = coeffs[offset+1];
+			double vX3 = coeffs[offset+2];
+			double vS1 = coeffs[offset+3];
+			double vS2 = coeffs[offset+4];
+			double vS3 = coeffs[offset+5];
 
 			while (Math.sqrt(
 					(vX1 + stepSize * vX2 + stepSize * stepSize * vX3)
@@ -1038,26 +1413,43 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		return stepSize;
 	}
 
-	private double getStepSizeCondition(double stepSize, double beta, double gamma, double mu) {
-		return beta * (1 - stepSize * (1 - gamma)) * mu;
-	}
-
-	private DoubleMatrix2D getArrowheadMatrix(DoubleMatrix1D v) {
-		int n = (int) v.size();
-		double v0 = v.getQuick(0);
-		DoubleMatrix2D ahm = new SparseDoubleMatrix2D(n, n);
-		if (n > 1) {
-			ahm.viewColumn(0).assign(v);
-			ahm.viewRow(0).assign(v);
-			for (int i = 1; i < n; i++) {
-				ahm.setQuick(i, i, v0);
-			}
-		}
-		else {
-			ahm.setQuick(0, 0, v0);
+	/**
+	 * Computes the coefficients of the quadratics x'Qx and s'Qs in the step
+	 * size for one SOC and writes them to coeffs, starting at offset.
+	 *
+	 * @param selection  indices of the cone's variables, nth variable first
+	 */
+	private void setSOCStepSizeCoefficients(int[] selection, DoubleMatrix1D x, DoubleMatrix1D s
+			, double[] coeffs, int offset) {
+		/* Computes x'Qx, x'Q dx, etc. with Q = diag(1, -1, ..., -1) */
+		double xQx = 0.0, xQdx = 0.0, dxQdx = 0.0;
+		double sQs = 0.0, sQds = 0.0, dsQds = 0.0;
+		for (int i = 0; i < selection.length; i++) {
+			int index = selection[i];
+			double q = (i == 0) ? 1.0 : -1.0;
+			double xi = x.getQuick(index);
+			double dxi = dx.getQuick(index);
+			double si = s.getQuick(index);
+			double dsi = ds.getQuick(index);
+			xQx += q * xi * xi;
+			xQdx += q * xi * dxi;
+			dxQdx += q * dxi * dxi;
+			sQs += q * si * si;
+			sQds += q * si * dsi;
+			dsQds += q * dsi * dsi;
 		}
 
-		return ahm;
+		coeffs[offset]   = xQx;
+		coeffs[offset+1] = 2 * xQdx;
+		coeffs[offset+2] = dxQdx;
+
+		coeffs[offset+3] = sQs;
+		coeffs[offset+4] = 2 * sQds;
+		coeffs[offset+5] = dsQds;
+	}
+
+	private double getStepSizeCondition(double stepSize, double beta, double gamma, double mu) {
+		return beta * (1 - stepSize * (1 - gamma)) * mu;
 	}
 
 	private void descaleSearchDirection() {
@@ -1068,37 +1460,40 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		dKappaDescaled = dKappa;
 	}
 
-	private DoubleMatrix2D getSOCFunction(DoubleMatrix1D x, double detX) {
-		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
-		int n = (int) x.size();
-
-		/* Creates a Q matrix for the variables */
-		DoubleMatrix2D Q = new SparseDoubleMatrix2D(n, n);
-		Q.setQuick(0, 0, 1.0);
-		for (int i = 1; i < n; i++)
-			Q.setQuick(i, i, -1.0);
-
-		DoubleMatrix2D P = alg.multOuter(x, x, null);
-		P.assign(Q.copy().assign(DoubleFunctions.mult(detX)), DoubleFunctions.minus);
-		return P;
+	/* Work on a range [start, end) of cones, returning a bound to be min-reduced */
+	private interface ConeRangeTask {
+		double run(int start, int end);
 	}
 
-	private DoubleMatrix1D getSOCInverse(DoubleMatrix1D x, double detX) {
-		int n = (int) x.size();
-		/* Creates a Q matrix for the variables */
-		DoubleMatrix2D Q = new SparseDoubleMatrix2D(n, n);
-		Q.setQuick(0, 0, 1.0);
-		for (int i = 1; i < n; i++)
-			Q.setQuick(i, i, -1.0);
-
-		return Q.zMult(x, null).assign(DoubleFunctions.div(detX));
-	}
+	/**
+	 * Runs a task over the cones 0 to numCones-1 and returns the minimum of
+	 * the values returned for each chunk.
+	 *
+	 * If more than one thread is configured and there are enough cones, the
+	 * cones are split into contiguous chunks that are run in parallel.
+	 * Otherwise, the task is run on all the cones in the calling thread.
+	 */
+	private double forEachCone(int numCones, final ConeRangeTask task) {
+		if (pool == null || numCones < 2 * MIN_CONES_PER_TASK)
+			return task.run(0, numCones);
+
+		int numChunks = Math.min(threads * 4, numCones / MIN_CONES_PER_TASK);
+		List<ForkJoinTask<Double>> futures = new ArrayList<ForkJoinTask<Double>>(numChunks);
+		for (int chunk = 0; chunk < numChunks; chunk++) {
+			final int start = (int) ((long) numCones * chunk / numChunks);
+			final int end = (int) ((long) numCones * (chunk + 1) / numChunks);
+			futures.add(pool.submit(new Callable<Double>() {
+				@Override
+				public Double call() {
+					return task.run(start, end);
+				}
+			}));
+		}
 
-	private DoubleMatrix1D getSOCSqrt(DoubleMatrix1D x, double detX) {
-		DoubleMatrix1D sqrtD = x.copy();
-		sqrtD.setQuick(0, sqrtD.getQuick(0) + Math.sqrt(2 * detX));
-		sqrtD.assign(DoubleFunctions.div(Math.sqrt(Math.sqrt(2) * x.getQuick(0) + 2 * Math.sqrt(detX))));
-		return sqrtD;
+		double result = Double.POSITIVE_INFINITY;
+		for (ForkJoinTask<Double> future : futures)
+			result = Math.min(result, future.join());
+		return result;
 	}
 
 	private void removeMatrixReferences() {
@@ -1107,6 +1502,12 @@ public class HomogeneousIPM implements ConicProgramSolver {
 
 		T = null;
 		e = null;
+		layout = null;
+		rotatedA = null;
+		rotatedC = null;
+		nnocIndices = null;
+		socSelections = null;
+		socOffsets = null;
 
 		d	 = null;
 		detD = null;
@@ -1114,8 +1515,6 @@ public class HomogeneousIPM implements ConicProgramSolver {
 
 		dxn = null;
 		dsn = null;
-		Dxn = null;
-		Dsn = null;
 
 		r1 = null;
 		r2 = null;
@@ -1126,6 +1525,7 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		ThetaW = null;
 		invThetaInvW = null;
 		invThetaSqInvWSq = null;
+		normalProduct = null;
 		AInvThetaSqInvWSq = null;
 		g1 = null;
 		g2 = null;
@@ -1134,6 +1534,10 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		dw = null;
 		ds = null;
 
+		dxPrevious = null;
+		dwPrevious = null;
+		dsPrevious = null;
+
 		dxDescaled = null;
 		dwDescaled = null;
 		dsDescaled = null;
@@ -1143,5 +1547,11 @@ public class HomogeneousIPM implements ConicProgramSolver {
 		scratchN3 = null;
 		scratchM1 = null;
 		scratchM2 = null;
+		socScratch1 = null;
+		socScratch2 = null;
+		socScratch3 = null;
+		socScratch4 = null;
+		socScratch5 = null;
+		stepSizeCoeffs = null;
 	}
 }
@@ -19,27 +19,28 @@ package org.linqs.psl.experimental.optimizer.conic.ipm;
 
 import org.linqs.psl.config.Config;
 import org.linqs.psl.experimental.optimizer.conic.ConicProgramSolver;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.NormalSystemSolver;
 import org.linqs.psl.experimental.optimizer.conic.program.Cone;
 import org.linqs.psl.experimental.optimizer.conic.program.ConeType;
 import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+import org.linqs.psl.experimental.optimizer.conic.program.RotatedSecondOrderCone;
+import org.linqs.psl.experimental.optimizer.conic.program.SecondOrderCone;
+import org.linqs.psl.experimental.optimizer.conic.program.Variable;
 import org.linqs.psl.experimental.optimizer.conic.util.Dualizer;
 import org.linqs.psl.experimental.optimizer.conic.util.FeasiblePointInitializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import cern.colt.matrix.tdouble.DoubleFactory1D;
-import cern.colt.matrix.tdouble.DoubleFactory2D;
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
 import cern.colt.matrix.tdouble.DoubleMatrix2D;
 import cern.colt.matrix.tdouble.algo.DenseDoubleAlgebra;
-import cern.colt.matrix.tdouble.algo.decomposition.SparseDoubleCholeskyDecomposition;
 import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
-import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
 import cern.jet.math.tdouble.DoubleFunctions;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Set;
+import java.util.Map;
 
 /**
  * Primal-dual short-step interior point method.
@@ -94,6 +95,37 @@ public class IPM implements ConicProgramSolver {
 	/** Default value for INFEASIBILITY_THRESHOLD_KEY property. */
 	public static final double INFEASIBILITY_THRESHOLD_DEFAULT = 10e-8;
 
+	/**
+	 * Should be set to a {@link NormalSystemSolver} or the fully qualified
+	 * name of one. Will be used to instantiate a {@link NormalSystemSolver}.
+	 */
+	public static final String NORMAL_SYS_SOLVER_KEY = CONFIG_PREFIX + ".normalsolver";
+	/** Default value for NORMAL_SYS_SOLVER_KEY property. */
+	public static final String NORMAL_SYS_SOLVER_DEFAULT = "org.linqs.psl.experimental.optimizer.conic.ipm.solver.Cholesky";
+
+	/**
+	 * Key for boolean property. If true, the IPM will start each solve of a
+	 * program it has already solved from the previous solution, instead of
+	 * initializing the program to a feasible point.
+	 *
+	 * @see #setWarmStart(boolean)
+	 */
+	public static final String WARM_START_KEY = CONFIG_PREFIX + ".warmstart";
+	/** Default value for WARM_START_KEY property */
+	public static final boolean WARM_START_DEFAULT = false;
+
+	/**
+	 * Key for positive double property. When warm starting, the IPM will
+	 * raise each primal and dual variable to at least this value, so the
+	 * previous solution is in the interior of the cones.
+	 */
+	public static final String WARM_START_SHIFT_KEY = CONFIG_PREFIX + ".warmstartshift";
+	/** Default value for WARM_START_SHIFT_KEY property */
+	public static final double WARM_START_SHIFT_DEFAULT = 10e-4;
+
+	/* Maximum infeasibility with which the IPM can start */
+	private static final double MAX_INITIAL_INFEASIBILITY = 0.01;
+
 	protected ConicProgram currentProgram;
 
 	protected FeasiblePointInitializer initializer;
@@ -105,10 +137,20 @@ public class IPM implements ConicProgramSolver {
 	protected final boolean tryDualize;
 	protected final double dualityGapThreshold;
 	protected final double infeasibilityThreshold;
+	protected final NormalSystemSolver solver;
+	protected final double warmStartShift;
+	protected boolean warmStart;
+
+	/* Whether the current program's variables hold a solution found by this IPM */
+	protected boolean hasPreviousSolution;
+
+	/* Cone structure of the program being solved */
+	protected ConeLayout layout;
 
 	private static final ArrayList<ConeType> supportedCones = new ArrayList<ConeType>(2);
 	static {
 		supportedCones.add(ConeType.NonNegativeOrthantCone);
+		supportedCones.add(ConeType.RotatedSecondOrderCone);
 	}
 
 	private int stepNum;
@@ -118,11 +160,32 @@ public class IPM implements ConicProgramSolver {
 		tryDualize = Config.getBoolean(DUALIZE_KEY, DUALIZE_DEFAULT);
 		dualityGapThreshold = Config.getDouble(DUALITY_GAP_THRESHOLD_KEY, DUALITY_GAP_THRESHOLD_DEFAULT);
 		infeasibilityThreshold = Config.getDouble(INFEASIBILITY_THRESHOLD_KEY, INFEASIBILITY_THRESHOLD_DEFAULT);
+		solver = (NormalSystemSolver) Config.getNewObject(NORMAL_SYS_SOLVER_KEY, NORMAL_SYS_SOLVER_DEFAULT);
+		warmStart = Config.getBoolean(WARM_START_KEY, WARM_START_DEFAULT);
+		warmStartShift = Config.getDouble(WARM_START_SHIFT_KEY, WARM_START_SHIFT_DEFAULT);
+		if (warmStartShift <= 0)
+			throw new IllegalArgumentException("Property " + WARM_START_SHIFT_KEY + " must be positive.");
 
 		currentProgram = null;
 		dualized = false;
 		dualizer = null;
 		initializer = null;
+		hasPreviousSolution = false;
+	}
+
+	/**
+	 * Sets whether to warm start.
+	 * <p>
+	 * If true, setting the same program again keeps the state built for it,
+	 * including its dualization and feasible point initializer, and each
+	 * solve after the first starts from the previous solution, moved into
+	 * the interior of the cones. If that point is too infeasible, the program
+	 * is initialized to a feasible point as usual.
+	 *
+	 * @see #WARM_START_KEY
+	 */
+	public void setWarmStart(boolean warmStart) {
+		this.warmStart = warmStart;
 	}
 
 	@Override
@@ -131,7 +194,12 @@ public class IPM implements ConicProgramSolver {
 	}
 
 	@Override public void setConicProgram(ConicProgram p) {
+		/* Keeps the state for the program, so it can be warm started */
+		if (warmStart && p == currentProgram)
+			return;
+
 		currentProgram = p;
+		hasPreviousSolution = false;
 
 		if (initFeasible && FeasiblePointInitializer.supportsConeTypes(currentProgram.getConeTypes())) {
 			initializer = new FeasiblePointInitializer(currentProgram);
@@ -174,21 +242,26 @@ public class IPM implements ConicProgramSolver {
 			program = currentProgram;
 		}
 
-		if (initializer != null)
+		if (warmStart && hasPreviousSolution && moveIntoInterior(program)) {
+			log.debug("Warm starting from previous solution.");
+		}
+		else if (initializer != null)
 			initializer.makeFeasible();
+		hasPreviousSolution = false;
 
 		if (!supportsConeTypes(program.getConeTypes())) {
 			throw new IllegalStateException("Program contains at least one unsupported cone."
-					+ " Supported cones are non-negative orthant cones.");
+					+ " Supported cones are non-negative orthant cones and rotated second-order cones.");
 		}
 
 		DoubleMatrix2D A = program.getA();
 
 		log.debug("Starting optimization with {} variables and {} constraints.", A.columns(), A.rows());
 
-		if (program.getDualInfeasibility() > 0.01 || program.getPrimalInfeasibility() > 0.01)
+		if (program.getDualInfeasibility() > MAX_INITIAL_INFEASIBILITY || program.getPrimalInfeasibility() > MAX_INITIAL_INFEASIBILITY)
 			throw new IllegalStateException();
 
+		solver.setConicProgram(program);
 		doSolve(program);
 
 		if (program.getDualInfeasibility() > 0.01 || program.getPrimalInfeasibility() > 0.01) {
@@ -203,16 +276,86 @@ public class IPM implements ConicProgramSolver {
 		}
 
 		currentProgram.checkInMatrices();
+		hasPreviousSolution = true;
 
 		log.debug("Completed optimization.");
 	}
 
+	/**
+	 * Raises each non-negative orthant variable of the previous solution to
+	 * at least the warm-start shift, then moves the primal and dual variables
+	 * into the interior of each second-order and rotated second-order cone
+	 * along the cone's interior direction. Inner variables of those cones are
+	 * not shifted, since they may be negative.
+	 * <p>
+	 * If the resulting point is too infeasible, the previous solution is
+	 * restored, so the program can be initialized as if it were cold started.
+	 *
+	 * @return whether the resulting point is feasible enough to start from
+	 */
+	protected boolean moveIntoInterior(ConicProgram program) {
+		DoubleMatrix1D x = program.getX();
+		DoubleMatrix1D s = program.getS();
+		DoubleMatrix1D previousX = x.copy();
+		DoubleMatrix1D previousS = s.copy();
+
+		ConeLayout coneLayout = new ConeLayout(program);
+		for (int i : coneLayout.getNNOCIndices()) {
+			x.setQuick(i, Math.max(x.getQuick(i), warmStartShift));
+			s.setQuick(i, Math.max(s.getQuick(i), warmStartShift));
+		}
+
+		Map<Variable, Integer> varMap = program.getVarMap();
+		int[] offsets = coneLayout.getSOCOffsets();
+		int[] indices = coneLayout.getSOCIndices();
+		DoubleMatrix1D d = DoubleFactory1D.dense.make((int) x.size());
+		int k = 0;
+		for (SecondOrderCone cone : program.getSecondOrderCones()) {
+			moveIntoInterior(cone, varMap, indices, offsets[k], offsets[k+1], d, x);
+			moveIntoInterior(cone, varMap, indices, offsets[k], offsets[k+1], d, s);
+			k++;
+		}
+		for (RotatedSecondOrderCone cone : program.getRotatedSecondOrderCones()) {
+			moveIntoInterior(cone, varMap, indices, offsets[k], offsets[k+1], d, x);
+			moveIntoInterior(cone, varMap, indices, offsets[k], offsets[k+1], d, s);
+			k++;
+		}
+
+		double primalInfeasibility = program.getPrimalInfeasibility();
+		double dualInfeasibility = program.getDualInfeasibility();
+		if (primalInfeasibility > MAX_INITIAL_INFEASIBILITY || dualInfeasibility > MAX_INITIAL_INFEASIBILITY) {
+			log.debug("Previous solution is too infeasible to warm start. P. Inf: {} -- D. Inf: {}",
+					primalInfeasibility, dualInfeasibility);
+			x.assign(previousX);
+			s.assign(previousS);
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Moves x into the interior of a cone whose block of indices is
+	 * indices[start:end). Only the entries of d in that block are used, and
+	 * they are reset to zero.
+	 */
+	private static void moveIntoInterior(Cone cone, Map<Variable, Integer> varMap, int[] indices,
+			int start, int end, DoubleMatrix1D d, DoubleMatrix1D x) {
+		if (cone.isInterior(varMap, x))
+			return;
+		cone.setInteriorDirection(varMap, x, d);
+		for (int j = start; j < end; j++) {
+			int i = indices[j];
+			x.setQuick(i, x.getQuick(i) + d.getQuick(i));
+			d.setQuick(i, 0.0);
+		}
+	}
+
 	protected void doSolve(ConicProgram program) {
 		DoubleMatrix1D x, s, g, r;
-		DoubleMatrix2D Hinv, A;
+		DoubleMatrix2D A;
+		BlockDiagonalMatrix Hinv;
 		double mu, primalInfeasibility, dualInfeasibility, tau, muInitial, theta;
 		boolean inNeighborhood;
-		Set<Cone> cones = program.getCones();
 		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
 
 		A = program.getA();
@@ -220,8 +363,9 @@ public class IPM implements ConicProgramSolver {
 		s = program.getS();
 
 		/* Initializes barrier matrices */
+		layout = new ConeLayout(program);
 		g = DoubleFactory1D.dense.make(A.columns(), 1);
-		Hinv = DoubleFactory2D.sparse.make(A.columns(), A.columns());
+		Hinv = new BlockDiagonalMatrix(layout);
 
 		/* Initializes mu */
 		muInitial = alg.mult(x, s) / getV(program);
@@ -240,14 +384,12 @@ public class IPM implements ConicProgramSolver {
 		stepNum = 0;
 		inNeighborhood = false;
 		while (mu >= dualityGapThreshold || primalInfeasibility >= infeasibilityThreshold || dualInfeasibility >= infeasibilityThreshold) {
-			for (Cone cone : cones) {
-				cone.setBarrierGradient(program.getVarMap(), x, g);
-				cone.setBarrierHessianInv(program.getVarMap(), x, Hinv);
-			}
+			layout.setBarrierGradient(x, g);
+			layout.setBarrierHessianInv(x, Hinv);
 
 			if (!inNeighborhood) {
 				r = s.copy().assign(g, DoubleFunctions.plusMultSecond(muInitial));
-				theta = alg.mult(r, alg.mult(Hinv, r)) / muInitial;
+				theta = Hinv.quadraticForm(r) / muInitial;
 				if (theta < .1)
 					inNeighborhood = true;
 			}
@@ -269,7 +411,7 @@ public class IPM implements ConicProgramSolver {
 		}
 	}
 
-	protected void step(ConicProgram program, DoubleMatrix1D g, DoubleMatrix2D Hinv, double mu, double tau, boolean inNeighborhood) {
+	protected void step(ConicProgram program, DoubleMatrix1D g, BlockDiagonalMatrix Hinv, double mu, double tau, boolean inNeighborhood) {
 		SparseCCDoubleMatrix2D A;
 		DoubleMatrix1D x, b, w, s, c, dx, dw, ds, r;
 
@@ -283,7 +425,7 @@ public class IPM implements ConicProgramSolver {
 		ds = DoubleFactory1D.dense.make(A.columns());
 		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
 
-		SparseCCDoubleMatrix2D ccHinv = ((SparseDoubleMatrix2D) Hinv).getColumnCompressed(false);
+		SparseCCDoubleMatrix2D ccHinv = Hinv.getColumnCompressed();
 		SparseCCDoubleMatrix2D partial = new SparseCCDoubleMatrix2D(A.rows(), A.columns());
 		SparseCCDoubleMatrix2D coeff = new SparseCCDoubleMatrix2D(A.rows(), A.rows());
 
@@ -304,12 +446,8 @@ public class IPM implements ConicProgramSolver {
 			.assign(DoubleFunctions.div(mu));
 
 		if (!inNeighborhood) {
-			double primalStepSize = 1.0;
-			double dualStepSize = 1.0;
-			for (Cone cone : program.getCones()) {
-				primalStepSize = Math.min(primalStepSize, cone.getMaxStep(program.getVarMap(), x, dx));
-				dualStepSize = Math.min(dualStepSize, cone.getMaxStep(program.getVarMap(), s, ds));
-			}
+			double primalStepSize = layout.getMaxStep(x, dx);
+			double dualStepSize = layout.getMaxStep(s, ds);
 
 			dx.assign(DoubleFunctions.mult(primalStepSize));
 			dw.assign(DoubleFunctions.mult(dualStepSize));
@@ -322,11 +460,11 @@ public class IPM implements ConicProgramSolver {
 	}
 
 	protected int getV(ConicProgram program) {
-		return program.getNumNNOC() + 2*program.gtNumSOC();
+		return program.getNumNNOC() + 2*program.gtNumSOC() + 2*program.getNumRSOC();
 	}
 
 	protected void solveNormalSystem(SparseCCDoubleMatrix2D A, DoubleMatrix1D x, ConicProgram program) {
-		SparseDoubleCholeskyDecomposition cd = new SparseDoubleCholeskyDecomposition(A, 1);
-		cd.solve(x);
+		solver.setA(A);
+		solver.solve(x);
 	}
 }
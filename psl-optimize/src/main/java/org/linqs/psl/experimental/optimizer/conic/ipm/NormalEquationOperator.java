@@ -0,0 +1,206 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm;
+
+import java.util.Arrays;
+
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.ImplicitMatrix;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * The matrix M = A D A' of a normal system, represented only by its action
+ * on vectors and by its diagonal.
+ * <p>
+ * Multiplying by M computes A' y and then (A D)(A' y), so M is never formed
+ * and memory stays linear in the nonzeros of A and A D. The operator is meant
+ * for iterative solvers, which only multiply by M, and their preconditioners.
+ * Preconditioners that read more than the diagonal can assemble the lower
+ * triangle of M, whose pattern is computed the first time it is assembled
+ * and kept for the life of the operator. Its compressed column storage is
+ * empty, so solvers that read it reject the operator as an
+ * {@link ImplicitMatrix}. Reading any other entry or modifying the operator
+ * throws an {@link UnsupportedOperationException}.
+ */
+class NormalEquationOperator extends SparseCCDoubleMatrix2D implements ImplicitMatrix {
+
+	private static final long serialVersionUID = 1L;
+
+	private final SparseCCDoubleMatrix2D A;
+	private final SparseCCDoubleMatrix2D AD;
+	private final double[] diagonal;
+	private final double[] row;
+	private final DoubleMatrix1D scratch;
+
+	/* Lower triangle of M and the rows of A, created the first time the triangle is assembled */
+	private SparseCCDoubleMatrix2D lower;
+	private int[] rowPointers;
+	private int[] rowColumns;
+	private double[] rowValues;
+	private int[] positions;
+
+	/**
+	 * @param A   the constraint matrix
+	 * @param AD  the product of A and the symmetric scaling matrix D
+	 */
+	NormalEquationOperator(SparseCCDoubleMatrix2D A, SparseCCDoubleMatrix2D AD) {
+		super(A.rows(), A.rows(), 1);
+		if (AD.rows() != A.rows() || AD.columns() != A.columns())
+			throw new IllegalArgumentException("Matrices must have the same dimensions.");
+		this.A = A;
+		this.AD = AD;
+		scratch = new DenseDoubleMatrix1D(A.columns());
+		diagonal = new double[A.rows()];
+		row = new double[A.rows()];
+		update();
+	}
+
+	/**
+	 * Recomputes the diagonal of M after the values of A D have been changed
+	 * in place.
+	 */
+	void update() {
+		/* M(i,i) is the dot product of row i of A D and row i of A */
+		Arrays.fill(diagonal, 0.0);
+		Dcs a = A.getDcs();
+		Dcs ad = AD.getDcs();
+		for (int j = 0; j < a.n; j++) {
+			for (int p = a.p[j]; p < a.p[j+1]; p++)
+				row[a.i[p]] += a.x[p];
+			for (int p = ad.p[j]; p < ad.p[j+1]; p++)
+				diagonal[ad.i[p]] += ad.x[p] * row[ad.i[p]];
+			for (int p = a.p[j]; p < a.p[j+1]; p++)
+				row[a.i[p]] = 0.0;
+		}
+	}
+
+	/**
+	 * Computes the lower triangle of M from the current values of A D. Entry
+	 * (r, i) is the dot product of row r of A D and row i of A.
+	 */
+	@Override
+	public SparseCCDoubleMatrix2D assembleLowerTriangle() {
+		if (lower == null)
+			analyzeLowerTriangle();
+
+		Dcs ad = AD.getDcs();
+		Dcs l = lower.getDcs();
+		for (int i = 0; i < l.n; i++) {
+			for (int p = l.p[i]; p < l.p[i+1]; p++) {
+				positions[l.i[p]] = p;
+				l.x[p] = 0.0;
+			}
+
+			for (int q = rowPointers[i]; q < rowPointers[i+1]; q++) {
+				int j = rowColumns[q];
+				double aij = rowValues[q];
+				for (int p = ad.p[j]; p < ad.p[j+1]; p++)
+					if (ad.i[p] >= i)
+						l.x[positions[ad.i[p]]] += ad.x[p] * aij;
+			}
+		}
+		return lower;
+	}
+
+	/* Transposes A and computes the pattern of the lower triangle of M */
+	private void analyzeLowerTriangle() {
+		Dcs a = A.getDcs();
+		Dcs ad = AD.getDcs();
+		int m = A.rows();
+		int n = A.columns();
+
+		rowPointers = new int[m + 1];
+		for (int p = 0; p < a.p[n]; p++)
+			rowPointers[a.i[p] + 1]++;
+		for (int i = 0; i < m; i++)
+			rowPointers[i+1] += rowPointers[i];
+		rowColumns = new int[a.p[n]];
+		rowValues = new double[a.p[n]];
+		int[] nextInRow = Arrays.copyOf(rowPointers, m);
+		for (int j = 0; j < n; j++) {
+			for (int p = a.p[j]; p < a.p[j+1]; p++) {
+				int q = nextInRow[a.i[p]]++;
+				rowColumns[q] = j;
+				rowValues[q] = a.x[p];
+			}
+		}
+
+		/* Column i of the triangle is the union of the columns of A D in row i of A, below row i */
+		positions = new int[m];
+		int[] marks = new int[m];
+		Arrays.fill(marks, -1);
+		int nnz = 0;
+		for (int i = 0; i < m; i++) {
+			for (int q = rowPointers[i]; q < rowPointers[i+1]; q++) {
+				int j = rowColumns[q];
+				for (int p = ad.p[j]; p < ad.p[j+1]; p++) {
+					if (ad.i[p] >= i && marks[ad.i[p]] != i) {
+						marks[ad.i[p]] = i;
+						nnz++;
+					}
+				}
+			}
+		}
+
+		int[] rowIndexes = new int[nnz];
+		int[] columnIndexes = new int[nnz];
+		int next = 0;
+		Arrays.fill(marks, -1);
+		for (int i = 0; i < m; i++) {
+			for (int q = rowPointers[i]; q < rowPointers[i+1]; q++) {
+				int j = rowColumns[q];
+				for (int p = ad.p[j]; p < ad.p[j+1]; p++) {
+					if (ad.i[p] >= i && marks[ad.i[p]] != i) {
+						marks[ad.i[p]] = i;
+						rowIndexes[next] = ad.i[p];
+						columnIndexes[next++] = i;
+					}
+				}
+			}
+		}
+		lower = new SparseCCDoubleMatrix2D(m, m, rowIndexes, columnIndexes, new double[nnz], false, false, true);
+	}
+
+	/**
+	 * Computes z = alpha * M * y + beta * z. Since M is symmetric, transposeA
+	 * is ignored.
+	 */
+	@Override
+	public DoubleMatrix1D zMult(DoubleMatrix1D y, DoubleMatrix1D z, double alpha, double beta, boolean transposeA) {
+		if (z == null)
+			z = new DenseDoubleMatrix1D(rows());
+		A.zMult(y, scratch, 1.0, 0.0, true);
+		AD.zMult(scratch, z, alpha, beta, false);
+		return z;
+	}
+
+	@Override
+	public double getQuick(int row, int column) {
+		if (row != column)
+			throw new UnsupportedOperationException("Only diagonal entries of a normal equation operator are available.");
+		return diagonal[row];
+	}
+
+	@Override
+	public void setQuick(int row, int column, double value) {
+		throw new UnsupportedOperationException("A normal equation operator cannot be modified.");
+	}
+}
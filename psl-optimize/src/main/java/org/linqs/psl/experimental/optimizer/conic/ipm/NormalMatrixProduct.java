@@ -0,0 +1,287 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm;
+
+import java.util.Arrays;
+
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * The products A D and M = A D A' of a normal system, where D is a
+ * {@link BlockDiagonalMatrix} with the structure of a {@link ConeLayout}.
+ * <p>
+ * The sparsity patterns of both products depend only on A and the layout,
+ * so they are computed once, when the product is created. Each call to
+ * {@link #update(BlockDiagonalMatrix)} then recomputes the values in place
+ * from D's packed entries, without allocating. Every structurally nonzero
+ * entry is stored, even if its value cancels to zero, so the matrices
+ * returned by {@link #getAD()} and {@link #getM()} keep the same patterns
+ * for the life of this object.
+ * <p>
+ * If M is not formed, {@link #getM()} returns a {@link NormalEquationOperator}
+ * instead, which is updated along with A D.
+ */
+class NormalMatrixProduct {
+
+	private final ConeLayout layout;
+
+	private final SparseCCDoubleMatrix2D A;
+	private final SparseCCDoubleMatrix2D AD;
+	private final SparseCCDoubleMatrix2D M;
+	private final NormalEquationOperator operator;
+
+	/* A' in column-compressed form, i.e., the rows of A */
+	private final int[] rowPointers;
+	private final int[] rowColumns;
+	private final double[] rowValues;
+
+	/* For each column of A, its SOC block, or -1 for an NNOC, and its position in the block or diagonal */
+	private final int[] columnBlocks;
+	private final int[] columnPositions;
+
+	/* Position in the current column of each of its rows */
+	private final int[] positions;
+
+	/**
+	 * @param A       the constraint matrix
+	 * @param layout  the layout of the cones of A's columns
+	 * @param formM   whether to form M explicitly
+	 */
+	NormalMatrixProduct(SparseCCDoubleMatrix2D A, ConeLayout layout, boolean formM) {
+		if (A.columns() != layout.size())
+			throw new IllegalArgumentException("Layout must have one variable per column of A.");
+		this.A = A;
+		this.layout = layout;
+
+		int m = A.rows();
+		int n = A.columns();
+		Dcs a = A.getDcs();
+
+		columnBlocks = new int[n];
+		columnPositions = new int[n];
+		int[] nnocIndices = layout.getNNOCIndices();
+		for (int q = 0; q < nnocIndices.length; q++) {
+			columnBlocks[nnocIndices[q]] = -1;
+			columnPositions[nnocIndices[q]] = q;
+		}
+		int[] socOffsets = layout.getSOCOffsets();
+		int[] socIndices = layout.getSOCIndices();
+		for (int k = 0; k < layout.getNumSOC(); k++) {
+			for (int p = socOffsets[k]; p < socOffsets[k+1]; p++) {
+				columnBlocks[socIndices[p]] = k;
+				columnPositions[socIndices[p]] = p - socOffsets[k];
+			}
+		}
+
+		positions = new int[m];
+		int[] marks = new int[m];
+		Arrays.fill(marks, -1);
+
+		/*
+		 * Computes the pattern of A D. A column of an NNOC has the pattern of
+		 * the same column of A, and every column of an SOC block has the union
+		 * of the patterns of the block's columns of A.
+		 */
+		int nnz = 0;
+		for (int j : nnocIndices)
+			nnz += a.p[j+1] - a.p[j];
+		for (int k = 0; k < layout.getNumSOC(); k++) {
+			int blockNnz = 0;
+			for (int q = socOffsets[k]; q < socOffsets[k+1]; q++) {
+				int j = socIndices[q];
+				for (int p = a.p[j]; p < a.p[j+1]; p++) {
+					if (marks[a.i[p]] != k) {
+						marks[a.i[p]] = k;
+						blockNnz++;
+					}
+				}
+			}
+			nnz += blockNnz * (socOffsets[k+1] - socOffsets[k]);
+		}
+
+		int[] rowIndexes = new int[nnz];
+		int[] columnIndexes = new int[nnz];
+		int next = 0;
+		for (int j : nnocIndices) {
+			for (int p = a.p[j]; p < a.p[j+1]; p++) {
+				rowIndexes[next] = a.i[p];
+				columnIndexes[next++] = j;
+			}
+		}
+		Arrays.fill(marks, -1);
+		for (int k = 0; k < layout.getNumSOC(); k++) {
+			int start = next;
+			for (int q = socOffsets[k]; q < socOffsets[k+1]; q++) {
+				int j = socIndices[q];
+				for (int p = a.p[j]; p < a.p[j+1]; p++) {
+					if (marks[a.i[p]] != k) {
+						marks[a.i[p]] = k;
+						rowIndexes[next] = a.i[p];
+						columnIndexes[next++] = socIndices[socOffsets[k]];
+					}
+				}
+			}
+			int end = next;
+			for (int q = socOffsets[k] + 1; q < socOffsets[k+1]; q++) {
+				for (int p = start; p < end; p++) {
+					rowIndexes[next] = rowIndexes[p];
+					columnIndexes[next++] = socIndices[q];
+				}
+			}
+		}
+		AD = new SparseCCDoubleMatrix2D(m, n, rowIndexes, columnIndexes, new double[nnz], false, false, true);
+
+		/* Transposes A */
+		rowPointers = new int[m + 1];
+		for (int p = 0; p < a.p[n]; p++)
+			rowPointers[a.i[p] + 1]++;
+		for (int i = 0; i < m; i++)
+			rowPointers[i+1] += rowPointers[i];
+		rowColumns = new int[a.p[n]];
+		rowValues = new double[a.p[n]];
+		int[] nextInRow = Arrays.copyOf(rowPointers, m);
+		for (int j = 0; j < n; j++) {
+			for (int p = a.p[j]; p < a.p[j+1]; p++) {
+				int q = nextInRow[a.i[p]]++;
+				rowColumns[q] = j;
+				rowValues[q] = a.x[p];
+			}
+		}
+
+		if (formM) {
+			/* Computes the pattern of M, whose column i is the union of the columns of A D in row i of A */
+			Dcs ad = AD.getDcs();
+			Arrays.fill(marks, -1);
+			nnz = 0;
+			for (int i = 0; i < m; i++) {
+				for (int q = rowPointers[i]; q < rowPointers[i+1]; q++) {
+					int j = rowColumns[q];
+					for (int p = ad.p[j]; p < ad.p[j+1]; p++) {
+						if (marks[ad.i[p]] != i) {
+							marks[ad.i[p]] = i;
+							nnz++;
+						}
+					}
+				}
+			}
+
+			rowIndexes = new int[nnz];
+			columnIndexes = new int[nnz];
+			next = 0;
+			Arrays.fill(marks, -1);
+			for (int i = 0; i < m; i++) {
+				for (int q = rowPointers[i]; q < rowPointers[i+1]; q++) {
+					int j = rowColumns[q];
+					for (int p = ad.p[j]; p < ad.p[j+1]; p++) {
+						if (marks[ad.i[p]] != i) {
+							marks[ad.i[p]] = i;
+							rowIndexes[next] = ad.i[p];
+							columnIndexes[next++] = i;
+						}
+					}
+				}
+			}
+			M = new SparseCCDoubleMatrix2D(m, m, rowIndexes, columnIndexes, new double[nnz], false, false, true);
+			operator = null;
+		}
+		else {
+			M = null;
+			operator = new NormalEquationOperator(A, AD);
+		}
+	}
+
+	/**
+	 * Returns A D. The same matrix is returned by every call, with its values
+	 * updated in place, so it must not be modified.
+	 */
+	SparseCCDoubleMatrix2D getAD() {
+		return AD;
+	}
+
+	/**
+	 * Returns M, or a {@link NormalEquationOperator} for it if M is not
+	 * formed. The same matrix is returned by every call, with its values
+	 * updated in place, so it must not be modified.
+	 */
+	SparseCCDoubleMatrix2D getM() {
+		return (M != null) ? M : operator;
+	}
+
+	/**
+	 * Recomputes A D and M from the values of D.
+	 *
+	 * @param D  a matrix with the structure of this product's layout
+	 */
+	void update(BlockDiagonalMatrix D) {
+		Dcs a = A.getDcs();
+		Dcs ad = AD.getDcs();
+		double[] diagonal = D.getDiagonal();
+		double[] blocks = D.getBlocks();
+		int[] blockOffsets = D.getBlockOffsets();
+		int[] socOffsets = layout.getSOCOffsets();
+		int[] socIndices = layout.getSOCIndices();
+
+		/* Computes A D one column at a time */
+		for (int j = 0; j < ad.n; j++) {
+			for (int p = ad.p[j]; p < ad.p[j+1]; p++) {
+				positions[ad.i[p]] = p;
+				ad.x[p] = 0.0;
+			}
+
+			int k = columnBlocks[j];
+			if (k == -1) {
+				double dj = diagonal[columnPositions[j]];
+				for (int p = a.p[j]; p < a.p[j+1]; p++)
+					ad.x[positions[a.i[p]]] = a.x[p] * dj;
+			}
+			else {
+				int first = socOffsets[k];
+				int nCone = socOffsets[k+1] - first;
+				int b = columnPositions[j];
+				for (int c = 0; c < nCone; c++) {
+					double dcb = blocks[blockOffsets[k] + c * nCone + b];
+					int l = socIndices[first + c];
+					for (int p = a.p[l]; p < a.p[l+1]; p++)
+						ad.x[positions[a.i[p]]] += a.x[p] * dcb;
+				}
+			}
+		}
+
+		if (M == null) {
+			operator.update();
+			return;
+		}
+
+		/* Computes M one column at a time, as the combination of the columns of A D in row i of A */
+		Dcs mDcs = M.getDcs();
+		for (int i = 0; i < mDcs.n; i++) {
+			for (int p = mDcs.p[i]; p < mDcs.p[i+1]; p++) {
+				positions[mDcs.i[p]] = p;
+				mDcs.x[p] = 0.0;
+			}
+
+			for (int q = rowPointers[i]; q < rowPointers[i+1]; q++) {
+				int j = rowColumns[q];
+				double aij = rowValues[q];
+				for (int p = ad.p[j]; p < ad.p[j+1]; p++)
+					mDcs.x[positions[ad.i[p]]] += ad.x[p] * aij;
+			}
+		}
+	}
+}
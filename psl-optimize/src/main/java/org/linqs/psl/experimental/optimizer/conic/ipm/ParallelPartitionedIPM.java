@@ -18,32 +18,32 @@
 package org.linqs.psl.experimental.optimizer.conic.ipm;
 
 import org.linqs.psl.config.Config;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.FactorCache;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.NormalSystemSolver;
 import org.linqs.psl.experimental.optimizer.conic.partition.CompletePartitioner;
 import org.linqs.psl.experimental.optimizer.conic.partition.ConicProgramPartition;
+import org.linqs.psl.experimental.optimizer.conic.partition.ElementMatrices;
 import org.linqs.psl.experimental.optimizer.conic.partition.ObjectiveCoefficientCompletePartitioner;
-import org.linqs.psl.experimental.optimizer.conic.program.Cone;
+import org.linqs.psl.experimental.optimizer.conic.program.ConeType;
 import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
-import org.linqs.psl.experimental.optimizer.conic.program.Variable;
 
 import cern.colt.matrix.tdouble.DoubleFactory1D;
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
-import cern.colt.matrix.tdouble.DoubleMatrix2D;
 import cern.colt.matrix.tdouble.algo.DenseDoubleAlgebra;
-import cern.colt.matrix.tdouble.algo.decomposition.SparseDoubleCholeskyDecomposition;
 import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
 import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
-import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
 import cern.jet.math.tdouble.DoubleFunctions;
+import com.google.common.util.concurrent.AtomicDoubleArray;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ParallelPartitionedIPM extends IPM {
 
@@ -52,16 +52,40 @@ public class ParallelPartitionedIPM extends IPM {
 	private CompletePartitioner partitioner;
 
 	private final int threadPoolSize;
+	private final boolean concurrentPartitions;
+
+	/* Factors of each element's normal systems, versioned by outer iteration */
+	private final FactorCache factorCache;
 
 	public static final String CONFIG_PREFIX = "ppipm";
 
 	public static final String THREAD_POOL_SIZE_KEY = CONFIG_PREFIX + ".threadpoolsize";
 	public static final int THREAD_POOL_SIZE_DEFAULT = 1;
 
+	/**
+	 * Key for boolean property. If true, each sweep solves the elements of
+	 * all partitions concurrently against the same residual, instead of
+	 * solving one partition at a time. Each partition's step is damped by
+	 * 1 / (number of partitions), and the steps and residual updates are
+	 * accumulated atomically as the elements finish.
+	 */
+	public static final String CONCURRENT_PARTITIONS_KEY = CONFIG_PREFIX + ".concurrentpartitions";
+	/** Default value for CONCURRENT_PARTITIONS_KEY property */
+	public static final boolean CONCURRENT_PARTITIONS_DEFAULT = false;
+
 	public ParallelPartitionedIPM() {
 		super();
 		threadPoolSize = Config.getInt(THREAD_POOL_SIZE_KEY, THREAD_POOL_SIZE_DEFAULT);
+		concurrentPartitions = Config.getBoolean(CONCURRENT_PARTITIONS_KEY, CONCURRENT_PARTITIONS_DEFAULT);
+		factorCache = new FactorCache();
 		partitioner = new ObjectiveCoefficientCompletePartitioner();
+		partitioner.setNumWorkers(threadPoolSize);
+	}
+
+	@Override
+	public boolean supportsConeTypes(Collection<ConeType> types) {
+		/* The partitioner must also be able to weigh every cone */
+		return super.supportsConeTypes(types) && partitioner.supportsConeTypes(types);
 	}
 
 	@Override
@@ -72,18 +96,28 @@ public class ParallelPartitionedIPM extends IPM {
 
 	@Override
 	protected void doSolve(ConicProgram program) {
+		/* Creates one thread pool that is reused by every sweep of this solve */
+		ExecutorService threadPool = Executors.newFixedThreadPool(threadPoolSize);
+		try {
+			doSolve(program, threadPool);
+		}
+		finally {
+			threadPool.shutdownNow();
+		}
+	}
 
-		int p;
+	private void doSolve(ConicProgram program, ExecutorService threadPool) {
+
+		int p, iteration;
 		double mu, tau, muInitial, theta, err, epsilon_1;
 		boolean inNeighborhood;
 		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
-		ExecutorService threadPool;
-		Vector<PrimalStepRunnable> primalStepRunnables = new Vector<ParallelPartitionedIPM.PrimalStepRunnable>();
-		Vector<DualStepRunnable> dualStepRunnables = new Vector<ParallelPartitionedIPM.DualStepRunnable>();
+		/* Job lists, reused by every sweep of this solve */
+		Vector<Runnable> jobs = new Vector<Runnable>();
+		Vector<Runnable> cdJobs = new Vector<Runnable>();
 
 		int v = getV(program);
-		Set<Cone> cones = program.getCones();
-		Map<Variable, Integer> varMap = program.getVarMap();
+		layout = new ConeLayout(program);
 
 		DoubleMatrix1D x, w, s, dx, dw, ds, r;
 
@@ -94,13 +128,20 @@ public class ParallelPartitionedIPM extends IPM {
 		r = DoubleFactory1D.dense.make((int) x.size());
 		DoubleMatrix1D rInitial = DoubleFactory1D.dense.make((int) x.size());
 		DoubleMatrix1D g = DoubleFactory1D.dense.make((int) x.size());
-		SparseDoubleMatrix2D H = new SparseDoubleMatrix2D((int) x.size(), (int) x.size(), 4 * (int) x.size(), 0.2, 0.5);
-		SparseDoubleMatrix2D invH = new SparseDoubleMatrix2D((int) x.size(), (int) x.size(), 4 * (int) x.size(), 0.2, 0.5);
+		BlockDiagonalMatrix H = new BlockDiagonalMatrix(layout);
+		BlockDiagonalMatrix invH = new BlockDiagonalMatrix(layout);
 
 		dx = DoubleFactory1D.dense.make((int) x.size());
 		ds = DoubleFactory1D.dense.make((int) s.size());
 		dw = DoubleFactory1D.dense.make((int) w.size());
 
+		/* Accumulators for concurrent sweeps: dx, ds, r, and dw */
+		AtomicDoubleArray[] sums = null;
+		if (concurrentPartitions) {
+			sums = new AtomicDoubleArray[] {new AtomicDoubleArray((int) x.size()), new AtomicDoubleArray((int) s.size())
+					, new AtomicDoubleArray((int) x.size()), new AtomicDoubleArray((int) w.size())};
+		}
+
 		partitioner.partition();
 
 		partitioner.checkOutAllMatrices();
@@ -108,18 +149,45 @@ public class ParallelPartitionedIPM extends IPM {
 		// log.debug("Partitioner: {}", partitioner);
 
 		Vector<Partition> partitions = new Vector<Partition>(partitioner.size());
+		double damping = 1.0 / partitioner.size();
 		for (int i = 0; i < partitioner.size(); i++) {
 			ConicProgramPartition cpp = partitioner.getPartition(i);
 			Partition partition = new Partition();
-			partition.A = cpp.getACopies();
-			partition.innerA = cpp.getInnerACopies();
+			partition.A = cpp.getAMatrices();
+			partition.innerA = cpp.getInnerAMatrices();
 			partition.dx = cpp.get1DViewsByVars(dx);
 			partition.innerDw = cpp.get1DViewsByInnerConstraints(dw);
 			partition.ds = cpp.get1DViewsByVars(ds);
 			partition.r = cpp.get1DViewsByVars(r);
-			partition.invH = cpp.getSparse2DByVars(invH);
-			partition.primalStepCDs = new Vector<SparseDoubleCholeskyDecomposition>();
-			partition.dualStepCDs = new Vector<SparseDoubleCholeskyDecomposition>();
+			partition.invHMatrices = cpp.getElementMatrices(invH.getColumnCompressed());
+			partition.invH = partition.invHMatrices.getBlocks();
+			if (concurrentPartitions) {
+				partition.HMatrices = cpp.getElementMatrices(H.getColumnCompressed());
+				partition.H = partition.HMatrices.getBlocks();
+				partition.varSelections = cpp.getVarSelections();
+				partition.innerConSelections = cpp.getInnerConstraintSelections();
+			}
+
+			/* Creates the runnables of each element, which are reused by every sweep */
+			int numElements = partition.dx.size();
+			partition.primalCDRunnables = new Vector<CholeskyDecompositionRunnable>(numElements);
+			partition.dualCDRunnables = new Vector<CholeskyDecompositionRunnable>(numElements);
+			partition.primalStepRunnables = new Vector<PrimalStepRunnable>(numElements);
+			partition.dualStepRunnables = new Vector<DualStepRunnable>(numElements);
+			if (concurrentPartitions)
+				partition.accumulatingStepRunnables = new Vector<AccumulatingStepRunnable>(numElements);
+			for (int j = 0; j < numElements; j++) {
+				SparseCCDoubleMatrix2D Hinv = partition.invH.get(j);
+				partition.primalCDRunnables.add(new CholeskyDecompositionRunnable(new Object(), Hinv, partition.A.get(j)));
+				partition.dualCDRunnables.add(new CholeskyDecompositionRunnable(new Object(), Hinv, partition.innerA.get(j)));
+				PrimalStepRunnable primal = new PrimalStepRunnable(partition.r.get(j), partition.A.get(j), Hinv);
+				DualStepRunnable dual = new DualStepRunnable(partition.r.get(j), partition.innerA.get(j), Hinv);
+				partition.primalStepRunnables.add(primal);
+				partition.dualStepRunnables.add(dual);
+				if (concurrentPartitions)
+					partition.accumulatingStepRunnables.add(new AccumulatingStepRunnable(primal, dual, partition.H.get(j)
+							, partition.varSelections[j], partition.innerConSelections[j], damping, sums));
+			}
 			partitions.add(partition);
 		}
 
@@ -130,23 +198,26 @@ public class ParallelPartitionedIPM extends IPM {
 		/* Iterates until the duality gap (mu) is sufficiently small */
 		inNeighborhood = false;
 		p = -1;
+		iteration = 0;
+		factorCache.clear();
 		while (mu >= dualityGapThreshold) {
 			log.debug("Mu: {}", mu);
+			iteration++;
 
-			for (Cone cone : cones) {
-				cone.setBarrierGradient(varMap, x, g);
-				cone.setBarrierHessian(varMap, x, H);
-				cone.setBarrierHessianInv(varMap, x, invH);
-			}
+			layout.setBarrierGradient(x, g);
+			layout.setBarrierHessian(x, H);
+			layout.setBarrierHessianInv(x, invH);
+			SparseCCDoubleMatrix2D ccInvH = invH.getColumnCompressed();
+			SparseCCDoubleMatrix2D ccH = (concurrentPartitions) ? H.getColumnCompressed() : null;
 			for (int i = 0; i < partitions.size(); i++) {
-				partitioner.getPartition(i).updateSparse2DByVars(invH, partitions.get(i).invH);
-				partitions.get(i).primalStepCDs.clear();
-				partitions.get(i).dualStepCDs.clear();
+				partitions.get(i).invHMatrices.update(ccInvH);
+				if (concurrentPartitions)
+					partitions.get(i).HMatrices.update(ccH);
 			}
 
 			if (!inNeighborhood) {
 				r.assign(s).assign(g, DoubleFunctions.plusMultSecond(muInitial));
-				theta = alg.mult(r, alg.mult(invH, r)) / muInitial;
+				theta = invH.quadraticForm(r) / muInitial;
 				log.debug("Theta: {}", theta);
 				if (theta < .1)
 					inNeighborhood = true;
@@ -164,57 +235,53 @@ public class ParallelPartitionedIPM extends IPM {
 			rInitial.assign(r);
 
 			epsilon_1 = 0.01;
-			err = Math.sqrt(alg.mult(r, alg.mult(invH, r))) /(mu * tau * Math.sqrt(v));
+			err = Math.sqrt(invH.quadraticForm(r)) /(mu * tau * Math.sqrt(v));
 			Partition partition;
 			log.debug("Initial error: {}", err);
 			do {
+				if (concurrentPartitions) {
+					sweepConcurrently(partitions, threadPool, iteration, mu, r, dx, ds, dw, sums, jobs, cdJobs);
+
+					err = Math.sqrt(invH.quadraticForm(r)) /(mu * tau * Math.sqrt(v));
+					log.trace("Err: {}", err);
+					if (Double.isNaN(err)) {
+						throw new IllegalStateException();
+					}
+					continue;
+				}
+
 				p = (p+1) % partitions.size();
 
 				partition = partitions.get(p);
 				log.trace("P = {}", p);
 
-				if (partition.primalStepCDs.size() == 0 || partition.dualStepCDs.size() == 0) {
-					prepareCDs(partition);
-				}
-
-				/* Sets up the thread pool and jobs */
-				threadPool = Executors.newFixedThreadPool(threadPoolSize);
-				primalStepRunnables.clear();
-				dualStepRunnables.clear();
+				prepareCDs(partition, iteration, threadPool, cdJobs);
 
+				/* Sets up the jobs */
+				jobs.clear();
 				for (int i = 0; i < partition.dx.size(); i++) {
-					PrimalStepRunnable primal = new PrimalStepRunnable(partition.primalStepCDs.get(i), partition.r.get(i), partition.A.get(i), partition.invH.get(i), mu);
-					threadPool.execute(primal);
-					primalStepRunnables.add(primal);
-					DualStepRunnable dual = new DualStepRunnable(partition.dualStepCDs.get(i), partition.r.get(i), partition.innerA.get(i), partition.invH.get(i));
-					threadPool.execute(dual);
-					dualStepRunnables.add(dual);
+					PrimalStepRunnable primal = partition.primalStepRunnables.get(i);
+					primal.prepare(partition.primalCDRunnables.get(i).getDecomposition(), mu);
+					jobs.add(primal);
+					DualStepRunnable dual = partition.dualStepRunnables.get(i);
+					dual.prepare(partition.dualCDRunnables.get(i).getDecomposition());
+					jobs.add(dual);
 				}
 
-				/* Runs the jobs */
-				threadPool.shutdown();
-
-				/* Waits for the thread pool */
-				try {
-					while (!threadPool.isTerminated()) {
-						threadPool.awaitTermination(5, TimeUnit.MINUTES);
-					}
-				}
-				catch (InterruptedException e) {
-					throw new IllegalStateException(e);
-				}
+				/* Runs the jobs and waits for them to finish */
+				runAll(threadPool, jobs);
 
 				/* Processes the results */
 				for (int i = 0; i < partition.dx.size(); i++) {
-					partition.dx.get(i).assign(primalStepRunnables.get(i).getDx(), DoubleFunctions.plus);
-					partition.innerDw.get(i).assign(dualStepRunnables.get(i).getDw(), DoubleFunctions.plus);
-					partition.ds.get(i).assign(dualStepRunnables.get(i).getDs(), DoubleFunctions.plus);
+					partition.dx.get(i).assign(partition.primalStepRunnables.get(i).getDx(), DoubleFunctions.plus);
+					partition.innerDw.get(i).assign(partition.dualStepRunnables.get(i).getDw(), DoubleFunctions.plus);
+					partition.ds.get(i).assign(partition.dualStepRunnables.get(i).getDs(), DoubleFunctions.plus);
 				}
 
-				r.assign(rInitial).assign(alg.mult(H, dx).assign(DoubleFunctions.mult(mu)).assign(ds, DoubleFunctions.plus) , DoubleFunctions.plus);
+				r.assign(rInitial).assign(H.zMult(dx, null).assign(DoubleFunctions.mult(mu)).assign(ds, DoubleFunctions.plus) , DoubleFunctions.plus);
 				log.trace("Done updating r.");
 
-				err = Math.sqrt(alg.mult(r, alg.mult(invH, r))) /(mu * tau * Math.sqrt(v));
+				err = Math.sqrt(invH.quadraticForm(r)) /(mu * tau * Math.sqrt(v));
 				log.trace("Err: {}", err);
 				if (Double.isNaN(err)) {
 					throw new IllegalStateException();
@@ -223,12 +290,8 @@ public class ParallelPartitionedIPM extends IPM {
 
 			log.debug("Remaining error: {}", err);
 
-			double primalStepSize = 1.0;
-			double dualStepSize = 1.0;
-			for (Cone cone : cones) {
-				primalStepSize = Math.min(primalStepSize, cone.getMaxStep(varMap, x, dx));
-				dualStepSize = Math.min(dualStepSize, cone.getMaxStep(varMap, s, ds));
-			}
+			double primalStepSize = layout.getMaxStep(x, dx);
+			double dualStepSize = layout.getMaxStep(s, ds);
 
 			log.trace("Primal step size: {} * {}", primalStepSize, alg.norm2(dx));
 			log.trace("Dual step size: {} * {}", dualStepSize, alg.norm2(ds));
@@ -243,97 +306,199 @@ public class ParallelPartitionedIPM extends IPM {
 			mu = alg.mult(x, s) / v;
 		}
 
+		factorCache.clear();
 		partitioner.checkInAllMatrices();
 	}
 
-	private void prepareCDs(Partition partition) {
-		Vector<CholeskyDecompositionRunnable> primalCDs = new Vector<ParallelPartitionedIPM.CholeskyDecompositionRunnable>(partition.dx.size());
-		Vector<CholeskyDecompositionRunnable> dualCDs = new Vector<ParallelPartitionedIPM.CholeskyDecompositionRunnable>(partition.dx.size());
+	/**
+	 * Solves every element of every partition against the current residual
+	 * r, then adds the damped steps to dx, ds, and dw and updates r to match.
+	 *
+	 * @param sums    zeroed accumulators with the sizes of dx, ds, r, and dw,
+	 *                which are zeroed again before returning
+	 * @param jobs    list to be replaced with the elements' step jobs
+	 * @param cdJobs  list to be replaced with the factorization jobs
+	 */
+	private void sweepConcurrently(List<Partition> partitions, ExecutorService threadPool, int iteration, double mu
+			, DoubleMatrix1D r, DoubleMatrix1D dx, DoubleMatrix1D ds, DoubleMatrix1D dw
+			, AtomicDoubleArray[] sums, List<Runnable> jobs, List<Runnable> cdJobs) {
+		jobs.clear();
+		for (Partition partition : partitions) {
+			prepareCDs(partition, iteration, threadPool, cdJobs);
+
+			for (int i = 0; i < partition.dx.size(); i++) {
+				AccumulatingStepRunnable step = partition.accumulatingStepRunnables.get(i);
+				step.prepare(partition.primalCDRunnables.get(i).getDecomposition()
+						, partition.dualCDRunnables.get(i).getDecomposition(), mu);
+				jobs.add(step);
+			}
+		}
 
-		ExecutorService threadPool = Executors.newFixedThreadPool(threadPoolSize);
+		/* Every job reads r, so it is only updated after all of them finish */
+		runAll(threadPool, jobs);
 
+		for (int i = 0; i < dx.size(); i++) {
+			dx.setQuick(i, dx.getQuick(i) + sums[0].getAndSet(i, 0.0));
+			ds.setQuick(i, ds.getQuick(i) + sums[1].getAndSet(i, 0.0));
+			r.setQuick(i, r.getQuick(i) + sums[2].getAndSet(i, 0.0));
+		}
+		for (int i = 0; i < dw.size(); i++)
+			dw.setQuick(i, dw.getQuick(i) + sums[3].getAndSet(i, 0.0));
+	}
+
+	/**
+	 * Gets factorizations of the normal systems of each element of a
+	 * partition for the current outer iteration. Factorizations missing
+	 * from the cache are computed in parallel. Afterward, the partition's
+	 * factorization runnables return the factorizations.
+	 *
+	 * @param jobs  list to be replaced with the factorization jobs
+	 */
+	private void prepareCDs(Partition partition, int iteration, ExecutorService threadPool, List<Runnable> jobs) {
+		jobs.clear();
 		for (int i = 0; i < partition.dx.size(); i++) {
-			SparseCCDoubleMatrix2D A = partition.A.get(i);
-			SparseCCDoubleMatrix2D innerA = partition.innerA.get(i);
-			DoubleMatrix2D Hinv = partition.invH.get(i);
+			CholeskyDecompositionRunnable primalCDRunnable = partition.primalCDRunnables.get(i);
+			primalCDRunnable.prepare(iteration);
+			if (!primalCDRunnable.isCached())
+				jobs.add(primalCDRunnable);
+
+			CholeskyDecompositionRunnable dualCDRunnable = partition.dualCDRunnables.get(i);
+			dualCDRunnable.prepare(iteration);
+			if (!dualCDRunnable.isCached())
+				jobs.add(dualCDRunnable);
+		}
 
-			CholeskyDecompositionRunnable primalCDRunnable = new CholeskyDecompositionRunnable((SparseDoubleMatrix2D) Hinv, A);
-			threadPool.execute(primalCDRunnable);
-			primalCDs.add(primalCDRunnable);
+		if (jobs.size() > 0)
+			runAll(threadPool, jobs);
+	}
 
-			CholeskyDecompositionRunnable dualCDRunnable = new CholeskyDecompositionRunnable((SparseDoubleMatrix2D) Hinv, innerA);
-			threadPool.execute(dualCDRunnable);
-			dualCDs.add(dualCDRunnable);
+	/**
+	 * Runs jobs on a thread pool and waits until all of them have finished.
+	 *
+	 * Completion is tracked with a latch, so the pool stays alive for the
+	 * next batch of jobs.
+	 *
+	 * @throws IllegalStateException  if a job throws an exception or the
+	 *                                calling thread is interrupted
+	 */
+	private void runAll(ExecutorService threadPool, List<? extends Runnable> jobs) {
+		final CountDownLatch latch = new CountDownLatch(jobs.size());
+		final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+
+		for (final Runnable job : jobs) {
+			threadPool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						job.run();
+					}
+					catch (RuntimeException e) {
+						failure.compareAndSet(null, e);
+					}
+					finally {
+						latch.countDown();
+					}
+				}
+			});
 		}
 
-		threadPool.shutdown();
-
 		try {
-			while (!threadPool.isTerminated()) {
-				threadPool.awaitTermination(5, TimeUnit.MINUTES);
-			}
+			latch.await();
 		}
 		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			throw new IllegalStateException(e);
 		}
 
-		for (int i = 0; i < partition.dx.size(); i++) {
-			partition.primalStepCDs.add(primalCDs.get(i).getDecomposition());
-			partition.dualStepCDs.add(dualCDs.get(i).getDecomposition());
-		}
+		if (failure.get() != null)
+			throw new IllegalStateException("Job failed.", failure.get());
 	}
 
+	/**
+	 * Factors A * Hinv * A' and caches the result, unless a factorization for
+	 * the same key and iteration is already cached. The runnable is prepared
+	 * again for each iteration.
+	 */
 	private class CholeskyDecompositionRunnable implements Runnable {
 
-		private final SparseDoubleMatrix2D Hinv;
+		private final Object key;
+		private final SparseCCDoubleMatrix2D Hinv;
 		private final SparseCCDoubleMatrix2D A;
-		private SparseDoubleCholeskyDecomposition cd;
-		private boolean run;
+		private int iteration;
+		private NormalSystemSolver cd;
+		private boolean cached;
 
-		public CholeskyDecompositionRunnable(SparseDoubleMatrix2D Hinv, SparseCCDoubleMatrix2D A) {
+		public CholeskyDecompositionRunnable(Object key, SparseCCDoubleMatrix2D Hinv, SparseCCDoubleMatrix2D A) {
+			this.key = key;
 			this.Hinv = Hinv;
 			this.A = A;
-			run = false;
+			cached = false;
+		}
+
+		/** Looks up the factorization for an iteration in the cache */
+		public void prepare(int iteration) {
+			this.iteration = iteration;
+			cd = factorCache.get(key, iteration);
+			cached = (cd != null);
+		}
+
+		/** Returns whether the factorization is in the cache */
+		public boolean isCached() {
+			return cached;
 		}
 
 		@Override
 		public void run() {
-			if (!run) {
-				SparseCCDoubleMatrix2D Hinv = ((SparseDoubleMatrix2D) this.Hinv).getColumnCompressed(false);
+			if (!cached) {
 				SparseCCDoubleMatrix2D partial = new SparseCCDoubleMatrix2D(A.rows(), A.columns());
 				SparseCCDoubleMatrix2D coeff = new SparseCCDoubleMatrix2D(A.rows(), A.rows());
 				A.zMult(Hinv, partial, 1.0, 0.0, false, false);
 				partial.zMult(A, coeff, 1.0, 0.0, false, true);
-				cd = new SparseDoubleCholeskyDecomposition(coeff, 1);
-				run = true;
+				cd = factorCache.factor(key, iteration, coeff);
+				cached = true;
 			}
 			else
 				throw new IllegalStateException("Runnable already run.");
 		}
 
-		public SparseDoubleCholeskyDecomposition getDecomposition() {
-			if (run)
+		public NormalSystemSolver getDecomposition() {
+			if (cached)
 				return cd;
 			else
 				throw new IllegalStateException("Runnable not yet run.");
 		}
 	}
 
+	/**
+	 * Computes an element's primal step. The work vectors are allocated
+	 * once, and the runnable is prepared again before each run.
+	 */
 	private class PrimalStepRunnable implements Runnable {
 
-		private final SparseDoubleCholeskyDecomposition cd;
 		private final DoubleMatrix1D r;
 		private final SparseCCDoubleMatrix2D A;
-		private final SparseDoubleMatrix2D Hinv;
-		private final double mu;
-		private DenseDoubleMatrix1D dx;
+		private final SparseCCDoubleMatrix2D Hinv;
+		private final DoubleMatrix1D temp;
+		private final DoubleMatrix1D dw;
+		private final DoubleMatrix1D ds;
+		private final DenseDoubleMatrix1D dx;
+		private NormalSystemSolver cd;
+		private double mu;
 		private boolean run;
 
-		PrimalStepRunnable(SparseDoubleCholeskyDecomposition cd, DoubleMatrix1D r, SparseCCDoubleMatrix2D A, SparseDoubleMatrix2D Hinv, double mu) {
-			this.cd = cd;
+		PrimalStepRunnable(DoubleMatrix1D r, SparseCCDoubleMatrix2D A, SparseCCDoubleMatrix2D Hinv) {
 			this.r = r;
 			this.A = A;
 			this.Hinv = Hinv;
+			temp = new DenseDoubleMatrix1D(A.columns());
+			dw = new DenseDoubleMatrix1D(A.rows());
+			ds = new DenseDoubleMatrix1D(A.columns());
+			dx = new DenseDoubleMatrix1D(A.columns());
+			run = false;
+		}
+
+		void prepare(NormalSystemSolver cd, double mu) {
+			this.cd = cd;
 			this.mu = mu;
 			run = false;
 		}
@@ -341,16 +506,15 @@ public class ParallelPartitionedIPM extends IPM {
 		@Override
 		public void run() {
 			if (!run) {
-				DoubleMatrix1D dw, ds;
-				DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
-
-				ds = DoubleFactory1D.dense.make(A.columns());
-				SparseCCDoubleMatrix2D Hinv = this.Hinv.getColumnCompressed(false);
-				dw = alg.mult(A, alg.mult(Hinv, r.copy()));
+				/* dw = inv(A Hinv A') A Hinv r and ds = -A' dw */
+				Hinv.zMult(r, temp);
+				A.zMult(temp, dw);
 				cd.solve(dw);
-				A.zMult(dw, ds, 1.0, 0.0, true);
-				ds.assign(DoubleFunctions.mult(-1.0));
-				dx = (DenseDoubleMatrix1D) alg.mult(Hinv, r.copy().assign(ds, DoubleFunctions.plus)).assign(DoubleFunctions.div(-1 * mu));
+				A.zMult(dw, ds, -1.0, 0.0, true);
+
+				/* dx = -Hinv (r + ds) / mu */
+				temp.assign(r).assign(ds, DoubleFunctions.plus);
+				Hinv.zMult(temp, dx, -1 / mu, 0.0, false);
 
 				run = true;
 			}
@@ -366,32 +530,41 @@ public class ParallelPartitionedIPM extends IPM {
 		}
 	}
 
-private class DualStepRunnable implements Runnable {
+	/**
+	 * Computes an element's dual step. The work vectors are allocated once,
+	 * and the runnable is prepared again before each run.
+	 */
+	private class DualStepRunnable implements Runnable {
 
-		private final SparseDoubleCholeskyDecomposition cd;
 		private final DoubleMatrix1D r;
 		private final SparseCCDoubleMatrix2D A;
-		private final SparseDoubleMatrix2D Hinv;
-		private DenseDoubleMatrix1D ds;
-		private DenseDoubleMatrix1D dw;
+		private final SparseCCDoubleMatrix2D Hinv;
+		private final DoubleMatrix1D temp;
+		private final DenseDoubleMatrix1D ds;
+		private final DenseDoubleMatrix1D dw;
+		private NormalSystemSolver cd;
 		private boolean run;
 
-		DualStepRunnable(SparseDoubleCholeskyDecomposition cd, DoubleMatrix1D r, SparseCCDoubleMatrix2D A, SparseDoubleMatrix2D Hinv) {
-			this.cd = cd;
+		DualStepRunnable(DoubleMatrix1D r, SparseCCDoubleMatrix2D A, SparseCCDoubleMatrix2D Hinv) {
 			this.r = r;
 			this.A = A;
 			this.Hinv = Hinv;
+			temp = new DenseDoubleMatrix1D(A.columns());
+			ds = new DenseDoubleMatrix1D(A.columns());
+			dw = new DenseDoubleMatrix1D(A.rows());
+			run = false;
+		}
+
+		void prepare(NormalSystemSolver cd) {
+			this.cd = cd;
 			run = false;
 		}
 
 		@Override
 		public void run() {
 			if (!run) {
-				DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
-
-				SparseCCDoubleMatrix2D Hinv = this.Hinv.getColumnCompressed(false);
-				ds = new DenseDoubleMatrix1D(A.columns());
-				dw = (DenseDoubleMatrix1D) alg.mult(A, alg.mult(Hinv, r.copy()));
+				Hinv.zMult(r, temp);
+				A.zMult(temp, dw);
 				cd.solve(dw);
 				A.zMult(dw, ds, -1.0, 0.0, true);
 
@@ -416,6 +589,62 @@ private class DualStepRunnable implements Runnable {
 		}
 	}
 
+	/**
+	 * Runs the primal and dual steps for one element and atomically adds the
+	 * damped results, and the change they make to the residual, to shared
+	 * accumulators indexed like the whole program.
+	 */
+	private class AccumulatingStepRunnable implements Runnable {
+
+		private final PrimalStepRunnable primal;
+		private final DualStepRunnable dual;
+		private final SparseCCDoubleMatrix2D H;
+		private final int[] varSelection;
+		private final int[] innerConSelection;
+		private final double damping;
+		private final AtomicDoubleArray[] sums;
+		private final DoubleMatrix1D Hdx;
+		private double mu;
+
+		AccumulatingStepRunnable(PrimalStepRunnable primal, DualStepRunnable dual, SparseCCDoubleMatrix2D H
+				, int[] varSelection, int[] innerConSelection, double damping, AtomicDoubleArray[] sums) {
+			this.primal = primal;
+			this.dual = dual;
+			this.H = H;
+			this.varSelection = varSelection;
+			this.innerConSelection = innerConSelection;
+			this.damping = damping;
+			this.sums = sums;
+			Hdx = new DenseDoubleMatrix1D(H.rows());
+		}
+
+		void prepare(NormalSystemSolver primalCD, NormalSystemSolver dualCD, double mu) {
+			primal.prepare(primalCD, mu);
+			dual.prepare(dualCD);
+			this.mu = mu;
+		}
+
+		@Override
+		public void run() {
+			primal.run();
+			dual.run();
+
+			DoubleMatrix1D dx = primal.getDx();
+			DoubleMatrix1D ds = dual.getDs();
+			DoubleMatrix1D dw = dual.getDw();
+			H.zMult(dx, Hdx);
+
+			for (int j = 0; j < varSelection.length; j++) {
+				int index = varSelection[j];
+				sums[0].addAndGet(index, damping * dx.getQuick(j));
+				sums[1].addAndGet(index, damping * ds.getQuick(j));
+				sums[2].addAndGet(index, damping * (mu * Hdx.getQuick(j) + ds.getQuick(j)));
+			}
+			for (int j = 0; j < innerConSelection.length; j++)
+				sums[3].addAndGet(innerConSelection[j], damping * dw.getQuick(j));
+		}
+	}
+
 	private class Partition {
 		private List<SparseCCDoubleMatrix2D> A;
 		private List<SparseCCDoubleMatrix2D> innerA;
@@ -423,8 +652,17 @@ private class DualStepRunnable implements Runnable {
 		private List<DoubleMatrix1D> innerDw;
 		private List<DoubleMatrix1D> ds;
 		private List<DoubleMatrix1D> r;
-		private List<SparseDoubleMatrix2D> invH;
-		private List<SparseDoubleCholeskyDecomposition> primalStepCDs;
-		private List<SparseDoubleCholeskyDecomposition> dualStepCDs;
+		private ElementMatrices invHMatrices;
+		private List<SparseCCDoubleMatrix2D> invH;
+		private ElementMatrices HMatrices;
+		private List<SparseCCDoubleMatrix2D> H;
+		private int[][] varSelections;
+		private int[][] innerConSelections;
+		/* Runnables of each element, created once per solve */
+		private List<CholeskyDecompositionRunnable> primalCDRunnables;
+		private List<CholeskyDecompositionRunnable> dualCDRunnables;
+		private List<PrimalStepRunnable> primalStepRunnables;
+		private List<DualStepRunnable> dualStepRunnables;
+		private List<AccumulatingStepRunnable> accumulatingStepRunnables;
 	}
 }
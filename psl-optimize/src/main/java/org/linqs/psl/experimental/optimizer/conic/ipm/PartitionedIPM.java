@@ -17,28 +17,27 @@
  */
 package org.linqs.psl.experimental.optimizer.conic.ipm;
 
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.FactorCache;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.NormalSystemSolver;
 import org.linqs.psl.experimental.optimizer.conic.partition.CompletePartitioner;
 import org.linqs.psl.experimental.optimizer.conic.partition.ConicProgramPartition;
+import org.linqs.psl.experimental.optimizer.conic.partition.ElementMatrices;
 import org.linqs.psl.experimental.optimizer.conic.partition.ObjectiveCoefficientCompletePartitioner;
-import org.linqs.psl.experimental.optimizer.conic.program.Cone;
+import org.linqs.psl.experimental.optimizer.conic.program.ConeType;
 import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
-import org.linqs.psl.experimental.optimizer.conic.program.Variable;
 
 import cern.colt.matrix.tdouble.DoubleFactory1D;
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
 import cern.colt.matrix.tdouble.DoubleMatrix2D;
 import cern.colt.matrix.tdouble.algo.DenseDoubleAlgebra;
-import cern.colt.matrix.tdouble.algo.decomposition.SparseDoubleCholeskyDecomposition;
 import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
 import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
-import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
 import cern.jet.math.tdouble.DoubleFunctions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import java.util.Vector;
 
 public class PartitionedIPM extends IPM {
@@ -46,10 +45,20 @@ public class PartitionedIPM extends IPM {
 
 	private CompletePartitioner partitioner;
 
+	/* Factors of each element's normal systems, versioned by outer iteration */
+	private final FactorCache factorCache;
+
 	public PartitionedIPM() {
 		super();
 		// partitioner = new WeightedDistancePartitioner();
 		partitioner = new ObjectiveCoefficientCompletePartitioner();
+		factorCache = new FactorCache();
+	}
+
+	@Override
+	public boolean supportsConeTypes(Collection<ConeType> types) {
+		/* The partitioner must also be able to weigh every cone */
+		return super.supportsConeTypes(types) && partitioner.supportsConeTypes(types);
 	}
 
 	@Override
@@ -61,14 +70,13 @@ public class PartitionedIPM extends IPM {
 	@Override
 	protected void doSolve(ConicProgram program) {
 
-		int p;
+		int p, iteration;
 		double mu, tau, muInitial, theta, err, epsilon_1;
 		boolean inNeighborhood;
 		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
 
 		int v = getV(program);
-		Set<Cone> cones = program.getCones();
-		Map<Variable, Integer> varMap = program.getVarMap();
+		layout = new ConeLayout(program);
 
 		DoubleMatrix1D x, w, s, dx, dw, ds, r;
 
@@ -79,8 +87,8 @@ public class PartitionedIPM extends IPM {
 		r = DoubleFactory1D.dense.make((int) x.size());
 		DoubleMatrix1D rInitial = DoubleFactory1D.dense.make((int) x.size());
 		DoubleMatrix1D g = DoubleFactory1D.dense.make((int) x.size());
-		SparseDoubleMatrix2D H = new SparseDoubleMatrix2D((int) x.size(), (int) x.size(), 4 * (int) x.size(), 0.2, 0.5);
-		SparseDoubleMatrix2D invH = new SparseDoubleMatrix2D((int) x.size(), (int) x.size(), 4 * (int) x.size(), 0.2, 0.5);
+		BlockDiagonalMatrix H = new BlockDiagonalMatrix(layout);
+		BlockDiagonalMatrix invH = new BlockDiagonalMatrix(layout);
 
 		dx = DoubleFactory1D.dense.make((int) x.size());
 		ds = DoubleFactory1D.dense.make((int) s.size());
@@ -96,15 +104,20 @@ public class PartitionedIPM extends IPM {
 		for (int i = 0; i < partitioner.size(); i++) {
 			ConicProgramPartition cpp = partitioner.getPartition(i);
 			Partition partition = new Partition();
-			partition.A = cpp.getACopies();
-			partition.innerA = cpp.getInnerACopies();
+			partition.A = cpp.getAMatrices();
+			partition.innerA = cpp.getInnerAMatrices();
 			partition.dx = cpp.get1DViewsByVars(dx);
 			partition.innerDw = cpp.get1DViewsByInnerConstraints(dw);
 			partition.ds = cpp.get1DViewsByVars(ds);
 			partition.r = cpp.get1DViewsByVars(r);
-			partition.invH = cpp.getSparse2DByVars(invH);
-			partition.primalStepCDs = new Vector<SparseDoubleCholeskyDecomposition>();
-			partition.dualStepCDs = new Vector<SparseDoubleCholeskyDecomposition>();
+			partition.invHMatrices = cpp.getElementMatrices(invH.getColumnCompressed());
+			partition.invH = partition.invHMatrices.getBlocks();
+			partition.primalStepKeys = new Vector<Object>();
+			partition.dualStepKeys = new Vector<Object>();
+			for (int j = 0; j < partition.dx.size(); j++) {
+				partition.primalStepKeys.add(new Object());
+				partition.dualStepKeys.add(new Object());
+			}
 			partitions.add(partition);
 		}
 
@@ -115,23 +128,23 @@ public class PartitionedIPM extends IPM {
 		/* Iterates until the duality gap (mu) is sufficiently small */
 		inNeighborhood = false;
 		p = -1;
+		iteration = 0;
+		factorCache.clear();
 		while (mu >= dualityGapThreshold) {
 			log.debug("Mu: {}", mu);
+			iteration++;
 
-			for (Cone cone : cones) {
-				cone.setBarrierGradient(varMap, x, g);
-				cone.setBarrierHessian(varMap, x, H);
-				cone.setBarrierHessianInv(varMap, x, invH);
-			}
+			layout.setBarrierGradient(x, g);
+			layout.setBarrierHessian(x, H);
+			layout.setBarrierHessianInv(x, invH);
+			SparseCCDoubleMatrix2D ccInvH = invH.getColumnCompressed();
 			for (int i = 0; i < partitions.size(); i++) {
-				partitioner.getPartition(i).updateSparse2DByVars(invH, partitions.get(i).invH);
-				partitions.get(i).primalStepCDs.clear();
-				partitions.get(i).dualStepCDs.clear();
+				partitions.get(i).invHMatrices.update(ccInvH);
 			}
 
 			if (!inNeighborhood) {
 				r.assign(s).assign(g, DoubleFunctions.plusMultSecond(muInitial));
-				theta = alg.mult(r, alg.mult(invH, r)) / muInitial;
+				theta = invH.quadraticForm(r) / muInitial;
 				log.debug("Theta: {}", theta);
 				if (theta < .1)
 					inNeighborhood = true;
@@ -149,7 +162,7 @@ public class PartitionedIPM extends IPM {
 			rInitial.assign(r);
 
 			epsilon_1 = 0.01;
-			err = Math.sqrt(alg.mult(r, alg.mult(invH, r))) /(mu * tau * Math.sqrt(v));
+			err = Math.sqrt(invH.quadraticForm(r)) /(mu * tau * Math.sqrt(v));
 			Partition partition;
 			log.debug("Initial error: {}", err);
 			do {
@@ -158,23 +171,21 @@ public class PartitionedIPM extends IPM {
 				partition = partitions.get(p);
 				log.trace("P = {}", p);
 
-				if (partition.primalStepCDs.size() == 0 || partition.dualStepCDs.size() == 0) {
-					prepareCDs(partition);
-				}
-
 				for (int i = 0; i < partition.dx.size(); i++) {
 					log.trace("i = {}", i);
 					log.trace("{} variables and {} constraints", partition.A.get(i).columns(), partition.A.get(i).rows());
 					log.trace("Full space step.");
-					fullSpaceStep(partition.primalStepCDs.get(i), partition.r.get(i), partition.A.get(i), partition.invH.get(i), partition.dx.get(i), mu);
+					NormalSystemSolver cd = getFactor(partition.primalStepKeys.get(i), iteration, partition.A.get(i), partition.invH.get(i));
+					fullSpaceStep(cd, partition.r.get(i), partition.A.get(i), partition.invH.get(i), partition.dx.get(i), mu);
 					log.trace("Subspace step.");
-					subspaceStep(partition.dualStepCDs.get(i), partition.r.get(i), partition.innerA.get(i), partition.invH.get(i), partition.ds.get(i), partition.innerDw.get(i));
+					cd = getFactor(partition.dualStepKeys.get(i), iteration, partition.innerA.get(i), partition.invH.get(i));
+					subspaceStep(cd, partition.r.get(i), partition.innerA.get(i), partition.invH.get(i), partition.ds.get(i), partition.innerDw.get(i));
 				}
 				log.trace("Updating r.");
-				r.assign(rInitial).assign(alg.mult(H, dx).assign(DoubleFunctions.mult(mu)).assign(ds, DoubleFunctions.plus) , DoubleFunctions.plus);
+				r.assign(rInitial).assign(H.zMult(dx, null).assign(DoubleFunctions.mult(mu)).assign(ds, DoubleFunctions.plus) , DoubleFunctions.plus);
 				log.trace("Done updating r.");
 
-				err = Math.sqrt(alg.mult(r, alg.mult(invH, r))) /(mu * tau * Math.sqrt(v));
+				err = Math.sqrt(invH.quadraticForm(r)) /(mu * tau * Math.sqrt(v));
 				log.trace("Err: {}", err);
 				if (Double.isNaN(err)) {
 					throw new IllegalStateException();
@@ -183,12 +194,8 @@ public class PartitionedIPM extends IPM {
 
 			log.debug("Remaining error: {}", err);
 
-			double primalStepSize = 1.0;
-			double dualStepSize = 1.0;
-			for (Cone cone : cones) {
-				primalStepSize = Math.min(primalStepSize, cone.getMaxStep(varMap, x, dx));
-				dualStepSize = Math.min(dualStepSize, cone.getMaxStep(varMap, s, ds));
-			}
+			double primalStepSize = layout.getMaxStep(x, dx);
+			double dualStepSize = layout.getMaxStep(s, ds);
 
 			log.trace("Primal step size: {} * {}", primalStepSize, alg.norm2(dx));
 			log.trace("Dual step size: {} * {}", dualStepSize, alg.norm2(ds));
@@ -203,15 +210,15 @@ public class PartitionedIPM extends IPM {
 			mu = alg.mult(x, s) / v;
 		}
 
+		factorCache.clear();
 		partitioner.checkInAllMatrices();
 	}
 
-	private void fullSpaceStep(SparseDoubleCholeskyDecomposition cd, DoubleMatrix1D r, DoubleMatrix2D A, DoubleMatrix2D Hinv, DoubleMatrix1D dx, double mu) {
+	private void fullSpaceStep(NormalSystemSolver cd, DoubleMatrix1D r, DoubleMatrix2D A, SparseCCDoubleMatrix2D Hinv, DoubleMatrix1D dx, double mu) {
 		DoubleMatrix1D dw, ds;
 		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
 
 		ds = DoubleFactory1D.dense.make(A.columns());
-		Hinv = ((SparseDoubleMatrix2D) Hinv).getColumnCompressed(false);
 		dw = alg.mult(A, alg.mult(Hinv, r.copy()));
 		cd.solve(dw);
 		A.zMult(dw, ds, 1.0, 0.0, true);
@@ -219,11 +226,10 @@ public class PartitionedIPM extends IPM {
 		dx.assign(alg.mult(Hinv, r.copy().assign(ds, DoubleFunctions.plus)).assign(DoubleFunctions.div(-1 * mu)), DoubleFunctions.plus);
 	}
 
-	private void subspaceStep(SparseDoubleCholeskyDecomposition cd, DoubleMatrix1D r, DoubleMatrix2D innerA, DoubleMatrix2D Hinv, DoubleMatrix1D ds, DoubleMatrix1D innerDw) {
+	private void subspaceStep(NormalSystemSolver cd, DoubleMatrix1D r, DoubleMatrix2D innerA, SparseCCDoubleMatrix2D Hinv, DoubleMatrix1D ds, DoubleMatrix1D innerDw) {
 		DoubleMatrix1D dw;
 		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
 
-		Hinv = ((SparseDoubleMatrix2D) Hinv).getColumnCompressed(false);
 		DenseDoubleMatrix1D newDs = new DenseDoubleMatrix1D((int) ds.size());
 		dw = alg.mult(innerA, alg.mult(Hinv, r.copy()));
 		cd.solve(dw);
@@ -232,28 +238,20 @@ public class PartitionedIPM extends IPM {
 		innerDw.assign(dw, DoubleFunctions.plus);
 	}
 
-	private void prepareCDs(Partition partition) {
-		for (int i = 0; i < partition.dx.size(); i++) {
-
-			SparseCCDoubleMatrix2D A = partition.A.get(i);
-			SparseCCDoubleMatrix2D innerA = partition.innerA.get(i);
-			DoubleMatrix2D Hinv = partition.invH.get(i);
-
+	/**
+	 * Returns a factorization of A * Hinv * A' for the current outer
+	 * iteration, from the cache if possible.
+	 */
+	private NormalSystemSolver getFactor(Object key, int iteration, SparseCCDoubleMatrix2D A, SparseCCDoubleMatrix2D Hinv) {
+		NormalSystemSolver cd = factorCache.get(key, iteration);
+		if (cd == null) {
 			SparseCCDoubleMatrix2D partial = new SparseCCDoubleMatrix2D(A.rows(), A.columns());
 			SparseCCDoubleMatrix2D coeff = new SparseCCDoubleMatrix2D(A.rows(), A.rows());
-			Hinv = ((SparseDoubleMatrix2D) Hinv).getColumnCompressed(false);
 			A.zMult(Hinv, partial, 1.0, 0.0, false, false);
 			partial.zMult(A, coeff, 1.0, 0.0, false, true);
-
-			partition.primalStepCDs.add(new SparseDoubleCholeskyDecomposition(coeff, 1));
-
-			partial = new SparseCCDoubleMatrix2D(innerA.rows(), innerA.columns());
-			coeff = new SparseCCDoubleMatrix2D(innerA.rows(), innerA.rows());
-			innerA.zMult(Hinv, partial, 1.0, 0.0, false, false);
-			partial.zMult(innerA, coeff, 1.0, 0.0, false, true);
-
-			partition.dualStepCDs.add(new SparseDoubleCholeskyDecomposition(coeff, 1));
+			cd = factorCache.factor(key, iteration, coeff);
 		}
+		return cd;
 	}
 
 	private class Partition {
@@ -263,8 +261,10 @@ public class PartitionedIPM extends IPM {
 		private List<DoubleMatrix1D> innerDw;
 		private List<DoubleMatrix1D> ds;
 		private List<DoubleMatrix1D> r;
-		private List<SparseDoubleMatrix2D> invH;
-		private List<SparseDoubleCholeskyDecomposition> primalStepCDs;
-		private List<SparseDoubleCholeskyDecomposition> dualStepCDs;
+		private ElementMatrices invHMatrices;
+		private List<SparseCCDoubleMatrix2D> invH;
+		/* Keys of each element's factors in the factor cache */
+		private List<Object> primalStepKeys;
+		private List<Object> dualStepKeys;
 	}
 }
@@ -21,11 +21,10 @@ import org.linqs.psl.config.Config;
 import org.linqs.psl.experimental.optimizer.conic.partition.ConicProgramPartition;
 import org.linqs.psl.experimental.optimizer.conic.partition.ObjectiveCoefficientPartitioner;
 import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
-import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
+import org.linqs.psl.experimental.optimizer.conic.program.Variable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import cern.colt.function.tdouble.IntIntDoubleFunction;
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
 import cern.colt.matrix.tdouble.DoubleMatrix2D;
 import cern.colt.matrix.tdouble.algo.decomposition.SparseDoubleCholeskyDecomposition;
@@ -39,12 +38,21 @@ import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
 import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
 import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
 import cern.jet.math.tdouble.DoubleFunctions;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
 
-import java.util.Set;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Solves normal systems using the Schur's complement method, where the complement
  * is complementary to a block-diagonal submatrix found by partitioning.
+ * <p>
+ * The rows of each partition element are numbered contiguously, so the
+ * block-diagonal submatrix B splits into one independent block per element.
+ * The blocks are factored and solved in parallel.
  *
  * @author Stephen Bach <bach@cs.umd.edu>
  */
@@ -102,6 +110,19 @@ public class BlockSolver implements NormalSystemSolver {
 	/** Default value for PRECONDITIONER_TERMS_KEY property */
 	public static final int PRECONDITIONER_TERMS_DEFAULT = 1;
 
+	/**
+	 * Key for positive integer property. The number of threads used to
+	 * factor and solve the diagonal blocks of B. If greater than 1, a pool
+	 * of threads is created when the first program is set and is kept for
+	 * all later factorizations and solves until {@link #close()} is called.
+	 */
+	public static final String THREADS_KEY = CONFIG_PREFIX + ".threads";
+	/** Default value for THREADS_KEY property */
+	public static final int THREADS_DEFAULT = 1;
+
+	/* Ranges of blocks with fewer rows than this are not split into more tasks */
+	private static final int MIN_ROWS_PER_TASK = 512;
+
 	protected final int maxIter;
 	protected final double relTol;
 	protected final double absTol;
@@ -110,19 +131,38 @@ public class BlockSolver implements NormalSystemSolver {
 
 	protected ConicProgram program;
 	protected ConicProgramPartition partition;
-	protected SparseDoubleCholeskyDecomposition choleskyB;
+	protected SparseDoubleCholeskyDecomposition[] choleskyB;
 	protected SparseDoubleCholeskyDecomposition choleskyD;
 
 	protected DoubleMatrix1D scratch;
 
+	/*
+	 * Work vectors, allocated once per program so that solving is
+	 * allocation-free: cut (b0, y0) and uncut (b1, y1) parts of the
+	 * right-hand side and solution, and the preconditioner's series term
+	 */
+	private DoubleMatrix1D b0, y0, b1, y1;
+	private DoubleMatrix1D seriesTerm;
+	private SchurComplement complement;
+
 	protected DoubleCG cg;
 	protected DoubleIterationMonitor monitor;
 	private DoubleMatrix1D x;
 
-	protected DoubleMatrix2D B, C, D;
+	protected DoubleMatrix2D C, D;
 	protected int[] rowAssignments;
 	protected boolean[] cutRows;
 
+	/* Block k of B is made up of uncut rows blockOffsets[k] to blockOffsets[k+1]-1 */
+	protected int[] blockOffsets;
+	private int[] rowBlocks;
+	private DoubleMatrix1D[] blockScratch;
+
+	private final int threads;
+	/* Threads used by setA and solve, or null if there is only one or the solver is closed */
+	private ForkJoinPool pool;
+	private final BlockSolve blockSolve = new BlockSolve();
+
 	public BlockSolver() {
 		maxIter = Config.getInt(CG_MAX_ITER_KEY, CG_MAX_ITER_DEFAULT);
 		relTol  = Config.getDouble(CG_REL_TOL_KEY, CG_REL_TOL_DEFAULT);
@@ -133,6 +173,10 @@ public class BlockSolver implements NormalSystemSolver {
 		if (terms < 0)
 			throw new IllegalArgumentException("Property " + PRECONDITIONER_TERMS_KEY + " must be non-negative.");
 
+		threads = Config.getInt(THREADS_KEY, THREADS_DEFAULT);
+		if (threads < 1)
+			throw new IllegalArgumentException("Property " + THREADS_KEY + " must be positive.");
+
 		monitor = new DefaultDoubleIterationMonitor(maxIter, relTol, absTol, divTol);
 		monitor.setIterationReporter(new DoubleIterationReporter() {
 
@@ -152,78 +196,178 @@ public class BlockSolver implements NormalSystemSolver {
 	@Override
 	public void setConicProgram(ConicProgram program) {
 		this.program = program;
+		if (threads > 1 && pool == null)
+			pool = new ForkJoinPool(threads);
 		ObjectiveCoefficientPartitioner partitioner = new ObjectiveCoefficientPartitioner();
 		partitioner.setConicProgram(program);
 		partition = partitioner.getPartition();
-		Set<LinearConstraint> cutConstraints = partition.getCutConstraints();
-
-		/* Initializes the scratch vector used by the preconditioner */
-		scratch = new DenseDoubleMatrix1D(program.getNumLinearConstraints() - cutConstraints.size());
-
-		rowAssignments = new int[program.getNumLinearConstraints()];
-		cutRows = new boolean[program.getNumLinearConstraints()];
-		int nextUncut = 0;
+		BitSet cutFlags = partition.getCutConstraintFlags();
+
+		/* Initializes the scratch vector used by the preconditioner and the work vectors */
+		int numCut = cutFlags.cardinality();
+		int numUncut = program.getNumLinearConstraints() - numCut;
+		scratch = new DenseDoubleMatrix1D(numUncut);
+		b0 = new DenseDoubleMatrix1D(numCut);
+		y0 = new DenseDoubleMatrix1D(numCut);
+		b1 = new DenseDoubleMatrix1D(numUncut);
+		y1 = new DenseDoubleMatrix1D(numUncut);
+		seriesTerm = new DenseDoubleMatrix1D(numCut);
+
+		/*
+		 * Finds the element of each uncut row. Rows whose variables are all
+		 * unassigned go in an extra block after the elements' blocks.
+		 */
+		int numRows = program.getNumLinearConstraints();
+		int numElements = partition.size();
+		int[] rowElements = new int[numRows];
+		Arrays.fill(rowElements, numElements);
+		SparseCCDoubleMatrix2D A = program.getA();
+		int[] columnElements = new int[A.columns()];
+		Arrays.fill(columnElements, -1);
+		for (Map.Entry<Variable, Integer> e : program.getVarMap().entrySet()) {
+			Integer element = partition.getElement(e.getKey().getCone());
+			if (element != null)
+				columnElements[e.getValue()] = element;
+		}
+		Dcs dcs = A.getDcs();
+		for (int j = 0; j < dcs.n; j++)
+			if (columnElements[j] != -1)
+				for (int p = dcs.p[j]; p < dcs.p[j+1]; p++)
+					rowElements[dcs.i[p]] = columnElements[j];
+
+		/* Numbers the uncut rows by element, skipping empty elements */
+		int[] elementBlocks = new int[numElements + 1];
+		int[] blockSizes = new int[numElements + 1];
+		for (int index = 0; index < numRows; index++)
+			if (!cutFlags.get(index))
+				blockSizes[rowElements[index]]++;
+		int numBlocks = 0;
+		for (int e = 0; e <= numElements; e++)
+			elementBlocks[e] = (blockSizes[e] > 0) ? numBlocks++ : -1;
+		blockOffsets = new int[numBlocks + 1];
+		for (int e = 0; e <= numElements; e++)
+			if (elementBlocks[e] != -1)
+				blockOffsets[elementBlocks[e] + 1] = blockOffsets[elementBlocks[e]] + blockSizes[e];
+
+		rowAssignments = new int[numRows];
+		cutRows = new boolean[numRows];
+		rowBlocks = new int[numRows];
+		int[] nextUncut = Arrays.copyOf(blockOffsets, numBlocks);
 		int nextCut = 0;
-		int index;
-		for (LinearConstraint con : program.getConstraints()) {
-			index = program.getIndex(con);
-			if (cutConstraints.contains(con)) {
+		for (int index = 0; index < numRows; index++) {
+			if (cutFlags.get(index)) {
 				rowAssignments[index] = nextCut++;
 				cutRows[index] = true;
+				rowBlocks[index] = -1;
 			}
 			else {
-				rowAssignments[index] = nextUncut++;
+				int block = elementBlocks[rowElements[index]];
+				rowAssignments[index] = nextUncut[block]++;
 				cutRows[index] = false;
+				rowBlocks[index] = block;
 			}
 		}
 
+		blockScratch = new DoubleMatrix1D[numBlocks];
+		for (int k = 0; k < numBlocks; k++)
+			blockScratch[k] = new DenseDoubleMatrix1D(blockOffsets[k+1] - blockOffsets[k]);
+		choleskyB = new SparseDoubleCholeskyDecomposition[numBlocks];
+
 		x = new DenseDoubleMatrix1D(partition.getCutConstraints().size());
 		cg = new DoubleCG(x);
 		cg.setIterationMonitor(monitor);
 
 		log.debug("Cut {} constraints out of {}", partition.getCutConstraints().size(), program.getNumLinearConstraints());
+		log.debug("Split the uncut constraints into {} blocks", numBlocks);
 	}
 
 	@Override
 	public void setA(SparseCCDoubleMatrix2D A) {
+		if (A instanceof ImplicitMatrix)
+			throw new IllegalArgumentException("BlockSolver requires an assembled matrix.");
 		log.trace("Starting to set A.");
 		int numCut = partition.getCutConstraints().size();
-		if (numCut > 0) {
-			int numUncut = A.rows() - numCut;
-
-			B = new SparseDoubleMatrix2D(numUncut, numUncut, numUncut * 4, 0.2, 0.5);
-			C = new SparseDoubleMatrix2D(numUncut, numCut, numUncut * 2, 0.2, 0.5);
-			D = new SparseDoubleMatrix2D(numCut, numCut, numCut * 4, 0.2, 0.5);
-
-			A.forEachNonZero(new IntIntDoubleFunction() {
-
-				@Override
-				public double apply(int first, int second, double third) {
-					boolean cutFirst = cutRows[first];
-					boolean cutSecond = cutRows[second];
-					/* Entry goes to D */
-					if (cutFirst && cutSecond) {
-						D.setQuick(rowAssignments[first], rowAssignments[second], third);
-					}
-					/* Entry goes to C */
-					else if (cutSecond) {
-						C.setQuick(rowAssignments[first], rowAssignments[second], third);
-					}
-					/* Entry goes to B */
-					else if (!cutFirst) {
-						B.setQuick(rowAssignments[first], rowAssignments[second], third);
-					}
-
-					return third;
+		final int numBlocks = blockOffsets.length - 1;
+
+		/* Counts the entries of each block of B, of C, and of D */
+		Dcs dcs = A.getDcs();
+		final int[] blockEntries = new int[numBlocks + 1];
+		int numCEntries = 0;
+		int numDEntries = 0;
+		for (int j = 0; j < dcs.n; j++) {
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++) {
+				int i = dcs.i[p];
+				/* Entry goes to D */
+				if (cutRows[i] && cutRows[j])
+					numDEntries++;
+				/* Entry goes to C */
+				else if (cutRows[j])
+					numCEntries++;
+				/* Entry goes to B */
+				else if (!cutRows[i])
+					blockEntries[rowBlocks[j] + 1]++;
+			}
+		}
+		for (int k = 0; k < numBlocks; k++)
+			blockEntries[k+1] += blockEntries[k];
+
+		/* Splits A, with the entries of B grouped by block */
+		final int[] bRows = new int[blockEntries[numBlocks]];
+		final int[] bColumns = new int[bRows.length];
+		final double[] bValues = new double[bRows.length];
+		int[] cRows = new int[numCEntries];
+		int[] cColumns = new int[numCEntries];
+		double[] cValues = new double[numCEntries];
+		int[] dRows = new int[numDEntries];
+		int[] dColumns = new int[numDEntries];
+		double[] dValues = new double[numDEntries];
+		int[] nextEntries = Arrays.copyOf(blockEntries, numBlocks);
+		int nextC = 0;
+		int nextD = 0;
+		for (int j = 0; j < dcs.n; j++) {
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++) {
+				int i = dcs.i[p];
+				if (cutRows[i] && cutRows[j]) {
+					dRows[nextD] = rowAssignments[i];
+					dColumns[nextD] = rowAssignments[j];
+					dValues[nextD++] = dcs.x[p];
 				}
-			});
+				else if (cutRows[j]) {
+					cRows[nextC] = rowAssignments[i];
+					cColumns[nextC] = rowAssignments[j];
+					cValues[nextC++] = dcs.x[p];
+				}
+				else if (!cutRows[i]) {
+					int block = rowBlocks[j];
+					int q = nextEntries[block]++;
+					bRows[q] = rowAssignments[i] - blockOffsets[block];
+					bColumns[q] = rowAssignments[j] - blockOffsets[block];
+					bValues[q] = dcs.x[p];
+				}
+			}
+		}
+
+		/* Factors the blocks of B */
+		forEachBlock(new BlockAction() {
+			@Override
+			public void apply(int k) {
+				int size = blockOffsets[k+1] - blockOffsets[k];
+				int start = blockEntries[k];
+				int end = blockEntries[k+1];
+				SparseCCDoubleMatrix2D block = new SparseCCDoubleMatrix2D(size, size,
+						Arrays.copyOfRange(bRows, start, end), Arrays.copyOfRange(bColumns, start, end),
+						Arrays.copyOfRange(bValues, start, end), false, false, true);
+				choleskyB[k] = new SparseDoubleCholeskyDecomposition(block, 1);
+			}
+		});
 
-			B = ((SparseDoubleMatrix2D) B).getColumnCompressed(false);
-			C = ((SparseDoubleMatrix2D) C).getColumnCompressed(false);
-			D = ((SparseDoubleMatrix2D) D).getColumnCompressed(false);
+		if (numCut > 0) {
+			int numUncut = A.rows() - numCut;
+			C = new SparseCCDoubleMatrix2D(numUncut, numCut, cRows, cColumns, cValues, false, false, true);
+			D = new SparseCCDoubleMatrix2D(numCut, numCut, dRows, dColumns, dValues, false, false, true);
 
-			choleskyB = new SparseDoubleCholeskyDecomposition(B, 1);
 			choleskyD = new SparseDoubleCholeskyDecomposition(D, 1);
+			complement = new SchurComplement();
 
 			cg.setPreconditioner(new DoublePreconditioner() {
 
@@ -239,16 +383,16 @@ public class BlockSolver implements NormalSystemSolver {
 
 				@Override
 				public DoubleMatrix1D apply(DoubleMatrix1D b, DoubleMatrix1D x) {
-					DoubleMatrix1D x1 = null;
+					DoubleMatrix1D x1 = seriesTerm;
 					x.assign(b);
 					choleskyD.solve(x);
 
 					for (int i = 0; i < terms; i++) {
 						if (i == 0)
-							x1 = x.copy();
+							x1.assign(x);
 
 						C.zMult(x1, scratch);
-						choleskyB.solve(scratch);
+						solveB(scratch);
 						C.zMult(scratch, x1, 1.0, 0.0, true);
 						choleskyD.solve(x1);
 
@@ -259,55 +403,130 @@ public class BlockSolver implements NormalSystemSolver {
 				}
 			});
 		}
-		else {
-			choleskyB = new SparseDoubleCholeskyDecomposition(A, 1);
-		}
 
 		log.trace("Finished setting A.");
 	}
 
 	@Override
 	public void solve(DoubleMatrix1D b) {
-		/* If the matrix was cut */
-		if (partition.getCutConstraints().size() > 0) {
-			DoubleMatrix1D b0 = new DenseDoubleMatrix1D(D.rows());
-			DoubleMatrix1D b1 = new DenseDoubleMatrix1D(B.rows());
-			DoubleMatrix1D y0 = new DenseDoubleMatrix1D(D.rows());
-
-			for (int i = 0; i < b.size(); i++) {
-				if (cutRows[i])
-					b0.set(rowAssignments[i], b.getQuick(i));
-				else
-					b1.set(rowAssignments[i], b.getQuick(i));
-			}
-
-			DoubleMatrix1D y1 = b1.copy();
+		/* Gathers the cut and uncut parts of b */
+		for (int i = 0; i < b.size(); i++) {
+			if (cutRows[i])
+				b0.setQuick(rowAssignments[i], b.getQuick(i));
+			else
+				b1.setQuick(rowAssignments[i], b.getQuick(i));
+		}
 
-			DoubleMatrix1D b0Scratch = b0.copy();
-			DoubleMatrix1D b1Scratch = b1.copy();
+		/* If the matrix was cut */
+		if (b0.size() > 0) {
+			y1.assign(b1);
 
-			/* Sets b0Scratch to b0 - C' * inv(B) * b1 */
-			choleskyB.solve(b1Scratch);
-			b0Scratch.assign(C.zMult(b1Scratch, null, 1.0, 0.0, true), DoubleFunctions.minus);
+			/* Sets b0 to b0 - C' * inv(B) * b1 */
+			solveB(b1);
+			C.zMult(b1, b0, -1.0, 1.0, true);
 
+			y0.assign(0.0);
 			try {
-				cg.solve(new SchurComplement(), b0Scratch, y0);
+				cg.solve(complement, b0, y0);
 				log.debug("Solved for complement in {} iterations.", monitor.iterations());
 			} catch (IterativeSolverDoubleNotConvergedException e) {
 				throw new IllegalArgumentException(e);
 			}
 
-			C.zMult(y0, b1Scratch);
-			y1.assign(b1Scratch, DoubleFunctions.minus);
-			choleskyB.solve(y1);
-
-			/* Puts the results back into b */
-			for (int i = 0; i < rowAssignments.length; i++) {
-				b.setQuick(i, (cutRows[i]) ? y0.getQuick(rowAssignments[i]) : y1.getQuick(rowAssignments[i]));
-			}
+			/* Sets y1 to inv(B) * (b1 - C * y0) */
+			C.zMult(y0, b1);
+			y1.assign(b1, DoubleFunctions.minus);
+			solveB(y1);
 		}
 		else {
-			choleskyB.solve(b);
+			solveB(b1);
+			y1.assign(b1);
+		}
+
+		/* Puts the results back into b */
+		for (int i = 0; i < rowAssignments.length; i++) {
+			b.setQuick(i, (cutRows[i]) ? y0.getQuick(rowAssignments[i]) : y1.getQuick(rowAssignments[i]));
+		}
+	}
+
+	/**
+	 * Solves B x = b in place, where b is indexed by uncut row assignments,
+	 * solving the blocks of B in parallel.
+	 */
+	protected void solveB(DoubleMatrix1D b) {
+		blockSolve.target = b;
+		forEachBlock(blockSolve);
+		blockSolve.target = null;
+	}
+
+	/**
+	 * Shuts down the solver's threads. Setting another program creates
+	 * them again. The threads are daemon threads, so a solver that is not
+	 * closed does not keep the JVM from exiting.
+	 */
+	public void close() {
+		if (pool != null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+	}
+
+	private void forEachBlock(BlockAction action) {
+		int numBlocks = blockOffsets.length - 1;
+		if (pool == null || numBlocks < 2) {
+			for (int k = 0; k < numBlocks; k++)
+				action.apply(k);
+		}
+		else
+			pool.invoke(new BlockTask(action, 0, numBlocks));
+	}
+
+	private interface BlockAction {
+		void apply(int k);
+	}
+
+	/* Solves each block of B in place in the target, reusing the blocks' scratch vectors */
+	private class BlockSolve implements BlockAction {
+
+		private DoubleMatrix1D target;
+
+		@Override
+		public void apply(int k) {
+			int offset = blockOffsets[k];
+			DoubleMatrix1D block = blockScratch[k];
+			for (int q = 0; q < block.size(); q++)
+				block.setQuick(q, target.getQuick(offset + q));
+			choleskyB[k].solve(block);
+			for (int q = 0; q < block.size(); q++)
+				target.setQuick(offset + q, block.getQuick(q));
+		}
+	}
+
+	/* Applies an action to a range of blocks, splitting ranges with many rows */
+	private class BlockTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final BlockAction action;
+		private final int start;
+		private final int end;
+
+		private BlockTask(BlockAction action, int start, int end) {
+			this.action = action;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > 1 && blockOffsets[end] - blockOffsets[start] > MIN_ROWS_PER_TASK) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new BlockTask(action, start, mid), new BlockTask(action, mid, end));
+			}
+			else {
+				for (int k = start; k < end; k++)
+					action.apply(k);
+			}
 		}
 	}
 
@@ -317,33 +536,40 @@ public class BlockSolver implements NormalSystemSolver {
 
 		private final DoubleMatrix1D scratch0;
 		private final DoubleMatrix1D scratch1;
+		private final DoubleMatrix1D product;
 
 		public SchurComplement() {
 			super(D.rows(), D.columns(), 1, 0.2, 0.5);
 			scratch0 = new DenseDoubleMatrix1D(C.columns());
 			scratch1 = new DenseDoubleMatrix1D(C.rows());
+			product = new DenseDoubleMatrix1D(D.rows());
 		}
 
 		@Override
 		public DoubleMatrix1D zMult(DoubleMatrix1D y, DoubleMatrix1D z, double alpha, double beta, boolean transposeA) {
-			DoubleMatrix1D toAdd = null;
-			if (beta != 0.0)
-				toAdd = z.copy();
-
-			zMult(y, z);
+			if (z == null)
+				z = new DenseDoubleMatrix1D(rows());
 
-			if (alpha != 1.0)
-				z.assign(DoubleFunctions.mult(alpha));
+			zMult(y, product);
 
-			if (beta != 0.0)
-				z.assign(toAdd, DoubleFunctions.plus);
+			/* Sets z to alpha * product + beta * z without copying z */
+			for (int i = 0; i < z.size(); i++) {
+				double value = alpha * product.getQuick(i);
+				if (beta != 0.0)
+					value += beta * z.getQuick(i);
+				z.setQuick(i, value);
+			}
 
 			return z;
 		}
 
 		@Override
-		public DoubleMatrix1D zMult(DoubleMatrix1D y, DoubleMatrix1D z) {C.zMult(y, scratch1);
-			choleskyB.solve(scratch1);
+		public DoubleMatrix1D zMult(DoubleMatrix1D y, DoubleMatrix1D z) {
+			if (z == null)
+				z = new DenseDoubleMatrix1D(rows());
+
+			C.zMult(y, scratch1);
+			solveB(scratch1);
 			C.zMult(scratch1, scratch0, 1.0, 0.0, true);
 
 			D.zMult(y, z);
@@ -0,0 +1,142 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver;
+
+import java.util.Arrays;
+
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_chol;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcsn;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcss;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_ipvec;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_lsolve;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_ltsolve;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_pvec;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_schol;
+
+/**
+ * Solves normal systems using a Cholesky factorization whose symbolic
+ * analysis is reused.
+ * <p>
+ * The fill-reducing ordering and elimination tree are computed the first
+ * time {@link #setA(SparseCCDoubleMatrix2D)} is called after
+ * {@link #setConicProgram(ConicProgram)}. Later calls only refactor
+ * numerically, as long as the sparsity pattern of the matrix is unchanged.
+ * If it changes, the analysis is redone.
+ */
+public class CachedCholesky implements NormalSystemSolver {
+	
+	private Dcss symbolic;
+	private Dcsn numeric;
+	private int[] columnPointers;
+	private int[] rowIndexes;
+	private double[] rhs;
+	private double[] work;
+	
+	@Override
+	public void setConicProgram(ConicProgram program) {
+		symbolic = null;
+		numeric = null;
+		columnPointers = null;
+		rowIndexes = null;
+	}
+	
+	@Override
+	public void setA(SparseCCDoubleMatrix2D A) {
+		if (A instanceof ImplicitMatrix)
+			throw new IllegalArgumentException("CachedCholesky requires an assembled matrix.");
+		Dcs dcs = A.getDcs();
+		if (symbolic == null || !hasCachedPattern(dcs)) {
+			symbolic = Dcs_schol.cs_schol(1, dcs);
+			if (symbolic == null)
+				throw new IllegalArgumentException("Symbolic analysis failed.");
+			int nnz = dcs.p[dcs.n];
+			columnPointers = Arrays.copyOf(dcs.p, dcs.n + 1);
+			rowIndexes = Arrays.copyOf(dcs.i, nnz);
+			rhs = new double[dcs.n];
+			work = new double[dcs.n];
+		}
+		
+		numeric = Dcs_chol.cs_chol(dcs, symbolic);
+		if (numeric == null)
+			throw new IllegalArgumentException("Matrix is not symmetric positive definite.");
+	}
+	
+	private boolean hasCachedPattern(Dcs dcs) {
+		if (dcs.n != columnPointers.length - 1)
+			return false;
+		for (int j = 0; j <= dcs.n; j++)
+			if (dcs.p[j] != columnPointers[j])
+				return false;
+		int nnz = dcs.p[dcs.n];
+		for (int k = 0; k < nnz; k++)
+			if (dcs.i[k] != rowIndexes[k])
+				return false;
+		return true;
+	}
+	
+	/* Returns the cached symbolic analysis, or null if there is none */
+	Dcss getSymbolicAnalysis() {
+		return symbolic;
+	}
+	
+	/**
+	 * Returns an estimate of the memory used by the cached analysis and
+	 * factor, in bytes.
+	 */
+	public long getSizeInBytes() {
+		if (symbolic == null)
+			return 0;
+		
+		long ints = columnPointers.length + rowIndexes.length;
+		long doubles = rhs.length + work.length;
+		if (symbolic.pinv != null)
+			ints += symbolic.pinv.length;
+		if (symbolic.parent != null)
+			ints += symbolic.parent.length;
+		if (symbolic.cp != null)
+			ints += symbolic.cp.length;
+		if (numeric != null) {
+			ints += numeric.L.p.length + numeric.L.i.length;
+			doubles += numeric.L.x.length;
+		}
+		return 4 * ints + 8 * doubles;
+	}
+	
+	@Override
+	public void solve(DoubleMatrix1D b) {
+		if (numeric == null)
+			throw new IllegalStateException("No matrix has been factored.");
+		
+		int n = work.length;
+		for (int i = 0; i < n; i++)
+			rhs[i] = b.getQuick(i);
+		
+		Dcs_ipvec.cs_ipvec(symbolic.pinv, rhs, work, n);
+		Dcs_lsolve.cs_lsolve(numeric.L, work);
+		Dcs_ltsolve.cs_ltsolve(numeric.L, work);
+		Dcs_pvec.cs_pvec(symbolic.pinv, work, rhs, n);
+		
+		for (int i = 0; i < n; i++)
+			b.setQuick(i, rhs[i]);
+	}
+}
@@ -38,6 +38,8 @@ public class Cholesky implements NormalSystemSolver {
 
 	@Override
 	public void setA(SparseCCDoubleMatrix2D A) {
+		if (A instanceof ImplicitMatrix)
+			throw new IllegalArgumentException("Cholesky requires an assembled matrix.");
 		decomposition = new SparseDoubleCholeskyDecomposition(A, 1);
 	}
 
@@ -38,6 +38,9 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Solves normal systems using a conjugate gradient method.
+ * <p>
+ * The matrix may be an {@link ImplicitMatrix} if the preconditioner reads
+ * only its diagonal or assembles its lower triangle.
  * 
  * @author Stephen Bach <bach@cs.umd.edu>
  */
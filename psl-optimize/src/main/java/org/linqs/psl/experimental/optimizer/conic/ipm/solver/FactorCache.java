@@ -0,0 +1,159 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.linqs.psl.config.Config;
+
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+
+/**
+ * A memory-bounded cache of {@link CachedCholesky} factorizations, such as
+ * one for each element of a partitioned conic program.
+ * <p>
+ * Each factorization is stored under a key chosen by the caller together
+ * with a version, such as the number of the outer iteration in which it was
+ * computed. A factorization is current only if its version matches the one
+ * requested. Refactoring a key with a new version reuses the symbolic
+ * analysis of its cached factorization.
+ * <p>
+ * When the estimated size of the cached factorizations exceeds the budget,
+ * the least recently used ones are evicted. Factorizations still referenced
+ * by callers stay valid after eviction. All methods are thread safe, but
+ * each key should only be refactored by one thread at a time.
+ */
+public class FactorCache {
+
+	/**
+	 * Prefix of property keys used by this class.
+	 */
+	public static final String CONFIG_PREFIX = "factorcache";
+
+	/**
+	 * Key for positive integer property. The maximum estimated size, in
+	 * megabytes, of the factorizations held by the cache.
+	 */
+	public static final String MAX_MEGABYTES_KEY = CONFIG_PREFIX + ".maxmegabytes";
+	/** Default value for MAX_MEGABYTES_KEY property */
+	public static final int MAX_MEGABYTES_DEFAULT = 512;
+
+	private final long maxBytes;
+	private final LinkedHashMap<Object, Entry> entries;
+	private long totalBytes;
+
+	public FactorCache() {
+		this(1024L * 1024L * Config.getInt(MAX_MEGABYTES_KEY, MAX_MEGABYTES_DEFAULT));
+	}
+
+	/**
+	 * @param maxBytes  the maximum estimated size of the cached factorizations
+	 */
+	public FactorCache(long maxBytes) {
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("Cache size must be positive.");
+		this.maxBytes = maxBytes;
+		entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+		totalBytes = 0;
+	}
+
+	/**
+	 * Returns the factorization cached for a key if it has the given version,
+	 * and null otherwise.
+	 */
+	public synchronized NormalSystemSolver get(Object key, int version) {
+		Entry entry = entries.get(key);
+		if (entry != null && entry.version == version)
+			return entry.solver;
+		return null;
+	}
+
+	/**
+	 * Factors a matrix and caches the result under a key with the given
+	 * version, replacing any earlier factorization for that key.
+	 *
+	 * @return the factorization
+	 */
+	public NormalSystemSolver factor(Object key, int version, SparseCCDoubleMatrix2D A) {
+		/* Takes the old entry out of the cache while factoring */
+		Entry entry;
+		synchronized (this) {
+			entry = entries.remove(key);
+			if (entry != null)
+				totalBytes -= entry.bytes;
+		}
+		if (entry == null)
+			entry = new Entry();
+
+		entry.solver.setA(A);
+		entry.version = version;
+		entry.bytes = entry.solver.getSizeInBytes();
+
+		synchronized (this) {
+			Entry replaced = entries.put(key, entry);
+			if (replaced != null)
+				totalBytes -= replaced.bytes;
+			totalBytes += entry.bytes;
+			evict(key);
+		}
+
+		return entry.solver;
+	}
+
+	/* Evicts least recently used entries, other than the one for key, until under budget */
+	private void evict(Object key) {
+		Iterator<Map.Entry<Object, Entry>> itr = entries.entrySet().iterator();
+		while (totalBytes > maxBytes && itr.hasNext()) {
+			Map.Entry<Object, Entry> e = itr.next();
+			if (e.getKey() != key) {
+				totalBytes -= e.getValue().bytes;
+				itr.remove();
+			}
+		}
+	}
+
+	/**
+	 * Removes all factorizations from the cache.
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	/**
+	 * Returns the estimated size of the cached factorizations, in bytes.
+	 */
+	public synchronized long getSizeInBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * Returns the number of cached factorizations.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private static class Entry {
+		private final CachedCholesky solver = new CachedCholesky();
+		private int version;
+		private long bytes;
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver;
+
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+
+/**
+ * A symmetric matrix that is available only through multiplication by
+ * vectors, through its diagonal entries, and through its lower triangle
+ * assembled on demand.
+ * <p>
+ * A {@link NormalSystemSolver} may be given such a matrix in place of an
+ * assembled one. Only {@link ConjugateGradient} accepts it. Preconditioners
+ * that need more than the diagonal assemble the lower triangle with
+ * {@link #assembleLowerTriangle()}, which is usually much smaller than the
+ * factor a direct solver would need. All other solvers need the stored
+ * entries of the whole matrix and throw an {@link IllegalArgumentException}
+ * when given an implicit matrix.
+ */
+public interface ImplicitMatrix {
+
+	/**
+	 * Computes the lower triangle, including the diagonal, of this matrix.
+	 * <p>
+	 * Every call returns the same matrix, with its values recomputed in
+	 * place from the current values of this matrix, so its sparsity pattern
+	 * does not change. It must not be modified.
+	 *
+	 * @return the lower triangle of this matrix
+	 */
+	public SparseCCDoubleMatrix2D assembleLowerTriangle();
+}
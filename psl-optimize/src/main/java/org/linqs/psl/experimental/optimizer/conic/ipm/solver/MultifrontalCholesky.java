@@ -0,0 +1,640 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.linqs.psl.config.Config;
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_amd;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * Solves normal systems using a multifrontal, supernodal Cholesky
+ * factorization that runs in parallel across the elimination tree.
+ * <p>
+ * Only the upper triangle of the matrix is read. The fill-reducing ordering,
+ * elimination tree, and supernode structure are computed the first time
+ * {@link #setA(SparseCCDoubleMatrix2D)} is called after
+ * {@link #setConicProgram(ConicProgram)} and reused while the sparsity
+ * pattern is unchanged.
+ * <p>
+ * Each supernode is factored as a dense frontal matrix, after the update
+ * matrices of its children have been added into it. Disjoint subtrees are
+ * independent, so with more than one thread they are factored as separate
+ * tasks in a {@link ForkJoinPool} that the solver keeps across
+ * factorizations. Subtrees with little work are factored sequentially by a
+ * single task.
+ */
+public class MultifrontalCholesky implements NormalSystemSolver {
+
+	/**
+	 * Prefix of property keys used by this class.
+	 */
+	public static final String CONFIG_PREFIX = "mfcholesky";
+
+	/**
+	 * Key for positive integer property. The number of threads used to
+	 * factor the matrix. If 1, the matrix is factored by the calling thread.
+	 * Otherwise, a pool of threads is created when the first program is set
+	 * and is kept for all later factorizations until {@link #close()} is
+	 * called.
+	 */
+	public static final String THREADS_KEY = CONFIG_PREFIX + ".threads";
+	/** Default value for THREADS_KEY property */
+	public static final int THREADS_DEFAULT = 1;
+
+	/**
+	 * Key for positive integer property. Subtrees of the elimination tree
+	 * requiring fewer than this many floating-point operations to factor
+	 * are factored sequentially.
+	 */
+	public static final String TASK_FLOPS_KEY = CONFIG_PREFIX + ".taskflops";
+	/** Default value for TASK_FLOPS_KEY property */
+	public static final int TASK_FLOPS_DEFAULT = 1000000;
+
+	private final int threads;
+	private final long taskFlops;
+
+	/* Threads used by setA, or null if there is only one or the solver is closed */
+	private ForkJoinPool pool;
+
+	/* Cached pattern of the last matrix analyzed */
+	private int[] columnPointers;
+	private int[] rowIndexes;
+
+	/* Symbolic analysis */
+	private int n;
+	private int[] perm;
+	private int[] lowerPtr;
+	private int[] lowerRow;
+	private int[] lowerSrc;
+	private int numSupernodes;
+	private int[] snStart;
+	private int[] snParent;
+	private int[] snFirstDesc;
+	private int[] snChildPtr;
+	private int[] snChildren;
+	private int[] snRoots;
+	private int[][] snRows;
+	private long[] snSubtreeFlops;
+
+	/* Numeric factorization */
+	private double[][] factor;
+	private double[][] updates;
+	private double[] values;
+	private boolean factored;
+
+	private double[] work;
+
+	public MultifrontalCholesky() {
+		threads = Config.getInt(THREADS_KEY, THREADS_DEFAULT);
+		if (threads < 1)
+			throw new IllegalArgumentException("Property " + THREADS_KEY + " must be positive.");
+		taskFlops = Config.getInt(TASK_FLOPS_KEY, TASK_FLOPS_DEFAULT);
+		if (taskFlops < 1)
+			throw new IllegalArgumentException("Property " + TASK_FLOPS_KEY + " must be positive.");
+	}
+
+	@Override
+	public void setConicProgram(ConicProgram program) {
+		columnPointers = null;
+		rowIndexes = null;
+		factor = null;
+		factored = false;
+		if (threads > 1 && pool == null)
+			pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * Shuts down the solver's threads. Setting another program creates
+	 * them again. The threads are daemon threads, so a solver that is not
+	 * closed does not keep the JVM from exiting.
+	 */
+	public void close() {
+		if (pool != null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+	}
+
+	@Override
+	public void setA(SparseCCDoubleMatrix2D A) {
+		if (A instanceof ImplicitMatrix)
+			throw new IllegalArgumentException("MultifrontalCholesky requires an assembled matrix.");
+		Dcs dcs = A.getDcs();
+		if (columnPointers == null || !hasCachedPattern(dcs)) {
+			analyze(dcs);
+			int nnz = dcs.p[dcs.n];
+			columnPointers = Arrays.copyOf(dcs.p, dcs.n + 1);
+			rowIndexes = Arrays.copyOf(dcs.i, nnz);
+		}
+
+		factored = false;
+		values = dcs.x;
+		Arrays.fill(updates, null);
+		try {
+			if (pool != null)
+				pool.invoke(new ForestTask());
+			else {
+				/* Supernodes are postordered, so children are factored before their parents */
+				for (int s = 0; s < numSupernodes; s++)
+					factorSupernode(s);
+			}
+		}
+		finally {
+			values = null;
+		}
+		factored = true;
+	}
+
+	private boolean hasCachedPattern(Dcs dcs) {
+		if (dcs.n != columnPointers.length - 1)
+			return false;
+		for (int j = 0; j <= dcs.n; j++)
+			if (dcs.p[j] != columnPointers[j])
+				return false;
+		int nnz = dcs.p[dcs.n];
+		for (int k = 0; k < nnz; k++)
+			if (dcs.i[k] != rowIndexes[k])
+				return false;
+		return true;
+	}
+
+	@Override
+	public void solve(DoubleMatrix1D b) {
+		if (!factored)
+			throw new IllegalStateException("No matrix has been factored.");
+
+		for (int k = 0; k < n; k++)
+			work[k] = b.getQuick(perm[k]);
+
+		/* Solves L y = P b */
+		for (int s = 0; s < numSupernodes; s++) {
+			double[] L = factor[s];
+			int[] rows = snRows[s];
+			int m = rows.length;
+			int first = snStart[s];
+			int cols = snStart[s+1] - first;
+			for (int jj = 0; jj < cols; jj++) {
+				int offset = jj * m;
+				double y = work[first + jj] / L[offset + jj];
+				work[first + jj] = y;
+				for (int ii = jj + 1; ii < m; ii++)
+					work[rows[ii]] -= L[offset + ii] * y;
+			}
+		}
+
+		/* Solves L' z = y */
+		for (int s = numSupernodes - 1; s >= 0; s--) {
+			double[] L = factor[s];
+			int[] rows = snRows[s];
+			int m = rows.length;
+			int first = snStart[s];
+			int cols = snStart[s+1] - first;
+			for (int jj = cols - 1; jj >= 0; jj--) {
+				int offset = jj * m;
+				double z = work[first + jj];
+				for (int ii = jj + 1; ii < m; ii++)
+					z -= L[offset + ii] * work[rows[ii]];
+				work[first + jj] = z / L[offset + jj];
+			}
+		}
+
+		for (int k = 0; k < n; k++)
+			b.setQuick(perm[k], work[k]);
+	}
+
+	/*
+	 * Symbolic analysis
+	 */
+
+	private void analyze(Dcs dcs) {
+		n = dcs.n;
+		work = new double[n];
+
+		int[] amd = Dcs_amd.cs_amd(1, dcs);
+		if (amd == null)
+			throw new IllegalArgumentException("Symbolic analysis failed.");
+		perm = Arrays.copyOf(amd, n);
+
+		/*
+		 * Postorders the elimination tree so that every subtree, and every
+		 * supernode, is a contiguous range of columns
+		 */
+		buildLowerPattern(dcs);
+		int[] parent = eliminationTree(n, lowerPtr, lowerRow);
+		int[] post = postorder(parent);
+		int[] postPerm = new int[n];
+		for (int k = 0; k < n; k++)
+			postPerm[k] = perm[post[k]];
+		perm = postPerm;
+		buildLowerPattern(dcs);
+		parent = eliminationTree(n, lowerPtr, lowerRow);
+
+		int[] colCounts = columnCounts(n, lowerPtr, lowerRow, parent);
+		findSupernodes(parent, colCounts);
+		findSupernodeRows();
+
+		factor = new double[numSupernodes][];
+		updates = new double[numSupernodes][];
+	}
+
+	/**
+	 * Computes the pattern of the lower triangle of the permuted matrix, along
+	 * with the position in the original matrix of each entry.
+	 */
+	private void buildLowerPattern(Dcs dcs) {
+		int[] pinv = new int[n];
+		for (int k = 0; k < n; k++)
+			pinv[perm[k]] = k;
+
+		lowerPtr = new int[n+1];
+		for (int j = 0; j < n; j++)
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++)
+				if (dcs.i[p] <= j)
+					lowerPtr[Math.min(pinv[dcs.i[p]], pinv[j]) + 1]++;
+		for (int j = 0; j < n; j++)
+			lowerPtr[j+1] += lowerPtr[j];
+
+		int[] next = Arrays.copyOf(lowerPtr, n);
+		lowerRow = new int[lowerPtr[n]];
+		lowerSrc = new int[lowerPtr[n]];
+		for (int j = 0; j < n; j++) {
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++) {
+				int i = dcs.i[p];
+				if (i <= j) {
+					int row = Math.max(pinv[i], pinv[j]);
+					int col = Math.min(pinv[i], pinv[j]);
+					lowerRow[next[col]] = row;
+					lowerSrc[next[col]++] = p;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Transposes the pattern of a lower triangle, so that row k lists the
+	 * columns of its nonzeros in increasing order.
+	 * 
+	 * @return the row pointers and the column of each entry
+	 */
+	private static int[][] rowPattern(int n, int[] lowerPtr, int[] lowerRow) {
+		int[] rowPtr = new int[n+1];
+		for (int p = 0; p < lowerPtr[n]; p++)
+			rowPtr[lowerRow[p] + 1]++;
+		for (int i = 0; i < n; i++)
+			rowPtr[i+1] += rowPtr[i];
+		int[] next = Arrays.copyOf(rowPtr, n);
+		int[] rowCols = new int[lowerPtr[n]];
+		for (int j = 0; j < n; j++)
+			for (int p = lowerPtr[j]; p < lowerPtr[j+1]; p++)
+				rowCols[next[lowerRow[p]]++] = j;
+		return new int[][] {rowPtr, rowCols};
+	}
+
+	/**
+	 * Computes the elimination tree of a matrix from the pattern of its lower
+	 * triangle, given by column.
+	 * 
+	 * @return the parent of each column, or -1 for roots
+	 */
+	static int[] eliminationTree(int n, int[] lowerPtr, int[] lowerRow) {
+		int[][] pattern = rowPattern(n, lowerPtr, lowerRow);
+		int[] rowPtr = pattern[0];
+		int[] rowCols = pattern[1];
+
+		int[] parent = new int[n];
+		int[] ancestor = new int[n];
+		for (int k = 0; k < n; k++) {
+			parent[k] = -1;
+			ancestor[k] = -1;
+			for (int p = rowPtr[k]; p < rowPtr[k+1]; p++) {
+				int i = rowCols[p];
+				while (i != -1 && i < k) {
+					int inext = ancestor[i];
+					ancestor[i] = k;
+					if (inext == -1)
+						parent[i] = k;
+					i = inext;
+				}
+			}
+		}
+		return parent;
+	}
+
+	private int[] postorder(int[] parent) {
+		int[] head = new int[n];
+		int[] sibling = new int[n];
+		Arrays.fill(head, -1);
+		for (int j = n - 1; j >= 0; j--) {
+			if (parent[j] != -1) {
+				sibling[j] = head[parent[j]];
+				head[parent[j]] = j;
+			}
+		}
+
+		int[] post = new int[n];
+		int[] stack = new int[n];
+		int k = 0;
+		for (int root = 0; root < n; root++) {
+			if (parent[root] != -1)
+				continue;
+			int top = 0;
+			stack[0] = root;
+			while (top >= 0) {
+				int j = stack[top];
+				int child = head[j];
+				if (child == -1) {
+					top--;
+					post[k++] = j;
+				}
+				else {
+					head[j] = sibling[child];
+					stack[++top] = child;
+				}
+			}
+		}
+		return post;
+	}
+
+	/**
+	 * Counts the nonzeros, including the diagonal, of each column of the
+	 * factor by traversing the row subtree of each row.
+	 * <p>
+	 * Row k of the factor has a nonzero in every column on the paths in the
+	 * elimination tree from the columns of row k of the matrix up to k. The
+	 * rows are traversed one at a time, so each column is marked at most
+	 * once per row and counted once for each row in which it is nonzero.
+	 */
+	static int[] columnCounts(int n, int[] lowerPtr, int[] lowerRow, int[] parent) {
+		int[][] pattern = rowPattern(n, lowerPtr, lowerRow);
+		int[] rowPtr = pattern[0];
+		int[] rowCols = pattern[1];
+
+		int[] counts = new int[n];
+		int[] mark = new int[n];
+		Arrays.fill(mark, -1);
+		for (int k = 0; k < n; k++) {
+			mark[k] = k;
+			for (int p = rowPtr[k]; p < rowPtr[k+1]; p++) {
+				for (int i = rowCols[p]; mark[i] != k; i = parent[i]) {
+					counts[i]++;
+					mark[i] = k;
+				}
+			}
+		}
+		for (int j = 0; j < n; j++)
+			counts[j]++;
+		return counts;
+	}
+
+	/**
+	 * Groups columns into fundamental supernodes: chains of columns, each the
+	 * only child of the next, whose factor columns share a nonzero pattern.
+	 */
+	private void findSupernodes(int[] parent, int[] colCounts) {
+		int[] numChildren = new int[n];
+		for (int j = 0; j < n; j++)
+			if (parent[j] != -1)
+				numChildren[parent[j]]++;
+
+		int[] start = new int[n+1];
+		int[] snOf = new int[n];
+		numSupernodes = 0;
+		for (int j = 0; j < n; j++) {
+			if (j == 0 || parent[j-1] != j || numChildren[j] != 1 || colCounts[j-1] != colCounts[j] + 1)
+				start[numSupernodes++] = j;
+			snOf[j] = numSupernodes - 1;
+		}
+		start[numSupernodes] = n;
+		snStart = Arrays.copyOf(start, numSupernodes + 1);
+
+		snParent = new int[numSupernodes];
+		snFirstDesc = new int[numSupernodes];
+		for (int s = 0; s < numSupernodes; s++) {
+			int last = parent[snStart[s+1] - 1];
+			snParent[s] = (last == -1) ? -1 : snOf[last];
+			snFirstDesc[s] = s;
+		}
+
+		/* Supernodes are postordered, so children precede their parents */
+		snChildPtr = new int[numSupernodes + 1];
+		for (int s = 0; s < numSupernodes; s++) {
+			if (snParent[s] != -1) {
+				snChildPtr[snParent[s] + 1]++;
+				snFirstDesc[snParent[s]] = Math.min(snFirstDesc[snParent[s]], snFirstDesc[s]);
+			}
+		}
+		for (int s = 0; s < numSupernodes; s++)
+			snChildPtr[s+1] += snChildPtr[s];
+		int[] next = Arrays.copyOf(snChildPtr, numSupernodes);
+		snChildren = new int[snChildPtr[numSupernodes]];
+		snRoots = new int[numSupernodes - snChildren.length];
+		for (int s = 0, r = 0; s < numSupernodes; s++) {
+			if (snParent[s] != -1)
+				snChildren[next[snParent[s]]++] = s;
+			else
+				snRoots[r++] = s;
+		}
+	}
+
+	/**
+	 * Computes the sorted row pattern of each supernode from the original
+	 * matrix and the patterns of its children.
+	 */
+	private void findSupernodeRows() {
+		snRows = new int[numSupernodes][];
+		snSubtreeFlops = new long[numSupernodes];
+		int[] mark = new int[n];
+		Arrays.fill(mark, -1);
+		int[] rows = new int[n];
+
+		for (int s = 0; s < numSupernodes; s++) {
+			int first = snStart[s];
+			int end = snStart[s+1];
+			int size = 0;
+			for (int j = first; j < end; j++) {
+				rows[size++] = j;
+				mark[j] = s;
+			}
+			for (int j = first; j < end; j++) {
+				for (int p = lowerPtr[j]; p < lowerPtr[j+1]; p++) {
+					int i = lowerRow[p];
+					if (mark[i] != s) {
+						rows[size++] = i;
+						mark[i] = s;
+					}
+				}
+			}
+			for (int c = snChildPtr[s]; c < snChildPtr[s+1]; c++) {
+				int child = snChildren[c];
+				int[] childRows = snRows[child];
+				for (int ii = snStart[child+1] - snStart[child]; ii < childRows.length; ii++) {
+					int i = childRows[ii];
+					if (mark[i] != s) {
+						rows[size++] = i;
+						mark[i] = s;
+					}
+				}
+			}
+			Arrays.sort(rows, end - first, size);
+			snRows[s] = Arrays.copyOf(rows, size);
+
+			long cols = end - first;
+			snSubtreeFlops[s] += cols * size * size;
+			if (snParent[s] != -1)
+				snSubtreeFlops[snParent[s]] += snSubtreeFlops[s];
+		}
+	}
+
+	/*
+	 * Numeric factorization
+	 */
+
+	/**
+	 * Factors the subtrees rooted at each root of the elimination forest.
+	 */
+	private class ForestTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+			FactorTask[] tasks = new FactorTask[snRoots.length];
+			for (int r = 0; r < snRoots.length; r++)
+				tasks[r] = new FactorTask(snRoots[r]);
+			invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * Factors the subtree rooted at a supernode.
+	 * <p>
+	 * Chains of supernodes with one child each are followed without forking,
+	 * and subtrees below the task size are factored in postorder by this task.
+	 */
+	private class FactorTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int root;
+
+		FactorTask(int root) {
+			this.root = root;
+		}
+
+		@Override
+		protected void compute() {
+			int bottom = root;
+			while (snSubtreeFlops[bottom] >= taskFlops && snChildPtr[bottom+1] - snChildPtr[bottom] == 1)
+				bottom = snChildren[snChildPtr[bottom]];
+
+			if (snSubtreeFlops[bottom] < taskFlops) {
+				for (int s = snFirstDesc[bottom]; s <= bottom; s++)
+					factorSupernode(s);
+			}
+			else {
+				int numChildren = snChildPtr[bottom+1] - snChildPtr[bottom];
+				FactorTask[] tasks = new FactorTask[numChildren];
+				for (int c = 0; c < numChildren; c++)
+					tasks[c] = new FactorTask(snChildren[snChildPtr[bottom] + c]);
+				invokeAll(tasks);
+				factorSupernode(bottom);
+			}
+
+			/* Walks back up the chain */
+			for (int s = bottom + 1; s <= root; s++)
+				factorSupernode(s);
+		}
+	}
+
+	private void factorSupernode(int s) {
+		int[] rows = snRows[s];
+		int m = rows.length;
+		int first = snStart[s];
+		int cols = snStart[s+1] - first;
+		double[] front = new double[m * m];
+
+		/* Assembles the columns of the original matrix */
+		for (int jj = 0; jj < cols; jj++) {
+			int j = first + jj;
+			for (int p = lowerPtr[j]; p < lowerPtr[j+1]; p++) {
+				int ii = Arrays.binarySearch(rows, lowerRow[p]);
+				front[jj * m + ii] += values[lowerSrc[p]];
+			}
+		}
+
+		/* Adds the update matrices of the children */
+		int[] relative = new int[m];
+		for (int c = snChildPtr[s]; c < snChildPtr[s+1]; c++) {
+			int child = snChildren[c];
+			double[] update = updates[child];
+			updates[child] = null;
+			/* A child that failed throws, so its parent is never factored */
+			if (update == null)
+				throw new IllegalStateException("Supernode " + child + " was not factored before its parent.");
+			int[] childRows = snRows[child];
+			int offset = snStart[child+1] - snStart[child];
+			int size = childRows.length - offset;
+			for (int t = 0, ii = 0; t < size; t++) {
+				while (rows[ii] != childRows[offset + t])
+					ii++;
+				relative[t] = ii;
+			}
+			for (int b = 0; b < size; b++) {
+				int frontCol = relative[b] * m;
+				int updateCol = b * size;
+				for (int a = b; a < size; a++)
+					front[frontCol + relative[a]] += update[updateCol + a];
+			}
+		}
+
+		/* Factors the pivot columns and forms the Schur complement */
+		for (int jj = 0; jj < cols; jj++) {
+			int offset = jj * m;
+			double d = front[offset + jj];
+			if (!(d > 0.0))
+				throw new IllegalArgumentException("Matrix is not symmetric positive definite.");
+			d = Math.sqrt(d);
+			front[offset + jj] = d;
+			for (int ii = jj + 1; ii < m; ii++)
+				front[offset + ii] /= d;
+			for (int kk = jj + 1; kk < m; kk++) {
+				double l = front[offset + kk];
+				if (l == 0.0)
+					continue;
+				int col = kk * m;
+				for (int ii = kk; ii < m; ii++)
+					front[col + ii] -= front[offset + ii] * l;
+			}
+		}
+
+		factor[s] = Arrays.copyOf(front, m * cols);
+		int size = m - cols;
+		if (snParent[s] != -1 && size > 0) {
+			double[] update = new double[size * size];
+			for (int b = 0; b < size; b++)
+				System.arraycopy(front, (cols + b) * m + cols, update, b * size, size);
+			updates[s] = update;
+		}
+	}
+}
@@ -0,0 +1,594 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.linqs.psl.config.Config;
+import org.linqs.psl.experimental.optimizer.conic.partition.MultilevelGraphPartitioner;
+import org.linqs.psl.experimental.optimizer.conic.partition.ObjectiveCoefficientPartitioner;
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.algo.decomposition.SparseDoubleCholeskyDecomposition;
+import cern.colt.matrix.tdouble.algo.solver.DefaultDoubleIterationMonitor;
+import cern.colt.matrix.tdouble.algo.solver.DoubleCG;
+import cern.colt.matrix.tdouble.algo.solver.IterativeSolverDoubleNotConvergedException;
+import cern.colt.matrix.tdouble.algo.solver.preconditioner.DoublePreconditioner;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
+import cern.jet.math.tdouble.DoubleFunctions;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * Solves normal systems by applying the Schur's complement method of
+ * {@link BlockSolver} recursively.
+ * <p>
+ * At the top level, the rows of cut constraints form the separator and the
+ * remaining rows split into independent diagonal blocks. Each block that is
+ * larger than the direct size is split again, with a separator found by
+ * bisecting its graph, until the blocks are small enough or the maximum depth
+ * is reached. Blocks at the bottom of the tree are factored by sparse
+ * Cholesky decomposition.
+ * <p>
+ * The Schur complement of each separator, D - C' inv(B) C, is formed and
+ * factored directly if the separator has at most the direct size rows.
+ * Larger complements are solved by conjugate gradient, preconditioned by a
+ * Cholesky decomposition of D, with the tolerances of {@link BlockSolver}.
+ * Independent blocks are factored and solved in parallel if more than one
+ * thread is configured.
+ */
+public class NestedBlockSolver implements NormalSystemSolver {
+
+	private static final Logger log = LoggerFactory.getLogger(NestedBlockSolver.class);
+
+	/**
+	 * Prefix of property keys used by this class.
+	 */
+	public static final String CONFIG_PREFIX = "nestedblocksolver";
+
+	/**
+	 * Key for positive integer property. Blocks with at most this many rows
+	 * are not split further, and Schur complements with at most this many
+	 * rows are formed and factored directly.
+	 */
+	public static final String DIRECT_SIZE_KEY = CONFIG_PREFIX + ".directsize";
+	/** Default value for DIRECT_SIZE_KEY property */
+	public static final int DIRECT_SIZE_DEFAULT = 1000;
+
+	/**
+	 * Key for non-negative integer property. The maximum number of times a
+	 * block below the top level is split.
+	 */
+	public static final String MAX_DEPTH_KEY = CONFIG_PREFIX + ".maxdepth";
+	/** Default value for MAX_DEPTH_KEY property */
+	public static final int MAX_DEPTH_DEFAULT = 4;
+
+	/**
+	 * Key for positive integer property. The number of threads used to
+	 * factor and solve independent blocks. If greater than 1, a pool of
+	 * threads is created when the first program is set and is kept for all
+	 * later factorizations and solves until {@link #close()} is called.
+	 */
+	public static final String THREADS_KEY = CONFIG_PREFIX + ".threads";
+	/** Default value for THREADS_KEY property */
+	public static final int THREADS_DEFAULT = 1;
+
+	private final int maxIter;
+	private final double relTol;
+	private final double absTol;
+	private final double divTol;
+	private final int directSize;
+	private final int maxDepth;
+	private final int threads;
+	private final MultilevelGraphPartitioner partitioner;
+
+	/* Threads used by setA and solve, or null if there is only one or the solver is closed */
+	private ForkJoinPool pool;
+
+	private BitSet cutRows;
+	private Node root;
+
+	public NestedBlockSolver() {
+		maxIter = Config.getInt(BlockSolver.CG_MAX_ITER_KEY, BlockSolver.CG_MAX_ITER_DEFAULT);
+		relTol  = Config.getDouble(BlockSolver.CG_REL_TOL_KEY, BlockSolver.CG_REL_TOL_DEFAULT);
+		absTol  = Config.getDouble(BlockSolver.CG_ABS_TOL_KEY, BlockSolver.CG_ABS_TOL_DEFAULT);
+		divTol  = Config.getDouble(BlockSolver.CG_DIV_TOL_KEY, BlockSolver.CG_DIV_TOL_DEFAULT);
+		directSize = Config.getInt(DIRECT_SIZE_KEY, DIRECT_SIZE_DEFAULT);
+		if (directSize <= 0)
+			throw new IllegalArgumentException("Property " + DIRECT_SIZE_KEY + " must be positive.");
+		maxDepth = Config.getInt(MAX_DEPTH_KEY, MAX_DEPTH_DEFAULT);
+		if (maxDepth < 0)
+			throw new IllegalArgumentException("Property " + MAX_DEPTH_KEY + " must be non-negative.");
+		threads = Config.getInt(THREADS_KEY, THREADS_DEFAULT);
+		if (threads <= 0)
+			throw new IllegalArgumentException("Property " + THREADS_KEY + " must be positive.");
+		partitioner = new MultilevelGraphPartitioner();
+	}
+
+	@Override
+	public void setConicProgram(ConicProgram program) {
+		ObjectiveCoefficientPartitioner programPartitioner = new ObjectiveCoefficientPartitioner();
+		programPartitioner.setConicProgram(program);
+		cutRows = (BitSet) programPartitioner.getPartition().getCutConstraintFlags().clone();
+		root = null;
+		if (threads > 1 && pool == null)
+			pool = new ForkJoinPool(threads);
+		log.debug("Cut {} constraints out of {}", cutRows.cardinality(), program.getNumLinearConstraints());
+	}
+
+	@Override
+	public void setA(SparseCCDoubleMatrix2D A) {
+		if (A instanceof ImplicitMatrix)
+			throw new IllegalArgumentException("NestedBlockSolver requires an assembled matrix.");
+		if (cutRows == null)
+			throw new IllegalStateException("No conic program has been set.");
+		log.trace("Starting to set A.");
+		root = new Node(A, cutRows, 0);
+		log.trace("Finished setting A.");
+	}
+
+	@Override
+	public void solve(DoubleMatrix1D b) {
+		if (root == null)
+			throw new IllegalStateException("No matrix has been set.");
+		root.solve(b);
+	}
+
+	/**
+	 * Shuts down the solver's threads. Setting another program creates
+	 * them again. The threads are daemon threads, so a solver that is not
+	 * closed does not keep the JVM from exiting.
+	 */
+	public void close() {
+		if (pool != null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+	}
+
+	/* Runs tasks in the pool if there is one and there is more than one task */
+	private void runAll(List<Runnable> tasks) {
+		if (pool == null || tasks.size() < 2) {
+			for (Runnable task : tasks)
+				task.run();
+			return;
+		}
+
+		final List<ForkJoinTask<?>> adapted = new ArrayList<ForkJoinTask<?>>(tasks.size());
+		for (Runnable task : tasks)
+			adapted.add(ForkJoinTask.adapt(task));
+
+		/* Forks directly only if already running in this solver's pool */
+		if (ForkJoinTask.getPool() == pool)
+			ForkJoinTask.invokeAll(adapted);
+		else {
+			pool.invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					invokeAll(adapted);
+				}
+			});
+		}
+	}
+
+	/* Returns the vertices of the second half of a bisection of M's graph that border the first */
+	private BitSet bisect(Dcs m) {
+		int n = m.n;
+		int[] pointers = new int[n + 1];
+		for (int j = 0; j < n; j++) {
+			int degree = 0;
+			for (int p = m.p[j]; p < m.p[j+1]; p++)
+				if (m.i[p] != j)
+					degree++;
+			pointers[j+1] = pointers[j] + degree;
+		}
+		int[] neighbors = new int[pointers[n]];
+		for (int j = 0; j < n; j++) {
+			int q = pointers[j];
+			for (int p = m.p[j]; p < m.p[j+1]; p++)
+				if (m.i[p] != j)
+					neighbors[q++] = m.i[p];
+		}
+		double[] weights = new double[neighbors.length];
+		Arrays.fill(weights, 1.0);
+
+		int[] parts;
+		synchronized (partitioner) {
+			parts = partitioner.partition(pointers, neighbors, weights, 2);
+		}
+
+		BitSet separator = new BitSet(n);
+		for (int j = 0; j < n; j++) {
+			if (parts[j] == 1) {
+				for (int q = pointers[j]; q < pointers[j+1]; q++) {
+					if (parts[neighbors[q]] == 0) {
+						separator.set(j);
+						break;
+					}
+				}
+			}
+		}
+		return separator;
+	}
+
+	/*
+	 * Collects the entries of a column-compressed matrix for the triplet
+	 * constructor of SparseCCDoubleMatrix2D
+	 */
+	private static class Triplets {
+		private int[] rows = new int[16];
+		private int[] columns = new int[16];
+		private double[] values = new double[16];
+		private int size = 0;
+
+		private void add(int row, int column, double value) {
+			if (size == rows.length) {
+				rows = Arrays.copyOf(rows, 2 * size);
+				columns = Arrays.copyOf(columns, 2 * size);
+				values = Arrays.copyOf(values, 2 * size);
+			}
+			rows[size] = row;
+			columns[size] = column;
+			values[size] = value;
+			size++;
+		}
+
+		private SparseCCDoubleMatrix2D toMatrix(int numRows, int numColumns) {
+			return new SparseCCDoubleMatrix2D(numRows, numColumns, Arrays.copyOf(rows, size),
+					Arrays.copyOf(columns, size), Arrays.copyOf(values, size), false, false, true);
+		}
+	}
+
+	/*
+	 * A symmetric positive definite matrix, either factored directly or
+	 * split into independent diagonal blocks B, which are child nodes, and a
+	 * separator block D, coupled by C
+	 */
+	private class Node {
+		private final int n;
+
+		/* Rows of the matrix, interior rows grouped by child first and then separator rows */
+		private final int[] order;
+		private final int numInterior;
+		private final Node[] children;
+		private final int[] childOffsets;
+
+		private final SparseCCDoubleMatrix2D C;
+		private final SparseCCDoubleMatrix2D D;
+
+		/*
+		 * Factor of the matrix if this node is not split, otherwise of the
+		 * Schur complement if it was formed, otherwise of D
+		 */
+		private final SparseDoubleCholeskyDecomposition cholesky;
+		private final boolean iterative;
+
+		/**
+		 * @param M  the matrix
+		 * @param separator  the separator rows, or null to choose them by bisection
+		 * @param depth  the number of splits above this node
+		 */
+		private Node(SparseCCDoubleMatrix2D M, BitSet separator, int depth) {
+			n = M.rows();
+			Dcs m = M.getDcs();
+
+			if (separator == null) {
+				if (n <= directSize || depth > maxDepth) {
+					order = null;
+					numInterior = n;
+					children = new Node[0];
+					childOffsets = new int[] {0};
+					C = null;
+					D = null;
+					cholesky = new SparseDoubleCholeskyDecomposition(M, 1);
+					iterative = false;
+					return;
+				}
+				separator = bisect(m);
+			}
+
+			/* Orders the interior rows by connected component, breadth first */
+			order = new int[n];
+			int[] component = new int[n];
+			Arrays.fill(component, -1);
+			List<Integer> offsets = new ArrayList<Integer>();
+			int next = 0;
+			for (int start = 0; start < n; start++) {
+				if (separator.get(start) || component[start] != -1)
+					continue;
+				offsets.add(next);
+				int head = next;
+				component[start] = offsets.size() - 1;
+				order[next++] = start;
+				while (head < next) {
+					int v = order[head++];
+					for (int p = m.p[v]; p < m.p[v+1]; p++) {
+						int u = m.i[p];
+						if (!separator.get(u) && component[u] == -1) {
+							component[u] = component[v];
+							order[next++] = u;
+						}
+					}
+				}
+			}
+			numInterior = next;
+			offsets.add(numInterior);
+			for (int i = separator.nextSetBit(0); i >= 0; i = separator.nextSetBit(i+1))
+				order[next++] = i;
+
+			int numSeparator = n - numInterior;
+			int[] position = new int[n];
+			for (int q = 0; q < n; q++)
+				position[order[q]] = q;
+
+			/* Splits the matrix into the blocks of the children, C, and D */
+			int numChildren = offsets.size() - 1;
+			childOffsets = new int[numChildren + 1];
+			for (int c = 0; c <= numChildren; c++)
+				childOffsets[c] = offsets.get(c);
+
+			final Triplets[] blocks = new Triplets[numChildren];
+			for (int c = 0; c < numChildren; c++)
+				blocks[c] = new Triplets();
+			Triplets coupling = new Triplets();
+			Triplets separatorBlock = new Triplets();
+			for (int j = 0; j < n; j++) {
+				for (int p = m.p[j]; p < m.p[j+1]; p++) {
+					int i = m.i[p];
+					if (component[j] != -1) {
+						if (component[i] == component[j]) {
+							int offset = childOffsets[component[j]];
+							blocks[component[j]].add(position[i] - offset, position[j] - offset, m.x[p]);
+						}
+					}
+					else if (component[i] != -1)
+						coupling.add(position[i], position[j] - numInterior, m.x[p]);
+					else
+						separatorBlock.add(position[i] - numInterior, position[j] - numInterior, m.x[p]);
+				}
+			}
+
+			/* Factors the independent blocks */
+			children = new Node[numChildren];
+			List<Runnable> tasks = new ArrayList<Runnable>(numChildren);
+			for (int c = 0; c < numChildren; c++) {
+				final int child = c;
+				final int size = childOffsets[c+1] - childOffsets[c];
+				final int childDepth = depth + 1;
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						children[child] = new Node(blocks[child].toMatrix(size, size), null, childDepth);
+						blocks[child] = null;
+					}
+				});
+			}
+			runAll(tasks);
+
+			if (numSeparator == 0) {
+				C = null;
+				D = null;
+				cholesky = null;
+				iterative = false;
+			}
+			else {
+				C = coupling.toMatrix(numInterior, numSeparator);
+				D = separatorBlock.toMatrix(numSeparator, numSeparator);
+				iterative = numSeparator > directSize;
+				cholesky = new SparseDoubleCholeskyDecomposition((iterative) ? D : formSchurComplement(), 1);
+			}
+
+			log.debug("Split {} rows at depth {} into {} blocks and {} separator rows.",
+					n, depth, numChildren, numSeparator);
+		}
+
+		/* Returns D - C' inv(B) C, computing its columns in parallel */
+		private SparseCCDoubleMatrix2D formSchurComplement() {
+			final int numSeparator = D.rows();
+			final double[][] columns = new double[numSeparator][];
+			final Dcs c = C.getDcs();
+			final Dcs d = D.getDcs();
+
+			int numChunks = (pool == null) ? 1 : Math.min(numSeparator, 4 * threads);
+			List<Runnable> tasks = new ArrayList<Runnable>(numChunks);
+			for (int chunk = 0; chunk < numChunks; chunk++) {
+				final int start = (int) ((long) numSeparator * chunk / numChunks);
+				final int end = (int) ((long) numSeparator * (chunk + 1) / numChunks);
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						for (int j = start; j < end; j++) {
+							DoubleMatrix1D w = new DenseDoubleMatrix1D(numInterior);
+							for (int p = c.p[j]; p < c.p[j+1]; p++)
+								w.setQuick(c.i[p], c.x[p]);
+							solveInterior(w);
+
+							DoubleMatrix1D column = new DenseDoubleMatrix1D(numSeparator);
+							for (int p = d.p[j]; p < d.p[j+1]; p++)
+								column.setQuick(d.i[p], d.x[p]);
+							C.zMult(w, column, -1.0, 1.0, true);
+							columns[j] = column.toArray();
+						}
+					}
+				});
+			}
+			runAll(tasks);
+
+			/* Symmetrizes the complement to remove rounding differences */
+			Triplets S = new Triplets();
+			for (int j = 0; j < numSeparator; j++)
+				for (int i = 0; i < numSeparator; i++)
+					S.add(i, j, (columns[j][i] + columns[i][j]) / 2);
+			return S.toMatrix(numSeparator, numSeparator);
+		}
+
+		/* Solves the system with this node's matrix in place */
+		private void solve(DoubleMatrix1D x) {
+			if (order == null) {
+				cholesky.solve(x);
+				return;
+			}
+
+			int numSeparator = n - numInterior;
+			DoubleMatrix1D xI = new DenseDoubleMatrix1D(numInterior);
+			DoubleMatrix1D xS = new DenseDoubleMatrix1D(numSeparator);
+			for (int q = 0; q < numInterior; q++)
+				xI.setQuick(q, x.getQuick(order[q]));
+			for (int q = 0; q < numSeparator; q++)
+				xS.setQuick(q, x.getQuick(order[numInterior + q]));
+
+			/* Sets xI to inv(B) bI */
+			solveInterior(xI);
+
+			if (numSeparator > 0) {
+				/* Solves S yS = bS - C' inv(B) bI */
+				C.zMult(xI, xS, -1.0, 1.0, true);
+				solveSchurComplement(xS);
+
+				/* Sets xI to inv(B) bI - inv(B) C yS */
+				DoubleMatrix1D t = new DenseDoubleMatrix1D(numInterior);
+				C.zMult(xS, t);
+				solveInterior(t);
+				xI.assign(t, DoubleFunctions.minus);
+			}
+
+			for (int q = 0; q < numInterior; q++)
+				x.setQuick(order[q], xI.getQuick(q));
+			for (int q = 0; q < numSeparator; q++)
+				x.setQuick(order[numInterior + q], xS.getQuick(q));
+		}
+
+		/* Solves with the block-diagonal B in place, one block per child */
+		private void solveInterior(final DoubleMatrix1D xI) {
+			List<Runnable> tasks = new ArrayList<Runnable>(children.length);
+			for (int c = 0; c < children.length; c++) {
+				final int child = c;
+				tasks.add(new Runnable() {
+					@Override
+					public void run() {
+						int offset = childOffsets[child];
+						int size = childOffsets[child+1] - offset;
+						DoubleMatrix1D block = new DenseDoubleMatrix1D(size);
+						for (int q = 0; q < size; q++)
+							block.setQuick(q, xI.getQuick(offset + q));
+						children[child].solve(block);
+						for (int q = 0; q < size; q++)
+							xI.setQuick(offset + q, block.getQuick(q));
+					}
+				});
+			}
+			runAll(tasks);
+		}
+
+		/* Solves with the Schur complement in place */
+		private void solveSchurComplement(DoubleMatrix1D xS) {
+			if (!iterative) {
+				cholesky.solve(xS);
+				return;
+			}
+
+			DoubleMatrix1D y = new DenseDoubleMatrix1D(xS.size());
+			DoubleCG cg = new DoubleCG(y);
+			DefaultDoubleIterationMonitor cgMonitor = new DefaultDoubleIterationMonitor(maxIter, relTol, absTol, divTol);
+			cg.setIterationMonitor(cgMonitor);
+			cg.setPreconditioner(new DoublePreconditioner() {
+
+				@Override
+				public DoubleMatrix1D apply(DoubleMatrix1D b, DoubleMatrix1D x) {
+					x.assign(b);
+					cholesky.solve(x);
+					return x;
+				}
+
+				@Override
+				public DoubleMatrix1D transApply(DoubleMatrix1D b, DoubleMatrix1D x) {
+					return apply(b, x);
+				}
+
+				@Override
+				public void setMatrix(DoubleMatrix2D A) {
+					/* Intentionally blank */
+				}
+			});
+
+			try {
+				cg.solve(new ImplicitSchurComplement(), xS, y);
+				log.trace("Solved for complement in {} iterations.", cgMonitor.iterations());
+			} catch (IterativeSolverDoubleNotConvergedException e) {
+				throw new IllegalArgumentException(e);
+			}
+
+			xS.assign(y);
+		}
+
+		/* The Schur complement D - C' inv(B) C, represented by its action on vectors */
+		private class ImplicitSchurComplement extends SparseDoubleMatrix2D {
+
+			private static final long serialVersionUID = 1L;
+
+			private ImplicitSchurComplement() {
+				super(D.rows(), D.columns(), 1, 0.2, 0.5);
+			}
+
+			@Override
+			public DoubleMatrix1D zMult(DoubleMatrix1D y, DoubleMatrix1D z, double alpha, double beta, boolean transposeA) {
+				DoubleMatrix1D toAdd = null;
+				if (beta != 0.0) {
+					toAdd = z.copy();
+					if (beta != 1.0)
+						toAdd.assign(DoubleFunctions.mult(beta));
+				}
+
+				zMult(y, z);
+
+				if (alpha != 1.0)
+					z.assign(DoubleFunctions.mult(alpha));
+
+				if (beta != 0.0)
+					z.assign(toAdd, DoubleFunctions.plus);
+
+				return z;
+			}
+
+			@Override
+			public DoubleMatrix1D zMult(DoubleMatrix1D y, DoubleMatrix1D z) {
+				if (z == null)
+					z = new DenseDoubleMatrix1D(rows());
+				DoubleMatrix1D t = new DenseDoubleMatrix1D(numInterior);
+				C.zMult(y, t);
+				solveInterior(t);
+				D.zMult(y, z);
+				C.zMult(t, z, -1.0, 1.0, true);
+				return z;
+			}
+		}
+	}
+}
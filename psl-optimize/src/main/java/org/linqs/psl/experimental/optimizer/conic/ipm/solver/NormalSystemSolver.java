@@ -30,6 +30,12 @@ import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
 public interface NormalSystemSolver {
 	public void setConicProgram(ConicProgram program);
 	
+	/**
+	 * Sets the matrix of the normal system.
+	 * <p>
+	 * Unless a solver states otherwise, the matrix must be assembled, i.e.,
+	 * not an {@link ImplicitMatrix}.
+	 */
 	public void setA(SparseCCDoubleMatrix2D A);
 	
 	public void solve(DoubleMatrix1D b);
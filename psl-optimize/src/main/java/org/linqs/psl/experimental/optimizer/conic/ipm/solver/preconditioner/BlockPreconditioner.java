@@ -20,7 +20,6 @@ package org.linqs.psl.experimental.optimizer.conic.ipm.solver.preconditioner;
 import org.linqs.psl.experimental.optimizer.conic.partition.ConicProgramPartition;
 import org.linqs.psl.experimental.optimizer.conic.partition.ObjectiveCoefficientPartitioner;
 import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
-import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
 
 import cern.colt.function.tdouble.IntIntDoubleFunction;
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
@@ -30,8 +29,7 @@ import cern.colt.matrix.tdouble.algo.solver.preconditioner.DoublePreconditioner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.BitSet;
 
 public class BlockPreconditioner implements DoublePreconditioner {
 
@@ -64,21 +62,17 @@ public class BlockPreconditioner implements DoublePreconditioner {
 	public void setMatrix(DoubleMatrix2D A) {
 		log.trace("Starting to set matrix.");
 		DoubleMatrix2D localA = A.copy();
-		Set<LinearConstraint> cutConstraints = partition.getCutConstraints();
-		final Set<Integer> cutRows = new HashSet<Integer>();
-		for (LinearConstraint con : cutConstraints) {
-			cutRows.add(program.getIndex(con));
-		}
+		final BitSet cutRows = partition.getCutConstraintFlags();
 
 		localA.forEachNonZero(new IntIntDoubleFunction() {
 
 			@Override
 			public double apply(int first, int second, double third) {
-				boolean containsFirst = cutRows.contains(first);
+				boolean containsFirst = cutRows.get(first);
 				if (first == second && containsFirst)
 					return 1;
 
-				boolean containsSecond = cutRows.contains(second);
+				boolean containsSecond = cutRows.get(second);
 
 				if (containsFirst || containsSecond)
 					return 0;
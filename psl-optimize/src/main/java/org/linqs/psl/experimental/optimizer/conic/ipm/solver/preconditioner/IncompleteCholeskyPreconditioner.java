@@ -0,0 +1,406 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver.preconditioner;
+
+import java.util.Arrays;
+
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.ImplicitMatrix;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.algo.solver.preconditioner.DoublePreconditioner;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * Preconditions a symmetric positive definite matrix A by an incomplete
+ * Cholesky factorization L L' ~ A, where L is restricted to a fixed
+ * sparsity pattern.
+ * <p>
+ * Without a drop tolerance, the pattern of L is the lower triangle of A,
+ * i.e., IC(0). With a drop tolerance, the pattern is chosen by a thresholded
+ * factorization (ICT) of the first matrix with a new pattern: the lower
+ * triangle of A is always kept, and fill entries are kept if their magnitude
+ * is at least the drop tolerance times the 1-norm of their column of A,
+ * divided by the column's diagonal entry of L.
+ * <p>
+ * The pattern is reused as long as the pattern of A does not change, so
+ * each call to {@link #setMatrix(DoubleMatrix2D)} only scatters the new
+ * values of A and refactors numerically, without allocating.
+ * <p>
+ * If the factorization breaks down on a non-positive pivot, it is retried
+ * with the diagonal of A increased by a relative shift, which is doubled
+ * until the factorization succeeds.
+ * <p>
+ * Only the lower triangle of A is read. If A is an {@link ImplicitMatrix},
+ * such as the normal matrix of a matrix-free interior-point method, only its
+ * lower triangle is assembled.
+ */
+public class IncompleteCholeskyPreconditioner implements DoublePreconditioner {
+
+	private static final Logger log = LoggerFactory.getLogger(IncompleteCholeskyPreconditioner.class);
+
+	/* Relative diagonal shift tried after the first breakdown */
+	private static final double INITIAL_SHIFT = 1e-3;
+
+	/* Number of times the shift is doubled before giving up */
+	private static final int MAX_SHIFTS = 30;
+
+	private final boolean threshold;
+	private final double dropTolerance;
+
+	private int n;
+
+	/* Pattern of A for which the pattern of L was chosen */
+	private int[] aPointers;
+	private int[] aRows;
+
+	/* Position in lValues of each entry of A, or -1 if it is above the diagonal */
+	private int[] aPositions;
+
+	/* L, column-compressed, with each column's diagonal entry first and the other rows in order */
+	private int[] lPointers;
+	private int[] lRows;
+	private double[] lValues;
+
+	/* Diagonal of A, used to shift it after a breakdown */
+	private double[] diagonal;
+
+	/* Work arrays */
+	private double[] work;
+	private int[] positions;
+	private int[] stamps;
+	private int[] heads;
+	private int[] next;
+	private int[] firsts;
+
+	/**
+	 * Creates an IC(0) preconditioner.
+	 */
+	public IncompleteCholeskyPreconditioner() {
+		threshold = false;
+		dropTolerance = 0.0;
+	}
+
+	/**
+	 * Creates an ICT preconditioner.
+	 *
+	 * @param dropTolerance  the relative magnitude below which fill entries are dropped
+	 */
+	public IncompleteCholeskyPreconditioner(double dropTolerance) {
+		if (!(dropTolerance >= 0.0))
+			throw new IllegalArgumentException("Drop tolerance must be non-negative.");
+		threshold = true;
+		this.dropTolerance = dropTolerance;
+	}
+
+	@Override
+	public DoubleMatrix1D apply(DoubleMatrix1D b, DoubleMatrix1D x) {
+		for (int i = 0; i < n; i++)
+			work[i] = b.getQuick(i);
+
+		/* Solves L y = b */
+		for (int j = 0; j < n; j++) {
+			int start = lPointers[j];
+			double y = work[j] / lValues[start];
+			work[j] = y;
+			for (int q = start + 1; q < lPointers[j+1]; q++)
+				work[lRows[q]] -= lValues[q] * y;
+		}
+
+		/* Solves L' x = y */
+		for (int j = n - 1; j >= 0; j--) {
+			int start = lPointers[j];
+			double z = work[j];
+			for (int q = start + 1; q < lPointers[j+1]; q++)
+				z -= lValues[q] * work[lRows[q]];
+			work[j] = z / lValues[start];
+		}
+
+		for (int i = 0; i < n; i++)
+			x.setQuick(i, work[i]);
+		return x;
+	}
+
+	@Override
+	public DoubleMatrix1D transApply(DoubleMatrix1D b, DoubleMatrix1D x) {
+		return apply(b, x);
+	}
+
+	@Override
+	public void setMatrix(DoubleMatrix2D A) {
+		/* Only the lower triangle is read, so an implicit matrix only needs to assemble that */
+		if (A instanceof ImplicitMatrix)
+			A = ((ImplicitMatrix) A).assembleLowerTriangle();
+		if (!(A instanceof SparseCCDoubleMatrix2D))
+			throw new IllegalArgumentException("Incomplete Cholesky preconditioning requires a column-compressed matrix.");
+		Dcs dcs = ((SparseCCDoubleMatrix2D) A).getDcs();
+
+		if (aPointers == null || !hasCachedPattern(dcs)) {
+			log.trace("Choosing pattern of incomplete Cholesky factor.");
+			allocate(dcs.n);
+			if (threshold)
+				analyzeThreshold(dcs);
+			else
+				analyzeLower(dcs);
+			mapEntries(dcs);
+			aPointers = Arrays.copyOf(dcs.p, dcs.n + 1);
+			aRows = Arrays.copyOf(dcs.i, dcs.p[dcs.n]);
+			log.debug("Incomplete Cholesky factor has {} nonzeros.", lPointers[n]);
+		}
+
+		refactor(dcs.x);
+	}
+
+	private boolean hasCachedPattern(Dcs dcs) {
+		if (dcs.n != aPointers.length - 1)
+			return false;
+		for (int j = 0; j <= dcs.n; j++)
+			if (dcs.p[j] != aPointers[j])
+				return false;
+		int nnz = dcs.p[dcs.n];
+		for (int k = 0; k < nnz; k++)
+			if (dcs.i[k] != aRows[k])
+				return false;
+		return true;
+	}
+
+	private void allocate(int size) {
+		n = size;
+		diagonal = new double[n];
+		work = new double[n];
+		positions = new int[n];
+		stamps = new int[n];
+		heads = new int[n];
+		next = new int[n];
+		firsts = new int[n];
+	}
+
+	/* Sets the pattern of L to the lower triangle of A, including the diagonal */
+	private void analyzeLower(Dcs dcs) {
+		lPointers = new int[n + 1];
+		for (int j = 0; j < n; j++) {
+			int count = 1;
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++)
+				if (dcs.i[p] > j)
+					count++;
+			lPointers[j+1] = lPointers[j] + count;
+		}
+
+		lRows = new int[lPointers[n]];
+		for (int j = 0; j < n; j++) {
+			int q = lPointers[j];
+			lRows[q++] = j;
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++)
+				if (dcs.i[p] > j)
+					lRows[q++] = dcs.i[p];
+			Arrays.sort(lRows, lPointers[j] + 1, q);
+		}
+		lValues = new double[lRows.length];
+	}
+
+	/*
+	 * Chooses the pattern of L by a thresholded left-looking factorization
+	 * of A, keeping the lower triangle of A and large fill entries
+	 */
+	private void analyzeThreshold(Dcs dcs) {
+		int[] pointers = new int[n + 1];
+		int[] rows = new int[Math.max(16, 2 * dcs.p[n])];
+		double[] values = new double[rows.length];
+		int[] pattern = new int[n];
+		int[] original = new int[n];
+
+		Arrays.fill(stamps, -1);
+		Arrays.fill(original, -1);
+		Arrays.fill(heads, -1);
+		for (int j = 0; j < n; j++) {
+			/* Scatters the lower part of column j of A */
+			int size = 0;
+			double norm = 0.0;
+			stamps[j] = j;
+			original[j] = j;
+			work[j] = 0.0;
+			pattern[size++] = j;
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++) {
+				int i = dcs.i[p];
+				if (i >= j) {
+					if (stamps[i] != j) {
+						stamps[i] = j;
+						original[i] = j;
+						work[i] = 0.0;
+						pattern[size++] = i;
+					}
+					work[i] += dcs.x[p];
+					norm += Math.abs(dcs.x[p]);
+				}
+			}
+
+			/* Applies the updates of the columns with an entry in row j */
+			int k = heads[j];
+			while (k != -1) {
+				int nextK = next[k];
+				int p = firsts[k];
+				double ljk = values[p];
+				for (int q = p; q < pointers[k+1]; q++) {
+					int i = rows[q];
+					if (stamps[i] != j) {
+						stamps[i] = j;
+						work[i] = 0.0;
+						pattern[size++] = i;
+					}
+					work[i] -= values[q] * ljk;
+				}
+				link(k, p + 1, pointers[k+1], rows);
+				k = nextK;
+			}
+
+			/* A non-positive pivot only affects which fill is kept here */
+			double d = work[j];
+			if (!(d > 0.0))
+				d = (norm > 0.0) ? norm : 1.0;
+			double ljj = Math.sqrt(d);
+
+			/* Keeps the original entries and the large fill */
+			int kept = 0;
+			for (int s = 0; s < size; s++) {
+				int i = pattern[s];
+				if (i != j && (original[i] == j || Math.abs(work[i]) >= dropTolerance * norm))
+					pattern[kept++] = i;
+			}
+			Arrays.sort(pattern, 0, kept);
+
+			int end = pointers[j] + kept + 1;
+			if (end > rows.length) {
+				int capacity = Math.max(end, 2 * rows.length);
+				rows = Arrays.copyOf(rows, capacity);
+				values = Arrays.copyOf(values, capacity);
+			}
+			int q = pointers[j];
+			rows[q] = j;
+			values[q++] = ljj;
+			for (int s = 0; s < kept; s++) {
+				rows[q] = pattern[s];
+				values[q++] = work[pattern[s]] / ljj;
+			}
+			pointers[j+1] = q;
+			link(j, pointers[j] + 1, q, rows);
+		}
+
+		lPointers = pointers;
+		lRows = Arrays.copyOf(rows, pointers[n]);
+		lValues = new double[lRows.length];
+	}
+
+	/*
+	 * Adds column k to the list of the row of its entry at position p, if
+	 * it has one before position end
+	 */
+	private void link(int k, int p, int end, int[] rows) {
+		if (p < end) {
+			firsts[k] = p;
+			int r = rows[p];
+			next[k] = heads[r];
+			heads[r] = k;
+		}
+	}
+
+	private void mapEntries(Dcs dcs) {
+		aPositions = new int[dcs.p[n]];
+		Arrays.fill(stamps, -1);
+		for (int j = 0; j < n; j++) {
+			for (int q = lPointers[j]; q < lPointers[j+1]; q++) {
+				positions[lRows[q]] = q;
+				stamps[lRows[q]] = j;
+			}
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++) {
+				int i = dcs.i[p];
+				aPositions[p] = (i >= j && stamps[i] == j) ? positions[i] : -1;
+			}
+		}
+	}
+
+	private void refactor(double[] aValues) {
+		double shift = 0.0;
+		for (int attempt = 0; ; attempt++) {
+			Arrays.fill(lValues, 0.0);
+			for (int p = 0; p < aPositions.length; p++)
+				if (aPositions[p] != -1)
+					lValues[aPositions[p]] += aValues[p];
+			for (int j = 0; j < n; j++) {
+				diagonal[j] = lValues[lPointers[j]];
+				lValues[lPointers[j]] += shift * Math.abs(diagonal[j]);
+			}
+
+			if (factor())
+				break;
+
+			if (attempt == MAX_SHIFTS)
+				throw new IllegalArgumentException("Incomplete Cholesky factorization broke down.");
+			shift = (shift == 0.0) ? INITIAL_SHIFT : 2 * shift;
+		}
+
+		if (shift != 0.0)
+			log.debug("Shifted diagonal by {} to complete incomplete Cholesky factorization.", shift);
+	}
+
+	/*
+	 * Factors lValues in place by a left-looking factorization restricted
+	 * to the pattern of L
+	 *
+	 * @return false if a non-positive pivot was found
+	 */
+	private boolean factor() {
+		Arrays.fill(stamps, -1);
+		Arrays.fill(heads, -1);
+		for (int j = 0; j < n; j++) {
+			int start = lPointers[j];
+			int end = lPointers[j+1];
+			for (int q = start; q < end; q++) {
+				positions[lRows[q]] = q;
+				stamps[lRows[q]] = j;
+			}
+
+			/* Applies the updates of the columns with an entry in row j */
+			int k = heads[j];
+			while (k != -1) {
+				int nextK = next[k];
+				int p = firsts[k];
+				double ljk = lValues[p];
+				for (int q = p; q < lPointers[k+1]; q++) {
+					int i = lRows[q];
+					if (stamps[i] == j)
+						lValues[positions[i]] -= lValues[q] * ljk;
+				}
+				link(k, p + 1, lPointers[k+1], lRows);
+				k = nextK;
+			}
+
+			double d = lValues[start];
+			if (!(d > 0.0))
+				return false;
+			d = Math.sqrt(d);
+			lValues[start] = d;
+			for (int q = start + 1; q < end; q++)
+				lValues[q] /= d;
+			link(j, start + 1, end, lRows);
+		}
+		return true;
+	}
+}
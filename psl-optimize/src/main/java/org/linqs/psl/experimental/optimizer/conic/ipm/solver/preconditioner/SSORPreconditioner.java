@@ -0,0 +1,119 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver.preconditioner;
+
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.ImplicitMatrix;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.algo.solver.preconditioner.DoublePreconditioner;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * Symmetric successive over-relaxation preconditioner for a symmetric
+ * matrix A = L + D + L', where L is strictly lower triangular.
+ * <p>
+ * Applies the inverse of M = (D + wL) inv(D) (D + wL)' / (w (2 - w)) with a
+ * forward and a backward triangular solve over the lower triangle of A.
+ * A is used in place, so refreshing the preconditioner only extracts the
+ * diagonal. A must not be modified while the preconditioner is in use.
+ * <p>
+ * Only the lower triangle of A is read. If A is an {@link ImplicitMatrix},
+ * such as the normal matrix of a matrix-free interior-point method, only its
+ * lower triangle is assembled.
+ */
+public class SSORPreconditioner implements DoublePreconditioner {
+
+	private final double omega;
+
+	private Dcs dcs;
+	private double[] diagonal;
+	private double[] work;
+
+	/**
+	 * @param omega  the relaxation parameter, strictly between 0 and 2
+	 */
+	public SSORPreconditioner(double omega) {
+		if (!(omega > 0.0 && omega < 2.0))
+			throw new IllegalArgumentException("Relaxation parameter must be strictly between 0 and 2.");
+		this.omega = omega;
+	}
+
+	@Override
+	public DoubleMatrix1D apply(DoubleMatrix1D b, DoubleMatrix1D x) {
+		int n = dcs.n;
+		double scale = omega * (2 - omega);
+		for (int i = 0; i < n; i++)
+			work[i] = scale * b.getQuick(i);
+
+		/* Solves (D + wL) y = w (2 - w) b and sets work to D y */
+		for (int j = 0; j < n; j++) {
+			double y = work[j] / diagonal[j];
+			work[j] = y;
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++)
+				if (dcs.i[p] > j)
+					work[dcs.i[p]] -= omega * dcs.x[p] * y;
+		}
+		for (int j = 0; j < n; j++)
+			work[j] *= diagonal[j];
+
+		/* Solves (D + wL)' x = D y */
+		for (int j = n - 1; j >= 0; j--) {
+			double z = work[j];
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++)
+				if (dcs.i[p] > j)
+					z -= omega * dcs.x[p] * work[dcs.i[p]];
+			work[j] = z / diagonal[j];
+		}
+
+		for (int i = 0; i < n; i++)
+			x.setQuick(i, work[i]);
+		return x;
+	}
+
+	@Override
+	public DoubleMatrix1D transApply(DoubleMatrix1D b, DoubleMatrix1D x) {
+		return apply(b, x);
+	}
+
+	@Override
+	public void setMatrix(DoubleMatrix2D A) {
+		/* Only the lower triangle is read, so an implicit matrix only needs to assemble that */
+		if (A instanceof ImplicitMatrix)
+			A = ((ImplicitMatrix) A).assembleLowerTriangle();
+		if (!(A instanceof SparseCCDoubleMatrix2D))
+			throw new IllegalArgumentException("SSOR preconditioning requires a column-compressed matrix.");
+		dcs = ((SparseCCDoubleMatrix2D) A).getDcs();
+
+		int n = dcs.n;
+		if (diagonal == null || diagonal.length != n) {
+			diagonal = new double[n];
+			work = new double[n];
+		}
+
+		for (int j = 0; j < n; j++) {
+			diagonal[j] = 0.0;
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++)
+				if (dcs.i[p] == j)
+					diagonal[j] += dcs.x[p];
+			if (!(diagonal[j] > 0.0))
+				throw new IllegalArgumentException("SSOR preconditioning requires a positive diagonal.");
+		}
+	}
+}
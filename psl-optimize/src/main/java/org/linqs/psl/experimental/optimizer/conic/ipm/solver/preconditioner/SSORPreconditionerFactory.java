@@ -0,0 +1,55 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver.preconditioner;
+
+import org.linqs.psl.config.Config;
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+
+import cern.colt.matrix.tdouble.algo.solver.preconditioner.DoublePreconditioner;
+
+/**
+ * Factory for constructing {@link SSORPreconditioner SSORPreconditioners}.
+ */
+public class SSORPreconditionerFactory implements PreconditionerFactory {
+
+	/**
+	 * Prefix of property keys used by this class.
+	 */
+	public static final String CONFIG_PREFIX = "ssorpreconditioner";
+
+	/**
+	 * Key for double property strictly between 0 and 2. The relaxation
+	 * parameter of the preconditioner.
+	 */
+	public static final String OMEGA_KEY = CONFIG_PREFIX + ".omega";
+	/** Default value for OMEGA_KEY property */
+	public static final double OMEGA_DEFAULT = 1.0;
+
+	private final double omega;
+
+	public SSORPreconditionerFactory() {
+		omega = Config.getDouble(OMEGA_KEY, OMEGA_DEFAULT);
+		if (omega <= 0.0 || omega >= 2.0)
+			throw new IllegalArgumentException("Property " + OMEGA_KEY + " must be strictly between 0 and 2.");
+	}
+
+	@Override
+	public DoublePreconditioner getPreconditioner(ConicProgram program) {
+		return new SSORPreconditioner(omega);
+	}
+}
@@ -0,0 +1,56 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver.preconditioner;
+
+import org.linqs.psl.config.Config;
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+
+import cern.colt.matrix.tdouble.algo.solver.preconditioner.DoublePreconditioner;
+
+/**
+ * Factory for constructing ICT {@link IncompleteCholeskyPreconditioner IncompleteCholeskyPreconditioners}.
+ */
+public class ThresholdIncompleteCholeskyPreconditionerFactory implements PreconditionerFactory {
+
+	/**
+	 * Prefix of property keys used by this class.
+	 */
+	public static final String CONFIG_PREFIX = "ictpreconditioner";
+
+	/**
+	 * Key for non-negative double property. Fill entries of the incomplete
+	 * factor smaller than this value relative to their column are dropped.
+	 * Smaller values give more accurate but denser factors.
+	 */
+	public static final String DROP_TOLERANCE_KEY = CONFIG_PREFIX + ".droptolerance";
+	/** Default value for DROP_TOLERANCE_KEY property */
+	public static final double DROP_TOLERANCE_DEFAULT = 1e-3;
+
+	private final double dropTolerance;
+
+	public ThresholdIncompleteCholeskyPreconditionerFactory() {
+		dropTolerance = Config.getDouble(DROP_TOLERANCE_KEY, DROP_TOLERANCE_DEFAULT);
+		if (dropTolerance < 0.0)
+			throw new IllegalArgumentException("Property " + DROP_TOLERANCE_KEY + " must be non-negative.");
+	}
+
+	@Override
+	public DoublePreconditioner getPreconditioner(ConicProgram program) {
+		return new IncompleteCholeskyPreconditioner(dropTolerance);
+	}
+}
@@ -18,6 +18,7 @@
 package org.linqs.psl.experimental.optimizer.conic.partition;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -32,9 +33,12 @@ abstract public class AbstractCompletePartitioner implements CompletePartitioner
 	
 	protected ConicProgram program;
 	
+	protected int numWorkers;
+	
 	public AbstractCompletePartitioner() {
 		program = null;
 		partitions = new Vector<ConicProgramPartition>();
+		numWorkers = 1;
 	}
 
 	@Override
@@ -44,6 +48,13 @@ abstract public class AbstractCompletePartitioner implements CompletePartitioner
 			throw new IllegalArgumentException("Unsupported cone type.");
 	}
 
+	@Override
+	public void setNumWorkers(int workers) {
+		if (workers <= 0)
+			throw new IllegalArgumentException("Number of workers must be positive.");
+		numWorkers = workers;
+	}
+
 	@Override
 	public void partition() {
 		if (program == null)
@@ -87,7 +98,6 @@ abstract public class AbstractCompletePartitioner implements CompletePartitioner
 			Vector<ConicProgramPartition> newOrdering = new Vector<ConicProgramPartition>();
 			Set<ConicProgramPartition> remainingPartitions = new HashSet<ConicProgramPartition>(partitions);
 			
-			Set<LinearConstraint> cutSet1, cutSet2, intersection, union;
 			ConicProgramPartition bestPartition1 = null;
 			ConicProgramPartition bestPartition2 = null;
 			double similarity;
@@ -95,14 +105,7 @@ abstract public class AbstractCompletePartitioner implements CompletePartitioner
 			
 			for (int i = 0; i < partitions.size(); i++) {
 				for (int j = i+1; j < partitions.size(); j++) {
-					cutSet1 = partitions.get(i).getCutConstraints();
-					cutSet2 = partitions.get(j).getCutConstraints();
-					
-					intersection = new HashSet<LinearConstraint>(cutSet1);
-					intersection.retainAll(cutSet2);
-					union = new HashSet<LinearConstraint>(cutSet1);
-					union.addAll(cutSet2);
-					similarity = (double) intersection.size() / union.size();
+					similarity = getSimilarity(partitions.get(i), partitions.get(j));
 					
 					if (bestPartition1 == null || similarity < lowestSimilarity) {
 						bestPartition1 = partitions.get(i);
@@ -120,16 +123,9 @@ abstract public class AbstractCompletePartitioner implements CompletePartitioner
 			while (!remainingPartitions.isEmpty()) {
 				bestPartition1 = null;
 				lowestSimilarity = 1.0;
-				cutSet1 = newOrdering.lastElement().getCutConstraints();
 				
 				for (ConicProgramPartition p : remainingPartitions) {
-					cutSet2 = p.getCutConstraints();
-					
-					intersection = new HashSet<LinearConstraint>(cutSet1);
-					intersection.retainAll(cutSet2);
-					union = new HashSet<LinearConstraint>(cutSet1);
-					union.addAll(cutSet2);
-					similarity = (double) intersection.size() / union.size();
+					similarity = getSimilarity(newOrdering.lastElement(), p);
 					
 					if (bestPartition1 == null || similarity < lowestSimilarity) {
 						bestPartition1 = p;
@@ -159,19 +155,9 @@ abstract public class AbstractCompletePartitioner implements CompletePartitioner
 		double sizeMean = stats[0];
 		double sizeStdDev = stats[1];
 		
-		Set<LinearConstraint> cutSet1, cutSet2, intersection, union;
-		
 		for (int i =  0; i < partitions.size(); i++) {
 			for (int j = i+1; j < partitions.size(); j++) {
-				cutSet1 = partitions.get(i).getCutConstraints();
-				cutSet2 = partitions.get(j).getCutConstraints();
-				
-				intersection = new HashSet<LinearConstraint>(cutSet1);
-				intersection.retainAll(cutSet2);
-				union = new HashSet<LinearConstraint>(cutSet1);
-				union.addAll(cutSet2);
-				
-				similarities.add((double) intersection.size() / union.size());
+				similarities.add(getSimilarity(partitions.get(i), partitions.get(j)));
 			}
 		}
 		
@@ -193,6 +179,30 @@ abstract public class AbstractCompletePartitioner implements CompletePartitioner
 		return toReturn;
 	}
 	
+	/**
+	 * Returns the Jaccard similarity of the cut constraints of two partitions.
+	 * If the program's matrices are checked out, the similarity is computed
+	 * on the partitions' cut flags.
+	 */
+	protected double getSimilarity(ConicProgramPartition p1, ConicProgramPartition p2) {
+		if (program.isCheckedOut()) {
+			BitSet cut1 = p1.getCutConstraintFlags();
+			BitSet cut2 = p2.getCutConstraintFlags();
+			BitSet intersection = (BitSet) cut1.clone();
+			intersection.and(cut2);
+			BitSet union = (BitSet) cut1.clone();
+			union.or(cut2);
+			return (double) intersection.cardinality() / union.cardinality();
+		}
+		else {
+			Set<LinearConstraint> intersection = new HashSet<LinearConstraint>(p1.getCutConstraints());
+			intersection.retainAll(p2.getCutConstraints());
+			Set<LinearConstraint> union = new HashSet<LinearConstraint>(p1.getCutConstraints());
+			union.addAll(p2.getCutConstraints());
+			return (double) intersection.size() / union.size();
+		}
+	}
+	
 	private double[] meanAndStdDev(List<Double> values) {
 		double[] toReturn = new double[2];
 		double sum = 0.0;
@@ -26,6 +26,13 @@ public interface CompletePartitioner {
 	
 	public void setConicProgram(ConicProgram p);
 
+	/**
+	 * Sets the number of threads that will process the elements of each
+	 * partition, so that the number of elements can be chosen to spread
+	 * their work evenly across them.
+	 */
+	public void setNumWorkers(int workers);
+
 	public void partition();
 	
 	public ConicProgramPartition getPartition(int i);
@@ -0,0 +1,217 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.partition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.linqs.psl.experimental.optimizer.conic.program.Cone;
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
+import org.linqs.psl.experimental.optimizer.conic.program.Variable;
+
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * The bipartite graph of a checked-out {@link ConicProgram} in which each
+ * linear constraint is adjacent to the cones of its variables.
+ * <p>
+ * The cones are vertices 0 to numCones-1 and the constraint in row i of A
+ * is vertex numCones+i. The adjacency is built once from the
+ * column-compressed A in primitive arrays, so the edges can be reweighted
+ * and repartitioned without looking up any entities in maps.
+ * <p>
+ * Each vertex is weighted by its contribution to the nonzeros of an
+ * element's normal system, as an estimate of the cost of factoring it: a
+ * cone by the n^2 entries of its block of the inverse barrier Hessian and
+ * a constraint by the nonzeros in its row of A.
+ */
+class ConeConstraintGraph {
+
+	/**
+	 * Weights the edge between a constraint and a cone.
+	 */
+	interface Weighter {
+		double getWeight(LinearConstraint lc, Cone cone);
+	}
+
+	private final List<Cone> cones;
+	private final LinearConstraint[] constraints;
+	private final int[] pointers;
+	private final int[] neighbors;
+	private final int[] costs;
+	private final long totalCost;
+	private final int maxCost;
+
+	ConeConstraintGraph(ConicProgram program) {
+		program.verifyCheckedOut();
+
+		cones = new ArrayList<Cone>(program.getCones());
+		Map<Cone, Integer> coneIndices = new HashMap<Cone, Integer>(cones.size() * 2);
+		for (int c = 0; c < cones.size(); c++)
+			coneIndices.put(cones.get(c), c);
+
+		SparseCCDoubleMatrix2D A = program.getA();
+		int[] columnCones = new int[A.columns()];
+		for (Map.Entry<Variable, Integer> e : program.getVarMap().entrySet())
+			columnCones[e.getValue()] = coneIndices.get(e.getKey().getCone());
+
+		constraints = new LinearConstraint[A.rows()];
+		for (Map.Entry<LinearConstraint, Integer> e : program.getLcMap().entrySet())
+			constraints[e.getValue()] = e.getKey();
+
+		/* Transposes A into the cones of each row, skipping repeated cones */
+		Dcs dcs = A.getDcs();
+		int numCones = cones.size();
+		int numRows = constraints.length;
+		int[] rowPointers = new int[numRows + 1];
+		for (int p = 0; p < dcs.p[dcs.n]; p++)
+			rowPointers[dcs.i[p] + 1]++;
+		for (int i = 0; i < numRows; i++)
+			rowPointers[i+1] += rowPointers[i];
+
+		int[] rowCones = new int[rowPointers[numRows]];
+		int[] rowEnds = Arrays.copyOf(rowPointers, numRows);
+		int[] lastRow = new int[numCones];
+		Arrays.fill(lastRow, -1);
+		int[] coneDegrees = new int[numCones];
+		int[] coneSizes = new int[numCones];
+		for (int j = 0; j < dcs.n; j++)
+			coneSizes[columnCones[j]]++;
+		for (int j = 0; j < dcs.n; j++) {
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++) {
+				int i = dcs.i[p];
+				rowCones[rowEnds[i]++] = columnCones[j];
+			}
+		}
+		for (int i = 0; i < numRows; i++) {
+			int end = rowPointers[i];
+			for (int p = rowPointers[i]; p < rowEnds[i]; p++) {
+				int c = rowCones[p];
+				if (lastRow[c] != i) {
+					lastRow[c] = i;
+					rowCones[end++] = c;
+					coneDegrees[c]++;
+				}
+			}
+			rowEnds[i] = end;
+		}
+
+		/* Lists the edges from both ends */
+		pointers = new int[numCones + numRows + 1];
+		for (int c = 0; c < numCones; c++)
+			pointers[c+1] = pointers[c] + coneDegrees[c];
+		for (int i = 0; i < numRows; i++)
+			pointers[numCones + i + 1] = pointers[numCones + i] + rowEnds[i] - rowPointers[i];
+
+		neighbors = new int[pointers[numCones + numRows]];
+		int[] coneEnds = Arrays.copyOf(pointers, numCones);
+		for (int i = 0; i < numRows; i++) {
+			int q = pointers[numCones + i];
+			for (int p = rowPointers[i]; p < rowEnds[i]; p++) {
+				int c = rowCones[p];
+				neighbors[q++] = c;
+				neighbors[coneEnds[c]++] = numCones + i;
+			}
+		}
+
+		costs = new int[numCones + numRows];
+		for (int c = 0; c < numCones; c++)
+			costs[c] = coneSizes[c] * coneSizes[c];
+		for (int i = 0; i < numRows; i++)
+			costs[numCones + i] = rowPointers[i+1] - rowPointers[i];
+		long total = 0;
+		int max = 0;
+		for (int cost : costs) {
+			total += cost;
+			max = Math.max(max, cost);
+		}
+		totalCost = total;
+		maxCost = max;
+	}
+
+	int getNumCones() {
+		return cones.size();
+	}
+
+	/**
+	 * Returns the estimated cost of factoring the whole program as one element.
+	 */
+	long getTotalCost() {
+		return totalCost;
+	}
+
+	/**
+	 * Returns the largest estimated cost of a single cone or constraint.
+	 */
+	int getMaxCost() {
+		return maxCost;
+	}
+
+	/**
+	 * Partitions the graph into k parts of about equal estimated cost,
+	 * weighting each edge once.
+	 *
+	 * @return the part of each vertex
+	 */
+	int[] partition(MultilevelGraphPartitioner partitioner, Weighter weighter, int k) {
+		int numCones = cones.size();
+		double[] weights = new double[neighbors.length];
+
+		/* Weights the edges of each constraint and copies them to the cones' lists */
+		int[] coneEnds = Arrays.copyOf(pointers, numCones);
+		for (int i = 0; i < constraints.length; i++) {
+			int v = numCones + i;
+			for (int p = pointers[v]; p < pointers[v+1]; p++) {
+				int c = neighbors[p];
+				weights[p] = weighter.getWeight(constraints[i], cones.get(c));
+				weights[coneEnds[c]++] = weights[p];
+			}
+		}
+
+		return partitioner.partition(pointers, neighbors, weights, costs, k);
+	}
+
+	/**
+	 * Collects the cones of each of k parts.
+	 */
+	List<Set<Cone>> getBlocks(int[] parts, int k) {
+		List<Set<Cone>> blocks = new ArrayList<Set<Cone>>(k);
+		for (int i = 0; i < k; i++)
+			blocks.add(new HashSet<Cone>());
+		for (int c = 0; c < cones.size(); c++)
+			blocks.get(parts[c]).add(cones.get(c));
+		return blocks;
+	}
+
+	/**
+	 * Returns the estimated cost of each of k parts.
+	 */
+	long[] getCosts(int[] parts, int k) {
+		long[] partCosts = new long[k];
+		for (int v = 0; v < parts.length; v++)
+			partCosts[parts[v]] += costs[v];
+		return partCosts;
+	}
+}
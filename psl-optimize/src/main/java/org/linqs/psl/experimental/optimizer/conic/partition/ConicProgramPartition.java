@@ -18,6 +18,8 @@
 package org.linqs.psl.experimental.optimizer.conic.partition;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -41,10 +43,10 @@ import org.linqs.psl.experimental.optimizer.conic.program.Variable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import cern.colt.function.tdouble.IntIntDoubleFunction;
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
 import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
 import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
 
 public class ConicProgramPartition implements ConicProgramListener {
 
@@ -60,6 +62,9 @@ public class ConicProgramPartition implements ConicProgramListener {
 	
 	private Set<LinearConstraint> cutConstraints;
 	
+	/* Cut flags indexed by the rows of the program's A, or null if not computed from A */
+	private BitSet cutFlags;
+	
 	private boolean checkedOut;
 	
 	private boolean cutConstraintsDirty;
@@ -71,10 +76,11 @@ public class ConicProgramPartition implements ConicProgramListener {
 	private int[][] varSelections;
 	private int[][] innerConSelections;
 	
-	private static final ArrayList<ConeType> supportedCones = new ArrayList<ConeType>(2);
+	private static final ArrayList<ConeType> supportedCones = new ArrayList<ConeType>(3);
 	static {
 		supportedCones.add(ConeType.NonNegativeOrthantCone);
 		supportedCones.add(ConeType.SecondOrderCone);
+		supportedCones.add(ConeType.RotatedSecondOrderCone);
 	}
 	
 	public ConicProgramPartition(ConicProgram p, Collection<Set<Cone>> partition) {
@@ -118,7 +124,6 @@ public class ConicProgramPartition implements ConicProgramListener {
 	
 	public void checkOutMatrices() {
 		int varIndex, lcIndex, innerLcIndex;
-		boolean isInnerConstraint;
 		SparseDoubleMatrix2D temp;
 		
 		verifyCheckedIn();
@@ -138,6 +143,7 @@ public class ConicProgramPartition implements ConicProgramListener {
 		
 		Set<Variable> varsToProcess = new HashSet<Variable>();
 		
+		BitSet cut = getCutConstraintFlags();
 		int total = program.getNumLinearConstraints();
 		
 		/* Processes each partition element */
@@ -169,11 +175,8 @@ public class ConicProgramPartition implements ConicProgramListener {
 				for (LinearConstraint lc : v.getLinearConstraints()) {
 					if (!lcMapPart.containsKey(lc)) {
 						lcMapPart.put(lc, lcIndex++);
-						/* Checks if constraint has been cut */
-						isInnerConstraint = true;
-						for (Variable v2 : lc.getVariables().keySet())
-							isInnerConstraint = isInnerConstraint && elements.get(i).contains(v2.getCone());
-						if (isInnerConstraint) {
+						/* An uncut constraint of one of this element's variables is inner to it */
+						if (!cut.get(program.getIndex(lc))) {
 							innerLcMapPart.put(lc, innerLcIndex++);
 						}
 					}
@@ -274,43 +277,38 @@ public class ConicProgramPartition implements ConicProgramListener {
 		return coneMap.get(c);
 	}
 	
+	/**
+	 * Returns the constraints cut by this partition.
+	 * <p>
+	 * A constraint is cut if it has a variable in an element and its
+	 * variables are not all in that element. If the program's matrices are
+	 * checked out, the cut constraints are found in a single pass over A.
+	 * Otherwise, the constraints' variables are visited instead.
+	 */
 	public Set<LinearConstraint> getCutConstraints() {
 		if (cutConstraintsDirty) {
-			Set<Variable> varsToProcess = new HashSet<Variable>();
-			
-			/* Processes each partition element */
-			for (int i = 0; i < size(); i++) {
-				/* Collects the variables to process */
-				for (Cone c : elements.get(i)) {
-					if (c instanceof NonNegativeOrthantCone) {
-						varsToProcess.add(((NonNegativeOrthantCone) c).getVariable());
-					}
-					else if (c instanceof SecondOrderCone) {
-						varsToProcess.addAll(((SecondOrderCone) c).getVariables());
-					}
-					else if (c instanceof RotatedSecondOrderCone) {
-						varsToProcess.addAll(((RotatedSecondOrderCone) c).getVariables());
+			cutConstraints.clear();
+			if (program.isCheckedOut()) {
+				cutFlags = computeCutFlags();
+				LinearConstraint[] rows = new LinearConstraint[program.getNumLinearConstraints()];
+				for (Map.Entry<LinearConstraint, Integer> e : program.getLcMap().entrySet())
+					rows[e.getValue()] = e.getKey();
+				for (int i = cutFlags.nextSetBit(0); i >= 0; i = cutFlags.nextSetBit(i+1))
+					cutConstraints.add(rows[i]);
+			}
+			else {
+				cutFlags = null;
+				List<LinearConstraint> rows = new ArrayList<LinearConstraint>(program.getConstraints());
+				CutDetector detector = new CutDetector(rows.size());
+				for (int i = 0; i < rows.size(); i++) {
+					for (Variable v : rows.get(i).getVariables().keySet()) {
+						Integer element = coneMap.get(v.getCone());
+						detector.add(i, (element == null) ? -1 : element);
 					}
-					else
-						throw new IllegalStateException("Unrecognized cone type.");
 				}
-					
-				/* Processes each variable and incident linear constraints */
-				for (Variable v : varsToProcess) {
-					for (LinearConstraint lc : v.getLinearConstraints()) {
-						if (!cutConstraints.contains(lc)) {
-							/* Checks if constraint has been cut */
-							boolean isInnerConstraint = true;
-							for (Variable v2 : lc.getVariables().keySet())
-								isInnerConstraint = isInnerConstraint && elements.get(i).contains(v2.getCone());
-							if (!isInnerConstraint) {
-								cutConstraints.add(lc);
-							}
-						}
-					}	
-				}
-				
-				varsToProcess.clear();
+				BitSet cut = detector.getCutRows();
+				for (int i = cut.nextSetBit(0); i >= 0; i = cut.nextSetBit(i+1))
+					cutConstraints.add(rows.get(i));
 			}
 			
 			cutConstraintsDirty = false;
@@ -319,20 +317,114 @@ public class ConicProgramPartition implements ConicProgramListener {
 		return Collections.unmodifiableSet(cutConstraints);
 	}
 	
-	public List<SparseCCDoubleMatrix2D> getACopies() {
-		return getConstraintMatrixCopies(APart);
+	/**
+	 * Returns the rows of the program's A whose constraints are cut by this
+	 * partition. The program's matrices must be checked out. The returned
+	 * set must not be modified.
+	 *
+	 * @see #getCutConstraints()
+	 */
+	public BitSet getCutConstraintFlags() {
+		program.verifyCheckedOut();
+		if (cutConstraintsDirty || cutFlags == null) {
+			cutConstraintsDirty = true;
+			getCutConstraints();
+		}
+		return cutFlags;
 	}
 	
-	public List<SparseCCDoubleMatrix2D> getInnerACopies() {
-		return getConstraintMatrixCopies(innerAPart);
+	/*
+	 * Finds the cut rows of A in one pass over its columns, using the
+	 * element of each column's cone
+	 */
+	private BitSet computeCutFlags() {
+		SparseCCDoubleMatrix2D A = program.getA();
+		int[] columnElements = new int[A.columns()];
+		Arrays.fill(columnElements, -1);
+		for (Map.Entry<Variable, Integer> e : program.getVarMap().entrySet()) {
+			Integer element = coneMap.get(e.getKey().getCone());
+			if (element != null)
+				columnElements[e.getValue()] = element;
+		}
+		
+		Dcs dcs = A.getDcs();
+		CutDetector detector = new CutDetector(A.rows());
+		for (int j = 0; j < dcs.n; j++)
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++)
+				detector.add(dcs.i[p], columnElements[j]);
+		return detector.getCutRows();
+	}
+	
+	/*
+	 * Tracks the elements of the variables of each row as they are visited.
+	 * Element -1 means the variable's cone is unassigned.
+	 */
+	private static class CutDetector {
+		private final int[] rowElements;
+		private final BitSet unassignedRows;
+		private final BitSet cutRows;
+		
+		private CutDetector(int numRows) {
+			rowElements = new int[numRows];
+			Arrays.fill(rowElements, -1);
+			unassignedRows = new BitSet(numRows);
+			cutRows = new BitSet(numRows);
+		}
+		
+		private void add(int row, int element) {
+			if (element == -1)
+				unassignedRows.set(row);
+			else if (rowElements[row] == -1)
+				rowElements[row] = element;
+			else if (rowElements[row] != element)
+				cutRows.set(row);
+		}
+		
+		private BitSet getCutRows() {
+			/* Rows in one element that also have unassigned variables are cut */
+			for (int i = unassignedRows.nextSetBit(0); i >= 0; i = unassignedRows.nextSetBit(i+1))
+				if (rowElements[i] != -1)
+					cutRows.set(i);
+			return cutRows;
+		}
 	}
 	
-	private List<SparseCCDoubleMatrix2D> getConstraintMatrixCopies(List<SparseCCDoubleMatrix2D> matrices) {
+	/**
+	 * Returns the constraint matrix of each element, including cut
+	 * constraints, without copying it. The matrices must not be modified.
+	 */
+	public List<SparseCCDoubleMatrix2D> getAMatrices() {
 		verifyCheckedOut();
-		Vector<SparseCCDoubleMatrix2D> list = new Vector<SparseCCDoubleMatrix2D>(matrices.size());
-		for (SparseCCDoubleMatrix2D m : matrices)
-			list.add((SparseCCDoubleMatrix2D) m.copy());
-		return list;
+		return Collections.unmodifiableList(APart);
+	}
+	
+	/**
+	 * Returns the constraint matrix of each element, excluding cut
+	 * constraints, without copying it. The matrices must not be modified.
+	 */
+	public List<SparseCCDoubleMatrix2D> getInnerAMatrices() {
+		verifyCheckedOut();
+		return Collections.unmodifiableList(innerAPart);
+	}
+	
+	/**
+	 * Returns, for each element, the indices in the conic program of the
+	 * element's variables, in the order used by the element's matrices and
+	 * views. The returned arrays must not be modified.
+	 */
+	public int[][] getVarSelections() {
+		verifyCheckedOut();
+		return varSelections;
+	}
+	
+	/**
+	 * Returns, for each element, the indices in the conic program of the
+	 * element's inner (uncut) constraints, in the order used by the element's
+	 * matrices and views. The returned arrays must not be modified.
+	 */
+	public int[][] getInnerConstraintSelections() {
+		verifyCheckedOut();
+		return innerConSelections;
 	}
 	
 	public List<DoubleMatrix1D> get1DViewsByVars(DoubleMatrix1D v) {
@@ -351,25 +443,16 @@ public class ConicProgramPartition implements ConicProgramListener {
 		return vectors;
 	}
 	
-	public List<SparseDoubleMatrix2D> getSparse2DByVars(SparseDoubleMatrix2D m) {
+	/**
+	 * Returns the diagonal blocks of a matrix over the program's variables,
+	 * one for each element, which can be refreshed directly from the
+	 * matrix's values as long as its sparsity pattern is unchanged.
+	 *
+	 * @param m  a matrix that is block diagonal with respect to the elements
+	 */
+	public ElementMatrices getElementMatrices(SparseCCDoubleMatrix2D m) {
 		verifyCheckedOut();
-		Vector<SparseDoubleMatrix2D> matrices = new Vector<SparseDoubleMatrix2D>(size());
-		for (int i = 0; i < size(); i++)
-			matrices.add(new SparseDoubleMatrix2D(APart.get(i).columns(), APart.get(i).columns(), APart.get(i).columns(), 0.2, 0.5));
-		updateSparse2DByVars(m, matrices);
-		return matrices;
-	}
-	
-	public void updateSparse2DByVars(SparseDoubleMatrix2D m, final List<SparseDoubleMatrix2D> matrices) {
-		m.forEachNonZero(new IntIntDoubleFunction() {
-			
-			@Override
-			public double apply(int first, int second, double third) {
-				int block = varElementMap[first];
-				matrices.get(block).set(varIndexMap[first], varIndexMap[second], third);
-				return third;
-			}
-		});
+		return new ElementMatrices(m, varElementMap, varIndexMap, varSelections);
 	}
 
 	@Override
@@ -377,6 +460,14 @@ public class ConicProgramPartition implements ConicProgramListener {
 		switch (event) {
 		case MatricesCheckedIn:
 			verifyCheckedIn();
+			/* The rows of A may be renumbered before the next check out */
+			cutFlags = null;
+			break;
+		case ConCreated:
+		case ConDeleted:
+		case VarAddedToCon:
+		case VarRemovedFromCon:
+			markCutConstraintSetDirty();
 			break;
 		case NNOCCreated:
 			unassignedCones.add((Cone) entity);
@@ -384,12 +475,18 @@ public class ConicProgramPartition implements ConicProgramListener {
 		case SOCCreated:
 			unassignedCones.add((Cone) entity);
 			break;
+		case RSOCCreated:
+			unassignedCones.add((Cone) entity);
+			break;
 		case NNOCDeleted:
 			removeCone((Cone) entity);
 			break;
 		case SOCDeleted:
 			removeCone((Cone) entity);
 			break;
+		case RSOCDeleted:
+			removeCone((Cone) entity);
+			break;
 		}
 	}
 	
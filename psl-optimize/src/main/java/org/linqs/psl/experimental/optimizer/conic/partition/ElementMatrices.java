@@ -0,0 +1,137 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.partition;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * The diagonal blocks of a matrix over the variables of a conic program,
+ * one for each element of a {@link ConicProgramPartition}.
+ * <p>
+ * The blocks are column-compressed and their sparsity pattern is fixed when
+ * they are created. For each nonzero of the source matrix, the position of
+ * the corresponding entry in its element's block is stored, so
+ * {@link #update(SparseCCDoubleMatrix2D)} copies new values with a single
+ * pass over the source's value array.
+ * <p>
+ * The source matrix must be block diagonal with respect to the partition,
+ * such as a barrier Hessian or its inverse, and must keep the same sparsity
+ * pattern for as long as the blocks are updated from it.
+ */
+public class ElementMatrices {
+
+	private final List<SparseCCDoubleMatrix2D> blocks;
+	private final double[][] blockValues;
+	private final int size;
+	private final int[] elements;
+	private final int[] positions;
+
+	ElementMatrices(SparseCCDoubleMatrix2D m, int[] varElementMap, int[] varIndexMap, int[][] varSelections) {
+		Dcs dcs = m.getDcs();
+		int nnz = dcs.p[dcs.n];
+		size = dcs.n;
+		elements = new int[nnz];
+		positions = new int[nnz];
+
+		/* Counts the entries of each block */
+		int[] counts = new int[varSelections.length];
+		for (int j = 0; j < dcs.n; j++) {
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++) {
+				int element = varElementMap[j];
+				if (varElementMap[dcs.i[p]] != element)
+					throw new IllegalArgumentException("Matrix is not block diagonal with respect to the partition.");
+				elements[p] = element;
+				counts[element]++;
+			}
+		}
+
+		/* Collects the entries of each block in local coordinates */
+		int[][] rows = new int[varSelections.length][];
+		int[][] columns = new int[varSelections.length][];
+		for (int e = 0; e < varSelections.length; e++) {
+			rows[e] = new int[counts[e]];
+			columns[e] = new int[counts[e]];
+			counts[e] = 0;
+		}
+		for (int j = 0; j < dcs.n; j++) {
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++) {
+				int e = elements[p];
+				rows[e][counts[e]] = varIndexMap[dcs.i[p]];
+				columns[e][counts[e]] = varIndexMap[j];
+				counts[e]++;
+			}
+		}
+
+		/* Builds the blocks and finds where each source entry was placed */
+		Vector<SparseCCDoubleMatrix2D> blockList = new Vector<SparseCCDoubleMatrix2D>(varSelections.length);
+		blockValues = new double[varSelections.length][];
+		for (int e = 0; e < varSelections.length; e++) {
+			int n = varSelections[e].length;
+			blockList.add(new SparseCCDoubleMatrix2D(n, n, rows[e], columns[e]
+					, new double[counts[e]], false, false, true));
+			blockValues[e] = blockList.get(e).getDcs().x;
+		}
+		for (int j = 0; j < dcs.n; j++) {
+			for (int p = dcs.p[j]; p < dcs.p[j+1]; p++) {
+				Dcs block = blockList.get(elements[p]).getDcs();
+				positions[p] = find(block, varIndexMap[dcs.i[p]], varIndexMap[j]);
+			}
+		}
+		blocks = Collections.unmodifiableList(blockList);
+
+		update(m);
+	}
+
+	private static int find(Dcs dcs, int row, int column) {
+		for (int p = dcs.p[column]; p < dcs.p[column+1]; p++)
+			if (dcs.i[p] == row)
+				return p;
+		throw new IllegalStateException("Entry missing from element block.");
+	}
+
+	/**
+	 * Returns the blocks, in the order of the partition's elements. Their
+	 * values are overwritten by {@link #update(SparseCCDoubleMatrix2D)}.
+	 */
+	public List<SparseCCDoubleMatrix2D> getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * Copies the values of a matrix into the blocks.
+	 *
+	 * @param m  a matrix with the same sparsity pattern as the one from which
+	 *           the blocks were created
+	 * @throws IllegalArgumentException  if the matrix has a different size
+	 *                                   or number of nonzeros
+	 */
+	public void update(SparseCCDoubleMatrix2D m) {
+		Dcs dcs = m.getDcs();
+		if (dcs.n != size || dcs.p[dcs.n] != positions.length)
+			throw new IllegalArgumentException("Sparsity pattern of matrix has changed.");
+
+		double[] values = dcs.x;
+		for (int p = 0; p < positions.length; p++)
+			blockValues[elements[p]][positions[p]] = values[p];
+	}
+}
@@ -27,41 +27,26 @@ import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
 import org.linqs.psl.experimental.optimizer.conic.program.NonNegativeOrthantCone;
 import org.linqs.psl.experimental.optimizer.conic.program.SecondOrderCone;
 import org.linqs.psl.experimental.optimizer.conic.program.Variable;
-import org.linqs.psl.utils.graph.Graph;
-import org.linqs.psl.utils.graph.Node;
-import org.linqs.psl.utils.graph.Relationship;
-import org.linqs.psl.utils.graph.memory.MemoryGraph;
-import org.linqs.psl.utils.graph.partition.Partitioner;
-import org.linqs.psl.utils.graph.partition.hierarchical.HyperPartitioning;
-import org.linqs.psl.utils.graph.weight.RelationshipWeighter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.Vector;
 
 abstract public class HierarchicalPartitioner extends AbstractCompletePartitioner
 		implements ConicProgramListener {
 	
 	private static final Logger log = LoggerFactory.getLogger(HierarchicalPartitioner.class);
 
-	protected BiMap<Cone, Node> coneMap;
-	protected BiMap<LinearConstraint, Node> lcMap;
 	protected Set<LinearConstraint> alwaysCutConstraints;
 	protected Set<LinearConstraint> restrictedConstraints;
 	
 	protected int p;
 	
-	private static final String LC_REL = "lcRel";
-	
 	private static final ArrayList<ConeType> supportedCones = new ArrayList<ConeType>(2);
 	static {
 		supportedCones.add(ConeType.NonNegativeOrthantCone);
@@ -84,95 +69,45 @@ abstract public class HierarchicalPartitioner extends AbstractCompletePartitione
 
 	@Override
 	protected void doPartition() {
-		Graph graph;
-		Node node;
-		
 		partitions.clear();
 		
-		int numElements = (int) Math.ceil((double) program.getNumLinearConstraints() / 5000);
-		
-		List<List<Node>> graphPartition = null;
 		alwaysCutConstraints = new HashSet<LinearConstraint>();
 		restrictedConstraints = new HashSet<LinearConstraint>();
 
 		List<Set<Cone>> blocks;
 		
 		/* Partitions conic program graph into elements */
-		Partitioner partitioner = new HyperPartitioning();
-		partitioner.setSize(numElements);
+		ConeConstraintGraph graph = new ConeConstraintGraph(program);
+		MultilevelGraphPartitioner partitioner = new MultilevelGraphPartitioner();
+		int numElements = partitioner.getNumParts(graph.getTotalCost(), numWorkers);
+		log.debug("Partitioning into {} elements.", numElements);
+		ConeConstraintGraph.Weighter weighter = new ConeConstraintGraph.Weighter() {
+			@Override
+			public double getWeight(LinearConstraint lc, Cone cone) {
+				return HierarchicalPartitioner.this.getWeight(lc, cone);
+			}
+		};
+		int[] graphPartition;
 		
 		boolean redoPartition;
 		p = 0;
 		do {
 			redoPartition = false;
-			try {
-				graph = new MemoryGraph();
-				graph.createRelationshipType(LC_REL);
-				
-				coneMap = HashBiMap.create();
-				lcMap = HashBiMap.create();
-				
-				for (Cone cone : program.getCones()) {
-					node = graph.createNode();
-					coneMap.put(cone, node);
-				}
-				
-				Set<Cone> coneSet = new HashSet<Cone>();
-				for (LinearConstraint con : program.getConstraints()) {
-					node = graph.createNode();
-					lcMap.put(con, node);
-					
-					for (Variable var : con.getVariables().keySet()) {
-						coneSet.add(var.getCone());
-					}
-					
-					for (Cone cone : coneSet) {
-						node.createRelationship(LC_REL, coneMap.get(cone));
-					}
-					
-					coneSet.clear();
-				}
-				
-				graphPartition = partitioner.partition(graph, graph.getNodeSnapshot(), new RelationshipWeighter() {
-					@Override
-					public double getWeight(Relationship r) {
-						if (r.getRelationshipType().equals(LC_REL)) {
-							LinearConstraint lc = (LinearConstraint) lcMap.inverse().get(r.getStart());
-							Cone cone = coneMap.inverse().get(r.getEnd());
-							return HierarchicalPartitioner.this.getWeight(lc, cone);
-						}
-						else
-							return Double.POSITIVE_INFINITY;
-					}
-				});
-			}
-			catch (IllegalArgumentException e) {
-				log.debug("Caught illegal argument exception.");
-				if (restrictedConstraints.size() > 1) {
-					int cut = Math.min((int) Math.ceil(restrictedConstraints.size() / 3), restrictedConstraints.size()-1);
-					Iterator<LinearConstraint> itr = restrictedConstraints.iterator();
-					for (int i = 0; i < cut; i++) {
-						itr.next();
-						itr.remove();
-					}
-					
-					redoPartition = true;
-				}
-				else throw e;
-			}
+			graphPartition = graph.partition(partitioner, weighter, numElements);
 			
 			log.trace("Partition finished. Checking for balance.");
 			
-			/* Checks if blocks are sufficiently balanced */
+			/*
+			 * Checks if the estimated costs of the blocks are sufficiently
+			 * balanced, up to the cost of one cone or constraint
+			 */
 			boolean balanced = true;
-			if (!redoPartition && numElements > 1) {
-				int totalSize = 0;
-				for (List<Node> block : graphPartition)
-					totalSize += block.size();
+			if (numElements > 1) {
+				long totalCost = graph.getTotalCost();
 				
-				for (List<Node> block : graphPartition){
-					if (block.size() > 2*(totalSize - block.size())) {
-						log.debug("{} > {}", block.size(), 2*(totalSize - block.size()));
+				for (long blockCost : graph.getCosts(graphPartition, numElements)) {
+					if (blockCost - graph.getMaxCost() > 2*(totalCost - blockCost)) {
+						log.debug("{} > {}", blockCost, 2*(totalCost - blockCost));
 						balanced = false;
 					}
 					if (!balanced) {
@@ -198,17 +133,7 @@ abstract public class HierarchicalPartitioner extends AbstractCompletePartitione
 			if (!redoPartition) {
 				
 				/* Collects cones in blocks */
-				blocks = new Vector<Set<Cone>>();
-				for (int i = 0; i < graphPartition.size(); i++) {
-					Set<Cone> block = new HashSet<Cone>();
-					for (Node n : graphPartition.get(i)) {
-						/* Adds cone to block */
-						if (coneMap.containsValue(n)) {
-							block.add(coneMap.inverse().get(n));
-						}
-					}
-					blocks.add(block);
-				}
+				blocks = graph.getBlocks(graphPartition, numElements);
 				
 				/* Initializes the partition */
 				ConicProgramPartition partition = new ConicProgramPartition(program, blocks);
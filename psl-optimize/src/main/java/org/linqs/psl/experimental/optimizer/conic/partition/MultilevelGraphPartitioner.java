@@ -0,0 +1,873 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.partition;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.linqs.psl.config.Config;
+
+/**
+ * Partitions a weighted, undirected graph into k parts of nearly equal
+ * total vertex weight while keeping the total weight of the cut edges small.
+ * <p>
+ * The graph is given in compressed sparse row form: the neighbors of vertex
+ * v are neighbors[pointers[v]] to neighbors[pointers[v+1]-1], and each edge
+ * must be listed from both of its ends with the same weight. Infinite
+ * weights are treated as very large finite ones.
+ * <p>
+ * The k parts are found by recursive bisection. Each bisection coarsens the
+ * graph by repeatedly contracting a heavy-edge matching, bisects the
+ * coarsest graph by greedy growing, and then projects the bisection back
+ * through the levels, refining it at each one with the Fiduccia-Mattheyses
+ * heuristic. If more than one thread is configured, the matchings and the
+ * coarse graphs are computed in parallel.
+ * <p>
+ * Successive calls continue drawing from the same random number generator,
+ * so repartitioning a graph with the same weights can give a different
+ * result.
+ */
+public class MultilevelGraphPartitioner {
+
+	/**
+	 * Prefix of property keys used by this class.
+	 */
+	public static final String CONFIG_PREFIX = "mlpartitioner";
+
+	/**
+	 * Key for positive integer property. The number of threads used to
+	 * coarsen graphs.
+	 */
+	public static final String THREADS_KEY = CONFIG_PREFIX + ".threads";
+	/** Default value for THREADS_KEY property */
+	public static final int THREADS_DEFAULT = 1;
+
+	/**
+	 * Key for non-negative double property. The fraction by which the weight
+	 * of a part may exceed its share of the total vertex weight.
+	 */
+	public static final String IMBALANCE_KEY = CONFIG_PREFIX + ".imbalance";
+	/** Default value for IMBALANCE_KEY property */
+	public static final double IMBALANCE_DEFAULT = 0.05;
+
+	/**
+	 * Key for positive integer property. Graphs with at most this many
+	 * vertices are not coarsened further before they are bisected.
+	 */
+	public static final String COARSEST_SIZE_KEY = CONFIG_PREFIX + ".coarsestsize";
+	/** Default value for COARSEST_SIZE_KEY property */
+	public static final int COARSEST_SIZE_DEFAULT = 100;
+
+	/**
+	 * Key for positive integer property. The maximum number of refinement
+	 * passes at each level.
+	 */
+	public static final String REFINEMENT_PASSES_KEY = CONFIG_PREFIX + ".refinementpasses";
+	/** Default value for REFINEMENT_PASSES_KEY property */
+	public static final int REFINEMENT_PASSES_DEFAULT = 4;
+
+	/**
+	 * Key for integer property. The seed of the random number generator used
+	 * to order vertices and pick the starting points of bisections.
+	 */
+	public static final String SEED_KEY = CONFIG_PREFIX + ".seed";
+	/** Default value for SEED_KEY property */
+	public static final int SEED_DEFAULT = 0;
+
+	/**
+	 * Key for non-negative integer property. The number of parts returned by
+	 * {@link #getNumParts(long, int)}. If 0, the number is chosen from the
+	 * total vertex weight instead.
+	 */
+	public static final String NUM_PARTS_KEY = CONFIG_PREFIX + ".numparts";
+	/** Default value for NUM_PARTS_KEY property */
+	public static final int NUM_PARTS_DEFAULT = 0;
+
+	/**
+	 * Key for positive integer property. The vertex weight aimed for in each
+	 * part when the number of parts is chosen from the total vertex weight.
+	 */
+	public static final String TARGET_PART_WEIGHT_KEY = CONFIG_PREFIX + ".targetpartweight";
+	/** Default value for TARGET_PART_WEIGHT_KEY property */
+	public static final int TARGET_PART_WEIGHT_DEFAULT = 20000;
+
+	/* Weight used in place of infinite or larger edge weights */
+	private static final double MAX_EDGE_WEIGHT = 1e12;
+
+	/* Number of greedy growings tried when bisecting the coarsest graph */
+	private static final int INITIAL_TRIALS = 4;
+
+	/* Moves without improvement after which a refinement pass stops */
+	private static final int MAX_UNPRODUCTIVE_MOVES = 100;
+
+	/* Coarsening stops once a level removes fewer than this fraction of vertices */
+	private static final double MIN_COARSENING = 0.05;
+
+	private static final int MIN_VERTICES_PER_TASK = 1024;
+
+	private final int threads;
+	private final double imbalance;
+	private final int coarsestSize;
+	private final int refinementPasses;
+	private final int numParts;
+	private final int targetPartWeight;
+	private final Random random;
+
+	/* Pool used during a call to partition() if more than one thread is configured */
+	private ForkJoinPool pool;
+
+	/*
+	 * Imbalance allowed in each bisection during a call to partition(), so
+	 * that the imbalances compounded through the recursion stay within the
+	 * configured one
+	 */
+	private double bisectionImbalance;
+
+	public MultilevelGraphPartitioner() {
+		this(Config.getInt(THREADS_KEY, THREADS_DEFAULT),
+				Config.getDouble(IMBALANCE_KEY, IMBALANCE_DEFAULT),
+				Config.getInt(COARSEST_SIZE_KEY, COARSEST_SIZE_DEFAULT),
+				Config.getInt(REFINEMENT_PASSES_KEY, REFINEMENT_PASSES_DEFAULT),
+				Config.getInt(SEED_KEY, SEED_DEFAULT),
+				Config.getInt(NUM_PARTS_KEY, NUM_PARTS_DEFAULT),
+				Config.getInt(TARGET_PART_WEIGHT_KEY, TARGET_PART_WEIGHT_DEFAULT));
+	}
+
+	public MultilevelGraphPartitioner(int threads, double imbalance, int coarsestSize,
+			int refinementPasses, int seed) {
+		this(threads, imbalance, coarsestSize, refinementPasses, seed, NUM_PARTS_DEFAULT, TARGET_PART_WEIGHT_DEFAULT);
+	}
+
+	public MultilevelGraphPartitioner(int threads, double imbalance, int coarsestSize,
+			int refinementPasses, int seed, int numParts, int targetPartWeight) {
+		if (threads <= 0)
+			throw new IllegalArgumentException("Number of threads must be positive.");
+		if (imbalance < 0)
+			throw new IllegalArgumentException("Imbalance must be non-negative.");
+		if (coarsestSize <= 0)
+			throw new IllegalArgumentException("Coarsest graph size must be positive.");
+		if (refinementPasses <= 0)
+			throw new IllegalArgumentException("Number of refinement passes must be positive.");
+		if (numParts < 0)
+			throw new IllegalArgumentException("Number of parts must be non-negative.");
+		if (targetPartWeight <= 0)
+			throw new IllegalArgumentException("Target part weight must be positive.");
+		this.threads = threads;
+		this.imbalance = imbalance;
+		this.coarsestSize = coarsestSize;
+		this.refinementPasses = refinementPasses;
+		this.numParts = numParts;
+		this.targetPartWeight = targetPartWeight;
+		random = new Random(seed);
+	}
+
+	/**
+	 * Returns the number of parts into which to partition a graph.
+	 * <p>
+	 * If a number of parts is configured, it is returned. Otherwise, the
+	 * number is the total vertex weight divided by the target part weight,
+	 * rounded up. If there is more than one worker, it is then rounded up to
+	 * a multiple of the number of workers, so that parts of equal weight can
+	 * be spread evenly across them.
+	 *
+	 * @param totalWeight  the total vertex weight of the graph
+	 * @param workers  the number of threads that will process the parts
+	 */
+	public int getNumParts(long totalWeight, int workers) {
+		if (workers <= 0)
+			throw new IllegalArgumentException("Number of workers must be positive.");
+		if (numParts > 0)
+			return numParts;
+
+		long k = Math.max(1, (totalWeight + targetPartWeight - 1) / targetPartWeight);
+		if (workers > 1)
+			k = ((k + workers - 1) / workers) * workers;
+		return (int) Math.min(k, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Partitions a graph with unit vertex weights into k parts.
+	 *
+	 * @see #partition(int[], int[], double[], int[], int)
+	 */
+	public int[] partition(int[] pointers, int[] neighbors, double[] weights, int k) {
+		int[] vertexWeights = new int[Math.max(0, pointers.length - 1)];
+		Arrays.fill(vertexWeights, 1);
+		return partition(pointers, neighbors, weights, vertexWeights, k);
+	}
+
+	/**
+	 * Partitions a graph into k parts.
+	 *
+	 * @param pointers  the offsets of each vertex's neighbors, of length n+1
+	 * @param neighbors  the neighbors of each vertex
+	 * @param weights  the weight of each edge, in the order of neighbors
+	 * @param vertexWeights  the weight of each vertex, which the parts balance
+	 * @param k  the number of parts
+	 * @return the part, from 0 to k-1, of each vertex
+	 */
+	public int[] partition(int[] pointers, int[] neighbors, double[] weights, int[] vertexWeights, int k) {
+		if (k <= 0)
+			throw new IllegalArgumentException("Number of parts must be positive.");
+		if (pointers.length == 0 || pointers[0] != 0)
+			throw new IllegalArgumentException("Pointers must start at 0.");
+		int n = pointers.length - 1;
+		int nnz = pointers[n];
+		if (neighbors.length < nnz || weights.length < nnz)
+			throw new IllegalArgumentException("Neighbors and weights must have an entry for each edge end.");
+
+		double[] edgeWeights = new double[nnz];
+		for (int p = 0; p < nnz; p++) {
+			if (neighbors[p] < 0 || neighbors[p] >= n)
+				throw new IllegalArgumentException("Neighbor out of range: " + neighbors[p]);
+			if (!(weights[p] >= 0))
+				throw new IllegalArgumentException("Edge weights must be non-negative.");
+			edgeWeights[p] = Math.min(weights[p], MAX_EDGE_WEIGHT);
+		}
+		if (vertexWeights.length != n)
+			throw new IllegalArgumentException("Vertex weights must have an entry for each vertex.");
+		long totalWeight = 0;
+		for (int w : vertexWeights) {
+			if (w < 0)
+				throw new IllegalArgumentException("Vertex weights must be non-negative.");
+			totalWeight += w;
+		}
+		if (totalWeight > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Total vertex weight must fit in an int.");
+		Graph graph = new Graph(pointers.clone(), Arrays.copyOf(neighbors, nnz), edgeWeights, vertexWeights.clone());
+
+		int[] ids = new int[n];
+		for (int v = 0; v < n; v++)
+			ids[v] = v;
+		int[] parts = new int[n];
+
+		int depth = 32 - Integer.numberOfLeadingZeros(k - 1);
+		bisectionImbalance = (depth > 1) ? Math.pow(1 + imbalance, 1.0 / depth) - 1 : imbalance;
+
+		pool = (threads > 1) ? new ForkJoinPool(threads) : null;
+		try {
+			partition(graph, ids, k, 0, parts);
+		}
+		finally {
+			if (pool != null)
+				pool.shutdownNow();
+			pool = null;
+		}
+
+		return parts;
+	}
+
+	/*
+	 * Recursively bisects a graph, writing offset + the part of each vertex v
+	 * to parts[ids[v]]
+	 */
+	private void partition(Graph graph, int[] ids, int k, int offset, int[] parts) {
+		if (k == 1 || graph.n <= 1) {
+			for (int v = 0; v < graph.n; v++)
+				parts[ids[v]] = offset;
+			return;
+		}
+
+		int k0 = k / 2;
+		int[] side = bisect(graph, (double) k0 / k);
+
+		if (k == 2) {
+			for (int v = 0; v < graph.n; v++)
+				parts[ids[v]] = offset + side[v];
+			return;
+		}
+
+		for (int s = 0; s < 2; s++) {
+			int[] local = new int[graph.n];
+			int size = 0;
+			for (int v = 0; v < graph.n; v++)
+				local[v] = (side[v] == s) ? size++ : -1;
+
+			int[] subIds = new int[size];
+			int[] subPointers = new int[size + 1];
+			int[] subVertexWeights = new int[size];
+			for (int v = 0; v < graph.n; v++) {
+				if (local[v] >= 0) {
+					subIds[local[v]] = ids[v];
+					subVertexWeights[local[v]] = graph.vertexWeights[v];
+					int degree = 0;
+					for (int p = graph.pointers[v]; p < graph.pointers[v+1]; p++)
+						if (local[graph.neighbors[p]] >= 0)
+							degree++;
+					subPointers[local[v] + 1] = subPointers[local[v]] + degree;
+				}
+			}
+
+			int[] subNeighbors = new int[subPointers[size]];
+			double[] subEdgeWeights = new double[subPointers[size]];
+			for (int v = 0; v < graph.n; v++) {
+				if (local[v] >= 0) {
+					int q = subPointers[local[v]];
+					for (int p = graph.pointers[v]; p < graph.pointers[v+1]; p++) {
+						int u = local[graph.neighbors[p]];
+						if (u >= 0) {
+							subNeighbors[q] = u;
+							subEdgeWeights[q] = graph.edgeWeights[p];
+							q++;
+						}
+					}
+				}
+			}
+
+			Graph subgraph = new Graph(subPointers, subNeighbors, subEdgeWeights, subVertexWeights);
+			if (s == 0)
+				partition(subgraph, subIds, k0, offset, parts);
+			else
+				partition(subgraph, subIds, k - k0, offset + k0, parts);
+		}
+	}
+
+	/*
+	 * Returns the side, 0 or 1, of each vertex, with side 0 holding about
+	 * the given fraction of the total vertex weight
+	 */
+	private int[] bisect(Graph graph, double fraction) {
+		List<Graph> levels = new ArrayList<Graph>();
+		List<int[]> maps = new ArrayList<int[]>();
+
+		/* Coarsens */
+		Graph coarse = graph;
+		long maxVertexWeight = Math.max(1, (long) Math.ceil(1.5 * graph.totalWeight / coarsestSize));
+		while (coarse.n > coarsestSize) {
+			int[] map = new int[coarse.n];
+			int coarseN = match(coarse, maxVertexWeight, map);
+			if (coarseN > (1 - MIN_COARSENING) * coarse.n)
+				break;
+			levels.add(coarse);
+			maps.add(map);
+			coarse = contract(coarse, map, coarseN);
+		}
+
+		/* Bisects the coarsest graph */
+		int[] side = null;
+		double bestCut = Double.POSITIVE_INFINITY;
+		for (int trial = 0; trial < INITIAL_TRIALS; trial++) {
+			int[] candidate = grow(coarse, fraction);
+			refine(coarse, candidate, fraction);
+			double cut = getCut(coarse, candidate);
+			if (side == null || cut < bestCut) {
+				side = candidate;
+				bestCut = cut;
+			}
+		}
+
+		/* Projects the bisection back to the original graph */
+		for (int level = levels.size() - 1; level >= 0; level--) {
+			Graph fine = levels.get(level);
+			int[] map = maps.get(level);
+			int[] fineSide = new int[fine.n];
+			for (int v = 0; v < fine.n; v++)
+				fineSide[v] = side[map[v]];
+			refine(fine, fineSide, fraction);
+			side = fineSide;
+		}
+
+		return side;
+	}
+
+	/*
+	 * Computes a heavy-edge matching, writes the coarse vertex of each vertex
+	 * to map, and returns the number of coarse vertices.
+	 *
+	 * Vertices that prefer each other as their heaviest neighbors are matched
+	 * in parallel, and the rest are then matched greedily in random order.
+	 */
+	private int match(final Graph graph, final long maxVertexWeight, int[] map) {
+		final int n = graph.n;
+		final int[] preferred = new int[n];
+		final int[] mate = new int[n];
+
+		forEachRange(n, new RangeTask() {
+			@Override
+			public void run(int start, int end) {
+				for (int v = start; v < end; v++) {
+					preferred[v] = getHeaviestNeighbor(graph, v, maxVertexWeight, null);
+					mate[v] = -1;
+				}
+			}
+		});
+
+		forEachRange(n, new RangeTask() {
+			@Override
+			public void run(int start, int end) {
+				for (int v = start; v < end; v++) {
+					int u = preferred[v];
+					if (u >= 0 && preferred[u] == v)
+						mate[v] = u;
+				}
+			}
+		});
+
+		int[] order = getRandomOrder(n);
+		for (int v : order) {
+			if (mate[v] == -1) {
+				int u = getHeaviestNeighbor(graph, v, maxVertexWeight, mate);
+				if (u >= 0) {
+					mate[v] = u;
+					mate[u] = v;
+				}
+				else
+					mate[v] = v;
+			}
+		}
+
+		int coarseN = 0;
+		for (int v = 0; v < n; v++) {
+			if (v <= mate[v]) {
+				map[v] = coarseN;
+				map[mate[v]] = coarseN;
+				coarseN++;
+			}
+		}
+		return coarseN;
+	}
+
+	/*
+	 * Returns the neighbor of v with the heaviest edge to it that can be
+	 * merged with v, or -1 if there is none. If mate is not null, only
+	 * unmatched neighbors are considered.
+	 */
+	private static int getHeaviestNeighbor(Graph graph, int v, long maxVertexWeight, int[] mate) {
+		int best = -1;
+		double bestWeight = -1.0;
+		for (int p = graph.pointers[v]; p < graph.pointers[v+1]; p++) {
+			int u = graph.neighbors[p];
+			if (u == v || (mate != null && mate[u] != -1)
+					|| (long) graph.vertexWeights[v] + graph.vertexWeights[u] > maxVertexWeight)
+				continue;
+			double w = graph.edgeWeights[p];
+			if (w > bestWeight || (w == bestWeight && u < best)) {
+				best = u;
+				bestWeight = w;
+			}
+		}
+		return best;
+	}
+
+	/*
+	 * Builds the graph in which each vertex v is merged into coarse vertex
+	 * map[v]. The adjacencies of the coarse vertices are merged in parallel.
+	 */
+	private Graph contract(final Graph graph, final int[] map, final int coarseN) {
+		final int[] first = new int[coarseN];
+		final int[] second = new int[coarseN];
+		Arrays.fill(first, -1);
+		Arrays.fill(second, -1);
+		int[] coarseVertexWeights = new int[coarseN];
+		for (int v = 0; v < graph.n; v++) {
+			int c = map[v];
+			if (first[c] == -1)
+				first[c] = v;
+			else
+				second[c] = v;
+			coarseVertexWeights[c] += graph.vertexWeights[v];
+		}
+
+		final int[][] coarseNeighbors = new int[coarseN][];
+		final double[][] coarseEdgeWeights = new double[coarseN][];
+		forEachRange(coarseN, new RangeTask() {
+			@Override
+			public void run(int start, int end) {
+				/* Position of each coarse neighbor in the merged adjacency of the last coarse vertex that had it */
+				int[] owner = new int[coarseN];
+				int[] position = new int[coarseN];
+				Arrays.fill(owner, -1);
+
+				for (int c = start; c < end; c++) {
+					int maxDegree = graph.getDegree(first[c]);
+					if (second[c] >= 0)
+						maxDegree += graph.getDegree(second[c]);
+					int[] adjacent = new int[maxDegree];
+					double[] adjacentWeights = new double[maxDegree];
+					int degree = 0;
+
+					for (int member = 0; member < 2; member++) {
+						int v = (member == 0) ? first[c] : second[c];
+						if (v < 0)
+							continue;
+						for (int p = graph.pointers[v]; p < graph.pointers[v+1]; p++) {
+							int u = map[graph.neighbors[p]];
+							if (u == c)
+								continue;
+							if (owner[u] != c) {
+								owner[u] = c;
+								position[u] = degree;
+								adjacent[degree] = u;
+								adjacentWeights[degree] = 0.0;
+								degree++;
+							}
+							adjacentWeights[position[u]] = Math.min(adjacentWeights[position[u]] + graph.edgeWeights[p], MAX_EDGE_WEIGHT);
+						}
+					}
+
+					coarseNeighbors[c] = Arrays.copyOf(adjacent, degree);
+					coarseEdgeWeights[c] = Arrays.copyOf(adjacentWeights, degree);
+				}
+			}
+		});
+
+		final int[] pointers = new int[coarseN + 1];
+		for (int c = 0; c < coarseN; c++)
+			pointers[c+1] = pointers[c] + coarseNeighbors[c].length;
+		final int[] neighbors = new int[pointers[coarseN]];
+		final double[] edgeWeights = new double[pointers[coarseN]];
+		forEachRange(coarseN, new RangeTask() {
+			@Override
+			public void run(int start, int end) {
+				for (int c = start; c < end; c++) {
+					System.arraycopy(coarseNeighbors[c], 0, neighbors, pointers[c], coarseNeighbors[c].length);
+					System.arraycopy(coarseEdgeWeights[c], 0, edgeWeights, pointers[c], coarseEdgeWeights[c].length);
+				}
+			}
+		});
+
+		return new Graph(pointers, neighbors, edgeWeights, coarseVertexWeights);
+	}
+
+	/*
+	 * Grows side 0 breadth first from a random vertex until it holds its
+	 * share of the vertex weight
+	 */
+	private int[] grow(Graph graph, double fraction) {
+		int[] side = new int[graph.n];
+		Arrays.fill(side, 1);
+		long target = Math.round(graph.totalWeight * fraction);
+
+		int[] order = getRandomOrder(graph.n);
+		boolean[] visited = new boolean[graph.n];
+		int[] queue = new int[graph.n];
+		int head = 0;
+		int tail = 0;
+		int next = 0;
+		long weight = 0;
+		while (weight < target) {
+			if (head == tail) {
+				while (visited[order[next]])
+					next++;
+				visited[order[next]] = true;
+				queue[tail++] = order[next];
+			}
+
+			int v = queue[head++];
+			side[v] = 0;
+			weight += graph.vertexWeights[v];
+			for (int p = graph.pointers[v]; p < graph.pointers[v+1]; p++) {
+				int u = graph.neighbors[p];
+				if (!visited[u]) {
+					visited[u] = true;
+					queue[tail++] = u;
+				}
+			}
+		}
+
+		return side;
+	}
+
+	/* Improves a bisection with passes of Fiduccia-Mattheyses refinement */
+	private void refine(Graph graph, int[] side, double fraction) {
+		int maxVertexWeight = 0;
+		for (int v = 0; v < graph.n; v++)
+			maxVertexWeight = Math.max(maxVertexWeight, graph.vertexWeights[v]);
+
+		long[] target = new long[2];
+		target[0] = Math.round(graph.totalWeight * fraction);
+		target[1] = graph.totalWeight - target[0];
+		long[] maxWeight = new long[2];
+		for (int s = 0; s < 2; s++)
+			maxWeight[s] = Math.max((long) Math.ceil((1 + bisectionImbalance) * target[s]), target[s] + maxVertexWeight);
+
+		double[] gain = new double[graph.n];
+		GainQueue[] queues = new GainQueue[] {new GainQueue(graph.n, gain), new GainQueue(graph.n, gain)};
+		boolean[] locked = new boolean[graph.n];
+		int[] moves = new int[graph.n];
+
+		for (int pass = 0; pass < refinementPasses; pass++) {
+			if (!refinementPass(graph, side, maxWeight, gain, queues, locked, moves))
+				break;
+		}
+	}
+
+	/* Runs one pass of refinement and returns whether the bisection improved */
+	private static boolean refinementPass(Graph graph, int[] side, long[] maxWeight, double[] gain,
+			GainQueue[] queues, boolean[] locked, int[] moves) {
+		long[] partWeight = new long[2];
+		double cut = 0.0;
+		for (int v = 0; v < graph.n; v++) {
+			partWeight[side[v]] += graph.vertexWeights[v];
+			locked[v] = false;
+			gain[v] = 0.0;
+			boolean boundary = false;
+			for (int p = graph.pointers[v]; p < graph.pointers[v+1]; p++) {
+				if (side[graph.neighbors[p]] != side[v]) {
+					gain[v] += graph.edgeWeights[p];
+					cut += graph.edgeWeights[p];
+					boundary = true;
+				}
+				else if (graph.neighbors[p] != v)
+					gain[v] -= graph.edgeWeights[p];
+			}
+			if (boundary)
+				queues[side[v]].add(v);
+		}
+		cut /= 2;
+
+		double bestCut = cut;
+		long bestExcess = getExcess(partWeight, maxWeight);
+		int bestNumMoves = 0;
+		int numMoves = 0;
+		int unproductive = 0;
+
+		while (unproductive < MAX_UNPRODUCTIVE_MOVES) {
+			/* Picks the best move, only moving out of an overweight side */
+			int from = -1;
+			for (int s = 0; s < 2; s++) {
+				if (queues[s].isEmpty())
+					continue;
+				int v = queues[s].peek();
+				boolean fits = partWeight[1-s] + graph.vertexWeights[v] <= maxWeight[1-s]
+						|| partWeight[s] > maxWeight[s];
+				if (partWeight[1-s] > maxWeight[1-s])
+					fits = false;
+				if (fits && (from == -1 || gain[v] > gain[queues[from].peek()]))
+					from = s;
+			}
+			if (from == -1)
+				break;
+
+			int v = queues[from].poll();
+			int to = 1 - from;
+			side[v] = to;
+			locked[v] = true;
+			partWeight[from] -= graph.vertexWeights[v];
+			partWeight[to] += graph.vertexWeights[v];
+			cut -= gain[v];
+			moves[numMoves++] = v;
+
+			for (int p = graph.pointers[v]; p < graph.pointers[v+1]; p++) {
+				int u = graph.neighbors[p];
+				if (u == v || locked[u])
+					continue;
+				gain[u] += (side[u] == to) ? -2 * graph.edgeWeights[p] : 2 * graph.edgeWeights[p];
+				if (queues[side[u]].contains(u))
+					queues[side[u]].update(u);
+				else
+					queues[side[u]].add(u);
+			}
+
+			long excess = getExcess(partWeight, maxWeight);
+			if (excess < bestExcess || (excess == bestExcess && cut < bestCut)) {
+				bestCut = cut;
+				bestExcess = excess;
+				bestNumMoves = numMoves;
+				unproductive = 0;
+			}
+			else
+				unproductive++;
+		}
+
+		/* Undoes the moves made after the best bisection */
+		for (int i = numMoves - 1; i >= bestNumMoves; i--)
+			side[moves[i]] = 1 - side[moves[i]];
+		queues[0].clear();
+		queues[1].clear();
+
+		return bestNumMoves > 0;
+	}
+
+	private static long getExcess(long[] partWeight, long[] maxWeight) {
+		return Math.max(0, partWeight[0] - maxWeight[0]) + Math.max(0, partWeight[1] - maxWeight[1]);
+	}
+
+	private static double getCut(Graph graph, int[] side) {
+		double cut = 0.0;
+		for (int v = 0; v < graph.n; v++)
+			for (int p = graph.pointers[v]; p < graph.pointers[v+1]; p++)
+				if (side[graph.neighbors[p]] != side[v])
+					cut += graph.edgeWeights[p];
+		return cut / 2;
+	}
+
+	private int[] getRandomOrder(int n) {
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		for (int i = n - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int temp = order[i];
+			order[i] = order[j];
+			order[j] = temp;
+		}
+		return order;
+	}
+
+	private interface RangeTask {
+		void run(int start, int end);
+	}
+
+	/*
+	 * Runs a task over 0 to n-1, split into contiguous chunks that run in
+	 * parallel if more than one thread is configured and n is large enough
+	 */
+	private void forEachRange(int n, final RangeTask task) {
+		if (pool == null || n < 2 * MIN_VERTICES_PER_TASK) {
+			task.run(0, n);
+			return;
+		}
+
+		int numChunks = Math.min(threads * 4, n / MIN_VERTICES_PER_TASK);
+		List<ForkJoinTask<?>> futures = new ArrayList<ForkJoinTask<?>>(numChunks);
+		for (int chunk = 0; chunk < numChunks; chunk++) {
+			final int start = (int) ((long) n * chunk / numChunks);
+			final int end = (int) ((long) n * (chunk + 1) / numChunks);
+			futures.add(pool.submit(new Runnable() {
+				@Override
+				public void run() {
+					task.run(start, end);
+				}
+			}));
+		}
+
+		for (ForkJoinTask<?> future : futures)
+			future.join();
+	}
+
+	private static class Graph {
+		private final int n;
+		private final int[] pointers;
+		private final int[] neighbors;
+		private final double[] edgeWeights;
+		private final int[] vertexWeights;
+		private final long totalWeight;
+
+		private Graph(int[] pointers, int[] neighbors, double[] edgeWeights, int[] vertexWeights) {
+			n = pointers.length - 1;
+			this.pointers = pointers;
+			this.neighbors = neighbors;
+			this.edgeWeights = edgeWeights;
+			this.vertexWeights = vertexWeights;
+			long total = 0;
+			for (int w : vertexWeights)
+				total += w;
+			totalWeight = total;
+		}
+
+		private int getDegree(int v) {
+			return pointers[v+1] - pointers[v];
+		}
+	}
+
+	/*
+	 * Max-heap of vertices keyed by their gains, which supports updating the
+	 * key of a vertex after its gain changes
+	 */
+	private static class GainQueue {
+		private final double[] gain;
+		private final int[] heap;
+		private final int[] position;
+		private int size;
+
+		private GainQueue(int n, double[] gain) {
+			this.gain = gain;
+			heap = new int[n];
+			position = new int[n];
+			Arrays.fill(position, -1);
+			size = 0;
+		}
+
+		private boolean isEmpty() {
+			return size == 0;
+		}
+
+		private boolean contains(int v) {
+			return position[v] >= 0;
+		}
+
+		private int peek() {
+			return heap[0];
+		}
+
+		private void add(int v) {
+			heap[size] = v;
+			position[v] = size;
+			size++;
+			siftUp(size - 1);
+		}
+
+		private int poll() {
+			int v = heap[0];
+			position[v] = -1;
+			size--;
+			if (size > 0) {
+				heap[0] = heap[size];
+				position[heap[0]] = 0;
+				siftDown(0);
+			}
+			return v;
+		}
+
+		private void update(int v) {
+			siftUp(position[v]);
+			siftDown(position[v]);
+		}
+
+		private void clear() {
+			for (int i = 0; i < size; i++)
+				position[heap[i]] = -1;
+			size = 0;
+		}
+
+		private void siftUp(int i) {
+			int v = heap[i];
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (gain[heap[parent]] >= gain[v])
+					break;
+				heap[i] = heap[parent];
+				position[heap[i]] = i;
+				i = parent;
+			}
+			heap[i] = v;
+			position[v] = i;
+		}
+
+		private void siftDown(int i) {
+			int v = heap[i];
+			while (2 * i + 1 < size) {
+				int child = 2 * i + 1;
+				if (child + 1 < size && gain[heap[child+1]] > gain[heap[child]])
+					child++;
+				if (gain[heap[child]] <= gain[v])
+					break;
+				heap[i] = heap[child];
+				position[heap[i]] = i;
+				i = child;
+			}
+			heap[i] = v;
+			position[v] = i;
+		}
+	}
+}
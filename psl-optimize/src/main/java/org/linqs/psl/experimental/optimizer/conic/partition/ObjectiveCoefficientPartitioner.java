@@ -23,24 +23,10 @@ import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
 import org.linqs.psl.experimental.optimizer.conic.program.NonNegativeOrthantCone;
 import org.linqs.psl.experimental.optimizer.conic.program.SecondOrderCone;
 import org.linqs.psl.experimental.optimizer.conic.program.Variable;
-import org.linqs.psl.utils.graph.Graph;
-import org.linqs.psl.utils.graph.Node;
-import org.linqs.psl.utils.graph.Relationship;
-import org.linqs.psl.utils.graph.memory.MemoryGraph;
-import org.linqs.psl.utils.graph.partition.hierarchical.HierarchicalPartitioning;
-import org.linqs.psl.utils.graph.partition.hierarchical.HyperPartitioning;
-import org.linqs.psl.utils.graph.weight.RelationshipWeighter;
-
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-import java.util.Vector;
-
 public class ObjectiveCoefficientPartitioner {
 
 	private static final Logger log = LoggerFactory.getLogger(ObjectiveCoefficientPartitioner.class);
@@ -48,12 +34,19 @@ public class ObjectiveCoefficientPartitioner {
 	protected static final int base = 2;
 	protected ConicProgram program;
 	protected ConicProgramPartition partition;
-
-	protected BiMap<Cone, Node> coneMap;
-	protected BiMap<LinearConstraint, Node> lcMap;
-
-
-	private static final String LC_REL = "lcRel";
+	protected int numWorkers = 1;
+
+	/**
+	 * Sets the number of threads that will process the elements of the
+	 * partition, so that the number of elements can be chosen to spread
+	 * their work evenly across them. Must be called before
+	 * {@link #setConicProgram(ConicProgram)}.
+	 */
+	public void setNumWorkers(int workers) {
+		if (workers <= 0)
+			throw new IllegalArgumentException("Number of workers must be positive.");
+		numWorkers = workers;
+	}
 
 	public void setConicProgram(ConicProgram program) {
 		this.program = program;
@@ -61,105 +54,45 @@ public class ObjectiveCoefficientPartitioner {
 	}
 
 	protected void doPartition() {
-		Graph graph;
-		Node node;
-
-		int numElements = (int) Math.ceil((double) program.getNumLinearConstraints() / 5000);
-
-		List<List<Node>> graphPartition = null;
-
-		List<Set<Cone>> blocks;
+		int[] graphPartition;
 
 		/* Partitions conic program graph into elements */
-		HierarchicalPartitioning partitioner = new HyperPartitioning();
-		partitioner.setNoPartitioningTrials(10);
-		partitioner.setSize(numElements);
+		ConeConstraintGraph graph = new ConeConstraintGraph(program);
+		MultilevelGraphPartitioner partitioner = new MultilevelGraphPartitioner();
+		int numElements = partitioner.getNumParts(graph.getTotalCost(), numWorkers);
+		ConeConstraintGraph.Weighter weighter = new ConeConstraintGraph.Weighter() {
+			@Override
+			public double getWeight(LinearConstraint lc, Cone cone) {
+				return ObjectiveCoefficientPartitioner.this.getWeight(lc, cone);
+			}
+		};
 
 		boolean redoPartition = false;
 
 		do {
-			graph = new MemoryGraph();
-			graph.createRelationshipType(LC_REL);
-
-			coneMap = HashBiMap.create();
-			lcMap = HashBiMap.create();
-
-			for (Cone cone : program.getCones()) {
-				node = graph.createNode();
-				coneMap.put(cone, node);
-			}
-
-			Set<Cone> coneSet = new HashSet<Cone>();
-			for (LinearConstraint con : program.getConstraints()) {
-				node = graph.createNode();
-				lcMap.put(con, node);
-
-				for (Variable var : con.getVariables().keySet()) {
-					coneSet.add(var.getCone());
-				}
-
-				for (Cone cone : coneSet) {
-					node.createRelationship(LC_REL, coneMap.get(cone));
-				}
-
-				coneSet.clear();
-			}
-
-			graphPartition = partitioner.partition(graph, graph.getNodeSnapshot(), new RelationshipWeighter() {
-				@Override
-				public double getWeight(Relationship r) {
-					if (r.getRelationshipType().equals(LC_REL)) {
-						LinearConstraint lc = (LinearConstraint) lcMap.inverse().get(r.getStart());
-						Cone cone = coneMap.inverse().get(r.getEnd());
-						return ObjectiveCoefficientPartitioner.this.getWeight(lc, cone);
-					}
-					else
-						return Double.POSITIVE_INFINITY;
-				}
-			});
+			graphPartition = graph.partition(partitioner, weighter, numElements);
 
 			log.trace("Partition finished. Checking for balance.");
 
-			/* Checks if blocks are sufficiently balanced */
-			boolean balanced = true;
+			/*
+			 * Checks if the estimated costs of the blocks are sufficiently
+			 * balanced, up to the cost of one cone or constraint
+			 */
+			redoPartition = false;
 			if (numElements > 1) {
-				int totalSize = 0;
-				for (List<Node> block : graphPartition)
-					totalSize += block.size();
-
-				for (List<Node> block : graphPartition){
-					if (block.size() > 2*(totalSize - block.size())) {
-	//						log.debug("{} > {}", block.size(), 2*(totalSize - block.size()));
-						balanced = false;
-					}
-					if (!balanced) {
+				long totalCost = graph.getTotalCost();
+				for (long blockCost : graph.getCosts(graphPartition, numElements)) {
+					if (blockCost - graph.getMaxCost() > 2*(totalCost - blockCost)) {
 						redoPartition = true;
 						break;
 					}
 				}
-
-				if (!balanced) {
-					redoPartition = true;
-				}
 			}
 
 			/* Partition accepted */
 			if (!redoPartition) {
-				/* Collects cones in blocks */
-				blocks = new Vector<Set<Cone>>();
-				for (int i = 0; i < graphPartition.size(); i++) {
-					Set<Cone> block = new HashSet<Cone>();
-					for (Node n : graphPartition.get(i)) {
-						/* Adds cone to block */
-						if (coneMap.containsValue(n)) {
-							block.add(coneMap.inverse().get(n));
-						}
-					}
-					blocks.add(block);
-				}
-
 				/* Initializes the partition */
-				partition = new ConicProgramPartition(program, blocks);
+				partition = new ConicProgramPartition(program, graph.getBlocks(graphPartition, numElements));
 				return;
 			}
 		} while (true);
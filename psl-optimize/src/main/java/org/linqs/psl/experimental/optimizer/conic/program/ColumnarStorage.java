@@ -0,0 +1,473 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.program;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+
+/**
+ * Primitive-array storage for the {@link Variable Variables} and
+ * {@link LinearConstraint LinearConstraints} of a {@link ConicProgram}
+ * that uses {@link StorageMode#Columnar}.
+ * <p>
+ * Variables are columns and constraints are rows, each addressed by the slot
+ * of its handle. Every nonzero coefficient is a (row, column, value) triplet
+ * kept in parallel arrays and chained to the other triplets of its row and
+ * of its column, so coefficients can be added, changed, and removed in time
+ * proportional to the size of the row or column.
+ */
+class ColumnarStorage {
+	
+	private static final int NONE = -1;
+	
+	final HandleList<Variable> columns;
+	final HandleList<LinearConstraint> rows;
+	
+	/* Columns, indexed by Variable slot */
+	private int[] colHead;
+	private int[] colSize;
+	private double[] primalValue;
+	private double[] dualValue;
+	private double[] objCoeff;
+	
+	/* Rows, indexed by LinearConstraint slot */
+	private int[] rowHead;
+	private int[] rowSize;
+	private double[] constrainedValue;
+	private double[] lagrange;
+	
+	/* Triplets. Free triplets are chained through nextInRow. */
+	private int[] entryRow;
+	private int[] entryCol;
+	private double[] entryValue;
+	private int[] nextInRow;
+	private int[] nextInCol;
+	private int entryEnd;
+	private int freeEntry;
+	private int numEntries;
+	
+	ColumnarStorage() {
+		columns = new HandleList<Variable>() {
+			@Override
+			protected void moved(int from, int to) {
+				moveColumn(from, to);
+			}
+		};
+		rows = new HandleList<LinearConstraint>() {
+			@Override
+			protected void moved(int from, int to) {
+				moveRow(from, to);
+			}
+		};
+		
+		colHead = new int[16];
+		colSize = new int[16];
+		primalValue = new double[16];
+		dualValue = new double[16];
+		objCoeff = new double[16];
+		
+		rowHead = new int[16];
+		rowSize = new int[16];
+		constrainedValue = new double[16];
+		lagrange = new double[16];
+		
+		entryRow = new int[64];
+		entryCol = new int[64];
+		entryValue = new double[64];
+		nextInRow = new int[64];
+		nextInCol = new int[64];
+		entryEnd = 0;
+		freeEntry = NONE;
+		numEntries = 0;
+	}
+	
+	/*
+	 * Columns
+	 */
+	
+	void addColumn(Variable v) {
+		columns.add(v);
+		int slot = v.slot;
+		if (slot >= colHead.length) {
+			int capacity = Math.max(2 * colHead.length, slot + 1);
+			colHead = Arrays.copyOf(colHead, capacity);
+			colSize = Arrays.copyOf(colSize, capacity);
+			primalValue = Arrays.copyOf(primalValue, capacity);
+			dualValue = Arrays.copyOf(dualValue, capacity);
+			objCoeff = Arrays.copyOf(objCoeff, capacity);
+		}
+		colHead[slot] = NONE;
+		colSize[slot] = 0;
+		primalValue[slot] = 0.0;
+		dualValue[slot] = 0.0;
+		objCoeff[slot] = 0.0;
+	}
+	
+	void removeColumn(Variable v) {
+		if (columns.contains(v)) {
+			while (colHead[v.slot] != NONE)
+				removeEntry(colHead[v.slot]);
+			columns.remove(v);
+		}
+	}
+	
+	private void moveColumn(int from, int to) {
+		for (int e = colHead[from]; e != NONE; e = nextInCol[e])
+			entryCol[e] = to;
+		colHead[to] = colHead[from];
+		colSize[to] = colSize[from];
+		primalValue[to] = primalValue[from];
+		dualValue[to] = dualValue[from];
+		objCoeff[to] = objCoeff[from];
+	}
+	
+	double getPrimalValue(int col) {
+		return primalValue[col];
+	}
+	
+	void setPrimalValue(int col, double value) {
+		primalValue[col] = value;
+	}
+	
+	double getDualValue(int col) {
+		return dualValue[col];
+	}
+	
+	void setDualValue(int col, double value) {
+		dualValue[col] = value;
+	}
+	
+	double getObjectiveCoefficient(int col) {
+		return objCoeff[col];
+	}
+	
+	void setObjectiveCoefficient(int col, double value) {
+		objCoeff[col] = value;
+	}
+	
+	/*
+	 * Rows
+	 */
+	
+	void addRow(LinearConstraint lc) {
+		rows.add(lc);
+		int slot = lc.slot;
+		if (slot >= rowHead.length) {
+			int capacity = Math.max(2 * rowHead.length, slot + 1);
+			rowHead = Arrays.copyOf(rowHead, capacity);
+			rowSize = Arrays.copyOf(rowSize, capacity);
+			constrainedValue = Arrays.copyOf(constrainedValue, capacity);
+			lagrange = Arrays.copyOf(lagrange, capacity);
+		}
+		rowHead[slot] = NONE;
+		rowSize[slot] = 0;
+		constrainedValue[slot] = 0.0;
+		lagrange[slot] = 0.0;
+	}
+	
+	void removeRow(LinearConstraint lc) {
+		if (rows.contains(lc)) {
+			while (rowHead[lc.slot] != NONE)
+				removeEntry(rowHead[lc.slot]);
+			rows.remove(lc);
+		}
+	}
+	
+	private void moveRow(int from, int to) {
+		for (int e = rowHead[from]; e != NONE; e = nextInRow[e])
+			entryRow[e] = to;
+		rowHead[to] = rowHead[from];
+		rowSize[to] = rowSize[from];
+		constrainedValue[to] = constrainedValue[from];
+		lagrange[to] = lagrange[from];
+	}
+	
+	double getConstrainedValue(int row) {
+		return constrainedValue[row];
+	}
+	
+	void setConstrainedValue(int row, double value) {
+		constrainedValue[row] = value;
+	}
+	
+	double getLagrange(int row) {
+		return lagrange[row];
+	}
+	
+	void setLagrange(int row, double value) {
+		lagrange[row] = value;
+	}
+	
+	/*
+	 * Coefficients
+	 */
+	
+	int getNumEntries() {
+		return numEntries;
+	}
+	
+	double getCoefficient(int row, int col) {
+		int e = find(row, col);
+		return (e == NONE) ? 0.0 : entryValue[e];
+	}
+	
+	/**
+	 * Sets a coefficient, removing its triplet if the new value is zero.
+	 * 
+	 * @return the previous coefficient, or 0.0 if there was none
+	 */
+	double setCoefficient(int row, int col, double value) {
+		int e = find(row, col);
+		if (e != NONE) {
+			double previous = entryValue[e];
+			if (value == 0.0)
+				removeEntry(e);
+			else
+				entryValue[e] = value;
+			return previous;
+		}
+		else {
+			if (value != 0.0)
+				addEntry(row, col, value);
+			return 0.0;
+		}
+	}
+	
+	private int find(int row, int col) {
+		if (rowSize[row] <= colSize[col]) {
+			for (int e = rowHead[row]; e != NONE; e = nextInRow[e])
+				if (entryCol[e] == col)
+					return e;
+		}
+		else {
+			for (int e = colHead[col]; e != NONE; e = nextInCol[e])
+				if (entryRow[e] == row)
+					return e;
+		}
+		return NONE;
+	}
+	
+	private void addEntry(int row, int col, double value) {
+		int e;
+		if (freeEntry != NONE) {
+			e = freeEntry;
+			freeEntry = nextInRow[e];
+		}
+		else {
+			if (entryEnd == entryRow.length) {
+				int capacity = 2 * entryRow.length;
+				entryRow = Arrays.copyOf(entryRow, capacity);
+				entryCol = Arrays.copyOf(entryCol, capacity);
+				entryValue = Arrays.copyOf(entryValue, capacity);
+				nextInRow = Arrays.copyOf(nextInRow, capacity);
+				nextInCol = Arrays.copyOf(nextInCol, capacity);
+			}
+			e = entryEnd++;
+		}
+		
+		entryRow[e] = row;
+		entryCol[e] = col;
+		entryValue[e] = value;
+		nextInRow[e] = rowHead[row];
+		rowHead[row] = e;
+		rowSize[row]++;
+		nextInCol[e] = colHead[col];
+		colHead[col] = e;
+		colSize[col]++;
+		numEntries++;
+	}
+	
+	private void removeEntry(int e) {
+		int row = entryRow[e];
+		int col = entryCol[e];
+		
+		if (rowHead[row] == e)
+			rowHead[row] = nextInRow[e];
+		else {
+			int prev = rowHead[row];
+			while (nextInRow[prev] != e)
+				prev = nextInRow[prev];
+			nextInRow[prev] = nextInRow[e];
+		}
+		rowSize[row]--;
+		
+		if (colHead[col] == e)
+			colHead[col] = nextInCol[e];
+		else {
+			int prev = colHead[col];
+			while (nextInCol[prev] != e)
+				prev = nextInCol[prev];
+			nextInCol[prev] = nextInCol[e];
+		}
+		colSize[col]--;
+		
+		entryRow[e] = NONE;
+		entryCol[e] = NONE;
+		nextInRow[e] = freeEntry;
+		freeEntry = e;
+		numEntries--;
+	}
+	
+	/**
+	 * Assembles the coefficient matrix.
+	 * 
+	 * @param rowOrder  the constraints in the order of the rows of the matrix
+	 * @param colIndex  the matrix column of each column slot
+	 * @param numCols  the number of columns of the matrix
+	 * @return the matrix, with row indices sorted within each column
+	 */
+	SparseCCDoubleMatrix2D getMatrix(LinearConstraint[] rowOrder, int[] colIndex, int numCols) {
+		int[] rowIndexes = new int[numEntries];
+		int[] columnIndexes = new int[numEntries];
+		double[] values = new double[numEntries];
+		int k = 0;
+		
+		for (int i = 0; i < rowOrder.length; i++) {
+			for (int e = rowHead[rowOrder[i].slot]; e != NONE; e = nextInRow[e]) {
+				rowIndexes[k] = i;
+				columnIndexes[k] = colIndex[entryCol[e]];
+				values[k] = entryValue[e];
+				k++;
+			}
+		}
+		
+		/* Triplets are in row order, so each column comes out sorted */
+		return new SparseCCDoubleMatrix2D(rowOrder.length, numCols, rowIndexes, columnIndexes, values, false, false, false);
+	}
+	
+	/*
+	 * Views
+	 */
+	
+	/**
+	 * @return a read-only view of the coefficients of a constraint
+	 */
+	Map<Variable, Double> getRowView(final LinearConstraint lc) {
+		return new AbstractMap<Variable, Double>() {
+			@Override
+			public int size() {
+				return rows.contains(lc) ? rowSize[lc.slot] : 0;
+			}
+			
+			@Override
+			public Double get(Object o) {
+				if (rows.contains(lc) && columns.contains(o)) {
+					int e = find(lc.slot, ((Variable) o).slot);
+					if (e != NONE)
+						return entryValue[e];
+				}
+				return null;
+			}
+			
+			@Override
+			public boolean containsKey(Object o) {
+				return get(o) != null;
+			}
+			
+			@Override
+			public Set<Map.Entry<Variable, Double>> entrySet() {
+				return new AbstractSet<Map.Entry<Variable, Double>>() {
+					@Override
+					public int size() {
+						return rows.contains(lc) ? rowSize[lc.slot] : 0;
+					}
+					
+					@Override
+					public Iterator<Map.Entry<Variable, Double>> iterator() {
+						return new ChainIterator<Map.Entry<Variable, Double>>(rows.contains(lc) ? rowHead[lc.slot] : NONE, nextInRow) {
+							@Override
+							Map.Entry<Variable, Double> get(int e) {
+								return new AbstractMap.SimpleImmutableEntry<Variable, Double>(columns.get(entryCol[e]), entryValue[e]);
+							}
+						};
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * @return a read-only view of the constraints in which a variable has
+	 *             a nonzero coefficient
+	 */
+	Set<LinearConstraint> getColumnView(final Variable v) {
+		return new AbstractSet<LinearConstraint>() {
+			@Override
+			public int size() {
+				return columns.contains(v) ? colSize[v.slot] : 0;
+			}
+			
+			@Override
+			public boolean contains(Object o) {
+				return columns.contains(v) && rows.contains(o)
+						&& find(((LinearConstraint) o).slot, v.slot) != NONE;
+			}
+			
+			@Override
+			public Iterator<LinearConstraint> iterator() {
+				return new ChainIterator<LinearConstraint>(columns.contains(v) ? colHead[v.slot] : NONE, nextInCol) {
+					@Override
+					LinearConstraint get(int e) {
+						return rows.get(entryRow[e]);
+					}
+				};
+			}
+		};
+	}
+	
+	/**
+	 * Iterates over a chain of triplets.
+	 */
+	private abstract static class ChainIterator<T> implements Iterator<T> {
+		private int next;
+		private final int[] links;
+		
+		ChainIterator(int head, int[] links) {
+			next = head;
+			this.links = links;
+		}
+		
+		abstract T get(int e);
+		
+		@Override
+		public boolean hasNext() {
+			return next != NONE;
+		}
+		
+		@Override
+		public T next() {
+			if (next == NONE)
+				throw new NoSuchElementException();
+			int e = next;
+			next = links[e];
+			return get(e);
+		}
+		
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+}
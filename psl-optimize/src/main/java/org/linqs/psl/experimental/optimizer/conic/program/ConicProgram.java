@@ -17,14 +17,21 @@
  */
 package org.linqs.psl.experimental.optimizer.conic.program;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.linqs.psl.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import cern.colt.list.tdouble.DoubleArrayList;
 import cern.colt.list.tint.IntArrayList;
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
@@ -42,6 +49,52 @@ import com.google.common.collect.ImmutableSet;
  * @author Stephen Bach <bach@cs.umd.edu>
  */
 public class ConicProgram {
+	private static final Logger log = LoggerFactory.getLogger(ConicProgram.class);
+	
+	/**
+	 * Prefix of property keys used by this class.
+	 */
+	public static final String CONFIG_PREFIX = "conicprogram";
+	
+	/**
+	 * Key for String property. The name of the {@link StorageMode} used by
+	 * ConicPrograms constructed without an explicit StorageMode.
+	 */
+	public static final String STORAGE_MODE_KEY = CONFIG_PREFIX + ".storagemode";
+	/** Default value for STORAGE_MODE_KEY property */
+	public static final String STORAGE_MODE_DEFAULT = StorageMode.ObjectGraph.name();
+	
+	/**
+	 * Key for boolean property. If true, {@link #checkOutMatrices()} reuses
+	 * the matrices of the previous check out when no cones, constraints, or
+	 * nonzero coefficients have been added or removed since then, patching
+	 * only the changed values.
+	 */
+	public static final String INCREMENTAL_CHECK_OUT_KEY = CONFIG_PREFIX + ".incrementalcheckout";
+	/** Default value for INCREMENTAL_CHECK_OUT_KEY property */
+	public static final boolean INCREMENTAL_CHECK_OUT_DEFAULT = true;
+	
+	/**
+	 * Key for String property. The name of the {@link IndexOrdering} used to
+	 * assign matrix indices. Programs using {@link StorageMode#Columnar}
+	 * always use {@link IndexOrdering#Insertion}.
+	 */
+	public static final String INDEX_ORDERING_KEY = CONFIG_PREFIX + ".ordering";
+	/** Default value for INDEX_ORDERING_KEY property */
+	public static final String INDEX_ORDERING_DEFAULT = IndexOrdering.Insertion.name();
+	
+	/**
+	 * Key for boolean property. If true, the linear constraints are reordered
+	 * to reduce the fill-in of Cholesky factors of A * A^T (using approximate
+	 * minimum degree) whenever the matrices are rebuilt.
+	 */
+	public static final String FILL_REDUCING_KEY = CONFIG_PREFIX + ".fillreducing";
+	/** Default value for FILL_REDUCING_KEY property */
+	public static final boolean FILL_REDUCING_DEFAULT = false;
+	
+	private final StorageMode storageMode;
+	private final ColumnarStorage storage;
+	private final boolean fillReducing;
 	
 	private Set<NonNegativeOrthantCone> NNOCs;
 	private Set<SecondOrderCone> SOCs;
@@ -62,34 +115,87 @@ public class ConicProgram {
 	private DenseDoubleMatrix1D s;
 	private DenseDoubleMatrix1D c;
 	private Map<Variable, Integer> varMap;
+	private Map<Variable, Integer> varMapView;
 	private Map<LinearConstraint, Integer> lcMap;
 	
 	private int nextID;
 	
+	/* Changes since the last check out */
+	private final boolean incrementalCheckOut;
+	private boolean structureChanged;
+	private boolean valuesChanged;
+	private final Set<Variable> changedObjCoeffs;
+	private final Set<LinearConstraint> changedConValues;
+	private final List<LinearConstraint> changedCoeffCons;
+	private final List<Variable> changedCoeffVars;
+	
 	// Error messages
 	private static final String UNEXPECTED_SENDER = "Unexpected sender type.";
 	private static final String UNEXPECTED_DATA = "Unexpected data.";
 	
 	public ConicProgram() {
-		NNOCs = new HashSet<NonNegativeOrthantCone>();
-		SOCs = new HashSet<SecondOrderCone>();
-		RSOCs = new HashSet<RotatedSecondOrderCone>();
+		this(StorageMode.valueOf(Config.getString(STORAGE_MODE_KEY, STORAGE_MODE_DEFAULT)));
+	}
+	
+	public ConicProgram(StorageMode storageMode) {
+		this.storageMode = storageMode;
 		
-		numVars = 0;
+		if (storageMode == StorageMode.Columnar) {
+			storage = new ColumnarStorage();
+			NNOCs = new HandleList<NonNegativeOrthantCone>();
+			SOCs = new HandleList<SecondOrderCone>();
+			RSOCs = new HandleList<RotatedSecondOrderCone>();
+			cons = storage.rows;
+		}
+		else if (IndexOrdering.valueOf(Config.getString(INDEX_ORDERING_KEY, INDEX_ORDERING_DEFAULT)) == IndexOrdering.Insertion) {
+			storage = null;
+			NNOCs = new LinkedHashSet<NonNegativeOrthantCone>();
+			SOCs = new LinkedHashSet<SecondOrderCone>();
+			RSOCs = new LinkedHashSet<RotatedSecondOrderCone>();
+			cons = new LinkedHashSet<LinearConstraint>();
+		}
+		else {
+			storage = null;
+			NNOCs = new HashSet<NonNegativeOrthantCone>();
+			SOCs = new HashSet<SecondOrderCone>();
+			RSOCs = new HashSet<RotatedSecondOrderCone>();
+			cons = new HashSet<LinearConstraint>();
+		}
+		fillReducing = Config.getBoolean(FILL_REDUCING_KEY, FILL_REDUCING_DEFAULT);
 		
-		cons = new HashSet<LinearConstraint>();
+		numVars = 0;
 		
 		checkedOut = false;
 		
 		listeners = new HashSet<ConicProgramListener>();
 		
 		nextID = 0;
+		
+		incrementalCheckOut = Config.getBoolean(INCREMENTAL_CHECK_OUT_KEY, INCREMENTAL_CHECK_OUT_DEFAULT);
+		structureChanged = true;
+		valuesChanged = false;
+		changedObjCoeffs = new HashSet<Variable>();
+		changedConValues = new HashSet<LinearConstraint>();
+		changedCoeffCons = new ArrayList<LinearConstraint>();
+		changedCoeffVars = new ArrayList<Variable>();
 	}
 	
 	int getNextID() {
 		return nextID++;
 	}
 	
+	public StorageMode getStorageMode() {
+		return storageMode;
+	}
+	
+	/**
+	 * @return the primitive storage of this program, or null if it does
+	 *             not use {@link StorageMode#Columnar}
+	 */
+	ColumnarStorage getStorage() {
+		return storage;
+	}
+	
 	public Collection<ConeType> getConeTypes() {
 		Set<ConeType> types = new HashSet<ConeType>();
 		if (getNumNNOC() > 0) types.add(ConeType.NonNegativeOrthantCone);
@@ -135,11 +241,40 @@ public class ConicProgram {
 	}
 	
 	public Set<LinearConstraint> getConstraints() {
-		return new HashSet<LinearConstraint>(this.cons);
-	}
-	
+		return new LinkedHashSet<LinearConstraint>(this.cons);
+	}
+	
+	/**
+	 * Makes the matrix form of this program available and locks its structure.
+	 * <p>
+	 * If incremental check out is enabled and only objective coefficients,
+	 * constrained values, existing nonzero coefficients, or values have changed
+	 * since the last check out, the previous matrices and index maps are
+	 * updated in place. Otherwise they are rebuilt.
+	 *
+	 * @see #INCREMENTAL_CHECK_OUT_KEY
+	 */
 	public void checkOutMatrices() {
 		verifyCheckedIn();
+		
+		if (incrementalCheckOut && !structureChanged && A != null)
+			updateMatrices();
+		else
+			buildMatrices();
+		
+		structureChanged = false;
+		valuesChanged = false;
+		changedObjCoeffs.clear();
+		changedConValues.clear();
+		changedCoeffCons.clear();
+		changedCoeffVars.clear();
+		
+		checkedOut = true;
+		
+		notify(ConicProgramEvent.MatricesCheckedOut, null, (Object[]) null);
+	}
+	
+	private void buildMatrices() {
 		Variable var;
 		int i, j;
 		varMap = new HashMap<Variable, Integer>();
@@ -168,45 +303,149 @@ public class ConicProgram {
 				if (!varMap.containsKey(v))
 					varMap.put(v, i++);
 		
+		/*
+		 * The view is kept until the next rebuild so that cones can recognize
+		 * it and use the index blocks cached here
+		 */
+		varMapView = Collections.unmodifiableMap(varMap);
+		for (SecondOrderCone cone : SOCs)
+			cone.cacheIndices(varMapView);
+		for (RotatedSecondOrderCone cone : RSOCs)
+			cone.cacheIndices(varMapView);
+		
 		/* Collects linear constraints */
 		j = 0;
 		for (LinearConstraint con : cons)
 			if (!lcMap.containsKey(con))
 				lcMap.put((LinearConstraint) con, j++);
-				
+		
+		if (fillReducing && lcMap.size() > 1)
+			reorderConstraints();
 		
 		/* Initializes data matrices */
-		SparseDoubleMatrix2D Atemp = new SparseDoubleMatrix2D(lcMap.size(), varMap.size(), lcMap.size()*4, 0.2, 0.5);
 		x = new DenseDoubleMatrix1D(varMap.size());
 		b = new DenseDoubleMatrix1D(lcMap.size());
 		w = new DenseDoubleMatrix1D(lcMap.size());
 		s = new DenseDoubleMatrix1D(varMap.size());
 		c = new DenseDoubleMatrix1D(varMap.size());
 		
-		/* Constructs A, b, and w */
+		/* Constructs A */
+		if (lcMap.size() == 0)
+			A = new SparseCCDoubleMatrix2D(0, 0);
+		else if (storage != null) {
+			LinearConstraint[] rowOrder = new LinearConstraint[lcMap.size()];
+			for (Map.Entry<LinearConstraint, Integer> lc : lcMap.entrySet())
+				rowOrder[lc.getValue()] = lc.getKey();
+			int[] colIndex = new int[storage.columns.getSlotCount()];
+			for (Map.Entry<Variable, Integer> v : varMap.entrySet())
+				colIndex[v.getKey().slot] = v.getValue();
+			A = storage.getMatrix(rowOrder, colIndex, varMap.size());
+		}
+		else {
+			SparseDoubleMatrix2D Atemp = new SparseDoubleMatrix2D(lcMap.size(), varMap.size(), lcMap.size()*4, 0.2, 0.5);
+			for (Map.Entry<LinearConstraint, Integer> lc : lcMap.entrySet())
+				for (Entry<Variable, Double> v : lc.getKey().getVariables().entrySet())
+					Atemp.set(lc.getValue(), varMap.get(v.getKey()), v.getValue());
+			A = Atemp.getColumnCompressed(false);
+		}
+		
+		/* Constructs b and w */
 		for (Map.Entry<LinearConstraint, Integer> lc : lcMap.entrySet()) {
-			for (Entry<Variable, Double> v : lc.getKey().getVariables().entrySet()) {
-				Atemp.set(lc.getValue(), varMap.get(v.getKey()), v.getValue());
-			}
 			w.set(lc.getValue(), lc.getKey().getLagrange());
 			b.set(lc.getValue(), lc.getKey().getConstrainedValue());
 		}
 		
-		if (Atemp.rows() > 0)
-			A = Atemp.getColumnCompressed(false);
-		else
-			A = new SparseCCDoubleMatrix2D(0, 0);
-		
 		/* Constructs x, s, and c */
 		for (Map.Entry<Variable, Integer> v : varMap.entrySet()) {
 			x.set(v.getValue(), v.getKey().getValue());
 			s.set(v.getValue(), v.getKey().getDualValue());
 			c.set(v.getValue(), v.getKey().getObjectiveCoefficient());
 		}
+	}
+	
+	/**
+	 * Reassigns the indices in lcMap with a fill-reducing order.
+	 */
+	private void reorderConstraints() {
+		int nnz = 0;
+		for (LinearConstraint lc : lcMap.keySet())
+			nnz += lc.getVariables().size();
 		
-		checkedOut = true;
+		/* Collects the pattern of A^T */
+		int[] rowIndexes = new int[nnz];
+		int[] columnIndexes = new int[nnz];
+		double[] values = new double[nnz];
+		int k = 0;
+		for (Map.Entry<LinearConstraint, Integer> lc : lcMap.entrySet()) {
+			for (Variable v : lc.getKey().getVariables().keySet()) {
+				rowIndexes[k] = varMap.get(v);
+				columnIndexes[k] = lc.getValue();
+				values[k] = 1.0;
+				k++;
+			}
+		}
 		
-		notify(ConicProgramEvent.MatricesCheckedOut, null, (Object[]) null);
+		FillReducingOrdering ordering = new FillReducingOrdering(new SparseCCDoubleMatrix2D(
+				varMap.size(), lcMap.size(), rowIndexes, columnIndexes, values, false, false, false));
+		
+		LinearConstraint[] byIndex = new LinearConstraint[lcMap.size()];
+		for (Map.Entry<LinearConstraint, Integer> lc : lcMap.entrySet())
+			byIndex[lc.getValue()] = lc.getKey();
+		int[] order = ordering.getOrder();
+		for (int i = 0; i < order.length; i++)
+			lcMap.put(byIndex[order[i]], i);
+		
+		if (log.isDebugEnabled())
+			log.debug("Reordered {} constraints. Nonzeros in factor of A*A^T: {} before, {} after.",
+					new Object[] {order.length, ordering.getNaturalFactorNonzeros(), ordering.getOrderedFactorNonzeros()});
+	}
+	
+	/**
+	 * Patches the matrices of the previous check out, whose sparsity
+	 * pattern is still valid.
+	 */
+	private void updateMatrices() {
+		for (Variable v : changedObjCoeffs)
+			c.setQuick(varMap.get(v), v.getObjectiveCoefficient());
+		
+		for (LinearConstraint lc : changedConValues)
+			b.setQuick(lcMap.get(lc), lc.getConstrainedValue());
+		
+		if (!changedCoeffCons.isEmpty()) {
+			int[] columnPointers = A.getColumnPointers();
+			int[] rowIndexes = A.getRowIndexes();
+			double[] values = A.getValues();
+			for (int k = 0; k < changedCoeffCons.size(); k++) {
+				LinearConstraint lc = changedCoeffCons.get(k);
+				Variable v = changedCoeffVars.get(k);
+				int row = lcMap.get(lc);
+				int col = varMap.get(v);
+				/* Row indexes are not necessarily sorted, so the column is scanned */
+				for (int p = columnPointers[col]; p < columnPointers[col+1]; p++) {
+					if (rowIndexes[p] == row) {
+						values[p] = lc.getVariables().get(v);
+						break;
+					}
+				}
+			}
+		}
+		
+		if (valuesChanged) {
+			for (Map.Entry<Variable, Integer> v : varMap.entrySet()) {
+				x.setQuick(v.getValue(), v.getKey().getValue());
+				s.setQuick(v.getValue(), v.getKey().getDualValue());
+			}
+			for (Map.Entry<LinearConstraint, Integer> lc : lcMap.entrySet())
+				w.setQuick(lc.getValue(), lc.getKey().getLagrange());
+		}
+	}
+	
+	/**
+	 * Records that a primal value, dual value, or Lagrange multiplier was
+	 * set outside of {@link #checkInMatrices()}.
+	 */
+	void markValuesChanged() {
+		valuesChanged = true;
 	}
 	
 	public void checkInMatrices() {
@@ -217,6 +456,8 @@ public class ConicProgram {
 		}
 		for (Map.Entry<LinearConstraint, Integer> lc : lcMap.entrySet())
 			lc.getKey().setLagrange(w.get(lc.getValue()));
+		/* The checked-out vectors now match the entities */
+		valuesChanged = false;
 		checkedOut = false;
 				
 		notify(ConicProgramEvent.MatricesCheckedIn, null, (Object[]) null);
@@ -224,7 +465,7 @@ public class ConicProgram {
 	
 	public Map<Variable, Integer> getVarMap() {
 		verifyCheckedOut();
-		return Collections.unmodifiableMap(varMap);
+		return varMapView;
 	}
 	
 	public Map<LinearConstraint, Integer> getLcMap() {
@@ -296,6 +537,10 @@ public class ConicProgram {
 		return cons.size();
 	}
 	
+	public boolean isCheckedOut() {
+		return checkedOut;
+	}
+	
 	public void verifyCheckedOut() {
 		if (!checkedOut)
 			throw new IllegalStateException("Matrices are not checked out.");
@@ -456,6 +701,7 @@ public class ConicProgram {
 					numVars--;
 					break;
 				}
+				structureChanged = true;
 			}
 			else
 				throw new IllegalArgumentException(UNEXPECTED_SENDER);
@@ -473,6 +719,7 @@ public class ConicProgram {
 					numVars -= ((SecondOrderCone) sender).getN();
 					break;
 				}
+				structureChanged = true;
 			}
 			else
 				throw new IllegalArgumentException(UNEXPECTED_SENDER);
@@ -490,13 +737,15 @@ public class ConicProgram {
 					numVars -= ((RotatedSecondOrderCone) sender).getN();
 					break;
 				}
+				structureChanged = true;
 			}
 			else
 				throw new IllegalArgumentException(UNEXPECTED_SENDER);
 			break;
 		case ObjCoeffChanged:
 			if (sender instanceof Variable) {
-				/* Intentionally blank */
+				if (!structureChanged)
+					changedObjCoeffs.add((Variable) sender);
 			}
 			else
 				throw new IllegalArgumentException(UNEXPECTED_SENDER);
@@ -508,12 +757,15 @@ public class ConicProgram {
 				switch(e) {
 				case ConCreated:
 					cons.add((LinearConstraint) sender);
+					structureChanged = true;
 					break;
 				case ConValueChanged:
-					/* Intentionally blank */
+					if (!structureChanged)
+						changedConValues.add((LinearConstraint) sender);
 					break;
 				case ConDeleted:
 					cons.remove((LinearConstraint) sender);
+					structureChanged = true;
 				}
 			}
 			else
@@ -522,7 +774,19 @@ public class ConicProgram {
 		case VarAddedToCon:
 		case VarRemovedFromCon:
 			if (sender instanceof LinearConstraint && data.length > 0 && data[0] instanceof Variable) {
-				/* Intentionally blank */
+				structureChanged = true;
+			}
+			else if (sender instanceof LinearConstraint)
+				throw new IllegalArgumentException(UNEXPECTED_DATA);
+			else
+				throw new IllegalArgumentException(UNEXPECTED_SENDER);
+			break;
+		case ConCoeffChanged:
+			if (sender instanceof LinearConstraint && data.length > 0 && data[0] instanceof Variable) {
+				if (!structureChanged) {
+					changedCoeffCons.add((LinearConstraint) sender);
+					changedCoeffVars.add((Variable) data[0]);
+				}
 			}
 			else if (sender instanceof LinearConstraint)
 				throw new IllegalArgumentException(UNEXPECTED_DATA);
@@ -20,10 +20,14 @@ package org.linqs.psl.experimental.optimizer.conic.program;
 abstract public class Entity {
 	protected ConicProgram program;
 	protected int id;
+	
+	/* Position in the HandleList holding this entity, or -1 */
+	int slot;
 
 	Entity(ConicProgram p) {
 		program = p;
 		id = p.getNextID();
+		slot = -1;
 	}
 	
 	abstract void delete();
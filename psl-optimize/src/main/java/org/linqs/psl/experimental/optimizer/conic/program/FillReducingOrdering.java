@@ -0,0 +1,89 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.program;
+
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_amd;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_counts;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_etree;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_permute;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_post;
+
+/**
+ * Fill-reducing order for the linear constraints of a {@link ConicProgram}.
+ * <p>
+ * Interior-point methods factor matrices with the sparsity pattern of
+ * A * A^T, whose graph connects constraints that share a variable. This class
+ * orders the constraints with approximate minimum degree on that graph
+ * and counts the nonzeros of the resulting Cholesky factor.
+ */
+class FillReducingOrdering {
+	
+	private final Dcs At;
+	private final int[] order;
+	
+	/**
+	 * Orders the rows of A.
+	 * 
+	 * @param At  the sparsity pattern of the transpose of A,
+	 *                with one column per linear constraint
+	 */
+	FillReducingOrdering(SparseCCDoubleMatrix2D At) {
+		this.At = At.getDcs();
+		int[] amd = Dcs_amd.cs_amd(3, this.At);
+		if (amd == null)
+			throw new IllegalStateException("Could not compute ordering.");
+		order = new int[this.At.n];
+		System.arraycopy(amd, 0, order, 0, order.length);
+	}
+	
+	/**
+	 * @return the order, such that order[k] is the current index of the
+	 *             constraint placed k-th
+	 */
+	int[] getOrder() {
+		return order;
+	}
+	
+	/**
+	 * @return the number of nonzeros in the Cholesky factor of A * A^T
+	 *             with the rows of A in their current order
+	 */
+	long getNaturalFactorNonzeros() {
+		return countFactorNonzeros(At);
+	}
+	
+	/**
+	 * @return the number of nonzeros in the Cholesky factor of A * A^T
+	 *             with the rows of A in the fill-reducing order
+	 */
+	long getOrderedFactorNonzeros() {
+		return countFactorNonzeros(Dcs_permute.cs_permute(At, null, order, false));
+	}
+	
+	private static long countFactorNonzeros(Dcs C) {
+		int[] parent = Dcs_etree.cs_etree(C, true);
+		int[] post = Dcs_post.cs_post(parent, C.n);
+		int[] counts = Dcs_counts.cs_counts(C, parent, post, true);
+		long nnz = 0;
+		for (int i = 0; i < C.n; i++)
+			nnz += counts[i];
+		return nnz;
+	}
+}
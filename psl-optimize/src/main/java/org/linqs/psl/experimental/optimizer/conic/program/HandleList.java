@@ -0,0 +1,183 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.program;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Set of {@link Entity Entities} backed by an array of slots.
+ * <p>
+ * Each member records its slot, so membership tests and removals are
+ * constant time without hashing. Removed slots are left empty until more
+ * than half of the slots are empty, at which point the members are moved
+ * down, preserving their order. Subclasses that keep parallel arrays indexed
+ * by slot are told about every move via {@link #moved(int, int)}.
+ * <p>
+ * An Entity can be a member of at most one HandleList at a time.
+ */
+class HandleList<E extends Entity> extends AbstractSet<E> {
+	
+	private static final int MIN_EMPTY_SLOTS_TO_COMPACT = 64;
+	
+	private Entity[] handles;
+	private int end;
+	private int size;
+	private int modCount;
+	
+	HandleList() {
+		handles = new Entity[16];
+		end = 0;
+		size = 0;
+		modCount = 0;
+	}
+	
+	/**
+	 * @return one more than the largest slot currently in use
+	 */
+	int getSlotCount() {
+		return end;
+	}
+	
+	@SuppressWarnings("unchecked")
+	E get(int slot) {
+		return (E) handles[slot];
+	}
+	
+	@Override
+	public boolean add(E e) {
+		if (contains(e))
+			return false;
+		else if (e.slot != -1)
+			throw new IllegalArgumentException("Entity already belongs to another collection.");
+		if (end == handles.length)
+			handles = Arrays.copyOf(handles, 2 * handles.length);
+		handles[end] = e;
+		e.slot = end++;
+		size++;
+		modCount++;
+		return true;
+	}
+	
+	@Override
+	public boolean remove(Object o) {
+		if (!contains(o))
+			return false;
+		Entity e = (Entity) o;
+		handles[e.slot] = null;
+		e.slot = -1;
+		size--;
+		modCount++;
+		if (end - size > MIN_EMPTY_SLOTS_TO_COMPACT && end - size > size)
+			compact();
+		return true;
+	}
+	
+	@Override
+	public boolean contains(Object o) {
+		if (o instanceof Entity) {
+			int slot = ((Entity) o).slot;
+			return slot >= 0 && slot < end && handles[slot] == o;
+		}
+		else
+			return false;
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public void clear() {
+		for (int i = 0; i < end; i++)
+			if (handles[i] != null)
+				handles[i].slot = -1;
+		Arrays.fill(handles, 0, end, null);
+		end = 0;
+		size = 0;
+		modCount++;
+	}
+	
+	@Override
+	public Iterator<E> iterator() {
+		return new Iterator<E>() {
+			private int next = advance(0);
+			private int last = -1;
+			private int expectedModCount = modCount;
+			
+			private int advance(int from) {
+				while (from < end && handles[from] == null)
+					from++;
+				return from;
+			}
+			
+			@Override
+			public boolean hasNext() {
+				return next < end;
+			}
+			
+			@Override
+			@SuppressWarnings("unchecked")
+			public E next() {
+				if (modCount != expectedModCount)
+					throw new ConcurrentModificationException();
+				if (next >= end)
+					throw new NoSuchElementException();
+				last = next;
+				next = advance(next + 1);
+				return (E) handles[last];
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+	
+	/**
+	 * Moves all members into the lowest slots, preserving their order.
+	 */
+	void compact() {
+		int to = 0;
+		for (int from = 0; from < end; from++) {
+			if (handles[from] != null) {
+				if (from != to) {
+					handles[to] = handles[from];
+					handles[to].slot = to;
+					moved(from, to);
+				}
+				to++;
+			}
+		}
+		Arrays.fill(handles, to, end, null);
+		end = to;
+		modCount++;
+	}
+	
+	/**
+	 * Called when the member in slot from is moved to slot to during compaction.
+	 */
+	protected void moved(int from, int to) {
+		/* Intentionally blank */
+	}
+}
@@ -34,14 +34,29 @@ public class LinearConstraint extends Entity {
 	
 	LinearConstraint(ConicProgram p) {
 		super(p);
-		vars = new HashMap<Variable, Double>(8);
+		if (p.getStorage() != null)
+			p.getStorage().addRow(this);
+		else
+			vars = new HashMap<Variable, Double>(8);
 		doSetConstrainedValue(0.0);
 		setLagrange(0.0);
 		program.notify(ConicProgramEvent.ConCreated, this);
 	}
 	
+	/*
+	 * A LinearConstraint has a slot while it is a row of a program using
+	 * StorageMode.Columnar. Otherwise, its state is kept in its own fields.
+	 */
+	private boolean isColumnar() {
+		return slot != -1;
+	}
+	
 	public void setVariable(Variable v, Double coefficient) {
 		program.verifyCheckedIn();
+		if (isColumnar()) {
+			setColumnarVariable(v, coefficient);
+			return;
+		}
 		Double currentCoefficient = vars.get(v);
 		if (currentCoefficient != null) {
 			if (coefficient == 0.0) {
@@ -61,12 +76,26 @@ public class LinearConstraint extends Entity {
 		}
 	}
 
+	private void setColumnarVariable(Variable v, double coefficient) {
+		if (v.program != program || v.slot == -1)
+			throw new IllegalArgumentException(UNOWNED_VAR);
+		double currentCoefficient = program.getStorage().setCoefficient(slot, v.slot, coefficient);
+		if (currentCoefficient != 0.0) {
+			if (coefficient == 0.0)
+				program.notify(ConicProgramEvent.VarRemovedFromCon, this, v);
+			else if (coefficient != currentCoefficient)
+				program.notify(ConicProgramEvent.ConCoeffChanged, this, new Object[] {v, currentCoefficient});
+		}
+		else if (coefficient != 0.0)
+			program.notify(ConicProgramEvent.VarAddedToCon, this, v);
+	}
+
 	public Map<Variable, Double> getVariables() {
-		return Collections.unmodifiableMap(vars);
+		return (isColumnar()) ? program.getStorage().getRowView(this) : Collections.unmodifiableMap(vars);
 	}
 
 	public Double getConstrainedValue() {
-		return constrainedValue;
+		return (isColumnar()) ? program.getStorage().getConstrainedValue(slot) : constrainedValue;
 	}
 
 	public void setConstrainedValue(Double v) {
@@ -76,15 +105,22 @@ public class LinearConstraint extends Entity {
 	}
 	
 	private void doSetConstrainedValue(Double v) {
-		constrainedValue = v;
+		if (isColumnar())
+			program.getStorage().setConstrainedValue(slot, v);
+		else
+			constrainedValue = v;
 	}
 	
 	public Double getLagrange() {
-		return lagrange;
+		return (isColumnar()) ? program.getStorage().getLagrange(slot) : lagrange;
 	}
 	
 	void setLagrange(Double l) {
-		lagrange = l;
+		if (isColumnar())
+			program.getStorage().setLagrange(slot, l);
+		else
+			lagrange = l;
+		program.markValuesChanged();
 	}
 	
 	boolean isPrimalFeasible() {
@@ -107,6 +143,13 @@ public class LinearConstraint extends Entity {
 		for (Variable var : originalVars) {
 			setVariable(var, 0.0);
 		}
+		if (isColumnar()) {
+			/* Keeps the final values readable after the row is released */
+			ColumnarStorage storage = program.getStorage();
+			constrainedValue = storage.getConstrainedValue(slot);
+			lagrange = storage.getLagrange(slot);
+			storage.removeRow(this);
+		}
 		program.notify(ConicProgramEvent.ConDeleted, this, Collections.unmodifiableSet(originalVars));
 		vars = null;
 	}
@@ -29,6 +29,8 @@ public class RotatedSecondOrderCone extends Cone {
 	private Set<Variable> vars;
 	private Variable varN;
 	private Variable varNMinus1;
+	private int[] indices;
+	private Map<Variable, Integer> indexMap;
 	
 	RotatedSecondOrderCone(ConicProgram p, int n) {
 		super(p);
@@ -66,6 +68,14 @@ public class RotatedSecondOrderCone extends Cone {
 		return varNMinus1;
 	}
 	
+	/** Returns the variables other than the nth and (n-1)st */
+	public Set<Variable> getInnerVariables() {
+		Set<Variable> set = new HashSet<Variable>(vars);
+		set.remove(varN);
+		set.remove(varNMinus1);
+		return set;
+	}
+	
 	@Override
 	public final void delete() {
 		program.verifyCheckedIn();
@@ -76,147 +86,195 @@ public class RotatedSecondOrderCone extends Cone {
 		vars = null;
 		varN = null;
 		varNMinus1 = null;
+		indices = null;
+		indexMap = null;
+	}
+	
+	/**
+	 * Caches the indices of this cone's variables in a map from variables to
+	 * indices. The inner variables come first, followed by the (n-1)st
+	 * variable and the nth variable.
+	 * <p>
+	 * The kernels below use the cached indices whenever they are passed the
+	 * same map, so the map must not change while it is cached.
+	 */
+	void cacheIndices(Map<Variable, Integer> varMap) {
+		indices = getIndices(varMap);
+		indexMap = varMap;
+	}
+	
+	/*
+	 * Returns the indices of this cone's variables, the inner variables first,
+	 * followed by the (n-1)st variable and the nth variable
+	 */
+	private int[] getIndices(Map<Variable, Integer> varMap) {
+		if (varMap == indexMap)
+			return indices;
+		int[] result = new int[vars.size()];
+		int i = 0;
+		for (Variable v : vars)
+			if (v != varN && v != varNMinus1)
+				result[i++] = varMap.get(v);
+		result[i++] = varMap.get(varNMinus1);
+		result[i] = varMap.get(varN);
+		return result;
 	}
 	
+	/* Returns 2 x_n x_{n-1} - ||x_{1:n-2}||^2 */
+	private static double getDeterminant(int[] indices, DoubleMatrix1D x) {
+		int last = indices.length - 1;
+		double det = 2 * x.getQuick(indices[last]) * x.getQuick(indices[last-1]);
+		for (int j = 0; j < last - 1; j++) {
+			double xj = x.getQuick(indices[j]);
+			det -= xj * xj;
+		}
+		return det;
+	}
+	
+	/**
+	 * Sets g to the gradient of -log(2 x_n x_{n-1} - ||x_{1:n-2}||^2), which
+	 * is c x_{1:n-2} for the inner variables, -c x_{n-1} for the nth variable
+	 * and -c x_n for the (n-1)st, where c = 2 / (2 x_n x_{n-1} - ||x_{1:n-2}||^2).
+	 */
 	public void setBarrierGradient(Map<Variable, Integer> varMap, DoubleMatrix1D x, DoubleMatrix1D g) {
-//		Set<Variable> vars = getVariables();
-//		int[] indices = new int[vars.size()];
-//		Variable varN = getNthVariable();
-//		vars.remove(varN);
-//		int i = 0;
-//		for (Variable v : vars) {
-//			indices[i++] = varMap.get(v);
-//		}
-//		indices[i] = varMap.get(varN);
-//		DoubleMatrix1D xSel = x.viewSelection(indices);
-//		DoubleMatrix1D gSel = g.viewSelection(indices);
-//		double coeff = (double) 2 / (Math.pow(xSel.get(i), 2) - xSel.zDotProduct(xSel, 0, i));
-//		gSel.assign(xSel).assign(DoubleFunctions.mult(coeff));
-//		gSel.set(i, gSel.get(i) * -1);
+		int[] indices = getIndices(varMap);
+		int last = indices.length - 1;
+		double coeff = 2 / getDeterminant(indices, x);
+		for (int j = 0; j < last - 1; j++)
+			g.setQuick(indices[j], coeff * x.getQuick(indices[j]));
+		g.setQuick(indices[last-1], -1 * coeff * x.getQuick(indices[last]));
+		g.setQuick(indices[last], -1 * coeff * x.getQuick(indices[last-1]));
 	}
 	
+	/**
+	 * Sets H to gg' + cK, where g is the barrier gradient,
+	 * c = 2 / (2 x_n x_{n-1} - ||x_{1:n-2}||^2), and K is the identity on the
+	 * inner variables and [0 -1; -1 0] on the (n-1)st and nth variables.
+	 */
 	public void setBarrierHessian(Map<Variable, Integer> varMap, DoubleMatrix1D x, DoubleMatrix2D H) {
-//		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
-//		Set<Variable> vars = getVariables();
-//		int[] indices = new int[vars.size()];
-//		Variable varN = getNthVariable();
-//		vars.remove(varN);
-//		int i = 0;
-//		for (Variable v : vars) {
-//			indices[i++] = varMap.get(v);
-//		}
-//		indices[i] = varMap.get(varN);
-//		DoubleMatrix1D xSel = x.viewSelection(indices).copy();
-//		xSel.set(i, xSel.get(i)*-1);
-//		DoubleMatrix2D HSel = H.viewSelection(indices, indices);
-//		double coeff = (double) 2 / (Math.pow(xSel.get(i), 2) - xSel.zDotProduct(xSel, 0, i));
-//		HSel.assign(alg.multOuter(xSel, xSel, null).assign(DoubleFunctions.mult(Math.pow(coeff, 2))));
-//		for (int j = 0; j < i; j++)
-//			HSel.set(j, j, HSel.get(j, j) + coeff);
-//		HSel.set(i, i, HSel.get(i,i) - coeff);
+		int[] indices = getIndices(varMap);
+		int last = indices.length - 1;
+		double coeff = 2 / getDeterminant(indices, x);
+		double[] g = new double[indices.length];
+		for (int j = 0; j < last - 1; j++)
+			g[j] = coeff * x.getQuick(indices[j]);
+		g[last-1] = -1 * coeff * x.getQuick(indices[last]);
+		g[last] = -1 * coeff * x.getQuick(indices[last-1]);
+		for (int j = 0; j <= last; j++) {
+			for (int k = 0; k <= last; k++) {
+				double value = g[j] * g[k] + coeff * getK(j, k, last);
+				H.setQuick(indices[j], indices[k], value);
+			}
+		}
 	}
 	
+	/**
+	 * Sets Hinv to the inverse of the barrier Hessian, which is
+	 * xx' + (det / 2) K, where det = 2 x_n x_{n-1} - ||x_{1:n-2}||^2 and K is
+	 * the identity on the inner variables and [0 -1; -1 0] on the (n-1)st and
+	 * nth variables.
+	 */
 	public void setBarrierHessianInv(Map<Variable, Integer> varMap, DoubleMatrix1D x, DoubleMatrix2D Hinv) {
-//		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
-//		Set<Variable> vars = getVariables();
-//		int[] indices = new int[vars.size()];
-//		Variable varN = getNthVariable();
-//		vars.remove(varN);
-//		int i = 0;
-//		for (Variable v : vars) {
-//			indices[i++] = varMap.get(v);
-//		}
-//		indices[i] = varMap.get(varN);
-//		DoubleMatrix1D xSel = x.viewSelection(indices).copy();
-//		xSel.set(i, xSel.get(i)*-1);
-//		DoubleMatrix2D HSel = Hinv.viewSelection(indices, indices);
-//		double coeff = (double) 2 / (Math.pow(xSel.get(i), 2) - xSel.zDotProduct(xSel, 0, i));
-//		HSel.assign(alg.multOuter(xSel, xSel, null).assign(DoubleFunctions.mult(Math.pow(coeff, 2))));
-//		for (int j = 0; j < i; j++)
-//			HSel.set(j, j, HSel.get(j, j) + coeff);
-//		HSel.set(i, i, HSel.get(i,i) - coeff);
-//		HSel.assign(alg.inverse(HSel));
+		int[] indices = getIndices(varMap);
+		int last = indices.length - 1;
+		double halfDet = getDeterminant(indices, x) / 2;
+		for (int j = 0; j <= last; j++) {
+			double xj = x.getQuick(indices[j]);
+			for (int k = 0; k <= last; k++) {
+				double value = xj * x.getQuick(indices[k]) + halfDet * getK(j, k, last);
+				Hinv.setQuick(indices[j], indices[k], value);
+			}
+		}
 	}
-
+	
+	/* Returns entry (j, k) of K, where last is the position of the nth variable */
+	private static double getK(int j, int k, int last) {
+		if (j < last - 1 || k < last - 1)
+			return (j == k) ? 1.0 : 0.0;
+		else
+			return (j == k) ? 0.0 : -1.0;
+	}
+	
+	/**
+	 * Returns whether x is in the interior of this cone with a margin.
+	 * <p>
+	 * The cone is the second-order cone with nth variable (x_n + x_{n-1}) / sqrt(2)
+	 * and inner variables x_{1:n-2} and (x_n - x_{n-1}) / sqrt(2), so the margin
+	 * is measured as for {@link SecondOrderCone}s.
+	 */
 	@Override
 	public boolean isInterior(Map<Variable, Integer> varMap, DoubleMatrix1D x) {
-//		Set<Variable> vars = getVariables();
-//		int[] indices = new int[vars.size()];
-//		Variable varN = getNthVariable();
-//		vars.remove(varN);
-//		int i = 0;
-//		for (Variable v : vars) {
-//			indices[i++] = varMap.get(v);
-//		}
-//		indices[i] = varMap.get(varN);
-//		DoubleMatrix1D xSel = x.viewSelection(indices);
-//		return xSel.get(i) > Math.sqrt(xSel.zDotProduct(xSel, 0, i)) + 0.05;
-		return false;
+		int[] indices = getIndices(varMap);
+		int last = indices.length - 1;
+		double u = (x.getQuick(indices[last]) + x.getQuick(indices[last-1])) / Math.sqrt(2);
+		return u > getInnerNorm(indices, x) + 0.05;
 	}
 
+	/**
+	 * Sets d to a direction that moves x into the interior of this cone by
+	 * increasing x_n and x_{n-1} equally.
+	 *
+	 * @see #isInterior(Map, DoubleMatrix1D)
+	 */
 	@Override
 	public void setInteriorDirection(Map<Variable, Integer> varMap, DoubleMatrix1D x,
 			DoubleMatrix1D d) {
-//		Set<Variable> vars = getVariables();
-//		int[] indices = new int[vars.size()];
-//		Variable varN = getNthVariable();
-//		vars.remove(varN);
-//		int i = 0;
-//		for (Variable v : vars) {
-//			indices[i++] = varMap.get(v);
-//		}
-//		indices[i] = varMap.get(varN);
-//		DoubleMatrix1D xSel = x.viewSelection(indices);
-//		DoubleMatrix1D dSel = d.viewSelection(indices);
-//		dSel.assign(0.0);
-//		if (xSel.get(i) <= Math.sqrt(xSel.zDotProduct(xSel, 0, i)) + 0.05)
-//			dSel.set(i, Math.sqrt(xSel.zDotProduct(xSel, 0, i)) + 0.25 - xSel.get(i));
+		int[] indices = getIndices(varMap);
+		int last = indices.length - 1;
+		double innerNorm = getInnerNorm(indices, x);
+		for (int j = 0; j < last - 1; j++)
+			d.setQuick(indices[j], 0.0);
+		double u = (x.getQuick(indices[last]) + x.getQuick(indices[last-1])) / Math.sqrt(2);
+		double du = (u <= innerNorm + 0.05) ? innerNorm + 0.25 - u : 0.0;
+		d.setQuick(indices[last-1], du / Math.sqrt(2));
+		d.setQuick(indices[last], du / Math.sqrt(2));
+	}
+	
+	/* Returns the norm of x_{1:n-2} and (x_n - x_{n-1}) / sqrt(2) */
+	private static double getInnerNorm(int[] indices, DoubleMatrix1D x) {
+		int last = indices.length - 1;
+		double w = (x.getQuick(indices[last]) - x.getQuick(indices[last-1])) / Math.sqrt(2);
+		double normSq = w * w;
+		for (int j = 0; j < last - 1; j++) {
+			double xj = x.getQuick(indices[j]);
+			normSq += xj * xj;
+		}
+		return Math.sqrt(normSq);
 	}
 
+	/**
+	 * Returns the largest step, up to 1, in the direction dx that keeps x in
+	 * the interior of this cone.
+	 * <p>
+	 * The step to the boundary is the smallest positive root of
+	 * 2 (x_n + a dx_n)(x_{n-1} + a dx_{n-1}) - ||x_{1:n-2} + a dx_{1:n-2}||^2,
+	 * and the step is limited as for {@link SecondOrderCone}s.
+	 */
 	@Override
 	public double getMaxStep(Map<Variable, Integer> varMap, DoubleMatrix1D x,
 			DoubleMatrix1D dx) {
-//		Set<Variable> vars = getVariables();
-//		int[] indices = new int[vars.size()];
-//		Variable varN = getNthVariable();
-//		vars.remove(varN);
-//		int i = 0;
-//		for (Variable v : vars) {
-//			indices[i++] = varMap.get(v);
-//		}
-//		indices[i] = varMap.get(varN);
-//		DoubleMatrix1D xSel = x.viewSelection(indices);
-//		DoubleMatrix1D dxSel = dx.viewSelection(indices);
-//		
-//		double a = Math.pow(dxSel.get(i), 2) - dxSel.zDotProduct(dxSel, 0, i);
-//		double b = 2*(dxSel.get(i)*xSel.get(i) - dxSel.zDotProduct(xSel, 0, i));
-//		double c = Math.pow(xSel.get(i), 2) - xSel.zDotProduct(xSel, 0, i);
-//		
-//		double discriminant = Math.pow(b, 2) - 4 * a * c;
-//		if (discriminant > 0) {
-//			double sol1 = (-1 * b + Math.sqrt(discriminant)) / (2 * a);
-//			double sol2 = (-1 * b - Math.sqrt(discriminant)) / (2 * a);
-//			
-//			if (sol1 > 0 && sol2 > 0)
-//				return Math.min(sol1, sol2) * .95;
-//			else if (sol1 > 0)
-//				return sol1 * .95;
-//			else if (sol2 > 0)
-//				return sol2 * .95;
-//			else
-//				return 1.0;
-//		}
-//		else {
-//			double stepSize = 1.0;
-//			while (a * Math.pow(stepSize, 2) + b * stepSize + c <= 0 && stepSize > 0)
-//				stepSize *= 0.5;
-//			
-//			if (stepSize > 0)
-//				return stepSize;
-//			else
-//				throw new IllegalStateException("Stuck.");
-//		}
-		return 0.0;
+		int[] indices = getIndices(varMap);
+		int last = indices.length - 1;
+		double xN = x.getQuick(indices[last]);
+		double xNMinus1 = x.getQuick(indices[last-1]);
+		double dxN = dx.getQuick(indices[last]);
+		double dxNMinus1 = dx.getQuick(indices[last-1]);
+		
+		/* Coefficients of the quadratic a t^2 + b t + c */
+		double a = 2 * dxN * dxNMinus1;
+		double b = 2 * (xN * dxNMinus1 + xNMinus1 * dxN);
+		double c = 2 * xN * xNMinus1;
+		for (int j = 0; j < last - 1; j++) {
+			double xj = x.getQuick(indices[j]);
+			double dxj = dx.getQuick(indices[j]);
+			a -= dxj * dxj;
+			b -= 2 * xj * dxj;
+			c -= xj * xj;
+		}
+		
+		if (xN + xNMinus1 <= 0.0 || c <= 0.0)
+			return 0.0;
+		
+		return SecondOrderCone.getMaxStep(a, b, c);
 	}
 }
-
@@ -23,13 +23,13 @@ import java.util.Set;
 
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
 import cern.colt.matrix.tdouble.DoubleMatrix2D;
-import cern.colt.matrix.tdouble.algo.DenseDoubleAlgebra;
-import cern.jet.math.tdouble.DoubleFunctions;
 
 public class SecondOrderCone extends Cone {
 	
 	private Set<Variable> vars;
 	private Variable varN;
+	private int[] indices;
+	private Map<Variable, Integer> indexMap;
 	
 	SecondOrderCone(ConicProgram p, int n) {
 		super(p);
@@ -74,131 +74,193 @@ public class SecondOrderCone extends Cone {
 		}
 		vars = null;
 		varN = null;
+		indices = null;
+		indexMap = null;
 	}
 	
-	public void setBarrierGradient(Map<Variable, Integer> varMap, DoubleMatrix1D x, DoubleMatrix1D g) {
-		Set<Variable> vars = getVariables();
-		int[] indices = new int[vars.size()];
-		Variable varN = getNthVariable();
-		vars.remove(varN);
+	/**
+	 * Caches the indices of this cone's variables in a map from variables to
+	 * indices. The inner variables come first, followed by the nth variable.
+	 * <p>
+	 * The kernels below use the cached indices whenever they are passed the
+	 * same map, so the map must not change while it is cached.
+	 */
+	void cacheIndices(Map<Variable, Integer> varMap) {
+		indices = getIndices(varMap);
+		indexMap = varMap;
+	}
+	
+	private int[] getIndices(Map<Variable, Integer> varMap) {
+		if (varMap == indexMap)
+			return indices;
+		int[] result = new int[vars.size()];
 		int i = 0;
-		for (Variable v : vars) {
-			indices[i++] = varMap.get(v);
+		for (Variable v : vars)
+			if (v != varN)
+				result[i++] = varMap.get(v);
+		result[i] = varMap.get(varN);
+		return result;
+	}
+	
+	/* Returns x_n^2 - ||x_{1:n-1}||^2 */
+	private static double getDeterminant(int[] indices, DoubleMatrix1D x) {
+		int last = indices.length - 1;
+		double xN = x.getQuick(indices[last]);
+		double det = xN * xN;
+		for (int j = 0; j < last; j++) {
+			double xj = x.getQuick(indices[j]);
+			det -= xj * xj;
 		}
-		indices[i] = varMap.get(varN);
-		DoubleMatrix1D xSel = x.viewSelection(indices);
-		DoubleMatrix1D gSel = g.viewSelection(indices);
-		double coeff = (double) 2 / (Math.pow(xSel.get(i), 2) - xSel.zDotProduct(xSel, 0, i));
-		gSel.assign(xSel).assign(DoubleFunctions.mult(coeff));
-		gSel.set(i, gSel.get(i) * -1);
+		return det;
+	}
+	
+	public void setBarrierGradient(Map<Variable, Integer> varMap, DoubleMatrix1D x, DoubleMatrix1D g) {
+		int[] indices = getIndices(varMap);
+		int last = indices.length - 1;
+		double coeff = 2 / getDeterminant(indices, x);
+		for (int j = 0; j < last; j++)
+			g.setQuick(indices[j], coeff * x.getQuick(indices[j]));
+		g.setQuick(indices[last], -1 * coeff * x.getQuick(indices[last]));
 	}
 	
+	/**
+	 * Sets H to c^2 (Jx)(Jx)' + cJ, where J = diag(1, ..., 1, -1) and
+	 * c = 2 / (x_n^2 - ||x_{1:n-1}||^2).
+	 */
 	public void setBarrierHessian(Map<Variable, Integer> varMap, DoubleMatrix1D x, DoubleMatrix2D H) {
-		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
-		Set<Variable> vars = getVariables();
-		int[] indices = new int[vars.size()];
-		Variable varN = getNthVariable();
-		vars.remove(varN);
-		int i = 0;
-		for (Variable v : vars) {
-			indices[i++] = varMap.get(v);
+		int[] indices = getIndices(varMap);
+		int last = indices.length - 1;
+		double coeff = 2 / getDeterminant(indices, x);
+		double coeffSq = coeff * coeff;
+		for (int j = 0; j <= last; j++) {
+			double xj = (j == last) ? -1 * x.getQuick(indices[j]) : x.getQuick(indices[j]);
+			for (int k = 0; k <= last; k++) {
+				double xk = (k == last) ? -1 * x.getQuick(indices[k]) : x.getQuick(indices[k]);
+				double value = coeffSq * xj * xk;
+				if (j == k)
+					value += (j == last) ? -1 * coeff : coeff;
+				H.setQuick(indices[j], indices[k], value);
+			}
 		}
-		indices[i] = varMap.get(varN);
-		DoubleMatrix1D xSel = x.viewSelection(indices).copy();
-		xSel.set(i, xSel.get(i)*-1);
-		DoubleMatrix2D HSel = H.viewSelection(indices, indices);
-		double coeff = (double) 2 / (Math.pow(xSel.get(i), 2) - xSel.zDotProduct(xSel, 0, i));
-		HSel.assign(alg.multOuter(xSel, xSel, null).assign(DoubleFunctions.mult(Math.pow(coeff, 2))));
-		for (int j = 0; j < i; j++)
-			HSel.set(j, j, HSel.get(j, j) + coeff);
-		HSel.set(i, i, HSel.get(i,i) - coeff);
 	}
 	
+	/**
+	 * Sets Hinv to the inverse of the barrier Hessian, which by the
+	 * Sherman-Morrison formula is xx' + (det / 2) J, where
+	 * J = diag(1, ..., 1, -1) and det = x_n^2 - ||x_{1:n-1}||^2.
+	 */
 	public void setBarrierHessianInv(Map<Variable, Integer> varMap, DoubleMatrix1D x, DoubleMatrix2D Hinv) {
-		DenseDoubleAlgebra alg = new DenseDoubleAlgebra();
-		Set<Variable> vars = getVariables();
-		int[] indices = new int[vars.size()];
-		Variable varN = getNthVariable();
-		vars.remove(varN);
-		int i = 0;
-		for (Variable v : vars) {
-			indices[i++] = varMap.get(v);
+		int[] indices = getIndices(varMap);
+		int last = indices.length - 1;
+		double halfDet = getDeterminant(indices, x) / 2;
+		for (int j = 0; j <= last; j++) {
+			double xj = x.getQuick(indices[j]);
+			for (int k = 0; k <= last; k++) {
+				double value = xj * x.getQuick(indices[k]);
+				if (j == k)
+					value += (j == last) ? -1 * halfDet : halfDet;
+				Hinv.setQuick(indices[j], indices[k], value);
+			}
 		}
-		indices[i] = varMap.get(varN);
-		DoubleMatrix1D xSel = x.viewSelection(indices).copy();
-		xSel.set(i, xSel.get(i)*-1);
-		DoubleMatrix2D HSel = Hinv.viewSelection(indices, indices);
-		double coeff = (double) 2 / (Math.pow(xSel.get(i), 2) - xSel.zDotProduct(xSel, 0, i));
-		HSel.assign(alg.multOuter(xSel, xSel, null).assign(DoubleFunctions.mult(Math.pow(coeff, 2))));
-		for (int j = 0; j < i; j++)
-			HSel.set(j, j, HSel.get(j, j) + coeff);
-		HSel.set(i, i, HSel.get(i,i) - coeff);
-		HSel.assign(alg.inverse(HSel));
 	}
 
 	@Override
 	public boolean isInterior(Map<Variable, Integer> varMap, DoubleMatrix1D x) {
-		Set<Variable> vars = getVariables();
-		int[] indices = new int[vars.size()];
-		Variable varN = getNthVariable();
-		vars.remove(varN);
-		int i = 0;
-		for (Variable v : vars) {
-			indices[i++] = varMap.get(v);
-		}
-		indices[i] = varMap.get(varN);
-		DoubleMatrix1D xSel = x.viewSelection(indices);
-		return xSel.get(i) > Math.sqrt(xSel.zDotProduct(xSel, 0, i)) + 0.05;
+		int[] indices = getIndices(varMap);
+		int last = indices.length - 1;
+		double innerNorm = getInnerNorm(indices, x);
+		return x.getQuick(indices[last]) > innerNorm + 0.05;
 	}
 
 	@Override
 	public void setInteriorDirection(Map<Variable, Integer> varMap, DoubleMatrix1D x,
 			DoubleMatrix1D d) {
-		Set<Variable> vars = getVariables();
-		int[] indices = new int[vars.size()];
-		Variable varN = getNthVariable();
-		vars.remove(varN);
-		int i = 0;
-		for (Variable v : vars) {
-			indices[i++] = varMap.get(v);
+		int[] indices = getIndices(varMap);
+		int last = indices.length - 1;
+		double innerNorm = getInnerNorm(indices, x);
+		for (int j = 0; j < last; j++)
+			d.setQuick(indices[j], 0.0);
+		double xN = x.getQuick(indices[last]);
+		if (xN <= innerNorm + 0.05)
+			d.setQuick(indices[last], innerNorm + 0.25 - xN);
+		else
+			d.setQuick(indices[last], 0.0);
+	}
+	
+	private static double getInnerNorm(int[] indices, DoubleMatrix1D x) {
+		double normSq = 0.0;
+		for (int j = 0; j < indices.length - 1; j++) {
+			double xj = x.getQuick(indices[j]);
+			normSq += xj * xj;
 		}
-		indices[i] = varMap.get(varN);
-		DoubleMatrix1D xSel = x.viewSelection(indices);
-		DoubleMatrix1D dSel = d.viewSelection(indices);
-		dSel.assign(0.0);
-		if (xSel.get(i) <= Math.sqrt(xSel.zDotProduct(xSel, 0, i)) + 0.05)
-			dSel.set(i, Math.sqrt(xSel.zDotProduct(xSel, 0, i)) + 0.25 - xSel.get(i));
+		return Math.sqrt(normSq);
 	}
 
+	/**
+	 * Returns the largest step, up to 1, in the direction dx that keeps x in
+	 * the interior of this cone.
+	 * <p>
+	 * The step to the boundary is the smallest positive root of
+	 * (x_n + a dx_n)^2 - ||x_{1:n-1} + a dx_{1:n-1}||^2. If the full step
+	 * stays inside, 1 is returned. Otherwise 0.95 of the step to the boundary
+	 * is returned, as for {@link NonNegativeOrthantCone}s. If x is not in the
+	 * interior, 0 is returned.
+	 */
 	@Override
 	public double getMaxStep(Map<Variable, Integer> varMap, DoubleMatrix1D x,
 			DoubleMatrix1D dx) {
-		Variable varN = getNthVariable();
-		double xN = x.get(varMap.get(varN));
-		double dxN = dx.get(varMap.get(varN));
-
-		Set<Variable> vars = getVariables();
-		int[] indices = new int[vars.size()-1];
-		vars.remove(varN);
-		int i = 0;
-		for (Variable v : vars) {
-			indices[i++] = varMap.get(v);
-		}
-		DoubleMatrix1D x1NMinus1 = x.viewSelection(indices).copy();
-		DoubleMatrix1D dx1NMinus1 = dx.viewSelection(indices).copy();
+		int[] indices = getIndices(varMap);
+		int last = indices.length - 1;
+		double xN = x.getQuick(indices[last]);
+		double dxN = dx.getQuick(indices[last]);
 		
-		DoubleMatrix1D current = x1NMinus1.copy();
-		current.assign(dx1NMinus1, DoubleFunctions.plus);
+		/* Coefficients of the quadratic a t^2 + b t + c */
+		double a = dxN * dxN;
+		double b = xN * dxN;
+		double c = xN * xN;
+		for (int j = 0; j < last; j++) {
+			double xj = x.getQuick(indices[j]);
+			double dxj = dx.getQuick(indices[j]);
+			a -= dxj * dxj;
+			b -= xj * dxj;
+			c -= xj * xj;
+		}
+		b *= 2;
 		
-		double alpha = 1.0;
+		if (xN <= 0.0 || c <= 0.0)
+			return 0.0;
 		
-		while (xN + dxN <= Math.sqrt(current.zDotProduct(current))) {
-			alpha *= 0.9;
-			dxN *= 0.9;
-			current.assign(x1NMinus1).assign(dx1NMinus1, DoubleFunctions.plusMultSecond(alpha));
+		return getMaxStep(a, b, c);
+	}
+	
+	/**
+	 * Returns the largest step, up to 1, that keeps a t^2 + b t + c positive,
+	 * given that c is positive. If the full step stays inside, 1 is returned.
+	 * Otherwise 0.95 of the smallest positive root is returned.
+	 */
+	public static double getMaxStep(double a, double b, double c) {
+		double boundary = Double.POSITIVE_INFINITY;
+		if (a == 0.0) {
+			if (b < 0.0)
+				boundary = -1 * c / b;
+		}
+		else {
+			double disc = b * b - 4 * a * c;
+			if (disc >= 0.0) {
+				/* Avoids cancellation by computing one root from the other */
+				double q = -0.5 * (b + Math.copySign(Math.sqrt(disc), b));
+				double root1 = q / a;
+				double root2 = c / q;
+				if (root1 > 0.0)
+					boundary = root1;
+				if (root2 > 0.0 && root2 < boundary)
+					boundary = root2;
+			}
 		}
 		
-		return alpha;
+		if (boundary > 1.0)
+			return 1.0;
+		else
+			return boundary * 0.95;
 	}
 }
-
@@ -34,10 +34,21 @@ public class Variable extends Entity {
 	Variable(ConicProgram p, Cone c) {
 		super(p);
 		cone = c;
+		if (p.getStorage() != null)
+			p.getStorage().addColumn(this);
+		else
+			cons = new HashSet<LinearConstraint>(8);
 		setValue(0.5);
 		setDualValue(0.5);
 		doSetObjectiveCoefficient(0.0);
-		cons = new HashSet<LinearConstraint>(8);
+	}
+	
+	/*
+	 * A Variable has a slot while it is a column of a program using
+	 * StorageMode.Columnar. Otherwise, its state is kept in its own fields.
+	 */
+	private boolean isColumnar() {
+		return slot != -1;
 	}
 
 	public Cone getCone() {
@@ -45,23 +56,31 @@ public class Variable extends Entity {
 	}
 	
 	public Double getValue() {
-		return primalValue;
+		return (isColumnar()) ? program.getStorage().getPrimalValue(slot) : primalValue;
 	}
 	
 	void setValue(Double v) {
-		primalValue = v;
+		if (isColumnar())
+			program.getStorage().setPrimalValue(slot, v);
+		else
+			primalValue = v;
+		program.markValuesChanged();
 	}
 	
 	public Double getDualValue() {
-		return dualValue;
+		return (isColumnar()) ? program.getStorage().getDualValue(slot) : dualValue;
 	}
 	
 	void setDualValue(Double v) {
-		dualValue = v;
+		if (isColumnar())
+			program.getStorage().setDualValue(slot, v);
+		else
+			dualValue = v;
+		program.markValuesChanged();
 	}
 	
 	public Double getObjectiveCoefficient() {
-		return objCoeff;
+		return (isColumnar()) ? program.getStorage().getObjectiveCoefficient(slot) : objCoeff;
 	}
 	
 	public void setObjectiveCoefficient(Double c) {
@@ -71,11 +90,14 @@ public class Variable extends Entity {
 	}
 	
 	private void doSetObjectiveCoefficient(Double c) {
-		objCoeff = c;
+		if (isColumnar())
+			program.getStorage().setObjectiveCoefficient(slot, c);
+		else
+			objCoeff = c;
 	}
 	
 	public Set<LinearConstraint> getLinearConstraints() {
-		return Collections.unmodifiableSet(cons);
+		return (isColumnar()) ? program.getStorage().getColumnView(this) : Collections.unmodifiableSet(cons);
 	}
 	
 	void notifyAddedToLinearConstraint(LinearConstraint con) {
@@ -101,10 +123,18 @@ public class Variable extends Entity {
 	
 	@Override
 	final void delete() {
-		Set<LinearConstraint> originalCons = new HashSet<LinearConstraint>(cons);
+		Set<LinearConstraint> originalCons = new HashSet<LinearConstraint>(getLinearConstraints());
 		for (LinearConstraint lc : originalCons) {
 			lc.setVariable(this, 0.0);
 		}
+		if (isColumnar()) {
+			/* Keeps the final values readable after the column is released */
+			ColumnarStorage storage = program.getStorage();
+			primalValue = storage.getPrimalValue(slot);
+			dualValue = storage.getDualValue(slot);
+			objCoeff = storage.getObjectiveCoefficient(slot);
+			storage.removeColumn(this);
+		}
 		cone = null;
 		cons = null;
 	}
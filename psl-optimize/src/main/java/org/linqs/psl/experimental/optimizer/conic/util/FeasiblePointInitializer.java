@@ -35,6 +35,7 @@ import org.linqs.psl.experimental.optimizer.conic.program.ConicProgramListener;
 import org.linqs.psl.experimental.optimizer.conic.program.Entity;
 import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
 import org.linqs.psl.experimental.optimizer.conic.program.NonNegativeOrthantCone;
+import org.linqs.psl.experimental.optimizer.conic.program.RotatedSecondOrderCone;
 import org.linqs.psl.experimental.optimizer.conic.program.SecondOrderCone;
 import org.linqs.psl.experimental.optimizer.conic.program.Variable;
 import org.slf4j.Logger;
@@ -66,10 +67,11 @@ public class FeasiblePointInitializer implements ConicProgramListener {
 	private boolean madePrimalFeasibleOnce;
 	private boolean madeDualFeasibleOnce;
 	
-	private static final ArrayList<ConeType> supportedCones = new ArrayList<ConeType>(2);
+	private static final ArrayList<ConeType> supportedCones = new ArrayList<ConeType>(3);
 	static {
 		supportedCones.add(ConeType.NonNegativeOrthantCone);
 		supportedCones.add(ConeType.SecondOrderCone);
+		supportedCones.add(ConeType.RotatedSecondOrderCone);
 	}
 	
 	// Error messages
@@ -134,6 +136,27 @@ public class FeasiblePointInitializer implements ConicProgramListener {
 			else
 				throw new IllegalArgumentException(UNEXPECTED_SENDER);
 			break;
+		case RSOCCreated:
+		case RSOCDeleted:
+			if (entity instanceof RotatedSecondOrderCone) {
+				RotatedSecondOrderCone rsoc = (RotatedSecondOrderCone) entity;
+				switch (event) {
+				case RSOCCreated:
+					if (madeDualFeasibleOnce)
+						for (Variable v : rsoc.getVariables())
+							dualInfeasible.add(v);
+					break;
+				case RSOCDeleted:
+					for (Variable v : rsoc.getVariables()) {
+						dualInfeasible.remove(v);
+						dualIsolated.remove(v);
+					}
+					break;
+				}
+			}
+			else
+				throw new IllegalArgumentException(UNEXPECTED_SENDER);
+			break;
 		case ObjCoeffChanged:
 			if (entity instanceof Variable) {
 				Variable var = (Variable) entity;
@@ -270,6 +293,11 @@ public class FeasiblePointInitializer implements ConicProgramListener {
 									varInit.put(v2, j++);
 								}
 							}
+							else if (cone instanceof RotatedSecondOrderCone) {
+								for (Variable v2 : ((RotatedSecondOrderCone) cone).getVariables()) {
+									varInit.put(v2, j++);
+								}
+							}
 						}
 					}
 				}
@@ -376,6 +404,9 @@ public class FeasiblePointInitializer implements ConicProgramListener {
 				else if (cone2 instanceof SecondOrderCone) {
 					dualInfeasible.addAll(((SecondOrderCone) cone2).getVariables());
 				}
+				else if (cone2 instanceof RotatedSecondOrderCone) {
+					dualInfeasible.addAll(((RotatedSecondOrderCone) cone2).getVariables());
+				}
 				else
 					throw new IllegalStateException("Unsupported cone type.");
 			}
@@ -415,6 +446,12 @@ public class FeasiblePointInitializer implements ConicProgramListener {
 								varInit.put(socVar, i++);
 							}
 						}
+						else if (cone instanceof RotatedSecondOrderCone) {
+							for (Variable rsocVar : ((RotatedSecondOrderCone) cone).getVariables()) {
+								dualInfeasible.remove(rsocVar);
+								varInit.put(rsocVar, i++);
+							}
+						}
 					}
 				}
 			
@@ -616,6 +653,20 @@ public class FeasiblePointInitializer implements ConicProgramListener {
 					return false;
 				}
 			}
+			else if (cone instanceof RotatedSecondOrderCone) {
+				/* Checks the equivalent SOC with variables (x_n + x_{n-1}) / sqrt(2) and (x_n - x_{n-1}) / sqrt(2) */
+				RotatedSecondOrderCone rsoc = (RotatedSecondOrderCone) cone;
+				double xn = x.get(varInit.get(rsoc.getNthVariable()));
+				double xnMinus1 = x.get(varInit.get(rsoc.getNMinus1stVariable()));
+				double value = Math.pow((xn - xnMinus1) / Math.sqrt(2), 2);
+				for (Variable v : rsoc.getInnerVariables()) {
+					value += Math.pow(x.get(varInit.get(v)), 2);
+				}
+				value = (xn + xnMinus1) / Math.sqrt(2) - Math.sqrt(value);
+				if (value < 0.001) {
+					return false;
+				}
+			}
 			else
 				throw new IllegalStateException();
 		}
@@ -685,6 +736,9 @@ public class FeasiblePointInitializer implements ConicProgramListener {
 				else if (cone instanceof SecondOrderCone) {
 					vars.addAll(((SecondOrderCone) cone).getVariables());
 				}
+				else if (cone instanceof RotatedSecondOrderCone) {
+					vars.addAll(((RotatedSecondOrderCone) cone).getVariables());
+				}
 				else
 					throw new IllegalStateException();
 			}
@@ -724,6 +778,9 @@ public class FeasiblePointInitializer implements ConicProgramListener {
 					else if (cone instanceof SecondOrderCone) {
 						neighbors.addAll(((SecondOrderCone) cone).getVariables());
 					}
+					else if (cone instanceof RotatedSecondOrderCone) {
+						neighbors.addAll(((RotatedSecondOrderCone) cone).getVariables());
+					}
 					else
 						throw new IllegalStateException();
 				}
@@ -17,24 +17,737 @@
  */
 package org.linqs.psl.experimental.optimizer.conic.util;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.linqs.psl.experimental.optimizer.conic.program.Cone;
 import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
 import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
+import org.linqs.psl.experimental.optimizer.conic.program.NonNegativeOrthantCone;
+import org.linqs.psl.experimental.optimizer.conic.program.RotatedSecondOrderCone;
+import org.linqs.psl.experimental.optimizer.conic.program.SecondOrderCone;
+import org.linqs.psl.experimental.optimizer.conic.program.Variable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
 import cern.colt.matrix.tdouble.DoubleMatrix2D;
 import cern.colt.matrix.tdouble.algo.decomposition.SparseDoubleQRDecomposition;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
 
 /**
- * Utility methods for modifying a {@link ConicProgram}.
+ * Reduces a {@link ConicProgram} before it is solved and maps solutions of
+ * the reduced program back to it.
+ * <p>
+ * {@link #checkOutProgram()} builds a smaller program from the checked-out
+ * matrices of the original program. Until no more reductions apply, it
+ * <ul>
+ * <li>removes empty constraints and constraints that are multiples of others,</li>
+ * <li>fixes the variable of a constraint with a single variable,</li>
+ * <li>fixes every variable of a forcing constraint, i.e., one whose
+ * variables are all non-negative with coefficients of the same sign and
+ * whose constrained value is zero,</li>
+ * <li>fixes variables that are in no constraints, and</li>
+ * <li>fixes the more expensive of two variables with proportional columns.</li>
+ * </ul>
+ * Fixed variables are removed and their values substituted into the
+ * remaining constraints. Only variables in {@link NonNegativeOrthantCone}s
+ * are fixed. Other cones are kept whole. Every reduction is driven by work
+ * queues, so after the first pass only constraints and variables that
+ * changed are examined again. Duplicate constraints and columns are found
+ * by hashing their sparsity patterns into buckets that persist across
+ * passes, so the whole reduction takes time nearly linear in the number of
+ * nonzeros of A.
+ * <p>
+ * Once the reduced program is solved and its matrices are checked in,
+ * {@link #checkInProgram()} undoes the reductions in reverse order and writes
+ * primal and dual solutions into the checked-out matrices of the original
+ * program.
+ * <p>
+ * The static {@link #removeRedundantConstraints(ConicProgram)} instead
+ * deletes every linearly dependent constraint, using a QR decomposition.
  * 
  * @author Stephen Bach <bach@cs.umd.edu>
  */
 public class Presolver {
 	
+	private static final Logger log = LoggerFactory.getLogger(Presolver.class);
+	
+	private static final double TOLERANCE = 10e-10;
+	
+	/* Reductions that remove rows, recorded so they can be undone */
+	private static final int EMPTY_ROW = 0;
+	private static final int DUPLICATE_ROW = 1;
+	private static final int SINGLETON_ROW = 2;
+	private static final int FORCING_ROW = 3;
+	
+	private final ConicProgram program;
+	private ConicProgram reducedProgram;
+	private boolean checkedOut;
+	
+	private int m, n;
+	
+	/* The nonzeros of A by column and by row */
+	private int[] columnPointers;
+	private int[] columnRows;
+	private double[] columnValues;
+	private int[] rowPointers;
+	private int[] rowColumns;
+	private double[] rowValues;
+	
+	/* Objective coefficients, and constrained values less the contributions of fixed variables */
+	private double[] c;
+	private double[] b;
+	
+	private boolean[] fixable;
+	private boolean[] rowRemoved;
+	private boolean[] columnRemoved;
+	private int[] rowCounts;
+	private int[] columnCounts;
+	
+	/* Value of each fixed variable, and the row that fixed it or -1 */
+	private double[] fixedValues;
+	private int[] fixingRows;
+	
+	/* Removed rows in the order they were removed, and the reduction that removed each */
+	private int[] removedRows;
+	private int[] rowReductions;
+	private int numRemovedRows;
+	
+	private Deque<Integer> rowQueue;
+	private Deque<Integer> columnQueue;
+	
+	/* Rows and columns whose remaining entries changed since they were last examined */
+	private Deque<Integer> forcingRowQueue;
+	private Deque<Integer> duplicateRowQueue;
+	private Deque<Integer> duplicateColumnQueue;
+	private boolean[] forcingRowQueued;
+	private boolean[] duplicateRowQueued;
+	private boolean[] duplicateColumnQueued;
+	
+	/* Rows and columns bucketed by the hashes of their sparsity patterns when last examined */
+	private Map<Integer, List<Integer>> rowBuckets;
+	private Map<Integer, List<Integer>> columnBuckets;
+	private int[] rowHashes;
+	private int[] columnHashes;
+	private boolean[] rowBucketed;
+	private boolean[] columnBucketed;
+	
+	/* Entities of the reduced program by row and column of A, or null if removed */
+	private LinearConstraint[] reducedConstraints;
+	private Variable[] reducedVariables;
+	
+	public Presolver(ConicProgram program) {
+		this.program = program;
+		checkedOut = false;
+	}
+	
+	public ConicProgram getReducedProgram() {
+		return reducedProgram;
+	}
+	
+	public void verifyCheckedOut() {
+		if (!checkedOut)
+			throw new IllegalStateException("Reduced program is not checked out.");
+	}
+	
+	public void verifyCheckedIn() {
+		if (checkedOut)
+			throw new IllegalStateException("Reduced program is not checked in.");
+	}
+	
+	/**
+	 * Builds a new reduced program from the checked-out matrices of the
+	 * original program.
+	 * 
+	 * @throws IllegalStateException  if the reductions show that the program
+	 *                                is infeasible or unbounded
+	 */
+	public void checkOutProgram() {
+		verifyCheckedIn();
+		program.verifyCheckedOut();
+		
+		initialize();
+		
+		int numReductions;
+		do {
+			numReductions = removeSingletons();
+			numReductions += removeForcingRows();
+			numReductions += removeDuplicateRows();
+			numReductions += removeDuplicateColumns();
+		} while (numReductions > 0);
+		
+		buildReducedProgram();
+		
+		log.debug("Presolved {} variables and {} constraints to {} variables and {} constraints.",
+				new Object[] {n, m, reducedProgram.getNumVariables(), reducedProgram.getNumLinearConstraints()});
+		
+		checkedOut = true;
+	}
+	
+	/**
+	 * Writes the solution of the reduced program, extended to the removed
+	 * variables and constraints, into the checked-out matrices of the original
+	 * program. Must be called before they are checked in.
+	 */
+	public void checkInProgram() {
+		verifyCheckedOut();
+		reducedProgram.verifyCheckedIn();
+		program.verifyCheckedOut();
+		
+		DoubleMatrix1D x = program.getX();
+		DoubleMatrix1D w = program.getW();
+		DoubleMatrix1D s = program.getS();
+		
+		double[] multipliers = new double[m];
+		for (int i = 0; i < m; i++)
+			if (reducedConstraints[i] != null)
+				multipliers[i] = reducedConstraints[i].getLagrange();
+		
+		/*
+		 * Recovers the multipliers of removed rows in reverse order. Empty and
+		 * duplicate rows keep multipliers of zero.
+		 */
+		for (int r = numRemovedRows - 1; r >= 0; r--)
+			if (rowReductions[r] == SINGLETON_ROW || rowReductions[r] == FORCING_ROW)
+				multipliers[removedRows[r]] = getRowMultiplier(removedRows[r], multipliers);
+		
+		for (int j = 0; j < n; j++) {
+			if (reducedVariables[j] != null) {
+				x.setQuick(j, reducedVariables[j].getValue());
+				s.setQuick(j, reducedVariables[j].getDualValue());
+			}
+			else {
+				x.setQuick(j, fixedValues[j]);
+				s.setQuick(j, getDualSlack(j, -1, multipliers));
+			}
+		}
+		for (int i = 0; i < m; i++)
+			w.setQuick(i, multipliers[i]);
+		
+		checkedOut = false;
+	}
+	
+	private void initialize() {
+		SparseCCDoubleMatrix2D A = program.getA();
+		Dcs a = A.getDcs();
+		m = A.rows();
+		n = A.columns();
+		
+		/* Copies the nonzeros of A by column, dropping explicit zeros */
+		columnPointers = new int[n + 1];
+		for (int j = 0; j < n; j++) {
+			columnPointers[j+1] = columnPointers[j];
+			for (int p = a.p[j]; p < a.p[j+1]; p++)
+				if (a.x[p] != 0.0)
+					columnPointers[j+1]++;
+		}
+		int nnz = columnPointers[n];
+		columnRows = new int[nnz];
+		columnValues = new double[nnz];
+		rowPointers = new int[m + 1];
+		int next = 0;
+		for (int j = 0; j < n; j++) {
+			for (int p = a.p[j]; p < a.p[j+1]; p++) {
+				if (a.x[p] != 0.0) {
+					columnRows[next] = a.i[p];
+					columnValues[next++] = a.x[p];
+					rowPointers[a.i[p] + 1]++;
+				}
+			}
+		}
+		
+		/* Transposes them, so the columns in each row are in increasing order */
+		for (int i = 0; i < m; i++)
+			rowPointers[i+1] += rowPointers[i];
+		rowColumns = new int[nnz];
+		rowValues = new double[nnz];
+		int[] nextInRow = Arrays.copyOf(rowPointers, m);
+		for (int j = 0; j < n; j++) {
+			for (int p = columnPointers[j]; p < columnPointers[j+1]; p++) {
+				int q = nextInRow[columnRows[p]]++;
+				rowColumns[q] = j;
+				rowValues[q] = columnValues[p];
+			}
+		}
+		
+		b = program.getB().toArray();
+		c = program.getC().toArray();
+		
+		fixable = new boolean[n];
+		for (Map.Entry<Variable, Integer> e : program.getVarMap().entrySet())
+			fixable[e.getValue()] = e.getKey().getCone() instanceof NonNegativeOrthantCone;
+		
+		rowRemoved = new boolean[m];
+		columnRemoved = new boolean[n];
+		rowCounts = new int[m];
+		columnCounts = new int[n];
+		for (int i = 0; i < m; i++)
+			rowCounts[i] = rowPointers[i+1] - rowPointers[i];
+		for (int j = 0; j < n; j++)
+			columnCounts[j] = columnPointers[j+1] - columnPointers[j];
+		
+		fixedValues = new double[n];
+		fixingRows = new int[n];
+		Arrays.fill(fixingRows, -1);
+		removedRows = new int[m];
+		rowReductions = new int[m];
+		numRemovedRows = 0;
+		
+		rowQueue = new ArrayDeque<Integer>();
+		columnQueue = new ArrayDeque<Integer>();
+		for (int i = 0; i < m; i++)
+			if (rowCounts[i] <= 1)
+				rowQueue.add(i);
+		for (int j = 0; j < n; j++)
+			if (columnCounts[j] == 0)
+				columnQueue.add(j);
+		
+		forcingRowQueue = new ArrayDeque<Integer>();
+		duplicateRowQueue = new ArrayDeque<Integer>();
+		duplicateColumnQueue = new ArrayDeque<Integer>();
+		forcingRowQueued = new boolean[m];
+		duplicateRowQueued = new boolean[m];
+		duplicateColumnQueued = new boolean[n];
+		for (int i = 0; i < m; i++)
+			queueRow(i);
+		for (int j = 0; j < n; j++)
+			queueColumn(j);
+		
+		rowBuckets = new HashMap<Integer, List<Integer>>();
+		columnBuckets = new HashMap<Integer, List<Integer>>();
+		rowHashes = new int[m];
+		columnHashes = new int[n];
+		rowBucketed = new boolean[m];
+		columnBucketed = new boolean[n];
+	}
+	
+	/*
+	 * Removes empty and singleton rows and fixes variables in no remaining
+	 * rows until the work queues are empty
+	 */
+	private int removeSingletons() {
+		int numReductions = 0;
+		while (!rowQueue.isEmpty() || !columnQueue.isEmpty()) {
+			while (!rowQueue.isEmpty()) {
+				int i = rowQueue.poll();
+				if (rowRemoved[i] || rowCounts[i] > 1)
+					continue;
+				
+				if (rowCounts[i] == 0) {
+					if (Math.abs(b[i]) > TOLERANCE)
+						throw new IllegalStateException("Program is infeasible."
+								+ " A constraint without variables has a nonzero constrained value.");
+					removeRow(i, EMPTY_ROW);
+					numReductions++;
+				}
+				else {
+					int q = nextInRow(i, rowPointers[i]);
+					int j = rowColumns[q];
+					if (!fixable[j])
+						continue;
+					double value = b[i] / rowValues[q];
+					if (value < -1 * TOLERANCE)
+						throw new IllegalStateException("Program is infeasible."
+								+ " A constraint requires a non-negative variable to be negative.");
+					removeRow(i, SINGLETON_ROW);
+					fixColumn(j, Math.max(value, 0.0), i);
+					numReductions++;
+				}
+			}
+			
+			while (!columnQueue.isEmpty()) {
+				int j = columnQueue.poll();
+				if (columnRemoved[j] || columnCounts[j] > 0 || !fixable[j])
+					continue;
+				if (c[j] < 0.0)
+					throw new IllegalStateException("Program is unbounded."
+							+ " A non-negative variable with a negative objective coefficient is in no constraints.");
+				fixColumn(j, 0.0, -1);
+				numReductions++;
+			}
+		}
+		return numReductions;
+	}
+	
+	/*
+	 * Removes rows whose variables are all non-negative with coefficients of
+	 * the same sign. Their constrained values bound the variables, and if a
+	 * constrained value is zero, every variable in its row is fixed at zero.
+	 * Only rows that changed since they were last examined are checked.
+	 */
+	private int removeForcingRows() {
+		int numReductions = 0;
+		while (!forcingRowQueue.isEmpty()) {
+			int i = forcingRowQueue.poll();
+			forcingRowQueued[i] = false;
+			if (rowRemoved[i] || rowCounts[i] < 2)
+				continue;
+			
+			int sign = 0;
+			for (int q = nextInRow(i, rowPointers[i]); q < rowPointers[i+1]; q = nextInRow(i, q + 1)) {
+				int entrySign = (rowValues[q] > 0.0) ? 1 : -1;
+				if (!fixable[rowColumns[q]] || (sign != 0 && sign != entrySign)) {
+					sign = 0;
+					break;
+				}
+				sign = entrySign;
+			}
+			if (sign == 0)
+				continue;
+			
+			if (sign * b[i] < -1 * TOLERANCE)
+				throw new IllegalStateException("Program is infeasible."
+						+ " A constraint requires non-negative variables to be negative.");
+			if (Math.abs(b[i]) <= TOLERANCE) {
+				removeRow(i, FORCING_ROW);
+				for (int q = nextInRow(i, rowPointers[i]); q < rowPointers[i+1]; q = nextInRow(i, q + 1))
+					fixColumn(rowColumns[q], 0.0, i);
+				numReductions++;
+			}
+		}
+		return numReductions;
+	}
+	
+	/*
+	 * Removes rows that are multiples of other rows. Rows are bucketed by a
+	 * hash of their remaining sparsity patterns, and only rows in the same
+	 * bucket are compared. Only rows that changed since they were last
+	 * examined are rehashed and compared, since two unchanged rows that were
+	 * not multiples of each other still are not.
+	 */
+	private int removeDuplicateRows() {
+		int numReductions = 0;
+		while (!duplicateRowQueue.isEmpty()) {
+			int i = duplicateRowQueue.poll();
+			duplicateRowQueued[i] = false;
+			if (rowBucketed[i]) {
+				removeFromBucket(rowBuckets, rowHashes[i], i);
+				rowBucketed[i] = false;
+			}
+			if (rowRemoved[i] || rowCounts[i] == 0)
+				continue;
+			
+			int hash = rowCounts[i];
+			for (int q = nextInRow(i, rowPointers[i]); q < rowPointers[i+1]; q = nextInRow(i, q + 1))
+				hash = 31 * hash + rowColumns[q];
+			
+			List<Integer> bucket = getBucket(rowBuckets, hash);
+			
+			boolean duplicate = false;
+			for (Iterator<Integer> itr = bucket.iterator(); itr.hasNext(); ) {
+				int k = itr.next();
+				if (rowRemoved[k]) {
+					itr.remove();
+					rowBucketed[k] = false;
+					continue;
+				}
+				double ratio = getRowRatio(i, k);
+				if (!Double.isNaN(ratio)) {
+					if (Math.abs(b[i] - ratio * b[k]) > TOLERANCE * Math.max(1.0, Math.abs(b[i])))
+						throw new IllegalStateException("Program is infeasible."
+								+ " Two constraints are multiples of each other, but their constrained values are not.");
+					removeRow(i, DUPLICATE_ROW);
+					numReductions++;
+					duplicate = true;
+					break;
+				}
+			}
+			if (!duplicate) {
+				bucket.add(i);
+				rowHashes[i] = hash;
+				rowBucketed[i] = true;
+			}
+		}
+		return numReductions;
+	}
+	
+	/*
+	 * Fixes at zero the more expensive of two non-negative variables whose
+	 * remaining columns are positive multiples of each other. If column j is
+	 * r times column k, then x_j can be replaced by r x_j more of x_k, so x_j
+	 * is not needed if c_j >= r c_k, and x_k is not needed otherwise. Like
+	 * rows, only columns that changed since they were last examined are
+	 * rehashed and compared.
+	 */
+	private int removeDuplicateColumns() {
+		int numReductions = 0;
+		double[] work = null;
+		while (!duplicateColumnQueue.isEmpty()) {
+			int j = duplicateColumnQueue.poll();
+			duplicateColumnQueued[j] = false;
+			if (columnBucketed[j]) {
+				removeFromBucket(columnBuckets, columnHashes[j], j);
+				columnBucketed[j] = false;
+			}
+			if (columnRemoved[j] || columnCounts[j] == 0)
+				continue;
+			
+			/* Sums the hashes of the rows, since the rows of a column are not sorted */
+			int hash = columnCounts[j];
+			for (int p = nextInColumn(j, columnPointers[j]); p < columnPointers[j+1]; p = nextInColumn(j, p + 1))
+				hash += mix(columnRows[p]);
+			
+			List<Integer> bucket = getBucket(columnBuckets, hash);
+			if (work == null)
+				work = new double[m];
+			
+			boolean duplicate = false;
+			for (int index = 0; index < bucket.size(); index++) {
+				int k = bucket.get(index);
+				if (columnRemoved[k]) {
+					bucket.remove(index--);
+					columnBucketed[k] = false;
+					continue;
+				}
+				double ratio = getColumnRatio(j, k, work);
+				if (ratio > 0.0) {
+					if (c[j] >= ratio * c[k]) {
+						fixColumn(j, 0.0, -1);
+					}
+					else {
+						fixColumn(k, 0.0, -1);
+						bucket.set(index, j);
+						columnBucketed[k] = false;
+						columnHashes[j] = hash;
+						columnBucketed[j] = true;
+					}
+					numReductions++;
+					duplicate = true;
+					break;
+				}
+			}
+			if (!duplicate) {
+				bucket.add(j);
+				columnHashes[j] = hash;
+				columnBucketed[j] = true;
+			}
+		}
+		return numReductions;
+	}
+	
+	private static List<Integer> getBucket(Map<Integer, List<Integer>> buckets, int hash) {
+		List<Integer> bucket = buckets.get(hash);
+		if (bucket == null) {
+			bucket = new ArrayList<Integer>(1);
+			buckets.put(hash, bucket);
+		}
+		return bucket;
+	}
+	
+	private static void removeFromBucket(Map<Integer, List<Integer>> buckets, int hash, int index) {
+		List<Integer> bucket = buckets.get(hash);
+		if (bucket != null) {
+			bucket.remove(Integer.valueOf(index));
+			if (bucket.isEmpty())
+				buckets.remove(hash);
+		}
+	}
+	
+	/* Queues row i to be examined again for the forcing and duplicate row reductions */
+	private void queueRow(int i) {
+		if (!forcingRowQueued[i]) {
+			forcingRowQueued[i] = true;
+			forcingRowQueue.add(i);
+		}
+		if (!duplicateRowQueued[i]) {
+			duplicateRowQueued[i] = true;
+			duplicateRowQueue.add(i);
+		}
+	}
+	
+	/* Queues column j to be examined again for the duplicate column reduction */
+	private void queueColumn(int j) {
+		if (fixable[j] && !duplicateColumnQueued[j]) {
+			duplicateColumnQueued[j] = true;
+			duplicateColumnQueue.add(j);
+		}
+	}
+	
+	private void removeRow(int i, int reduction) {
+		rowRemoved[i] = true;
+		removedRows[numRemovedRows] = i;
+		rowReductions[numRemovedRows++] = reduction;
+		for (int q = nextInRow(i, rowPointers[i]); q < rowPointers[i+1]; q = nextInRow(i, q + 1)) {
+			if (--columnCounts[rowColumns[q]] == 0)
+				columnQueue.add(rowColumns[q]);
+			queueColumn(rowColumns[q]);
+		}
+	}
+	
+	private void fixColumn(int j, double value, int fixingRow) {
+		columnRemoved[j] = true;
+		fixedValues[j] = value;
+		fixingRows[j] = fixingRow;
+		for (int p = nextInColumn(j, columnPointers[j]); p < columnPointers[j+1]; p = nextInColumn(j, p + 1)) {
+			int i = columnRows[p];
+			b[i] -= columnValues[p] * value;
+			if (--rowCounts[i] <= 1)
+				rowQueue.add(i);
+			queueRow(i);
+		}
+	}
+	
+	/* Returns the position of the first remaining entry of row i at or after q */
+	private int nextInRow(int i, int q) {
+		while (q < rowPointers[i+1] && columnRemoved[rowColumns[q]])
+			q++;
+		return q;
+	}
+	
+	/* Returns the position of the first remaining entry of column j at or after p */
+	private int nextInColumn(int j, int p) {
+		while (p < columnPointers[j+1] && rowRemoved[columnRows[p]])
+			p++;
+		return p;
+	}
+	
+	/* Returns r such that the remaining row i is r times the remaining row k, or NaN if there is none */
+	private double getRowRatio(int i, int k) {
+		if (rowCounts[i] != rowCounts[k])
+			return Double.NaN;
+		
+		double ratio = Double.NaN;
+		int q = nextInRow(i, rowPointers[i]);
+		int r = nextInRow(k, rowPointers[k]);
+		while (q < rowPointers[i+1]) {
+			if (rowColumns[q] != rowColumns[r])
+				return Double.NaN;
+			if (Double.isNaN(ratio))
+				ratio = rowValues[q] / rowValues[r];
+			else if (Math.abs(rowValues[q] - ratio * rowValues[r]) > TOLERANCE * Math.abs(rowValues[q]))
+				return Double.NaN;
+			q = nextInRow(i, q + 1);
+			r = nextInRow(k, r + 1);
+		}
+		return ratio;
+	}
+	
+	/*
+	 * Returns r such that the remaining column j is r times the remaining
+	 * column k, or NaN if there is none. Work must be all zeros and is left so.
+	 */
+	private double getColumnRatio(int j, int k, double[] work) {
+		if (columnCounts[j] != columnCounts[k])
+			return Double.NaN;
+		
+		for (int p = nextInColumn(k, columnPointers[k]); p < columnPointers[k+1]; p = nextInColumn(k, p + 1))
+			work[columnRows[p]] = columnValues[p];
+		
+		double ratio = Double.NaN;
+		for (int p = nextInColumn(j, columnPointers[j]); p < columnPointers[j+1]; p = nextInColumn(j, p + 1)) {
+			double akj = work[columnRows[p]];
+			if (akj == 0.0) {
+				ratio = Double.NaN;
+				break;
+			}
+			if (Double.isNaN(ratio))
+				ratio = columnValues[p] / akj;
+			else if (Math.abs(columnValues[p] - ratio * akj) > TOLERANCE * Math.abs(columnValues[p])) {
+				ratio = Double.NaN;
+				break;
+			}
+		}
+		
+		for (int p = nextInColumn(k, columnPointers[k]); p < columnPointers[k+1]; p = nextInColumn(k, p + 1))
+			work[columnRows[p]] = 0.0;
+		
+		return ratio;
+	}
+	
+	private static int mix(int i) {
+		int h = i * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+	
+	private void buildReducedProgram() {
+		Map<Variable, Integer> varMap = program.getVarMap();
+		reducedProgram = new ConicProgram(program.getStorageMode());
+		reducedVariables = new Variable[n];
+		reducedConstraints = new LinearConstraint[m];
+		
+		for (Cone cone : program.getCones()) {
+			if (cone instanceof NonNegativeOrthantCone) {
+				int j = varMap.get(((NonNegativeOrthantCone) cone).getVariable());
+				if (!columnRemoved[j])
+					reducedVariables[j] = reducedProgram.createNonNegativeOrthantCone().getVariable();
+			}
+			else if (cone instanceof SecondOrderCone) {
+				SecondOrderCone soc = (SecondOrderCone) cone;
+				SecondOrderCone reducedSOC = reducedProgram.createSecondOrderCone(soc.getN());
+				reducedVariables[varMap.get(soc.getNthVariable())] = reducedSOC.getNthVariable();
+				mapInnerVariables(varMap, soc.getInnerVariables(), reducedSOC.getInnerVariables());
+			}
+			else if (cone instanceof RotatedSecondOrderCone) {
+				RotatedSecondOrderCone rsoc = (RotatedSecondOrderCone) cone;
+				RotatedSecondOrderCone reducedRSOC = reducedProgram.createRotatedSecondOrderCone(rsoc.getN());
+				reducedVariables[varMap.get(rsoc.getNthVariable())] = reducedRSOC.getNthVariable();
+				reducedVariables[varMap.get(rsoc.getNMinus1stVariable())] = reducedRSOC.getNMinus1stVariable();
+				mapInnerVariables(varMap, rsoc.getInnerVariables(), reducedRSOC.getInnerVariables());
+			}
+			else
+				throw new IllegalStateException("Unsupported cone type.");
+		}
+		
+		for (int j = 0; j < n; j++)
+			if (reducedVariables[j] != null)
+				reducedVariables[j].setObjectiveCoefficient(c[j]);
+		
+		for (int i = 0; i < m; i++) {
+			if (!rowRemoved[i]) {
+				LinearConstraint con = reducedProgram.createConstraint();
+				con.setConstrainedValue(b[i]);
+				for (int q = nextInRow(i, rowPointers[i]); q < rowPointers[i+1]; q = nextInRow(i, q + 1))
+					con.setVariable(reducedVariables[rowColumns[q]], rowValues[q]);
+				reducedConstraints[i] = con;
+			}
+		}
+	}
+	
+	/* Pairs the inner variables of a cone with those of its copy, which are interchangeable */
+	private void mapInnerVariables(Map<Variable, Integer> varMap, Set<Variable> vars, Set<Variable> reducedVars) {
+		Iterator<Variable> itr = reducedVars.iterator();
+		for (Variable v : vars)
+			reducedVariables[varMap.get(v)] = itr.next();
+	}
+	
+	/*
+	 * Returns the multiplier of a singleton or forcing row i that makes the
+	 * dual slacks of the variables it fixed non-negative, with the tightest
+	 * one at zero. For a singleton row, that is the slack of its only variable.
+	 */
+	private double getRowMultiplier(int i, double[] multipliers) {
+		double multiplier = Double.NaN;
+		for (int q = rowPointers[i]; q < rowPointers[i+1]; q++) {
+			if (fixingRows[rowColumns[q]] != i)
+				continue;
+			double bound = getDualSlack(rowColumns[q], i, multipliers) / rowValues[q];
+			if (Double.isNaN(multiplier)
+					|| (rowValues[q] > 0.0 && bound < multiplier)
+					|| (rowValues[q] < 0.0 && bound > multiplier))
+				multiplier = bound;
+		}
+		return multiplier;
+	}
+	
+	/* Returns c_j - A_j' w, leaving out row skip */
+	private double getDualSlack(int j, int skip, double[] multipliers) {
+		double slack = c[j];
+		for (int p = columnPointers[j]; p < columnPointers[j+1]; p++)
+			if (columnRows[p] != skip)
+				slack -= columnValues[p] * multipliers[columnRows[p]];
+		return slack;
+	}
+	
 	/**
 	 * Deletes any redundant constraints from a {@link ConicProgram}.
 	 * 
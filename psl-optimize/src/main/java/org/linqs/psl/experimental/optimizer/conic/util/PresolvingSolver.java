@@ -0,0 +1,95 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.util;
+
+import java.util.Collection;
+
+import org.linqs.psl.config.Config;
+import org.linqs.psl.experimental.optimizer.conic.ConicProgramSolver;
+import org.linqs.psl.experimental.optimizer.conic.program.ConeType;
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+
+/**
+ * Solves a {@link ConicProgram} by presolving it with a {@link Presolver}
+ * and passing the reduced program to another {@link ConicProgramSolver}.
+ * <p>
+ * The reduced program is rebuilt for each call to {@link #solve()}, so the
+ * other solver cannot warm start from its previous solution.
+ */
+public class PresolvingSolver implements ConicProgramSolver {
+
+	/**
+	 * Prefix of property keys used by this class.
+	 */
+	public static final String CONFIG_PREFIX = "presolvingsolver";
+
+	/**
+	 * Key for {@link ConicProgramSolver} or fully qualified name property.
+	 * Will be used to solve the reduced programs.
+	 */
+	public static final String SOLVER_KEY = CONFIG_PREFIX + ".solver";
+	/** Default value for SOLVER_KEY property */
+	public static final String SOLVER_DEFAULT = "org.linqs.psl.experimental.optimizer.conic.ipm.HomogeneousIPM";
+
+	private final ConicProgramSolver solver;
+	private ConicProgram program;
+	private Presolver presolver;
+
+	public PresolvingSolver() {
+		solver = (ConicProgramSolver) Config.getNewObject(SOLVER_KEY, SOLVER_DEFAULT);
+	}
+
+	@Override
+	public void setConicProgram(ConicProgram p) {
+		program = p;
+		presolver = new Presolver(p);
+	}
+
+	@Override
+	public void solve() {
+		if (program == null)
+			throw new IllegalStateException("No conic program has been set.");
+
+		boolean solved = false;
+		program.checkOutMatrices();
+		try {
+			presolver.checkOutProgram();
+
+			ConicProgram reducedProgram = presolver.getReducedProgram();
+			if (reducedProgram.getNumVariables() > 0) {
+				solver.setConicProgram(reducedProgram);
+				solver.solve();
+			}
+
+			presolver.checkInProgram();
+			solved = true;
+		}
+		finally {
+			program.checkInMatrices();
+
+			/* Discards a reduced program left checked out by a failed solve */
+			if (!solved)
+				presolver = new Presolver(program);
+		}
+	}
+
+	@Override
+	public boolean supportsConeTypes(Collection<ConeType> types) {
+		return solver.supportsConeTypes(types);
+	}
+}
@@ -30,6 +30,7 @@ import org.junit.Test;
 import org.linqs.psl.experimental.optimizer.conic.ConicProgramSolver;
 import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
 import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
+import org.linqs.psl.experimental.optimizer.conic.program.RotatedSecondOrderCone;
 import org.linqs.psl.experimental.optimizer.conic.program.SecondOrderCone;
 import org.linqs.psl.experimental.optimizer.conic.program.Variable;
 
@@ -75,6 +76,7 @@ abstract public class ConicProgramSolverContractTest {
 			solver = itr.next();
 			addLP();
 			addSOCP();
+			addRSOCP();
 			
 			for (int i = 0; i < programs.size(); i++) {
 				program = programs.get(i);
@@ -455,4 +457,40 @@ abstract public class ConicProgramSolverContractTest {
 		
 		solutions.add(solution);
 	}
+	
+	private void addRSOCP() {
+		ConicProgram program = new ConicProgram();
+		
+		/* Minimizes x1 subject to 2 * x1 * x2 >= y^2, x2 <= 0.5 and y = 1 */
+		
+		RotatedSecondOrderCone rsoc = program.createRotatedSecondOrderCone(3);
+		Variable x1 = rsoc.getNthVariable();
+		Variable x2 = rsoc.getNMinus1stVariable();
+		Variable y = rsoc.getInnerVariables().iterator().next();
+		Variable s = program.createNonNegativeOrthantCone().getVariable();
+		
+		LinearConstraint c1 = program.createConstraint();
+		c1.setVariable(x2, 1.0);
+		c1.setVariable(s, 1.0);
+		c1.setConstrainedValue(0.5);
+		
+		LinearConstraint c2 = program.createConstraint();
+		c2.setVariable(y, 1.0);
+		c2.setConstrainedValue(1.0);
+		
+		x1.setObjectiveCoefficient(1.0);
+		x2.setObjectiveCoefficient(0.0);
+		y.setObjectiveCoefficient(0.0);
+		s.setObjectiveCoefficient(0.0);
+		
+		programs.add(program);
+		
+		Map<Variable, Double> solution = new HashMap<Variable, Double>();
+		solution.put(x1, 1.0);
+		solution.put(x2, 0.5);
+		solution.put(y, 1.0);
+		solution.put(s, 0.0);
+		
+		solutions.add(solution);
+	}
 }
@@ -0,0 +1,139 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.linqs.psl.experimental.optimizer.conic.program.Cone;
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+import org.linqs.psl.experimental.optimizer.conic.program.RotatedSecondOrderCone;
+import org.linqs.psl.experimental.optimizer.conic.program.SecondOrderCone;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+
+public class ConeLayoutTest {
+	
+	private ConicProgram program;
+	private ConeLayout layout;
+	private DoubleMatrix1D x;
+	private int n;
+
+	@Before
+	public void setUp() {
+		program = new ConicProgram();
+		program.createNonNegativeOrthantCone();
+		program.createNonNegativeOrthantCone();
+		SecondOrderCone soc = program.createSecondOrderCone(3);
+		program.createSecondOrderCone(2);
+		RotatedSecondOrderCone rsoc = program.createRotatedSecondOrderCone(4);
+		
+		program.checkOutMatrices();
+		layout = new ConeLayout(program);
+		
+		x = program.getX();
+		n = (int) x.size();
+		for (int i = 0; i < n; i++)
+			x.set(i, 0.5 + 0.1 * i);
+		for (SecondOrderCone cone : program.getSecondOrderCones())
+			x.set(program.getIndex(cone.getNthVariable()), 3.0);
+		x.set(program.getIndex(soc.getInnerVariables().iterator().next()), -1.0);
+		x.set(program.getIndex(rsoc.getNthVariable()), 3.0);
+		x.set(program.getIndex(rsoc.getNMinus1stVariable()), 2.0);
+	}
+
+	@Test
+	public void testBarrierMatchesCones() {
+		DoubleMatrix1D g = new DenseDoubleMatrix1D(n);
+		DoubleMatrix2D H = new DenseDoubleMatrix2D(n, n);
+		DoubleMatrix2D Hinv = new DenseDoubleMatrix2D(n, n);
+		for (Cone cone : program.getCones()) {
+			cone.setBarrierGradient(program.getVarMap(), x, g);
+			cone.setBarrierHessian(program.getVarMap(), x, H);
+			cone.setBarrierHessianInv(program.getVarMap(), x, Hinv);
+		}
+		
+		DoubleMatrix1D packedG = new DenseDoubleMatrix1D(n);
+		BlockDiagonalMatrix packedH = new BlockDiagonalMatrix(layout);
+		BlockDiagonalMatrix packedHinv = new BlockDiagonalMatrix(layout);
+		layout.setBarrierGradient(x, packedG);
+		layout.setBarrierHessian(x, packedH);
+		layout.setBarrierHessianInv(x, packedHinv);
+		
+		for (int i = 0; i < n; i++)
+			assertEquals(g.get(i), packedG.get(i), 1e-12);
+		
+		DoubleMatrix2D ccH = packedH.getColumnCompressed();
+		DoubleMatrix2D ccHinv = packedHinv.getColumnCompressed();
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				assertEquals(H.get(i, j), ccH.get(i, j), 1e-12);
+				assertEquals(Hinv.get(i, j), ccHinv.get(i, j), 1e-12);
+			}
+		}
+		
+		DoubleMatrix1D y = new DenseDoubleMatrix1D(n);
+		for (int i = 0; i < n; i++)
+			y.set(i, i - 2.5);
+		DoubleMatrix1D expected = H.zMult(y, null);
+		DoubleMatrix1D actual = packedH.zMult(y, null);
+		for (int i = 0; i < n; i++)
+			assertEquals(expected.get(i), actual.get(i), 1e-12);
+		assertEquals(y.zDotProduct(expected), packedH.quadraticForm(y), 1e-10);
+	}
+
+	@Test
+	public void testGetMaxStep() {
+		DoubleMatrix1D dx = new DenseDoubleMatrix1D(n);
+		for (int i = 0; i < n; i++)
+			dx.set(i, (i % 2 == 0) ? -1.0 : 0.5);
+		
+		double expected = 1.0;
+		for (Cone cone : program.getCones())
+			expected = Math.min(expected, cone.getMaxStep(program.getVarMap(), x, dx));
+		
+		assertEquals(expected, layout.getMaxStep(x, dx), 1e-12);
+	}
+
+	@Test
+	public void testRotationPreservesProducts() {
+		double[][] values = new double[2][n];
+		for (int j = 0; j < n; j++) {
+			values[0][j] = j + 1.0;
+			values[1][j] = (j % 3) - 1.0;
+		}
+		SparseCCDoubleMatrix2D A = new SparseCCDoubleMatrix2D(values);
+		SparseCCDoubleMatrix2D rotatedA = layout.rotateColumns(A);
+		DoubleMatrix1D rotatedX = x.copy();
+		layout.rotate(rotatedX);
+		
+		DoubleMatrix1D expected = A.zMult(x, null);
+		DoubleMatrix1D actual = rotatedA.zMult(rotatedX, null);
+		for (int i = 0; i < 2; i++)
+			assertEquals(expected.get(i), actual.get(i), 1e-12);
+		
+		layout.rotate(rotatedX);
+		for (int i = 0; i < n; i++)
+			assertEquals(x.get(i), rotatedX.get(i), 1e-12);
+	}
+}
@@ -20,8 +20,14 @@ package org.linqs.psl.experimental.optimizer.conic.ipm;
 import java.util.List;
 import java.util.Vector;
 
+import org.linqs.psl.config.Config;
 import org.linqs.psl.experimental.optimizer.conic.ConicProgramSolver;
 import org.linqs.psl.experimental.optimizer.conic.ipm.HomogeneousIPM;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.ConjugateGradient;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.preconditioner.IncompleteCholeskyPreconditionerFactory;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.preconditioner.PreconditionerFactory;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.preconditioner.SSORPreconditionerFactory;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.preconditioner.ThresholdIncompleteCholeskyPreconditionerFactory;
 import org.linqs.psl.experimental.optimizer.conic.ConicProgramSolverContractTest;
 
 public class HomogeneousIPMTest extends ConicProgramSolverContractTest {
@@ -29,9 +35,63 @@ public class HomogeneousIPMTest extends ConicProgramSolverContractTest {
 	@Override
 	protected List<? extends ConicProgramSolver> getConicProgramSolverImplementations()
 			throws ClassNotFoundException, IllegalAccessException, InstantiationException {
-		Vector<HomogeneousIPM> solvers = new Vector<HomogeneousIPM>(1);
+		Vector<HomogeneousIPM> solvers = new Vector<HomogeneousIPM>(8);
 		solvers.add(new HomogeneousIPM());
+
+		/* Computes centrality correctors in each step */
+		Config.setProperty(HomogeneousIPM.MAX_CORRECTORS_KEY, 2);
+		try {
+			solvers.add(new HomogeneousIPM());
+		}
+		finally {
+			Config.clearProperty(HomogeneousIPM.MAX_CORRECTORS_KEY);
+		}
+
+		/* Processes the cones in parallel */
+		Config.setProperty(HomogeneousIPM.THREADS_KEY, 4);
+		try {
+			solvers.add(new HomogeneousIPM());
+		}
+		finally {
+			Config.clearProperty(HomogeneousIPM.THREADS_KEY);
+		}
+
+		/* Starts each solve of a modified program from the previous solution */
+		HomogeneousIPM warmStarted = new HomogeneousIPM();
+		warmStarted.setWarmStart(true);
+		solvers.add(warmStarted);
+
+		/* Solves the normal system without forming it */
+		Config.setProperty(HomogeneousIPM.MATRIX_FREE_KEY, true);
+		Config.setProperty(HomogeneousIPM.NORMAL_SYS_SOLVER_KEY, ConjugateGradient.class.getName());
+		try {
+			solvers.add(new HomogeneousIPM());
+		}
+		finally {
+			Config.clearProperty(HomogeneousIPM.MATRIX_FREE_KEY);
+			Config.clearProperty(HomogeneousIPM.NORMAL_SYS_SOLVER_KEY);
+		}
+
+		/* Solves the normal system without forming it, with each preconditioner that assembles part of it */
+		solvers.add(getMatrixFreeIPM(IncompleteCholeskyPreconditionerFactory.class));
+		solvers.add(getMatrixFreeIPM(ThresholdIncompleteCholeskyPreconditionerFactory.class));
+		solvers.add(getMatrixFreeIPM(SSORPreconditionerFactory.class));
+
 		return solvers;
 	}
 
+	private static HomogeneousIPM getMatrixFreeIPM(Class<? extends PreconditionerFactory> preconditioner) {
+		Config.setProperty(HomogeneousIPM.MATRIX_FREE_KEY, true);
+		Config.setProperty(HomogeneousIPM.NORMAL_SYS_SOLVER_KEY, ConjugateGradient.class.getName());
+		Config.setProperty(ConjugateGradient.PRECONDITIONER_KEY, preconditioner.getName());
+		try {
+			return new HomogeneousIPM();
+		}
+		finally {
+			Config.clearProperty(HomogeneousIPM.MATRIX_FREE_KEY);
+			Config.clearProperty(HomogeneousIPM.NORMAL_SYS_SOLVER_KEY);
+			Config.clearProperty(ConjugateGradient.PRECONDITIONER_KEY);
+		}
+	}
+
 }
@@ -28,8 +28,14 @@ public class IPMTest extends ConicProgramSolverContractTest {
 
 	@Override
 	protected List<? extends ConicProgramSolver> getConicProgramSolverImplementations() {
-		Vector<IPM> solvers = new Vector<IPM>(1);
+		Vector<IPM> solvers = new Vector<IPM>(2);
 		solvers.add(new IPM());
+
+		/* Starts each solve of a modified program from the previous solution */
+		IPM warmStarted = new IPM();
+		warmStarted.setWarmStart(true);
+		solvers.add(warmStarted);
+
 		return solvers;
 	}
 
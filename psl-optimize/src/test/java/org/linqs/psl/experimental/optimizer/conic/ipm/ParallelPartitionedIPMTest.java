@@ -0,0 +1,56 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm;
+
+import java.util.List;
+import java.util.Vector;
+
+import org.linqs.psl.config.Config;
+import org.linqs.psl.experimental.optimizer.conic.ConicProgramSolver;
+import org.linqs.psl.experimental.optimizer.conic.ConicProgramSolverContractTest;
+
+public class ParallelPartitionedIPMTest extends ConicProgramSolverContractTest {
+
+	@Override
+	protected List<? extends ConicProgramSolver> getConicProgramSolverImplementations() {
+		Vector<ParallelPartitionedIPM> solvers = new Vector<ParallelPartitionedIPM>(3);
+		solvers.add(new ParallelPartitionedIPM());
+
+		Config.setProperty(ParallelPartitionedIPM.THREAD_POOL_SIZE_KEY, 2);
+		try {
+			solvers.add(new ParallelPartitionedIPM());
+		}
+		finally {
+			Config.clearProperty(ParallelPartitionedIPM.THREAD_POOL_SIZE_KEY);
+		}
+
+		/* Solves the partitions concurrently within each sweep */
+		Config.setProperty(ParallelPartitionedIPM.THREAD_POOL_SIZE_KEY, 2);
+		Config.setProperty(ParallelPartitionedIPM.CONCURRENT_PARTITIONS_KEY, true);
+		try {
+			solvers.add(new ParallelPartitionedIPM());
+		}
+		finally {
+			Config.clearProperty(ParallelPartitionedIPM.THREAD_POOL_SIZE_KEY);
+			Config.clearProperty(ParallelPartitionedIPM.CONCURRENT_PARTITIONS_KEY);
+		}
+
+		return solvers;
+	}
+
+}
@@ -23,8 +23,11 @@ import org.junit.Before;
 import org.junit.Test;
 import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
 import org.linqs.psl.experimental.optimizer.conic.program.SecondOrderCone;
+import org.linqs.psl.experimental.optimizer.conic.program.Variable;
 
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix2D;
 
 public class SecondOrderConeTest {
 	
@@ -53,4 +56,59 @@ public class SecondOrderConeTest {
 		assertTrue(1 - 1.1 * maxStep > 0.0);
 	}
 
+	@Test
+	public void testGetMaxStepToBoundary() {
+		SecondOrderCone coneA = program.createSecondOrderCone(3);
+		
+		program.checkOutMatrices();
+		
+		int x1 = program.getIndex(coneA.getNthVariable());
+		int x2 = -1, x3 = -1;
+		for (Variable v : coneA.getInnerVariables()) {
+			if (x2 == -1)
+				x2 = program.getIndex(v);
+			else
+				x3 = program.getIndex(v);
+		}
+		
+		DoubleMatrix1D x = program.getX();
+		x.set(x1, 2.0);
+		x.set(x2, 1.0);
+		x.set(x3, 0.0);
+		
+		/* Reaches the boundary at a step of 0.5 */
+		DoubleMatrix1D dx = x.copy();
+		dx.set(x1, -2.0);
+		dx.set(x2, 0.0);
+		dx.set(x3, 0.0);
+		
+		double maxStep = coneA.getMaxStep(program.getVarMap(), x, dx);
+		assertEquals(0.95 * 0.5, maxStep, 1e-12);
+		
+		/* Stays inside for the full step */
+		dx.set(x1, 1.0);
+		assertEquals(1.0, coneA.getMaxStep(program.getVarMap(), x, dx), 0.0);
+	}
+
+	@Test
+	public void testSetBarrierHessianInv() {
+		SecondOrderCone coneA = program.createSecondOrderCone(4);
+		
+		program.checkOutMatrices();
+		
+		DoubleMatrix1D x = program.getX();
+		int n = (int) x.size();
+		x.assign(0.3);
+		x.set(program.getIndex(coneA.getNthVariable()), 2.0);
+		
+		DoubleMatrix2D H = new DenseDoubleMatrix2D(n, n);
+		DoubleMatrix2D Hinv = new DenseDoubleMatrix2D(n, n);
+		coneA.setBarrierHessian(program.getVarMap(), x, H);
+		coneA.setBarrierHessianInv(program.getVarMap(), x, Hinv);
+		
+		DoubleMatrix2D product = H.zMult(Hinv, null);
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < n; j++)
+				assertEquals((i == j) ? 1.0 : 0.0, product.get(i, j), 1e-10);
+	}
 }
@@ -0,0 +1,99 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcss;
+
+public class CachedCholeskyTest {
+
+	/**
+	 * Tests that refactoring after the values change reuses the symbolic
+	 * analysis and matches {@link Cholesky}, and that a new pattern is
+	 * analyzed again.
+	 */
+	@Test
+	public void testRefactor() {
+		int n = 16;
+		CachedCholesky solver = new CachedCholesky();
+		solver.setConicProgram(new ConicProgram());
+
+		SparseCCDoubleMatrix2D A = getMatrix(n, 1, 10.0);
+		solver.setA(A);
+		assertSolvesLikeCholesky(A, solver);
+		Dcss symbolic = solver.getSymbolicAnalysis();
+
+		A = getMatrix(n, 1, 6.0);
+		solver.setA(A);
+		assertSame(symbolic, solver.getSymbolicAnalysis());
+		assertSolvesLikeCholesky(A, solver);
+
+		A = getMatrix(n, 2, 6.0);
+		solver.setA(A);
+		assertNotSame(symbolic, solver.getSymbolicAnalysis());
+		assertSolvesLikeCholesky(A, solver);
+	}
+
+	/* Returns a symmetric, diagonally dominant matrix with off-diagonal entries at (i, i + offset) and (i, 5i + 3) */
+	private static SparseCCDoubleMatrix2D getMatrix(int n, int offset, double diagonal) {
+		int[] rows = new int[5 * n];
+		int[] columns = new int[5 * n];
+		double[] values = new double[5 * n];
+		int e = 0;
+		for (int i = 0; i < n; i++) {
+			rows[e] = i;
+			columns[e] = i;
+			values[e++] = diagonal;
+			int[] neighbors = {(i + offset) % n, (5 * i + 3) % n};
+			for (int j : neighbors) {
+				rows[e] = i;
+				columns[e] = j;
+				values[e++] = -1.0;
+				rows[e] = j;
+				columns[e] = i;
+				values[e++] = -1.0;
+			}
+		}
+		return new SparseCCDoubleMatrix2D(n, n, rows, columns, values, true, false, true);
+	}
+
+	private static void assertSolvesLikeCholesky(SparseCCDoubleMatrix2D A, NormalSystemSolver solver) {
+		int n = A.rows();
+		DoubleMatrix1D expected = new DenseDoubleMatrix1D(n);
+		for (int i = 0; i < n; i++)
+			expected.setQuick(i, i - 4.5);
+		DoubleMatrix1D actual = expected.copy();
+
+		Cholesky cholesky = new Cholesky();
+		cholesky.setA(A);
+		cholesky.solve(expected);
+		solver.solve(actual);
+
+		for (int i = 0; i < n; i++)
+			assertEquals(expected.getQuick(i), actual.getQuick(i), 1e-9);
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+
+public class FactorCacheTest {
+
+	private static final int N = 10;
+
+	private long bytes;
+
+	@Before
+	public void setUp() {
+		CachedCholesky solver = new CachedCholesky();
+		solver.setA(getDiagonal(1.0));
+		bytes = solver.getSizeInBytes();
+	}
+
+	/** Tests that the least recently used factorization is evicted first. */
+	@Test
+	public void testEviction() {
+		FactorCache cache = new FactorCache(2 * bytes);
+		cache.factor("a", 0, getDiagonal(1.0));
+		cache.factor("b", 0, getDiagonal(2.0));
+		assertEquals(2, cache.size());
+		assertEquals(2 * bytes, cache.getSizeInBytes());
+
+		/* Uses a, so b is the least recently used */
+		assertNotNull(cache.get("a", 0));
+		cache.factor("c", 0, getDiagonal(3.0));
+
+		assertEquals(2, cache.size());
+		assertEquals(2 * bytes, cache.getSizeInBytes());
+		assertNotNull(cache.get("a", 0));
+		assertNull(cache.get("b", 0));
+		assertNotNull(cache.get("c", 0));
+	}
+
+	/** Tests that a factorization larger than the budget is still cached by itself. */
+	@Test
+	public void testOverBudget() {
+		FactorCache cache = new FactorCache(1);
+		cache.factor("a", 0, getDiagonal(1.0));
+		NormalSystemSolver b = cache.factor("b", 0, getDiagonal(2.0));
+
+		assertEquals(1, cache.size());
+		assertEquals(bytes, cache.getSizeInBytes());
+		assertNull(cache.get("a", 0));
+		assertSame(b, cache.get("b", 0));
+	}
+
+	/** Tests that a factorization is only returned for the version it was computed in. */
+	@Test
+	public void testStaleness() {
+		FactorCache cache = new FactorCache(2 * bytes);
+		NormalSystemSolver first = cache.factor("a", 0, getDiagonal(1.0));
+		assertSame(first, cache.get("a", 0));
+		assertNull(cache.get("a", 1));
+
+		NormalSystemSolver second = cache.factor("a", 1, getDiagonal(2.0));
+		assertNull(cache.get("a", 0));
+		assertSame(second, cache.get("a", 1));
+		assertEquals(1, cache.size());
+		assertEquals(bytes, cache.getSizeInBytes());
+
+		cache.clear();
+		assertNull(cache.get("a", 1));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getSizeInBytes());
+	}
+
+	private static SparseCCDoubleMatrix2D getDiagonal(double value) {
+		int[] indices = new int[N];
+		double[] values = new double[N];
+		for (int i = 0; i < N; i++) {
+			indices[i] = i;
+			values[i] = value;
+		}
+		return new SparseCCDoubleMatrix2D(N, N, indices, indices, values, false, false, true);
+	}
+}
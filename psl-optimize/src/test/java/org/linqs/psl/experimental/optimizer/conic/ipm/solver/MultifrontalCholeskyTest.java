@@ -0,0 +1,230 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+import org.linqs.psl.config.Config;
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
+import org.linqs.psl.experimental.optimizer.conic.program.SecondOrderCone;
+import org.linqs.psl.experimental.optimizer.conic.program.Variable;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+
+public class MultifrontalCholeskyTest {
+
+	@After
+	public void tearDown() {
+		Config.clearProperty(MultifrontalCholesky.THREADS_KEY);
+		Config.clearProperty(MultifrontalCholesky.TASK_FLOPS_KEY);
+	}
+
+	@Test
+	public void testSolve() {
+		assertSolvesLikeCholesky(new MultifrontalCholesky());
+	}
+
+	/** Tests factoring with a task for every supernode. */
+	@Test
+	public void testSolveParallel() {
+		Config.setProperty(MultifrontalCholesky.THREADS_KEY, 2);
+		Config.setProperty(MultifrontalCholesky.TASK_FLOPS_KEY, 1);
+		MultifrontalCholesky solver = new MultifrontalCholesky();
+		try {
+			assertSolvesLikeCholesky(solver);
+		}
+		finally {
+			solver.close();
+		}
+	}
+
+	/** Tests a column whose row subtrees overlap those of an earlier column. */
+	@Test
+	public void testColumnCounts() {
+		boolean[][] lower = new boolean[4][4];
+		lower[1][0] = true;
+		lower[2][0] = true;
+		lower[3][0] = true;
+		lower[2][1] = true;
+		assertCountsLikeDense(lower);
+	}
+
+	@Test
+	public void testColumnCountsRandom() {
+		Random random = new Random(4);
+		for (int trial = 0; trial < 20; trial++) {
+			boolean[][] lower = new boolean[30][30];
+			for (int i = 0; i < 30; i++)
+				for (int j = 0; j < i; j++)
+					lower[i][j] = random.nextDouble() < 0.08;
+			assertCountsLikeDense(lower);
+		}
+	}
+
+	/*
+	 * Compares the column counts against those of a dense symbolic
+	 * factorization of a matrix with the given strictly lower pattern and a
+	 * full diagonal
+	 */
+	private static void assertCountsLikeDense(boolean[][] lower) {
+		int n = lower.length;
+		int[] lowerPtr = new int[n+1];
+		List<Integer> lowerRow = new ArrayList<Integer>();
+		for (int j = 0; j < n; j++) {
+			lowerRow.add(j);
+			for (int i = j + 1; i < n; i++)
+				if (lower[i][j])
+					lowerRow.add(i);
+			lowerPtr[j+1] = lowerRow.size();
+		}
+		int[] rowArray = new int[lowerRow.size()];
+		for (int p = 0; p < rowArray.length; p++)
+			rowArray[p] = lowerRow.get(p);
+
+		boolean[][] L = new boolean[n][];
+		for (int i = 0; i < n; i++)
+			L[i] = lower[i].clone();
+		int[] expected = new int[n];
+		for (int j = 0; j < n; j++) {
+			expected[j] = 1;
+			for (int i = j + 1; i < n; i++) {
+				if (L[i][j]) {
+					expected[j]++;
+					for (int k = i + 1; k < n; k++)
+						if (L[k][j])
+							L[k][i] = true;
+				}
+			}
+		}
+
+		int[] parent = MultifrontalCholesky.eliminationTree(n, lowerPtr, rowArray);
+		assertArrayEquals(expected, MultifrontalCholesky.columnCounts(n, lowerPtr, rowArray, parent));
+	}
+
+	private static void assertSolvesLikeCholesky(MultifrontalCholesky solver) {
+		ConicProgram program = getProgram();
+		solver.setConicProgram(program);
+
+		program.checkOutMatrices();
+		SparseCCDoubleMatrix2D N = getNormalMatrix(program);
+		program.checkInMatrices();
+
+		/* Factors twice to also exercise the cached analysis */
+		for (int k = 0; k < 2; k++) {
+			solver.setA(N);
+			int n = N.rows();
+			DoubleMatrix1D expected = new DenseDoubleMatrix1D(n);
+			for (int i = 0; i < n; i++)
+				expected.setQuick(i, i - 3.5);
+			DoubleMatrix1D actual = expected.copy();
+
+			Cholesky cholesky = new Cholesky();
+			cholesky.setA(N);
+			cholesky.solve(expected);
+			solver.solve(actual);
+
+			for (int i = 0; i < n; i++)
+				assertEquals(expected.getQuick(i), actual.getQuick(i), 1e-9);
+		}
+	}
+
+	/* Returns a program with chains of constraints that each couple one cone to the next */
+	private static ConicProgram getProgram() {
+		ConicProgram program = new ConicProgram();
+		Variable previous = program.createNonNegativeOrthantCone().getVariable();
+		for (int i = 0; i < 6; i++) {
+			SecondOrderCone soc = program.createSecondOrderCone(3);
+			Variable nonNegative = program.createNonNegativeOrthantCone().getVariable();
+			for (Variable v : soc.getVariables()) {
+				LinearConstraint con = program.createConstraint();
+				con.setVariable(previous, 1.0);
+				con.setVariable(v, 2.0);
+				con.setVariable(nonNegative, -1.0);
+				con.setConstrainedValue(1.0);
+				previous = v;
+			}
+		}
+		return program;
+	}
+
+	/*
+	 * Returns A D A^T + I, where D is the identity for nonnegative orthant
+	 * cones and a dense block I + 0.5 * ones for each second-order cone
+	 */
+	private static SparseCCDoubleMatrix2D getNormalMatrix(ConicProgram program) {
+		SparseCCDoubleMatrix2D A = program.getA();
+		int m = A.rows();
+		int n = A.columns();
+
+		double[][] D = new double[n][n];
+		for (int j = 0; j < n; j++)
+			D[j][j] = 1.0;
+		for (SecondOrderCone soc : program.getSecondOrderCones()) {
+			List<Integer> indices = new ArrayList<Integer>();
+			for (Variable v : soc.getVariables())
+				indices.add(program.getIndex(v));
+			for (int i : indices)
+				for (int j : indices)
+					D[i][j] += 0.5;
+		}
+
+		double[][] dense = A.toArray();
+		double[][] AD = new double[m][n];
+		for (int i = 0; i < m; i++)
+			for (int k = 0; k < n; k++)
+				if (dense[i][k] != 0.0)
+					for (int j = 0; j < n; j++)
+						AD[i][j] += dense[i][k] * D[k][j];
+
+		List<Integer> rows = new ArrayList<Integer>();
+		List<Integer> columns = new ArrayList<Integer>();
+		List<Double> values = new ArrayList<Double>();
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < m; j++) {
+				double value = (i == j) ? 1.0 : 0.0;
+				for (int k = 0; k < n; k++)
+					value += AD[i][k] * dense[j][k];
+				if (value != 0.0) {
+					rows.add(i);
+					columns.add(j);
+					values.add(value);
+				}
+			}
+		}
+
+		int[] rowArray = new int[rows.size()];
+		int[] columnArray = new int[rows.size()];
+		double[] valueArray = new double[rows.size()];
+		for (int e = 0; e < rowArray.length; e++) {
+			rowArray[e] = rows.get(e);
+			columnArray[e] = columns.get(e);
+			valueArray[e] = values.get(e);
+		}
+		return new SparseCCDoubleMatrix2D(m, m, rowArray, columnArray, valueArray, false, false, true);
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.linqs.psl.config.Config;
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
+import org.linqs.psl.experimental.optimizer.conic.program.Variable;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+
+public class NestedBlockSolverTest {
+
+	private static final int NUM_CONSTRAINTS = 40;
+	private static final int NUM_TERMS = 4;
+
+	@After
+	public void tearDown() {
+		Config.clearProperty(NestedBlockSolver.DIRECT_SIZE_KEY);
+		Config.clearProperty(NestedBlockSolver.THREADS_KEY);
+	}
+
+	/**
+	 * Tests solving a banded system that is split at least twice, with
+	 * separators large enough to be solved iteratively.
+	 */
+	@Test
+	public void testSolve() {
+		Config.setProperty(NestedBlockSolver.DIRECT_SIZE_KEY, 2);
+		assertSolvesLikeCholesky(new NestedBlockSolver());
+	}
+
+	@Test
+	public void testSolveParallel() {
+		Config.setProperty(NestedBlockSolver.DIRECT_SIZE_KEY, 2);
+		Config.setProperty(NestedBlockSolver.THREADS_KEY, 2);
+		NestedBlockSolver solver = new NestedBlockSolver();
+		try {
+			assertSolvesLikeCholesky(solver);
+		}
+		finally {
+			solver.close();
+		}
+	}
+
+	/** Tests that separators of at most the direct size are factored. */
+	@Test
+	public void testSolveDirect() {
+		Config.setProperty(NestedBlockSolver.DIRECT_SIZE_KEY, 8);
+		assertSolvesLikeCholesky(new NestedBlockSolver());
+	}
+
+	private static void assertSolvesLikeCholesky(NestedBlockSolver solver) {
+		ConicProgram program = getProgram();
+		program.checkOutMatrices();
+		solver.setConicProgram(program);
+		SparseCCDoubleMatrix2D N = getNormalMatrix(program.getA());
+		program.checkInMatrices();
+
+		solver.setA(N);
+		DoubleMatrix1D expected = new DenseDoubleMatrix1D(NUM_CONSTRAINTS);
+		for (int i = 0; i < NUM_CONSTRAINTS; i++)
+			expected.setQuick(i, (i % 7) - 3.0);
+		DoubleMatrix1D actual = expected.copy();
+
+		Cholesky cholesky = new Cholesky();
+		cholesky.setA(N);
+		cholesky.solve(expected);
+		solver.solve(actual);
+
+		for (int i = 0; i < NUM_CONSTRAINTS; i++)
+			assertEquals(expected.getQuick(i), actual.getQuick(i), 1e-6);
+	}
+
+	/* Returns a program whose constraint i has the variables i through i + NUM_TERMS - 1 */
+	private static ConicProgram getProgram() {
+		ConicProgram program = new ConicProgram();
+		Variable[] vars = new Variable[NUM_CONSTRAINTS + NUM_TERMS - 1];
+		for (int j = 0; j < vars.length; j++) {
+			vars[j] = program.createNonNegativeOrthantCone().getVariable();
+			vars[j].setObjectiveCoefficient(1.0);
+		}
+		for (int i = 0; i < NUM_CONSTRAINTS; i++) {
+			LinearConstraint con = program.createConstraint();
+			for (int k = 0; k < NUM_TERMS; k++)
+				con.setVariable(vars[i + k], 1.0 + k);
+			con.setConstrainedValue(1.0);
+		}
+		return program;
+	}
+
+	/* Returns A A' + I, which is banded and not block diagonal */
+	private static SparseCCDoubleMatrix2D getNormalMatrix(SparseCCDoubleMatrix2D A) {
+		double[][] dense = A.toArray();
+		int m = A.rows();
+		List<Integer> rows = new ArrayList<Integer>();
+		List<Integer> columns = new ArrayList<Integer>();
+		List<Double> values = new ArrayList<Double>();
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < m; j++) {
+				double value = (i == j) ? 1.0 : 0.0;
+				for (int k = 0; k < A.columns(); k++)
+					value += dense[i][k] * dense[j][k];
+				if (value != 0.0) {
+					rows.add(i);
+					columns.add(j);
+					values.add(value);
+				}
+			}
+		}
+
+		int[] rowArray = new int[rows.size()];
+		int[] columnArray = new int[rows.size()];
+		double[] valueArray = new double[rows.size()];
+		for (int e = 0; e < rowArray.length; e++) {
+			rowArray[e] = rows.get(e);
+			columnArray[e] = columns.get(e);
+			valueArray[e] = values.get(e);
+		}
+		return new SparseCCDoubleMatrix2D(m, m, rowArray, columnArray, valueArray, false, false, true);
+	}
+}
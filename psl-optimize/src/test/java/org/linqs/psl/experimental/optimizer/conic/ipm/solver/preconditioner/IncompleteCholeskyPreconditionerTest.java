@@ -0,0 +1,238 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver.preconditioner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.ImplicitMatrix;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.algo.solver.preconditioner.DoublePreconditioner;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * Tests {@link IncompleteCholeskyPreconditioner}.
+ */
+public class IncompleteCholeskyPreconditionerTest {
+
+	/**
+	 * Tests that IC(0) is exact for a tridiagonal matrix, which has no fill,
+	 * including after the matrix's values change.
+	 */
+	@Test
+	public void testTridiagonal() {
+		int n = 20;
+		DoublePreconditioner preconditioner = new IncompleteCholeskyPreconditioner();
+		preconditioner.setMatrix(getTridiagonal(n, 4.0));
+		assertInverse(getTridiagonal(n, 4.0), preconditioner);
+
+		preconditioner.setMatrix(getTridiagonal(n, 3.0));
+		assertInverse(getTridiagonal(n, 3.0), preconditioner);
+	}
+
+	/**
+	 * Tests that ICT with no drop tolerance keeps all fill and is exact.
+	 */
+	@Test
+	public void testThresholdWithoutDropping() {
+		SparseCCDoubleMatrix2D A = getMatrixWithFill();
+		DoublePreconditioner preconditioner = new IncompleteCholeskyPreconditioner(0.0);
+		preconditioner.setMatrix(A);
+		assertInverse(A, preconditioner);
+	}
+
+	/**
+	 * Tests that ICT with a large drop tolerance drops all fill, so it
+	 * matches IC(0), which is not exact for a matrix with fill.
+	 */
+	@Test
+	public void testThresholdDropping() {
+		SparseCCDoubleMatrix2D A = getMatrixWithFill();
+		int n = A.rows();
+		DoubleMatrix1D b = new DenseDoubleMatrix1D(n);
+		for (int i = 0; i < n; i++)
+			b.setQuick(i, i + 1);
+
+		DoublePreconditioner ic = new IncompleteCholeskyPreconditioner();
+		ic.setMatrix(A);
+		DoubleMatrix1D expected = ic.apply(b, new DenseDoubleMatrix1D(n));
+
+		DoublePreconditioner ict = new IncompleteCholeskyPreconditioner(1e6);
+		ict.setMatrix(A);
+		DoubleMatrix1D actual = ict.apply(b, new DenseDoubleMatrix1D(n));
+
+		for (int i = 0; i < n; i++)
+			assertEquals(expected.getQuick(i), actual.getQuick(i), 1e-12);
+
+		DoubleMatrix1D Ax = A.zMult(actual, null);
+		double error = 0.0;
+		for (int i = 0; i < n; i++)
+			error = Math.max(error, Math.abs(Ax.getQuick(i) - b.getQuick(i)));
+		assertTrue(error > 1e-6);
+	}
+
+	/**
+	 * Tests that a factorization that breaks down is completed with a
+	 * shifted diagonal. The matrix [1 2; 2 1] has no fill, so the factor is
+	 * exact for the diagonal shifted by the first tried shift greater than 1,
+	 * which is 1e-3 * 2^10.
+	 */
+	@Test
+	public void testBreakdownShift() {
+		int[] rows = {0, 1, 0, 1};
+		int[] columns = {0, 0, 1, 1};
+		double[] values = {1.0, 2.0, 2.0, 1.0};
+		SparseCCDoubleMatrix2D A = new SparseCCDoubleMatrix2D(2, 2, rows, columns, values, false, false, true);
+
+		DoublePreconditioner preconditioner = new IncompleteCholeskyPreconditioner();
+		preconditioner.setMatrix(A);
+
+		double shifted = 1.0 + 1e-3 * Math.pow(2, 10);
+		values = new double[] {shifted, 2.0, 2.0, shifted};
+		assertInverse(new SparseCCDoubleMatrix2D(2, 2, rows, columns, values, false, false, true), preconditioner);
+	}
+
+	/**
+	 * Tests that IC(0) and ICT of an implicit matrix match those of the
+	 * assembled matrix.
+	 */
+	@Test
+	public void testImplicitMatrix() {
+		SparseCCDoubleMatrix2D A = getMatrixWithFill();
+		assertMatches(new IncompleteCholeskyPreconditioner(), new IncompleteCholeskyPreconditioner(), A);
+		assertMatches(new IncompleteCholeskyPreconditioner(0.01), new IncompleteCholeskyPreconditioner(0.01), A);
+	}
+
+	private static void assertMatches(DoublePreconditioner assembled, DoublePreconditioner implicit,
+			SparseCCDoubleMatrix2D A) {
+		int n = A.rows();
+		DoubleMatrix1D b = new DenseDoubleMatrix1D(n);
+		for (int i = 0; i < n; i++)
+			b.setQuick(i, i + 1);
+
+		assembled.setMatrix(A);
+		implicit.setMatrix(new Implicit(A));
+		DoubleMatrix1D expected = assembled.apply(b, new DenseDoubleMatrix1D(n));
+		DoubleMatrix1D actual = implicit.apply(b, new DenseDoubleMatrix1D(n));
+		for (int i = 0; i < n; i++)
+			assertEquals(expected.getQuick(i), actual.getQuick(i), 1e-12);
+	}
+
+	/* A matrix that is only available through multiplication and its lower triangle */
+	private static class Implicit extends SparseCCDoubleMatrix2D implements ImplicitMatrix {
+		private static final long serialVersionUID = 1L;
+
+		private final SparseCCDoubleMatrix2D lower;
+
+		Implicit(SparseCCDoubleMatrix2D A) {
+			super(A.rows(), A.columns(), 1);
+			Dcs a = A.getDcs();
+			List<Integer> rows = new ArrayList<Integer>();
+			List<Integer> columns = new ArrayList<Integer>();
+			List<Double> values = new ArrayList<Double>();
+			for (int j = 0; j < a.n; j++) {
+				for (int p = a.p[j]; p < a.p[j+1]; p++) {
+					if (a.i[p] >= j) {
+						rows.add(a.i[p]);
+						columns.add(j);
+						values.add(a.x[p]);
+					}
+				}
+			}
+			int[] rowArray = new int[rows.size()];
+			int[] columnArray = new int[rows.size()];
+			double[] valueArray = new double[rows.size()];
+			for (int e = 0; e < rowArray.length; e++) {
+				rowArray[e] = rows.get(e);
+				columnArray[e] = columns.get(e);
+				valueArray[e] = values.get(e);
+			}
+			lower = new SparseCCDoubleMatrix2D(A.rows(), A.columns(), rowArray, columnArray, valueArray, false, false, true);
+		}
+
+		@Override
+		public SparseCCDoubleMatrix2D assembleLowerTriangle() {
+			return lower;
+		}
+	}
+
+	/* Returns a symmetric, diagonally dominant matrix whose Cholesky factor has fill */
+	private static SparseCCDoubleMatrix2D getMatrixWithFill() {
+		int n = 12;
+		List<int[]> entries = new ArrayList<int[]>();
+		for (int i = 0; i < n; i++) {
+			entries.add(new int[] {i, i});
+			entries.add(new int[] {i, (i * 5 + 3) % n});
+			entries.add(new int[] {(i * 5 + 3) % n, i});
+			entries.add(new int[] {i, (i + 4) % n});
+			entries.add(new int[] {(i + 4) % n, i});
+		}
+
+		int[] rows = new int[entries.size()];
+		int[] columns = new int[entries.size()];
+		double[] values = new double[entries.size()];
+		for (int e = 0; e < entries.size(); e++) {
+			rows[e] = entries.get(e)[0];
+			columns[e] = entries.get(e)[1];
+			values[e] = (rows[e] == columns[e]) ? 10.0 : -1.0;
+		}
+		return new SparseCCDoubleMatrix2D(n, n, rows, columns, values, true, false, true);
+	}
+
+	private static SparseCCDoubleMatrix2D getTridiagonal(int n, double diagonal) {
+		int size = 3 * n - 2;
+		int[] rows = new int[size];
+		int[] columns = new int[size];
+		double[] values = new double[size];
+		int e = 0;
+		for (int i = 0; i < n; i++) {
+			rows[e] = i;
+			columns[e] = i;
+			values[e++] = diagonal;
+			if (i > 0) {
+				rows[e] = i;
+				columns[e] = i - 1;
+				values[e++] = -1.0;
+				rows[e] = i - 1;
+				columns[e] = i;
+				values[e++] = -1.0;
+			}
+		}
+		return new SparseCCDoubleMatrix2D(n, n, rows, columns, values, false, false, true);
+	}
+
+	private static void assertInverse(SparseCCDoubleMatrix2D A, DoublePreconditioner preconditioner) {
+		int n = A.rows();
+		DoubleMatrix1D b = new DenseDoubleMatrix1D(n);
+		for (int i = 0; i < n; i++)
+			b.setQuick(i, i + 1);
+		DoubleMatrix1D x = new DenseDoubleMatrix1D(n);
+		preconditioner.apply(b, x);
+
+		DoubleMatrix1D Ax = A.zMult(x, null);
+		for (int i = 0; i < n; i++)
+			assertEquals(b.getQuick(i), Ax.getQuick(i), 1e-9);
+	}
+}
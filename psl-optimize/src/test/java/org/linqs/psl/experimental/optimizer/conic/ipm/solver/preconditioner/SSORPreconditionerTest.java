@@ -0,0 +1,155 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.ipm.solver.preconditioner;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.linqs.psl.experimental.optimizer.conic.ipm.solver.ImplicitMatrix;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.algo.solver.preconditioner.DoublePreconditioner;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * Tests {@link SSORPreconditioner}.
+ */
+public class SSORPreconditionerTest {
+
+	/**
+	 * Tests that SSOR with w = 1 is exact for a diagonal matrix.
+	 */
+	@Test
+	public void testDiagonal() {
+		int n = 5;
+		int[] indices = new int[n];
+		double[] values = new double[n];
+		for (int i = 0; i < n; i++) {
+			indices[i] = i;
+			values[i] = i + 1;
+		}
+		SparseCCDoubleMatrix2D A = new SparseCCDoubleMatrix2D(n, n, indices, indices, values, false, false, true);
+
+		DoublePreconditioner preconditioner = new SSORPreconditioner(1.0);
+		preconditioner.setMatrix(A);
+		assertInverse(A, preconditioner);
+	}
+
+	/**
+	 * Tests that SSOR of an implicit matrix matches SSOR of the assembled
+	 * matrix.
+	 */
+	@Test
+	public void testImplicitMatrix() {
+		int n = 6;
+		List<Integer> rows = new ArrayList<Integer>();
+		List<Integer> columns = new ArrayList<Integer>();
+		List<Double> values = new ArrayList<Double>();
+		for (int i = 0; i < n; i++) {
+			rows.add(i);
+			columns.add(i);
+			values.add(4.0);
+			if (i > 0) {
+				rows.add(i);
+				columns.add(i - 1);
+				values.add(-1.0);
+				rows.add(i - 1);
+				columns.add(i);
+				values.add(-1.0);
+			}
+		}
+		int[] rowArray = new int[rows.size()];
+		int[] columnArray = new int[rows.size()];
+		double[] valueArray = new double[rows.size()];
+		for (int e = 0; e < rowArray.length; e++) {
+			rowArray[e] = rows.get(e);
+			columnArray[e] = columns.get(e);
+			valueArray[e] = values.get(e);
+		}
+		SparseCCDoubleMatrix2D A = new SparseCCDoubleMatrix2D(n, n, rowArray, columnArray, valueArray, false, false, true);
+
+		DoubleMatrix1D b = new DenseDoubleMatrix1D(n);
+		for (int i = 0; i < n; i++)
+			b.setQuick(i, i + 1);
+
+		DoublePreconditioner assembled = new SSORPreconditioner(1.2);
+		assembled.setMatrix(A);
+		DoublePreconditioner implicit = new SSORPreconditioner(1.2);
+		implicit.setMatrix(new Implicit(A));
+		DoubleMatrix1D expected = assembled.apply(b, new DenseDoubleMatrix1D(n));
+		DoubleMatrix1D actual = implicit.apply(b, new DenseDoubleMatrix1D(n));
+		for (int i = 0; i < n; i++)
+			assertEquals(expected.getQuick(i), actual.getQuick(i), 1e-12);
+	}
+
+	/* A matrix that is only available through multiplication and its lower triangle */
+	private static class Implicit extends SparseCCDoubleMatrix2D implements ImplicitMatrix {
+		private static final long serialVersionUID = 1L;
+
+		private final SparseCCDoubleMatrix2D lower;
+
+		Implicit(SparseCCDoubleMatrix2D A) {
+			super(A.rows(), A.columns(), 1);
+			Dcs a = A.getDcs();
+			List<Integer> rows = new ArrayList<Integer>();
+			List<Integer> columns = new ArrayList<Integer>();
+			List<Double> values = new ArrayList<Double>();
+			for (int j = 0; j < a.n; j++) {
+				for (int p = a.p[j]; p < a.p[j+1]; p++) {
+					if (a.i[p] >= j) {
+						rows.add(a.i[p]);
+						columns.add(j);
+						values.add(a.x[p]);
+					}
+				}
+			}
+			int[] rowArray = new int[rows.size()];
+			int[] columnArray = new int[rows.size()];
+			double[] valueArray = new double[rows.size()];
+			for (int e = 0; e < rowArray.length; e++) {
+				rowArray[e] = rows.get(e);
+				columnArray[e] = columns.get(e);
+				valueArray[e] = values.get(e);
+			}
+			lower = new SparseCCDoubleMatrix2D(A.rows(), A.columns(), rowArray, columnArray, valueArray, false, false, true);
+		}
+
+		@Override
+		public SparseCCDoubleMatrix2D assembleLowerTriangle() {
+			return lower;
+		}
+	}
+
+	private static void assertInverse(SparseCCDoubleMatrix2D A, DoublePreconditioner preconditioner) {
+		int n = A.rows();
+		DoubleMatrix1D b = new DenseDoubleMatrix1D(n);
+		for (int i = 0; i < n; i++)
+			b.setQuick(i, i + 1);
+		DoubleMatrix1D x = new DenseDoubleMatrix1D(n);
+		preconditioner.apply(b, x);
+
+		DoubleMatrix1D Ax = A.zMult(x, null);
+		for (int i = 0; i < n; i++)
+			assertEquals(b.getQuick(i), Ax.getQuick(i), 1e-9);
+	}
+}
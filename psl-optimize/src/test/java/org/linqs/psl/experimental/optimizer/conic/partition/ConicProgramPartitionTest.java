@@ -17,11 +17,15 @@
  */
 package org.linqs.psl.experimental.optimizer.conic.partition;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
 
 import org.junit.Before;
@@ -31,6 +35,10 @@ import org.linqs.psl.experimental.optimizer.conic.program.Cone;
 import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
 import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
 import org.linqs.psl.experimental.optimizer.conic.program.NonNegativeOrthantCone;
+import org.linqs.psl.experimental.optimizer.conic.program.SecondOrderCone;
+import org.linqs.psl.experimental.optimizer.conic.program.Variable;
+
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
 
 /**
  * Tests {@link ConicProgramPartition}. 
@@ -44,17 +52,22 @@ public class ConicProgramPartitionTest {
 	private LinearConstraint l2;
 	private LinearConstraint l3;
 	
+	private NonNegativeOrthantCone c1;
+	private NonNegativeOrthantCone c5;
+	private SecondOrderCone soc;
+	
 	@Before
 	public final void setUp() throws Exception {
 		program = new ConicProgram();
 		
-		NonNegativeOrthantCone c1 = program.createNonNegativeOrthantCone();
+		c1 = program.createNonNegativeOrthantCone();
 		NonNegativeOrthantCone c2 = program.createNonNegativeOrthantCone();
 		NonNegativeOrthantCone c3 = program.createNonNegativeOrthantCone();
 		NonNegativeOrthantCone c4 = program.createNonNegativeOrthantCone();
-		NonNegativeOrthantCone c5 = program.createNonNegativeOrthantCone();
+		c5 = program.createNonNegativeOrthantCone();
 		NonNegativeOrthantCone c6 = program.createNonNegativeOrthantCone();
 		NonNegativeOrthantCone c7 = program.createNonNegativeOrthantCone();
+		soc = program.createSecondOrderCone(3);
 		
 		l1 = program.createConstraint();
 		l1.setVariable(c1.getVariable(), 1.0);
@@ -87,6 +100,7 @@ public class ConicProgramPartitionTest {
 		coneSet.add(c5);
 		coneSet.add(c6);
 		coneSet.add(c7);
+		coneSet.add(soc);
 		
 		coneSets.add(coneSet);
 		
@@ -99,6 +113,81 @@ public class ConicProgramPartitionTest {
 		partition.checkOutMatrices();
 	}
 	
+	@Test
+	public void testGetElementMatrices() {
+		program.checkOutMatrices();
+		partition.checkOutMatrices();
+		
+		/* Adds a dense block over the variables of the SOC to the diagonal */
+		List<Integer> rows = new ArrayList<Integer>();
+		List<Integer> columns = new ArrayList<Integer>();
+		for (int i = 0; i < program.getNumVariables(); i++) {
+			rows.add(i);
+			columns.add(i);
+		}
+		for (Variable v : soc.getVariables()) {
+			for (Variable u : soc.getVariables()) {
+				if (!u.equals(v)) {
+					rows.add(program.getIndex(u));
+					columns.add(program.getIndex(v));
+				}
+			}
+		}
+		SparseCCDoubleMatrix2D m = getMatrix(program.getNumVariables(), rows, columns);
+		
+		ElementMatrices blocks = partition.getElementMatrices(m);
+		assertEquals(partition.size(), blocks.getBlocks().size());
+		checkElementMatrices(m, blocks);
+		
+		double[] values = m.getValues();
+		for (int p = 0; p < values.length; p++)
+			values[p] = 2 * values[p] - 1;
+		blocks.update(m);
+		checkElementMatrices(m, blocks);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetElementMatricesNotBlockDiagonal() {
+		program.checkOutMatrices();
+		partition.checkOutMatrices();
+		
+		/* Couples a variable of each element */
+		List<Integer> rows = new ArrayList<Integer>();
+		List<Integer> columns = new ArrayList<Integer>();
+		for (int i = 0; i < program.getNumVariables(); i++) {
+			rows.add(i);
+			columns.add(i);
+		}
+		rows.add(program.getIndex(c1.getVariable()));
+		columns.add(program.getIndex(c5.getVariable()));
+		rows.add(program.getIndex(c5.getVariable()));
+		columns.add(program.getIndex(c1.getVariable()));
+		
+		partition.getElementMatrices(getMatrix(program.getNumVariables(), rows, columns));
+	}
+	
+	/* Returns a matrix with distinct values at the given entries */
+	private static SparseCCDoubleMatrix2D getMatrix(int n, List<Integer> rows, List<Integer> columns) {
+		int[] rowIndexes = new int[rows.size()];
+		int[] columnIndexes = new int[rows.size()];
+		double[] values = new double[rows.size()];
+		for (int k = 0; k < rows.size(); k++) {
+			rowIndexes[k] = rows.get(k);
+			columnIndexes[k] = columns.get(k);
+			values[k] = k + 1;
+		}
+		return new SparseCCDoubleMatrix2D(n, n, rowIndexes, columnIndexes, values, false, false, true);
+	}
+	
+	private void checkElementMatrices(SparseCCDoubleMatrix2D m, ElementMatrices blocks) {
+		int[][] selections = partition.getVarSelections();
+		for (int e = 0; e < partition.size(); e++)
+			for (int i = 0; i < selections[e].length; i++)
+				for (int j = 0; j < selections[e].length; j++)
+					assertEquals(m.getQuick(selections[e][i], selections[e][j]),
+							blocks.getBlocks().get(e).getQuick(i, j), 0.0);
+	}
+	
 	@Test
 	public void testGetCutConstraints() {
 		Set<LinearConstraint> cutConstraints = partition.getCutConstraints();
@@ -106,5 +195,41 @@ public class ConicProgramPartitionTest {
 		assertTrue(cutConstraints.size() == 1);
 		assertTrue(cutConstraints.contains(l2));
 	}
+	
+	@Test
+	public void testGetCutConstraintFlags() {
+		program.checkOutMatrices();
+		
+		BitSet cutFlags = partition.getCutConstraintFlags();
+		assertEquals(1, cutFlags.cardinality());
+		assertTrue(cutFlags.get(program.getIndex(l2)));
+		
+		Set<LinearConstraint> cutConstraints = partition.getCutConstraints();
+		assertEquals(1, cutConstraints.size());
+		assertTrue(cutConstraints.contains(l2));
+	}
+	
+	@Test
+	public void testGetCutConstraintFlagsAfterModification() {
+		program.checkOutMatrices();
+		assertEquals(1, partition.getCutConstraintFlags().cardinality());
+		program.checkInMatrices();
+		
+		/* Cuts a new constraint and uncuts l2 */
+		LinearConstraint l4 = program.createConstraint();
+		l4.setVariable(c1.getVariable(), 1.0);
+		l4.setVariable(c5.getVariable(), 1.0);
+		l4.setConstrainedValue(1.0);
+		l2.delete();
+		
+		program.checkOutMatrices();
+		BitSet cutFlags = partition.getCutConstraintFlags();
+		assertEquals(1, cutFlags.cardinality());
+		assertTrue(cutFlags.get(program.getIndex(l4)));
+		
+		Set<LinearConstraint> cutConstraints = partition.getCutConstraints();
+		assertEquals(1, cutConstraints.size());
+		assertTrue(cutConstraints.contains(l4));
+	}
 }
 
@@ -0,0 +1,137 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.partition;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MultilevelGraphPartitioner}.
+ */
+public class MultilevelGraphPartitionerTest {
+
+	/**
+	 * Tests that two cliques joined by a light edge are split along that edge.
+	 */
+	@Test
+	public void testTwoCliques() {
+		int size = 10;
+		List<int[]> edges = new ArrayList<int[]>();
+		List<Double> weights = new ArrayList<Double>();
+		for (int offset = 0; offset < 2 * size; offset += size)
+			for (int i = 0; i < size; i++)
+				for (int j = i + 1; j < size; j++)
+					addEdge(edges, weights, offset + i, offset + j, 1.0);
+		addEdge(edges, weights, 0, size, 0.5);
+
+		int[] parts = partition(new MultilevelGraphPartitioner(1, 0.0, 4, 4, 0), 2 * size, edges, weights, 2);
+
+		for (int i = 1; i < size; i++) {
+			assertEquals(parts[0], parts[i]);
+			assertEquals(parts[size], parts[size + i]);
+		}
+		assertTrue(parts[0] != parts[size]);
+	}
+
+	/**
+	 * Tests that a grid is split into balanced parts whose cut is much
+	 * smaller than the number of edges, with parallel coarsening.
+	 */
+	@Test
+	public void testGrid() {
+		int side = 100;
+		int k = 4;
+		List<int[]> edges = new ArrayList<int[]>();
+		List<Double> weights = new ArrayList<Double>();
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++) {
+				if (i + 1 < side)
+					addEdge(edges, weights, i * side + j, (i + 1) * side + j, 1.0);
+				if (j + 1 < side)
+					addEdge(edges, weights, i * side + j, i * side + j + 1, 1.0);
+			}
+		}
+
+		double imbalance = 0.05;
+		int[] parts = partition(new MultilevelGraphPartitioner(2, imbalance, 100, 4, 0), side * side, edges, weights, k);
+
+		int[] sizes = new int[k];
+		for (int part : parts)
+			sizes[part]++;
+		for (int i = 0; i < k; i++)
+			assertTrue(sizes[i] <= (1 + imbalance) * side * side / k + 1);
+
+		int cut = 0;
+		for (int[] edge : edges)
+			if (parts[edge[0]] != parts[edge[1]])
+				cut++;
+		assertTrue(cut < edges.size() / 20);
+	}
+
+	/**
+	 * Tests that the number of parts covers the total weight and is a
+	 * multiple of the number of workers, unless it is configured.
+	 */
+	@Test
+	public void testGetNumParts() {
+		MultilevelGraphPartitioner partitioner = new MultilevelGraphPartitioner(1, 0.05, 100, 4, 0, 0, 100);
+		assertEquals(1, partitioner.getNumParts(0, 1));
+		assertEquals(10, partitioner.getNumParts(1000, 1));
+		assertEquals(11, partitioner.getNumParts(1001, 1));
+		assertEquals(12, partitioner.getNumParts(1000, 4));
+		assertEquals(4, partitioner.getNumParts(50, 4));
+
+		partitioner = new MultilevelGraphPartitioner(1, 0.05, 100, 4, 0, 3, 100);
+		assertEquals(3, partitioner.getNumParts(1000, 4));
+	}
+
+	private static void addEdge(List<int[]> edges, List<Double> weights, int u, int v, double weight) {
+		edges.add(new int[] {u, v});
+		weights.add(weight);
+	}
+
+	private static int[] partition(MultilevelGraphPartitioner partitioner, int n, List<int[]> edges,
+			List<Double> weights, int k) {
+		int[] pointers = new int[n + 1];
+		for (int[] edge : edges) {
+			pointers[edge[0] + 1]++;
+			pointers[edge[1] + 1]++;
+		}
+		for (int v = 0; v < n; v++)
+			pointers[v+1] += pointers[v];
+
+		int[] ends = pointers.clone();
+		int[] neighbors = new int[pointers[n]];
+		double[] edgeWeights = new double[pointers[n]];
+		for (int e = 0; e < edges.size(); e++) {
+			int u = edges.get(e)[0];
+			int v = edges.get(e)[1];
+			neighbors[ends[u]] = v;
+			edgeWeights[ends[u]++] = weights.get(e);
+			neighbors[ends[v]] = u;
+			edgeWeights[ends[v]++] = weights.get(e);
+		}
+
+		return partitioner.partition(pointers, neighbors, edgeWeights, k);
+	}
+}
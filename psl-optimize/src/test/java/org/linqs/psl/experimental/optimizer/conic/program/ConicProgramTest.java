@@ -17,10 +17,12 @@
  */
 package org.linqs.psl.experimental.optimizer.conic.program;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.linqs.psl.config.Config;
 import org.linqs.psl.experimental.optimizer.conic.program.Cone;
 import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
 import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
@@ -28,6 +30,7 @@ import org.linqs.psl.experimental.optimizer.conic.program.SecondOrderCone;
 import org.linqs.psl.experimental.optimizer.conic.program.Variable;
 
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
 
 /**
  * Tests {@link ConicProgram}. 
@@ -396,6 +399,145 @@ public class ConicProgramTest {
 		assertTrue(program.getC().cardinality() == 3);
 	}
 	
+	/** Tests checking out matrices again after changing only values of the program. */
+	@Test
+	public void testIncrementalCheckOut() {
+		defineSOCP();
+		LinearConstraint lc = program.createConstraint();
+		lc.setVariable(x1, 1.0);
+		lc.setVariable(x2, 1.0);
+		lc.setConstrainedValue(1.0);
+		
+		program.checkOutMatrices();
+		SparseCCDoubleMatrix2D A = program.getA();
+		program.checkInMatrices();
+		
+		x1.setObjectiveCoefficient(5.0);
+		lc.setVariable(x2, 2.0);
+		lc.setConstrainedValue(3.0);
+		x2.setValue(0.75);
+		
+		program.checkOutMatrices();
+		
+		assertTrue(program.getA() == A);
+		assertTrue(A.getQuick(program.getIndex(lc), program.getIndex(x2)) == 2.0);
+		assertTrue(program.getB().get(program.getIndex(lc)) == 3.0);
+		assertTrue(program.getC().get(program.getIndex(x1)) == 5.0);
+		assertTrue(program.getX().get(program.getIndex(x2)) == 0.75);
+		
+		program.checkInMatrices();
+		lc.setVariable(x1, 0.0);
+		program.checkOutMatrices();
+		
+		assertTrue(program.getA() != A);
+		assertTrue(program.getA().getQuick(program.getIndex(lc), program.getIndex(x1)) == 0.0);
+	}
+	
+	/** Tests that matrix indices follow the order of creation. */
+	@Test
+	public void testInsertionOrdering() {
+		Variable[] vars = new Variable[5];
+		LinearConstraint[] lcs = new LinearConstraint[4];
+		for (int i = 0; i < vars.length; i++)
+			vars[i] = program.createNonNegativeOrthantCone().getVariable();
+		for (int i = 0; i < lcs.length; i++) {
+			lcs[i] = program.createConstraint();
+			lcs[i].setVariable(vars[i], 1.0);
+			lcs[i].setVariable(vars[i+1], 1.0);
+		}
+		
+		program.checkOutMatrices();
+		
+		for (int i = 0; i < vars.length; i++)
+			assertTrue(program.getIndex(vars[i]) == i);
+		for (int i = 0; i < lcs.length; i++)
+			assertTrue(program.getIndex(lcs[i]) == i);
+	}
+	
+	/**
+	 * Tests that checking matrices out and in with fill-reducing ordering
+	 * gives the same values and matrix entries as insertion ordering.
+	 */
+	@Test
+	public void testFillReducingRoundTrip() {
+		ConicProgram reordered;
+		Config.setProperty(ConicProgram.FILL_REDUCING_KEY, true);
+		try {
+			reordered = new ConicProgram();
+		}
+		finally {
+			Config.clearProperty(ConicProgram.FILL_REDUCING_KEY);
+		}
+		
+		Variable[] vars = new Variable[6];
+		LinearConstraint[] lcs = new LinearConstraint[5];
+		defineArrowProgram(program, vars, lcs);
+		Variable[] reorderedVars = new Variable[vars.length];
+		LinearConstraint[] reorderedLcs = new LinearConstraint[lcs.length];
+		defineArrowProgram(reordered, reorderedVars, reorderedLcs);
+		
+		program.checkOutMatrices();
+		reordered.checkOutMatrices();
+		
+		SparseCCDoubleMatrix2D A = program.getA();
+		SparseCCDoubleMatrix2D reorderedA = reordered.getA();
+		for (int i = 0; i < lcs.length; i++) {
+			int row = program.getIndex(lcs[i]);
+			int reorderedRow = reordered.getIndex(reorderedLcs[i]);
+			assertEquals(program.getB().get(row), reordered.getB().get(reorderedRow), 0.0);
+			for (int j = 0; j < vars.length; j++)
+				assertEquals(A.getQuick(row, program.getIndex(vars[j])),
+						reorderedA.getQuick(reorderedRow, reordered.getIndex(reorderedVars[j])), 0.0);
+		}
+		
+		for (int j = 0; j < vars.length; j++) {
+			reordered.getX().set(reordered.getIndex(reorderedVars[j]), j + 0.5);
+			reordered.getS().set(reordered.getIndex(reorderedVars[j]), j + 1.5);
+		}
+		for (int i = 0; i < lcs.length; i++)
+			reordered.getW().set(reordered.getIndex(reorderedLcs[i]), i + 0.25);
+		
+		program.checkInMatrices();
+		reordered.checkInMatrices();
+		
+		for (int j = 0; j < vars.length; j++) {
+			assertEquals(j + 0.5, reorderedVars[j].getValue(), 0.0);
+			assertEquals(j + 1.5, reorderedVars[j].getDualValue(), 0.0);
+		}
+		for (int i = 0; i < lcs.length; i++)
+			assertEquals(i + 0.25, reorderedLcs[i].getLagrange(), 0.0);
+		
+		/* Checks out the reordered program again and compares it with the values just checked in */
+		reordered.checkOutMatrices();
+		for (int j = 0; j < vars.length; j++)
+			assertEquals(j + 0.5, reordered.getX().get(reordered.getIndex(reorderedVars[j])), 0.0);
+		for (int i = 0; i < lcs.length; i++)
+			assertEquals(i + 0.25, reordered.getW().get(reordered.getIndex(reorderedLcs[i])), 0.0);
+		reordered.checkInMatrices();
+	}
+	
+	/*
+	 * Defines a program in which the first constraint has every variable and
+	 * each other constraint has two, so that fill-reducing ordering moves the
+	 * first constraint
+	 */
+	private static void defineArrowProgram(ConicProgram p, Variable[] vars, LinearConstraint[] lcs) {
+		for (int j = 0; j < vars.length; j++) {
+			vars[j] = p.createNonNegativeOrthantCone().getVariable();
+			vars[j].setObjectiveCoefficient(j + 1.0);
+		}
+		lcs[0] = p.createConstraint();
+		for (int j = 0; j < vars.length; j++)
+			lcs[0].setVariable(vars[j], j + 1.0);
+		lcs[0].setConstrainedValue(10.0);
+		for (int i = 1; i < lcs.length; i++) {
+			lcs[i] = p.createConstraint();
+			lcs[i].setVariable(vars[i], 1.0);
+			lcs[i].setVariable(vars[i+1], -2.0);
+			lcs[i].setConstrainedValue((double) i);
+		}
+	}
+	
 	/** Tests adding the same variable twice to a linear constraint. */
 	@Test
 	public void testAddDuplicateVariableToConstraint() {
@@ -408,5 +550,53 @@ public class ConicProgramTest {
 		assertTrue(lc.getVariables().size() == 1);
 		assertTrue(lc.getVariables().get(x) == -1.0);
 	}
+	
+	/** Tests building, checking out, and deleting a program with columnar storage. */
+	@Test
+	public void testColumnarSOCP() {
+		program = new ConicProgram(StorageMode.Columnar);
+		defineSOCP();
+		
+		assertTrue(program.getNumNNOC() == 13);
+		assertTrue(program.gtNumSOC() == 3);
+		assertTrue(program.getConstraints().size() == 14);
+		assertTrue(x1.getLinearConstraints().size() == 3);
+		
+		LinearConstraint lc = program.createConstraint();
+		lc.setVariable(x1, 2.0);
+		lc.setVariable(x2, 3.0);
+		lc.setVariable(x1, 0.0);
+		lc.setConstrainedValue(4.0);
+		
+		assertTrue(lc.getVariables().size() == 1);
+		assertTrue(lc.getVariables().get(x2) == 3.0);
+		assertTrue(!lc.getVariables().containsKey(x1));
+		assertTrue(x1.getLinearConstraints().size() == 3);
+		assertTrue(x2.getLinearConstraints().contains(lc));
+		
+		program.checkOutMatrices();
+		
+		assertTrue(program.getA().rows() == 15);
+		assertTrue(program.getA().columns() == 22);
+		assertTrue(program.getA().getQuick(program.getIndex(lc), program.getIndex(x2)) == 3.0);
+		assertTrue(program.getB().get(program.getIndex(lc)) == 4.0);
+		assertTrue(program.getC().cardinality() == 3);
+		
+		program.getX().set(program.getIndex(x1), 2.5);
+		program.checkInMatrices();
+		
+		assertTrue(x1.getValue() == 2.5);
+		
+		x1.getCone().delete();
+		lc.delete();
+		
+		assertTrue(program.getNumNNOC() == 12);
+		assertTrue(program.getConstraints().size() == 14);
+		assertTrue(x1.getValue() == 2.5);
+		
+		program.checkOutMatrices();
+		
+		assertTrue(program.getA().rows() == 14);
+		assertTrue(program.getA().columns() == 21);
+	}
 }
-
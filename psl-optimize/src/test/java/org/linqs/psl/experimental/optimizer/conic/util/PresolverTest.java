@@ -0,0 +1,200 @@
+/*
+ * This file is part of the PSL software.
+ * Copyright 2011-2015 University of Maryland
+ * Copyright 2013-2018 The Regents of the University of California
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.linqs.psl.experimental.optimizer.conic.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.linqs.psl.experimental.optimizer.conic.ipm.HomogeneousIPM;
+import org.linqs.psl.experimental.optimizer.conic.program.ConicProgram;
+import org.linqs.psl.experimental.optimizer.conic.program.LinearConstraint;
+import org.linqs.psl.experimental.optimizer.conic.program.Variable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PresolverTest {
+
+	private ConicProgram program;
+	private Presolver presolver;
+
+	@Before
+	public final void setUp() {
+		program = new ConicProgram();
+		presolver = new Presolver(program);
+	}
+
+	@Test
+	public void testReduceAndSolve() {
+		Variable x1 = program.createNonNegativeOrthantCone().getVariable();
+		Variable x2 = program.createNonNegativeOrthantCone().getVariable();
+		Variable x3 = program.createNonNegativeOrthantCone().getVariable();
+		Variable x4 = program.createNonNegativeOrthantCone().getVariable();
+		Variable x5 = program.createNonNegativeOrthantCone().getVariable();
+		Variable x6 = program.createNonNegativeOrthantCone().getVariable();
+
+		x1.setObjectiveCoefficient(1.0);
+		x2.setObjectiveCoefficient(2.0);
+		x5.setObjectiveCoefficient(1.0);
+		x6.setObjectiveCoefficient(3.0);
+
+		/* Duplicates of each other */
+		LinearConstraint con1 = program.createConstraint();
+		con1.setVariable(x1, 1.0);
+		con1.setVariable(x2, 1.0);
+		con1.setConstrainedValue(2.0);
+		LinearConstraint con2 = program.createConstraint();
+		con2.setVariable(x1, 2.0);
+		con2.setVariable(x2, 2.0);
+		con2.setConstrainedValue(4.0);
+
+		/* Singleton */
+		LinearConstraint con3 = program.createConstraint();
+		con3.setVariable(x3, 2.0);
+		con3.setConstrainedValue(1.0);
+
+		/* x6 is a more expensive duplicate of x5 */
+		LinearConstraint con4 = program.createConstraint();
+		con4.setVariable(x1, 1.0);
+		con4.setVariable(x3, 1.0);
+		con4.setVariable(x5, 1.0);
+		con4.setVariable(x6, 2.0);
+		con4.setConstrainedValue(3.5);
+
+		/* x4 is in no constraints */
+
+		program.checkOutMatrices();
+		presolver.checkOutProgram();
+		ConicProgram reducedProgram = presolver.getReducedProgram();
+		assertEquals(3, reducedProgram.getNumVariables());
+		assertEquals(2, reducedProgram.getNumLinearConstraints());
+
+		HomogeneousIPM solver = new HomogeneousIPM();
+		solver.setConicProgram(reducedProgram);
+		solver.solve();
+		presolver.checkInProgram();
+
+		assertEquals(3.0, program.getC().zDotProduct(program.getX()), 10e-5);
+		assertTrue(program.getPrimalInfeasibility() < 10e-5);
+		program.checkInMatrices();
+
+		assertEquals(2.0, x1.getValue(), 10e-5);
+		assertEquals(0.5, x3.getValue(), 0.0);
+		assertEquals(0.0, x4.getValue(), 0.0);
+		assertEquals(0.0, x6.getValue(), 0.0);
+	}
+
+	@Test
+	public void testForcingConstraint() {
+		Variable x1 = program.createNonNegativeOrthantCone().getVariable();
+		Variable x2 = program.createNonNegativeOrthantCone().getVariable();
+		Variable x3 = program.createNonNegativeOrthantCone().getVariable();
+
+		x1.setObjectiveCoefficient(-1.0);
+		x3.setObjectiveCoefficient(1.0);
+
+		LinearConstraint con1 = program.createConstraint();
+		con1.setVariable(x1, 1.0);
+		con1.setVariable(x2, 2.0);
+		con1.setConstrainedValue(0.0);
+		LinearConstraint con2 = program.createConstraint();
+		con2.setVariable(x2, 1.0);
+		con2.setVariable(x3, 1.0);
+		con2.setConstrainedValue(1.0);
+
+		program.checkOutMatrices();
+		presolver.checkOutProgram();
+		assertEquals(0, presolver.getReducedProgram().getNumVariables());
+		presolver.checkInProgram();
+
+		assertTrue(program.getPrimalInfeasibility() < 10e-8);
+		assertTrue(program.getDualInfeasibility() < 10e-8);
+		for (int i = 0; i < program.getS().size(); i++)
+			assertTrue(program.getS().get(i) >= 0.0);
+		program.checkInMatrices();
+
+		assertEquals(0.0, x1.getValue(), 0.0);
+		assertEquals(0.0, x2.getValue(), 0.0);
+		assertEquals(1.0, x3.getValue(), 0.0);
+	}
+
+	/** Tests reductions that are only possible after other reductions. */
+	@Test
+	public void testChainedReductions() {
+		Variable x1 = program.createNonNegativeOrthantCone().getVariable();
+		Variable x2 = program.createNonNegativeOrthantCone().getVariable();
+		Variable x3 = program.createNonNegativeOrthantCone().getVariable();
+		Variable x4 = program.createNonNegativeOrthantCone().getVariable();
+
+		x3.setObjectiveCoefficient(1.0);
+		x4.setObjectiveCoefficient(1.0);
+
+		/* Forcing */
+		LinearConstraint con1 = program.createConstraint();
+		con1.setVariable(x1, 1.0);
+		con1.setVariable(x2, 1.0);
+		con1.setConstrainedValue(0.0);
+
+		/* Singleton once x2 is fixed */
+		LinearConstraint con2 = program.createConstraint();
+		con2.setVariable(x2, 1.0);
+		con2.setVariable(x3, 1.0);
+		con2.setConstrainedValue(1.0);
+
+		/* Duplicates of each other once x1 is fixed, then singletons once x3 is fixed */
+		LinearConstraint con3 = program.createConstraint();
+		con3.setVariable(x1, 1.0);
+		con3.setVariable(x3, 1.0);
+		con3.setVariable(x4, 1.0);
+		con3.setConstrainedValue(2.0);
+		LinearConstraint con4 = program.createConstraint();
+		con4.setVariable(x3, 2.0);
+		con4.setVariable(x4, 2.0);
+		con4.setConstrainedValue(4.0);
+
+		program.checkOutMatrices();
+		presolver.checkOutProgram();
+		assertEquals(0, presolver.getReducedProgram().getNumVariables());
+		assertEquals(0, presolver.getReducedProgram().getNumLinearConstraints());
+		presolver.checkInProgram();
+
+		assertTrue(program.getPrimalInfeasibility() < 10e-8);
+		program.checkInMatrices();
+
+		assertEquals(0.0, x1.getValue(), 0.0);
+		assertEquals(0.0, x2.getValue(), 0.0);
+		assertEquals(1.0, x3.getValue(), 10e-8);
+		assertEquals(1.0, x4.getValue(), 10e-8);
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testInfeasibleSingleton() {
+		Variable x1 = program.createNonNegativeOrthantCone().getVariable();
+		LinearConstraint con1 = program.createConstraint();
+		con1.setVariable(x1, 1.0);
+		con1.setConstrainedValue(-1.0);
+
+		program.checkOutMatrices();
+		presolver.checkOutProgram();
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void testCheckOutBeforeCheckOutMatrices() {
+		presolver.checkOutProgram();
+	}
+}